@@ -0,0 +1,75 @@
+package org.raincityvoices.ttrack.service;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage.LocationStats;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage.Stats;
+import org.raincityvoices.ttrack.service.storage.media.MediaPrefetcher;
+import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.storage.songs.SongStorage;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Actuator endpoint for inspecting and managing the local media cache:
+ * <ul>
+ *   <li>{@code GET /actuator/mediacache?top=N}: cache statistics, and the N most read locations</li>
+ *   <li>{@code POST /actuator/mediacache/{songId}}: fetch the song's part media into the cache</li>
+ *   <li>{@code DELETE /actuator/mediacache/{songId}}: delete the song's media from the cache</li>
+ * </ul>
+ */
+@Component
+@Endpoint(id = "mediacache")
+@Slf4j
+@RequiredArgsConstructor
+public class MediaCacheEndpoint {
+
+    private static final int DEFAULT_TOP = 20;
+
+    public record Report(Stats stats, List<LocationStats> hottest) {}
+
+    private final MediaStorage mediaStorage;
+    private final SongStorage songStorage;
+    private final MediaPrefetcher mediaPrefetcher;
+
+    @ReadOperation
+    public Report report(@Nullable Integer top) {
+        DiskCachingMediaStorage cache = cache();
+        return new Report(cache.stats(), cache.hottest(top != null ? top : DEFAULT_TOP));
+    }
+
+    @WriteOperation
+    public List<String> warm(@Selector String songId) {
+        List<String> locations = songStorage.listParts(Optional.of(songId)).stream()
+            .map(AudioTrackDTO::getMediaLocation)
+            .filter(Objects::nonNull)
+            .toList();
+        log.info("Warming media cache for song {}: {}", songId, locations);
+        mediaPrefetcher.prefetch(locations);
+        return locations;
+    }
+
+    @DeleteOperation
+    public int purge(@Selector String songId) {
+        return cache().purgeSong(songId);
+    }
+
+    private DiskCachingMediaStorage cache() {
+        if (mediaStorage instanceof DiskCachingMediaStorage cache) {
+            return cache;
+        }
+        throw new IllegalStateException("Media storage " + mediaStorage.getClass().getSimpleName() + " has no local cache.");
+    }
+}
@@ -1,17 +1,26 @@
 package org.raincityvoices.ttrack.service;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.raincityvoices.ttrack.service.api.CreateMixRequestBase;
 import org.raincityvoices.ttrack.service.api.CreateMixTrackPackageRequest;
@@ -30,8 +39,11 @@ import org.raincityvoices.ttrack.service.async.CreateMixTrackTask;
 import org.raincityvoices.ttrack.service.async.ProcessUploadedPartTask;
 import org.raincityvoices.ttrack.service.async.RefreshAllMixesTask;
 import org.raincityvoices.ttrack.service.async.RefreshMixTrackTask;
+import org.raincityvoices.ttrack.service.async.TaskLane;
 import org.raincityvoices.ttrack.service.async.ZipTracksTask;
 import org.raincityvoices.ttrack.service.async.ZipTracksTask.Output;
+import org.raincityvoices.ttrack.service.audio.AudioDebugger;
+import org.raincityvoices.ttrack.service.audio.MixInputs;
 import org.raincityvoices.ttrack.service.audio.MixUtils;
 import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
 import org.raincityvoices.ttrack.service.audio.model.AudioMix;
@@ -39,7 +51,11 @@ import org.raincityvoices.ttrack.service.audio.model.AudioPart;
 import org.raincityvoices.ttrack.service.exceptions.BadRequestException;
 import org.raincityvoices.ttrack.service.exceptions.ConflictException;
 import org.raincityvoices.ttrack.service.exceptions.NotFoundException;
+import org.raincityvoices.ttrack.service.notation.MusicXmlTimingReader;
+import org.raincityvoices.ttrack.service.notation.MusicXmlTimingReader.NotationTiming;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
 import org.raincityvoices.ttrack.service.storage.media.MediaContent;
+import org.raincityvoices.ttrack.service.storage.media.MediaPrefetcher;
 import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
 import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
 import org.raincityvoices.ttrack.service.storage.songs.SongDTO;
@@ -47,6 +63,8 @@ import org.raincityvoices.ttrack.service.storage.songs.SongStorage;
 import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataStorage;
 import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataStorage.TimedDataMetadata;
 import org.raincityvoices.ttrack.service.util.Conversions;
+import org.raincityvoices.ttrack.service.util.FileManager;
+import org.raincityvoices.ttrack.service.util.Temp;
 import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.MediaType;
@@ -92,6 +110,8 @@ public class SongController {
     private final MediaStorage mediaStorage;
     private final AsyncTaskManager taskManager;
     private final MediaUrlProvider mediaUrlProvider;
+    private final MediaPrefetcher mediaPrefetcher;
+    private final FileManager fileManager;
 
     private static final DefaultUriBuilderFactory URI_BUILDER_FACTORY = new DefaultUriBuilderFactory("/songs/");
 
@@ -116,6 +136,9 @@ public class SongController {
         SongBuilder builder = rawSong.toBuilder();
         List<AudioTrackDTO> parts = songStorage.listParts(Optional.of(songId));
         builder.parts(parts.stream().map(AudioTrackDTO::getId).toList());
+        if (mediaPrefetcher.isRecentlyOpened(songId)) {
+            prefetchMedia(parts);
+        }
         AudioTrackDTO allMix = songStorage.describeMix(songId, ALL_CHANNEL_MIX_ID);
         if (allMix != null) {
             builder.mediaUpdated(allMix.getUpdated());
@@ -151,9 +174,21 @@ public class SongController {
         if (dto == null) {
             throw new NotFoundException("Song " + songId.value() + " not found.");
         }
+        // Parts are likely to be played or mixed soon, so start bringing their media into the local cache.
+        mediaPrefetcher.songOpened(songId.value());
+        if (!extended) {
+            prefetchMedia(songStorage.listParts(Optional.of(songId.value())));
+        }
         return toSong(dto, extended);
     }
 
+    private void prefetchMedia(List<AudioTrackDTO> tracks) {
+        mediaPrefetcher.prefetch(tracks.stream()
+            .map(AudioTrackDTO::getMediaLocation)
+            .filter(Objects::nonNull)
+            .toList());
+    }
+
     @PutMapping({"/{id}","/{id}/"})
     public Song updateSong(@PathVariable("id") String songId, @RequestBody Song song) {
         if (!songId.equals(song.getId().value())) {
@@ -167,10 +202,45 @@ public class SongController {
     }
 
     @PutMapping({"/{id}/notation","/{id}/notation/"})
-    public void uploadNotationFile(@PathVariable("id") SongId songId, @RequestParam("file") MultipartFile file) throws IOException {
+    public void uploadNotationFile(@PathVariable("id") SongId songId, @RequestParam("file") MultipartFile file,
+                                   @RequestParam(value = "overwriteTiming", required = false) boolean overwriteTiming) throws IOException {
         MediaContent content = MediaContent.fromMultipartFile(file);
         log.info("Inferred notation file metadata: {}", content.metadata());
         mediaStorage.putMedia(mediaStorage.locationFor(songId, NOTATION_FILE_ID), content);
+        if (MusicXmlTimingReader.isMusicXml(file.getOriginalFilename())) {
+            storeNotationTiming(songId, file, overwriteTiming);
+        }
+    }
+
+    /**
+     * Store measure start times and lyrics read from a MusicXML notation file as timed data.
+     * Data the song already has, e.g. measure times aligned by hand to a recording, is only replaced if
+     * {@code overwrite} is set.
+     */
+    private void storeNotationTiming(SongId songId, MultipartFile file, boolean overwrite) throws IOException {
+        NotationTiming timing;
+        try (InputStream in = file.getInputStream()) {
+            timing = new MusicXmlTimingReader().read(in);
+        } catch (XMLStreamException e) {
+            log.warn("Failed to read timing from notation file {}; it is stored, but no timed data was created.",
+                file.getOriginalFilename(), e);
+            return;
+        }
+        Set<String> existing = overwrite ? Set.of() : dataStorage.listDataForSong(songId.value()).stream()
+            .map(metadata -> metadata.getPart() + "/" + metadata.getType())
+            .collect(Collectors.toSet());
+        List<TimedTextDTO> data = new ArrayList<>(timing.lyrics());
+        if (!timing.measures().entries().isEmpty()) {
+            data.add(0, timing.measures());
+        }
+        for (TimedTextDTO item : data) {
+            if (existing.contains(item.part() + "/" + item.type())) {
+                log.info("Song {} already has {} data for part {}; not replacing it with the notation's",
+                    songId, item.type(), item.part());
+            } else {
+                dataStorage.putDataForSong(songId.value(), item);
+            }
+        }
     }
 
     @DeleteMapping({"/{id}/notation","/{id}/notation/"})
@@ -230,25 +300,37 @@ public class SongController {
             throw new BadRequestException("Request specifies a different number of files (" + files.length +") and part names (" + partNames.length + ")");
         }
         ImmutableList.Builder<AudioTrackDTO> output = ImmutableList.builder();
+        boolean anyChanged = false;
         for (int i = 0; i < files.length; ++i) {
             log.info("Uploading {} as part {}", files[i].getOriginalFilename(), partNames[i]);
-            AudioTrackDTO track = uploadOnePart(songId.value(), partNames[i], overwrite, files[i]);
-            output.add(track);
+            PartUpload upload = uploadOnePart(songId.value(), partNames[i], overwrite, files[i]);
+            output.add(upload.track());
+            anyChanged |= upload.changed();
+        }
+        if (anyChanged) {
+            updateAllChannelMix(songId.value());
+            taskManager.schedule(RefreshAllMixesTask.class, songId.value());
+        } else {
+            log.info("No part media changed for song {}; not refreshing mixes.", songId.value());
         }
-        updateAllChannelMix(songId.value());
-        taskManager.schedule(RefreshAllMixesTask.class, songId.value());
         return output.build();
     }
 
     @PutMapping({"/{id}/parts/{partName}","/{id}/parts/{partName}/"})
     public String uploadMediaForPart(@PathVariable("id") SongId songId, @PathVariable("partName") AudioPart part, 
                                      @QueryParam("overwrite") boolean overwrite, @RequestParam MultipartFile audioFile) throws Exception {
-        uploadOnePart(songId.value(), part.name(), overwrite, audioFile);
-        updateAllChannelMix(songId.value());
+        if (uploadOnePart(songId.value(), part.name(), overwrite, audioFile).changed()) {
+            updateAllChannelMix(songId.value());
+        }
         return part.name();
     }
 
-    private AudioTrackDTO uploadOnePart(String songId, String part, boolean overwrite, MultipartFile audioFile)
+    /**
+     * @param changed false if the part already had identical media, so nothing downstream needs refreshing.
+     */
+    private record PartUpload(AudioTrackDTO track, boolean changed) {}
+
+    private PartUpload uploadOnePart(String songId, String part, boolean overwrite, MultipartFile audioFile)
             throws IOException, UnsupportedAudioFileException {
         final AudioTrackDTO track;
         AudioTrackDTO existing = songStorage.describePart(songId, part);
@@ -265,11 +347,19 @@ public class SongController {
             songStorage.writeTrack(track);
         }
         String mediaLocation = mediaStorage.locationFor(songId, track.getId());
-        mediaStorage.putMedia(mediaLocation, MediaContent.fromMultipartFile(audioFile));
+        CompletableFuture<FileMetadata> uploaded = mediaStorage.putMediaIfChanged(mediaLocation, MediaContent.fromMultipartFile(audioFile));
+        if (uploaded == null && mediaLocation.equals(track.getMediaLocation())) {
+            log.info("Media for part {} of song {} is unchanged; skipping processing.", part, songId);
+            return new PartUpload(track, false);
+        }
         track.setMediaLocation(mediaLocation);
         songStorage.writeTrack(track);
+        if (uploaded != null && taskManager.isQueued()) {
+            // Workers on other instances read the part from remote storage, so it must be there first.
+            uploaded.join();
+        }
         taskManager.schedule(ProcessUploadedPartTask.class, track);
-        return track;
+        return new PartUpload(track, true);
     }
 
     @GetMapping({"/{id}/parts/{partName}/media","/{id}/parts/{partName}/media/"})
@@ -355,6 +445,106 @@ public class SongController {
         downloadTrack(response, dto, defaultFileName);
     }
 
+    /**
+     * Render a section of a mix, e.g. to practise it in a loop, and send it to the client. The section is given either
+     * in milliseconds ({@code from} inclusive, {@code to} exclusive), or as measure numbers ({@code fromMeasure} and
+     * {@code toMeasure}, both inclusive) that are looked up in the song's measure timings. Only the media needed for
+     * the section is decoded, so the cost depends on the length of the section, not of the song. The pitch shift and
+     * speed factor default to the mix's own.
+     */
+    @GetMapping({"/{id}/mixes/{mixName}/loop","/{id}/mixes/{mixName}/loop/"})
+    public void renderMixLoop(HttpServletResponse response, @PathVariable("id") SongId songId, @PathVariable("mixName") String mixName,
+                              @RequestParam(value = "from", required = false) Long fromMs,
+                              @RequestParam(value = "to", required = false) Long toMs,
+                              @RequestParam(value = "fromMeasure", required = false) String fromMeasure,
+                              @RequestParam(value = "toMeasure", required = false) String toMeasure,
+                              @RequestParam(value = "pitchShift", required = false) Integer pitchShift,
+                              @RequestParam(value = "speedFactor", required = false) Double speedFactor) {
+        AudioTrackDTO dto = songStorage.describeMix(songId.value(), mixName);
+        if (dto == null) {
+            throw new NotFoundException("Mix '" + mixName + "' not found for song '" + songId.value() + "'");
+        }
+        LoopRange range = resolveLoopRange(songId, fromMs, toMs, fromMeasure, toMeasure);
+        List<AudioTrackDTO> partTracks = dto.getParts().stream()
+            .map(p -> fetchTrackOrThrowNotFound(songId, new AudioPart(p)))
+            .toList();
+        for (int i = 0; i < partTracks.size(); ++i) {
+            if (!partTracks.get(i).hasMedia() && dto.getAudioMix().usesInput(i)) {
+                throw new NotFoundException("Part '" + partTracks.get(i).getId() + "' has no media available");
+            }
+        }
+        AudioFileFormat.Type fileType = AudioFormats.mixFileType(dto.getAudioMix());
+        log.info("Rendering {} - {} ms of mix {}/{}", range.fromMs(), range.toMs(), songId.value(), mixName);
+        try (Temp.File tempFile = Temp.file("ttrack-loop-")) {
+            // Decoding and encoding are CPU-bound, so the render takes a slot in the CPU lane, like mix renders do.
+            taskManager.runInLane(TaskLane.CPU, songId.value(), () -> {
+                try (MixInputs inputs = MixInputs.open(mediaStorage, partTracks, dto.getAudioMix(),
+                                                       ObjectUtils.firstNonNull(pitchShift, dto.getPitchShift(), 0),
+                                                       ObjectUtils.firstNonNull(speedFactor, dto.getSpeedFactor(), 1.0),
+                                                       range.fromMs(), range.toMs(), AudioDebugger.Settings.NONE)) {
+                    fileManager.writeAudio(AudioFormats.toTargetFormat(inputs.mix(), fileType), fileType, tempFile);
+                }
+                return null;
+            });
+            response.setContentType(AudioFormats.contentType(fileType));
+            response.setContentLengthLong(fileManager.getLengthBytes(tempFile));
+            String fileName = String.format("%s - %s (%s).%s", songStorage.describeSong(songId.value()).getTitle(), mixName,
+                fromMeasure != null || toMeasure != null
+                    ? "mm. " + StringUtils.defaultString(fromMeasure, "1") + "-" + StringUtils.defaultString(toMeasure, "end")
+                    : range.fromMs() + "-" + range.toMs() + " ms",
+                fileType.getExtension());
+            response.setHeader("Content-Disposition", ContentDisposition.attachment().filename(fileName).build().toString());
+            try (InputStream in = new FileInputStream(tempFile)) {
+                IOUtils.copy(in, response.getOutputStream());
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rendering section of mix " + mixName, e);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to render section of mix " + mixName, e);
+        }
+    }
+
+    private record LoopRange(long fromMs, long toMs) {}
+
+    private LoopRange resolveLoopRange(SongId songId, Long fromMs, Long toMs, String fromMeasure, String toMeasure) {
+        long from = fromMs != null ? fromMs : 0;
+        long to = toMs != null ? toMs : MixInputs.END;
+        if (fromMeasure != null || toMeasure != null) {
+            TimedTextDTO measures = dataStorage.getDataForPart(songId.value(), TimedTextData.SHARED_PART_NAME, TimedTextData.TYPE_MEASURES.value());
+            if (measures == null || measures.entries().isEmpty()) {
+                throw new BadRequestException("Song '" + songId.value() + "' has no measure timings");
+            }
+            // Measures are in playback order, so a measure that is repeated appears more than once; use the first
+            // occurrence of the start measure, and the first occurrence of the end measure after that.
+            List<TimedTextDTO.Entry> entries = measures.entries();
+            int start = 0;
+            if (fromMeasure != null) {
+                start = indexOfMeasure(entries, fromMeasure, 0);
+                from = entries.get(start).t();
+            }
+            if (toMeasure != null) {
+                int end = indexOfMeasure(entries, toMeasure, start);
+                to = end + 1 < entries.size() ? entries.get(end + 1).t() : MixInputs.END;
+            }
+        }
+        if (from < 0 || from >= to) {
+            throw new BadRequestException("Section starts (" + from + ") at or after it ends (" + to + ")");
+        }
+        return new LoopRange(from, to);
+    }
+
+    private static int indexOfMeasure(List<TimedTextDTO.Entry> measures, String measure, int start) {
+        for (int i = start; i < measures.size(); ++i) {
+            if (measure.equals(measures.get(i).v())) {
+                return i;
+            }
+        }
+        throw new BadRequestException("Measure '" + measure + "' not found" + (start > 0 ? " after the start of the section" : ""));
+    }
+
     @PostMapping({"/{id}/mixes", "/{id}/mixes/"})
     public List<MixTrack> createMixTracks(@PathVariable("id") SongId songId, @RequestBody CreateMixRequestBase request,
                                         @QueryParam("overwrite") boolean overwrite) {
@@ -391,9 +581,24 @@ public class SongController {
         return exec.task().taskId();
     }    
 
+    /**
+     * Get the song's timed data. If {@code from} or {@code to} is given, only the entries in that time window
+     * (in milliseconds) are returned, along with the entry in effect at its start, for the given parts, or all parts.
+     */
     @GetMapping({"/{id}/text","/{id}/text/"})
-    public TimedTextData getAllTimedData(@PathVariable("id") SongId songId) {
-        List<TimedTextDTO> dtos = dataStorage.getAllDataForSong(songId.value());
+    public TimedTextData getAllTimedData(@PathVariable("id") SongId songId,
+                                         @RequestParam(value = "from", required = false) Long fromMs,
+                                         @RequestParam(value = "to", required = false) Long toMs,
+                                         @RequestParam(value = "parts", required = false) List<String> parts) {
+        if (fromMs == null && toMs == null) {
+            return Conversions.toTimedTextData(dataStorage.getAllDataForSong(songId.value()));
+        }
+        long from = fromMs != null ? fromMs : 0;
+        long to = toMs != null ? toMs : Long.MAX_VALUE;
+        if (from > to) {
+            throw new BadRequestException("Time window starts (" + from + ") after it ends (" + to + ")");
+        }
+        List<TimedTextDTO> dtos = dataStorage.getDataInWindow(songId.value(), parts != null ? parts : List.of(), from, to);
         return Conversions.toTimedTextData(dtos);
     }
 
@@ -466,11 +671,14 @@ public class SongController {
 
         final AudioMix mix;
         try {
-            mix = MixUtils.parseStereoMix(request.description(), request.parts());
+            mix = MixUtils.parseMix(request.description(), request.parts());
         } catch(IllegalArgumentException e) {
             log.info("Unable to parse audio mix description '{}' for parts {}", request.description(), request.parts(), e);
             throw new BadRequestException("Invalid mix description or parts: " + e.getMessage());
         }
+        if (mix.numInputs() != request.parts().size()) {
+            throw new BadRequestException("Mix has " + mix.numInputs() + " inputs, but " + request.parts().size() + " parts were given");
+        }
         
         AudioTrackDTO existing = songStorage.describeMix(songId.value(), request.name());
         AudioTrackDTO newDto;
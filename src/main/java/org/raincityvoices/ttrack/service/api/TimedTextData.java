@@ -13,6 +13,7 @@ import org.raincityvoices.ttrack.service.util.StringId;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.collect.ImmutableList;
 
 import lombok.Builder;
 import lombok.Getter;
@@ -56,18 +57,29 @@ public class TimedTextData {
 
     @JsonCreator
     public TimedTextData(Map<AudioPart, Map<DataType, List<Entry>>> entriesByType) {
-        // Sort entries by time
+        // Sort entries by time, unless they already are, as they are when read from storage.
         this.byPart = entriesByType.entrySet().stream().collect(toImmutableMap(te -> te.getKey(), 
             te -> te.getValue().entrySet().stream().collect(toImmutableMap(pe -> pe.getKey(), 
-                pe -> pe.getValue()
-                    .stream()
-                    .sorted(Comparator.comparingLong(Entry::t))
-                    .collect(toImmutableList())
+                pe -> isSorted(pe.getValue())
+                    ? ImmutableList.copyOf(pe.getValue())
+                    : pe.getValue()
+                        .stream()
+                        .sorted(Comparator.comparingLong(Entry::t))
+                        .collect(toImmutableList())
                 )
             )
         ));
     }
 
+    private static boolean isSorted(List<Entry> entries) {
+        for (int i = 1; i < entries.size(); ++i) {
+            if (entries.get(i).t() < entries.get(i - 1).t()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Getter(onMethod = @__(@JsonValue))
     Map<AudioPart, Map<DataType, List<Entry>>> byPart;
 }
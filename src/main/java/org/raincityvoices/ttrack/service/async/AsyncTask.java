@@ -3,14 +3,20 @@ package org.raincityvoices.ttrack.service.async;
 import static lombok.AccessLevel.PUBLIC;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
+import org.raincityvoices.ttrack.service.exceptions.ConflictException;
 import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
 import org.raincityvoices.ttrack.service.storage.async.AzureTablesAsyncTaskStorage;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.ClassUtils;
 
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -35,6 +41,10 @@ import lombok.extern.slf4j.Slf4j;
  *   <li><strong>RUNNING</strong>: Task begins processing via {@link #process()}</li>
  *   <li><strong>SUCCEEDED/FAILED</strong>: Task completes with result or error</li>
  * </ol>
+ *
+ * A task may be canceled at any point via {@link #requestCancel(String)}, which moves it to
+ * <strong>CANCELING</strong>. The task notices this at its next check (at startup, after acquiring
+ * the lock, or wherever the subclass calls {@link #checkCanceled()}) and stops as <strong>CANCELED</strong>.
  * 
  * <h2>Key Features</h2>
  * <ul>
@@ -80,13 +90,33 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
     @Getter(PUBLIC)
     private final I input;
     @Autowired
-    private AzureTablesAsyncTaskStorage asyncTaskStorage;
+    private AsyncTaskStorage asyncTaskStorage;
     @Autowired
     private Clock clock;
     
     @Getter(PUBLIC)
-    private final String taskId = UUID.randomUUID().toString();
+    private String taskId = UUID.randomUUID().toString();
+    /** Whether the task is placed on the shared work queue rather than executed by this instance. */
+    private boolean queued;
+    @Getter(PUBLIC)
+    private TaskPriority priority = TaskPriority.USER;
     private AsyncTaskDTO taskDto;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean started;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean cancelRequested;
+    /** Set when a worker lost its lease on this task, which another worker now owns. */
+    @Getter(AccessLevel.NONE)
+    private volatile boolean abandoned;
+    /** The thread executing this task, while it runs. Guarded by {@code this}. */
+    @Getter(AccessLevel.NONE)
+    private Thread runner;
+    /** For queued tasks, when to next check the DB for a cancellation requested by another instance. */
+    @Getter(AccessLevel.NONE)
+    private Instant nextCancelPoll = Instant.MIN;
+
+    private static final Duration CANCEL_POLL_INTERVAL = Duration.ofSeconds(2);
+    private static final int MAX_CANCEL_ATTEMPTS = 5;
 
     public String songId() { return input().getSongId(); }
 
@@ -100,25 +130,153 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
         createAsyncTaskRecord();
     }
 
+    /**
+     * Mark the task to be placed on the shared work queue when it is initialized.
+     */
+    void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Bind this task to an existing persistent record, so that it can be executed by
+     * a worker other than the one that scheduled it.
+     */
+    void attachTo(AsyncTaskDTO dto) {
+        this.taskId = dto.getTaskId();
+        this.queued = Boolean.TRUE.equals(dto.getQueued());
+        if (dto.getPriority() != null) {
+            this.priority = TaskPriority.valueOf(dto.getPriority());
+        }
+    }
+
+    void setPriority(TaskPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * The lane in which this task runs. Defaults to {@link TaskLane#CPU}; tasks that mostly
+     * wait on storage, or only do light housekeeping, should override this.
+     */
+    public TaskLane lane() {
+        return TaskLane.CPU;
+    }
+
+    /**
+     * The key of the resource this task produces, e.g. the track it renders, or null if the task
+     * can't be coalesced with other tasks. When a task is scheduled while another task with the same
+     * key is still pending, {@link AsyncTaskManager} either merges the two (if the older task has the
+     * same input and hasn't started yet) or cancels the older task in favor of the newer one.
+     */
+    public String coalescingKey() {
+        return null;
+    }
+
     public abstract Class<I> getInputClass();
 
+    /**
+     * @return true if this task has started executing on this instance.
+     */
+    boolean hasStarted() {
+        return started;
+    }
+
+    /**
+     * Ask this task to stop, e.g. because a newer task supersedes it. The request is persisted,
+     * so that it reaches the task wherever it runs; a queued task that no worker has claimed yet
+     * is canceled outright.
+     */
+    void requestCancel(String reason) {
+        cancel(reason, false);
+    }
+
+    /**
+     * Cancel this task, which was dropped from its lane before it started, and so will never run.
+     */
+    void cancelDropped(String reason) {
+        cancel(reason, true);
+    }
+
+    private void cancel(String reason, boolean dropped) {
+        cancelRequested = true;
+        for (int attempt = 0; attempt < MAX_CANCEL_ATTEMPTS; ++attempt) {
+            AsyncTaskDTO dto = asyncTaskStorage.getTask(taskId);
+            if (dto == null || AsyncTaskDTO.isTerminal(dto.getStatus())) {
+                return;
+            }
+            boolean unclaimed = dropped || queued && AsyncTaskDTO.SCHEDULED.equals(dto.getStatus());
+            dto.setStatus(unclaimed ? AsyncTaskDTO.CANCELED : AsyncTaskDTO.CANCELING);
+            dto.setErrorDetails(reason);
+            if (unclaimed) {
+                dto.setEndTime(clock.instant());
+            }
+            try {
+                asyncTaskStorage.updateTask(dto);
+                log.info("Requested cancelation of task {}: {}", taskId, reason);
+                return;
+            } catch (ConflictException e) {
+                log.debug("Conflict while canceling task {}; retrying.", taskId);
+            }
+        }
+        log.warn("Failed to persist cancelation of task {}", taskId);
+    }
+
+    /**
+     * Stop executing this task on this instance, without recording anything in its task record, because
+     * another worker has taken it over. The task stops at its next {@link #checkCanceled()}, or sooner if
+     * it responds to interruption.
+     */
+    synchronized void abandon() {
+        abandoned = true;
+        cancelRequested = true;
+        if (runner != null) {
+            runner.interrupt();
+        }
+    }
+
     public O execute() {
+        synchronized (this) {
+            runner = Thread.currentThread();
+        }
+        try {
+            return executeAndRecord();
+        } finally {
+            synchronized (this) {
+                runner = null;
+                if (abandoned) {
+                    // Don't leave the interrupt for whatever runs next on this thread.
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private O executeAndRecord() {
         MDC.put("correlationId", taskId());
+        started = true;
         fetchTaskOrFail();
         log.info("Task {} waiting for lock...", taskId());
         try {
-            taskDto.setStatus(AsyncTaskDTO.PENDING);
-            asyncTaskStorage.updateTask(taskDto);
-            if (!waitForLock()) {
+            checkCanceled();
+            updateTaskRecord(dto -> dto.setStatus(AsyncTaskDTO.PENDING));
+            checkCanceled();
+            // Waiting for the lock doesn't take up a slot in the task's lane, so that tasks queued up
+            // on a locked track can't hold up work on other tracks.
+            if (!TaskLaneExecutor.releaseSlotWhile(this::waitForLock)) {
                 log.error("Task {} timed out waiting for lock.", taskId());
                 throw new TimeoutException("Timed out waiting for lock.");
             }
         } catch (Exception e) {
+            if (isCancellation(e)) {
+                updateAsyncTaskCanceled();
+                throw new CancellationException("Task " + taskId + " was canceled.");
+            }
             log.error("Failed while locking for task {}", taskId(), e);
             updateAsyncTaskFailed(e);
             throw new RuntimeException(e);
         }
         try {
+            // A newer task may have superseded this one while it waited for the lock.
+            checkCanceled();
             log.info("Starting task {}", this);
             updateAsyncTaskRunning();
 
@@ -128,6 +286,10 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
             log.info("Completed task {}. Output: {}", this, output);
             return output;
         } catch (Exception e) {
+            if (isCancellation(e)) {
+                updateAsyncTaskCanceled();
+                throw new CancellationException("Task " + taskId + " was canceled.");
+            }
             log.error("Task failed processing", e);
             updateAsyncTaskFailed(e);
             throw new RuntimeException(e);
@@ -136,6 +298,26 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
         }
     }
 
+    /**
+     * Stop processing if cancelation of this task has been requested. Long-running tasks should call
+     * this periodically.
+     *
+     * @throws CancellationException if the task should stop.
+     */
+    protected void checkCanceled() {
+        if (!cancelRequested && queued && clock.instant().isAfter(nextCancelPoll)) {
+            // Cancelation may have been requested by the instance that scheduled the task.
+            nextCancelPoll = clock.instant().plus(CANCEL_POLL_INTERVAL);
+            AsyncTaskDTO current = asyncTaskStorage.getTask(taskId);
+            if (current != null && isCancelStatus(current.getStatus())) {
+                cancelRequested = true;
+            }
+        }
+        if (cancelRequested) {
+            throw new CancellationException("Task " + taskId + " was canceled.");
+        }
+    }
+
     /**
      * Create and persist an async task record in the database.
      * The task is initially created with status SCHEDULED.
@@ -152,6 +334,9 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
                 .taskId(taskId)
                 .status(AsyncTaskDTO.SCHEDULED)
                 .taskType(getTaskType())
+                .taskClass(ClassUtils.getUserClass(getClass()).getName())
+                .queued(queued)
+                .priority(priority.name())
                 .scheduled(Instant.now(clock))
                 .input(input)
                 .build();
@@ -161,9 +346,10 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
      * Update async task status to RUNNING after initialization.
      */
     private void updateAsyncTaskRunning() {
-        taskDto.setStatus(AsyncTaskDTO.RUNNING);
-        taskDto.setStartTime(clock().instant());
-        asyncTaskStorage.updateTask(taskDto);
+        updateTaskRecord(dto -> {
+            dto.setStatus(AsyncTaskDTO.RUNNING);
+            dto.setStartTime(clock().instant());
+        });
         log.info("Updated async task to RUNNING: {}", taskDto.getTaskId());
     }
 
@@ -172,18 +358,61 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
         if (taskDto == null) {
             throw new RuntimeException("Async task with ID " + taskId + " not found in DB.");
         }
+        if (isCancelStatus(taskDto.getStatus())) {
+            cancelRequested = true;
+        }
         log.info("taskDto: {}", taskDto);
     }
 
+    /**
+     * Apply a change to the task record and persist it. If the record was modified concurrently
+     * (e.g. by a cancelation request), re-read it and re-apply the change, unless the task has
+     * already been finished. Does nothing once the task has been abandoned.
+     */
+    private void updateTaskRecord(Consumer<AsyncTaskDTO> change) {
+        if (abandoned) {
+            log.info("Task {} was abandoned; leaving its record to its new owner.", taskId);
+            return;
+        }
+        while (true) {
+            change.accept(taskDto);
+            try {
+                asyncTaskStorage.updateTask(taskDto);
+                return;
+            } catch (ConflictException e) {
+                log.info("Task {} was modified concurrently; re-reading.", taskId);
+                fetchTaskOrFail();
+                if (AsyncTaskDTO.isTerminal(taskDto.getStatus())) {
+                    log.info("Task {} is already {}; not updating.", taskId, taskDto.getStatus());
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean isCancelStatus(String status) {
+        return AsyncTaskDTO.CANCELING.equals(status) || AsyncTaskDTO.CANCELED.equals(status);
+    }
+
+    private static boolean isCancellation(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Update async task status to SUCCEEDED after successful processing.
      */
     private void updateAsyncTaskSucceeded(O output) {
         if (taskDto != null) {
-            taskDto.setStatus(AsyncTaskDTO.SUCCEEDED);
-            taskDto.setEndTime(clock().instant());
-            taskDto.setOutput(output);
-            asyncTaskStorage.updateTask(taskDto);
+            updateTaskRecord(dto -> {
+                dto.setStatus(AsyncTaskDTO.SUCCEEDED);
+                dto.setEndTime(clock().instant());
+                dto.setOutput(output);
+            });
             log.info("Updated async task to SUCCEEDED: {}", taskDto.getTaskId());
         }
     }
@@ -197,14 +426,31 @@ public abstract class AsyncTask<I extends AsyncTask.Input, O extends AsyncTask.O
 
     private void updateAsyncTaskFailed(String errorDetails) {
         if (taskDto != null) {
-            taskDto.setStatus(AsyncTaskDTO.FAILED);
-            taskDto.setEndTime(Instant.now(clock));
-            taskDto.setErrorDetails(errorDetails);
-            asyncTaskStorage.updateTask(taskDto);
+            updateTaskRecord(dto -> {
+                dto.setStatus(AsyncTaskDTO.FAILED);
+                dto.setEndTime(Instant.now(clock));
+                dto.setErrorDetails(errorDetails);
+            });
             log.info("Updated async task to FAILED: {}", taskDto.getTaskId());
         }
     }
 
+    /**
+     * Update async task status to CANCELED, keeping the reason given when cancelation was requested.
+     */
+    private void updateAsyncTaskCanceled() {
+        if (taskDto != null) {
+            updateTaskRecord(dto -> {
+                dto.setStatus(AsyncTaskDTO.CANCELED);
+                dto.setEndTime(Instant.now(clock));
+                if (dto.getErrorDetails() == null) {
+                    dto.setErrorDetails("Canceled");
+                }
+            });
+            log.info("Updated async task to CANCELED: {}", taskDto.getTaskId());
+        }
+    }
+
     protected abstract String getTaskType();
 
     /**
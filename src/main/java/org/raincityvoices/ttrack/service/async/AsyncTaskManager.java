@@ -1,18 +1,52 @@
 package org.raincityvoices.ttrack.service.async;
 
-import java.util.concurrent.ExecutorService;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.config.ServiceConfig.TasksConfig;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import lombok.Value;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Creates and runs async tasks.
+ *
+ * Tasks run in one of several {@link TaskLane lanes}, each with its own queue and concurrency
+ * limit, so that e.g. a burst of background mix refreshes can't starve an interactive request.
+ * Within a lane, tasks with higher {@link TaskPriority priority} start first, and tasks for
+ * different songs take turns.
+ *
+ * By default, tasks are executed by the instance that scheduled them. If {@code service.tasks.queued}
+ * is set, tasks are instead placed on the shared work queue in the AsyncTasks table, to be claimed
+ * by any {@link TaskWorker}. In that case, the result future of a scheduled task completes when the
+ * task finishes, whichever worker ran it.
+ *
+ * Tasks that produce the same resource (see {@link AsyncTask#coalescingKey()}) are coalesced: scheduling
+ * a task with the same input as one that is still waiting to start returns the existing task, and
+ * scheduling one with a different input cancels the older task, which would produce an outdated result.
+ * This way, a burst of uploads results in a single render of each mix.
+ */
 @Slf4j
 @Component
 public class AsyncTaskManager implements ApplicationContextAware {
@@ -24,25 +58,296 @@ public class AsyncTaskManager implements ApplicationContextAware {
         Future<O> result;
     }
 
+    private final TasksConfig config;
+    private final AsyncTaskStorage taskStorage;
     private ApplicationContext appContext;
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    private final Map<TaskLane, TaskLaneExecutor> lanes = new EnumMap<>(TaskLane.class);
+    /** Results of queued tasks scheduled from this instance, by task ID. */
+    private final Map<String, CompletableFuture<AsyncTask.Output>> awaitedResults = new ConcurrentHashMap<>();
+    /** A queued task that a worker on this instance is running. */
+    private record Resumed(AsyncTask<?, ?> task, CompletableFuture<?> result) {}
+
+    /** Queued tasks that workers on this instance are running, by task ID. */
+    private final Map<String, Resumed> resumedTasks = new ConcurrentHashMap<>();
+    /** The latest unfinished task scheduled from this instance for each coalescing key. */
+    private final Map<String, TaskExec<?, ?>> latestByKey = new ConcurrentHashMap<>();
+    private final Object coalescingLock = new Object();
+    private final ScheduledExecutorService resultPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "task-result-poller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AsyncTaskManager(ServiceConfig serviceConfig, AsyncTaskStorage taskStorage, MeterRegistry meterRegistry) {
+        this.config = serviceConfig.getTasks();
+        this.taskStorage = taskStorage;
+        int cpuConcurrency = config.getCpuConcurrency() > 0 ? config.getCpuConcurrency() : Runtime.getRuntime().availableProcessors();
+        // The lanes' slots bound their concurrency; tasks give up their slots while they wait for locks,
+        // so the thread pools themselves must be unbounded.
+        lanes.put(TaskLane.CPU, new TaskLaneExecutor(TaskLane.CPU, cpuConcurrency,
+            Executors.newCachedThreadPool(namedThreads("task-cpu-")), meterRegistry));
+        lanes.put(TaskLane.IO, new TaskLaneExecutor(TaskLane.IO, config.getIoConcurrency(),
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("task-io-", 0).factory()), meterRegistry));
+        lanes.put(TaskLane.BACKGROUND, new TaskLaneExecutor(TaskLane.BACKGROUND, config.getBackgroundConcurrency(),
+            Executors.newCachedThreadPool(namedThreads("task-background-")), meterRegistry));
+        if (config.isQueued()) {
+            long pollMillis = config.getWorker().getPollInterval().toMillis();
+            resultPoller.scheduleWithFixedDelay(this::pollAwaitedResults, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        }
+    }
 
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.appContext = applicationContext;
     }
 
+    @PreDestroy
+    public void shutdown() {
+        resultPoller.shutdownNow();
+        lanes.values().forEach(TaskLaneExecutor::shutdown);
+    }
+
+    /**
+     * @return true if tasks are placed on the shared work queue, and may run on other instances.
+     */
+    public boolean isQueued() {
+        return config.isQueued();
+    }
+
+    /**
+     * Create, initialize and schedule a task with {@link TaskPriority#USER} priority.
+     */
     public <I extends AsyncTask.Input, O extends AsyncTask.Output, T extends AsyncTask<I, O>> TaskExec<T,O> schedule(Class<T> taskClass, Object ... constructorArgs) {
+        return schedule(TaskPriority.USER, taskClass, constructorArgs);
+    }
+
+    /**
+     * Create, initialize and schedule a task with the given priority.
+     */
+    public <I extends AsyncTask.Input, O extends AsyncTask.Output, T extends AsyncTask<I, O>> TaskExec<T,O> schedule(TaskPriority priority, Class<T> taskClass, Object ... constructorArgs) {
         T task = appContext.getBean(taskClass, constructorArgs);
+        task.setQueued(config.isQueued());
+        task.setPriority(priority);
+        String key = task.coalescingKey();
+        if (key == null) {
+            initialize(task);
+            return submit(task);
+        }
+        TaskExec<T,O> existing = findEquivalentWaitingTask(key, task);
+        if (existing != null) {
+            log.info("Coalesced {} into waiting task {}", task, existing.task());
+            return existing;
+        }
+        initialize(task);
+        // Only the bookkeeping is done under the lock; initializing and canceling tasks go to storage.
+        final TaskExec<T,O> exec;
+        final TaskExec<?, ?> superseded;
+        synchronized (coalescingLock) {
+            exec = submit(task);
+            superseded = latestByKey.put(key, exec);
+        }
+        ((CompletableFuture<O>) exec.result()).whenComplete((output, error) -> latestByKey.remove(key, exec));
+        if (superseded != null && !superseded.result().isDone()) {
+            supersede(superseded, task);
+        }
+        return exec;
+    }
+
+    private void initialize(AsyncTask<?, ?> task) {
         try {
             task.initialize();
         } catch (Exception e) {
             log.error("Failed to initialize task {}", task, e);
             throw new RuntimeException("Failed to initialize task " + task, e);
         }
-        TaskExec<T,O> exec = new TaskExec<>(task, executor.submit(task::execute));
-        log.info("Scheduled task {}", task);
+    }
+
+    /**
+     * Cancel a task in favor of a newer one. If the task is still waiting in its lane, it is dropped from
+     * the lane's queue, so that it doesn't take up a slot only to stop at once.
+     */
+    private void supersede(TaskExec<?, ?> superseded, AsyncTask<?, ?> by) {
+        AsyncTask<?, ?> task = superseded.task();
+        String reason = "Superseded by task " + by.taskId();
+        if (!config.isQueued() && lanes.get(task.lane()).cancel(superseded.result())) {
+            log.info("Dropped task {} from lane {}", task, task.lane());
+            task.cancelDropped(reason);
+        } else {
+            // Queued tasks that no worker has claimed yet are canceled outright, and never claimed.
+            task.requestCancel(reason);
+        }
+    }
+
+    private <O extends AsyncTask.Output, T extends AsyncTask<? extends AsyncTask.Input, O>> TaskExec<T,O> submit(T task) {
+        final TaskExec<T,O> exec;
+        if (config.isQueued()) {
+            exec = new TaskExec<>(task, awaitResult(task.taskId()));
+            log.info("Queued task {}", task);
+        } else {
+            exec = new TaskExec<>(task, submitToLane(task));
+            log.info("Scheduled task {} in lane {} with priority {}", task, task.lane(), task.priority());
+        }
         return exec;
     }
 
+    /**
+     * @return the pending task for the given key, if it is of the same type as the given task, has
+     * the same input, and has not started yet; otherwise null.
+     */
+    @SuppressWarnings("unchecked")
+    private <O extends AsyncTask.Output, T extends AsyncTask<? extends AsyncTask.Input, O>> TaskExec<T,O> findEquivalentWaitingTask(String key, T task) {
+        final TaskExec<?, ?> existing;
+        synchronized (coalescingLock) {
+            existing = latestByKey.get(key);
+        }
+        if (existing == null || existing.result().isDone()
+            || existing.task().getClass() != task.getClass()
+            || !existing.task().input().equals(task.input())) {
+            return null;
+        }
+        return isWaiting(existing.task()) ? (TaskExec<T,O>) existing : null;
+    }
+
+    private boolean isWaiting(AsyncTask<?, ?> task) {
+        if (config.isQueued()) {
+            AsyncTaskDTO dto = taskStorage.getTask(task.taskId());
+            return dto != null && AsyncTaskDTO.SCHEDULED.equals(dto.getStatus());
+        }
+        return !task.hasStarted();
+    }
+
+    /**
+     * Run a queued task that was claimed by a worker on this instance.
+     *
+     * @return a future that completes when the task has finished.
+     */
+    public CompletableFuture<AsyncTask.Output> resume(AsyncTaskDTO taskDto) {
+        AsyncTask<?, ?> task = restoreTask(taskDto);
+        log.info("Resuming task {}", task);
+        CompletableFuture<AsyncTask.Output> result = lanes.get(task.lane()).submit(() -> task.execute(), task.priority(), task.songId());
+        Resumed resumed = new Resumed(task, result);
+        resumedTasks.put(task.taskId(), resumed);
+        result.whenComplete((output, error) -> {
+            resumedTasks.remove(task.taskId(), resumed);
+            CompletableFuture<AsyncTask.Output> awaited = awaitedResults.remove(task.taskId());
+            if (awaited != null) {
+                if (error != null) {
+                    awaited.completeExceptionally(error);
+                } else {
+                    awaited.complete(output);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stop running a queued task that a worker on this instance has lost its lease on, without recording
+     * anything in its task record, which now belongs to the worker that took it over. The future returned
+     * by {@link #resume(AsyncTaskDTO)} completes once the task has stopped.
+     */
+    public void abandon(String taskId) {
+        Resumed resumed = resumedTasks.get(taskId);
+        if (resumed == null) {
+            return;
+        }
+        if (lanes.get(resumed.task().lane()).cancel(resumed.result())) {
+            log.info("Dropped abandoned task {} before it started.", taskId);
+            return;
+        }
+        log.warn("Abandoning task {}, which another worker has taken over.", taskId);
+        resumed.task().abandon();
+    }
+
+    /**
+     * Run work that a request is waiting for, e.g. rendering audio to send back, in the given lane with
+     * {@link TaskPriority#USER} priority, and wait for its result. The work shares the lane's slots with
+     * tasks, so that concurrent requests can't overload the instance.
+     *
+     * @param fairnessKey work with different keys, e.g. for different songs, takes turns.
+     */
+    public <T> T runInLane(TaskLane lane, String fairnessKey, Callable<T> work) throws Exception {
+        CompletableFuture<T> result = lanes.get(lane).submit(() -> {
+            try {
+                return work.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, TaskPriority.USER, fairnessKey);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            lanes.get(lane).cancel(result);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to start in the given lane.
+     */
+    public int queueDepth(TaskLane lane) {
+        return lanes.get(lane).queueDepth();
+    }
+
+    private <O extends AsyncTask.Output> CompletableFuture<O> submitToLane(AsyncTask<?, O> task) {
+        return lanes.get(task.lane()).submit(task::execute, task.priority(), task.songId());
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        return Thread.ofPlatform().name(prefix, 0).factory();
+    }
+
+    private AsyncTask<?, ?> restoreTask(AsyncTaskDTO taskDto) {
+        if (taskDto.getTaskClass() == null) {
+            throw new IllegalStateException("Task " + taskDto.getTaskId() + " has no task class.");
+        }
+        final Class<?> taskClass;
+        try {
+            taskClass = Class.forName(taskDto.getTaskClass());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Task " + taskDto.getTaskId() + " has unknown task class " + taskDto.getTaskClass(), e);
+        }
+        AsyncTask<?, ?> task = (AsyncTask<?, ?>) appContext.getBean(taskClass, taskDto.getInput());
+        task.attachTo(taskDto);
+        return task;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <O extends AsyncTask.Output> CompletableFuture<O> awaitResult(String taskId) {
+        CompletableFuture<AsyncTask.Output> result = new CompletableFuture<>();
+        awaitedResults.put(taskId, result);
+        return (CompletableFuture<O>) (CompletableFuture<?>) result;
+    }
+
+    /**
+     * Complete the results of queued tasks that were run by workers on other instances.
+     */
+    private void pollAwaitedResults() {
+        for (Map.Entry<String, CompletableFuture<AsyncTask.Output>> entry : awaitedResults.entrySet()) {
+            try {
+                AsyncTaskDTO dto = taskStorage.getTask(entry.getKey());
+                if (dto == null || !AsyncTaskDTO.isTerminal(dto.getStatus())) {
+                    continue;
+                }
+                if (awaitedResults.remove(entry.getKey(), entry.getValue())) {
+                    if (AsyncTaskDTO.SUCCEEDED.equals(dto.getStatus())) {
+                        entry.getValue().complete(dto.getOutput());
+                    } else if (AsyncTaskDTO.CANCELED.equals(dto.getStatus())) {
+                        entry.getValue().completeExceptionally(new CancellationException(
+                            "Task " + dto.getTaskId() + " was canceled: " + dto.getErrorDetails()));
+                    } else {
+                        entry.getValue().completeExceptionally(new RuntimeException(
+                            "Task " + dto.getTaskId() + " ended with status " + dto.getStatus() + ": " + dto.getErrorDetails()));
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Failed to check status of task {}", entry.getKey(), e);
+            }
+        }
+    }
 }
@@ -8,7 +8,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -16,7 +16,6 @@ import javax.sound.sampled.AudioInputStream;
 import org.raincityvoices.ttrack.service.api.SongId;
 import org.raincityvoices.ttrack.service.audio.AudioDebugger;
 import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
-import org.raincityvoices.ttrack.service.exceptions.ConflictException;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
 import org.raincityvoices.ttrack.service.storage.media.MediaContent;
 import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
@@ -60,9 +59,11 @@ import lombok.extern.slf4j.Slf4j;
  * They may optionally override {@link #getLockTimeout()} to customize lock timeout duration.
  *
  * <p><strong>Thread Safety:</strong>
- * This class uses optimistic locking via {@link #waitForLock()} and {@link #releaseLock()} to
- * ensure that only one task processes a given track at a time. Lock acquisition polls at
- * regular intervals with a configurable maximum wait time.
+ * This class locks the track via {@link TrackLockManager} in {@link #waitForLock()} and
+ * {@link #releaseLock()} to ensure that only one task processes a given track at a time.
+ * While the task runs, the lock is renewed in the background so that it doesn't expire; if the
+ * process dies, the lock expires and other tasks may take over the track. Subclasses must save the
+ * track via {@link #writeTrack()}, which keeps the lock expiry current.
  *
  * @param <I> the input type, must extend {@link AudioTrackTask.Input}
  * @param <O> the output type, must extend {@link AudioTrackTask.Output}
@@ -106,7 +107,6 @@ public abstract class AudioTrackTask<I extends AudioTrackTask.Input, O extends A
     }
 
     private static final Duration MAX_WAIT_FOR_LOCK = Duration.ofSeconds(30);
-    private static final Duration LOCK_POLL_INTERVAL = Duration.ofMillis(3000);
 
     @Autowired
     private SongStorage songStorage;
@@ -114,9 +114,16 @@ public abstract class AudioTrackTask<I extends AudioTrackTask.Input, O extends A
     private MediaStorage mediaStorage;
     @Autowired
     private FileManager fileManager;
+    @Autowired
+    private TrackLockManager trackLockManager;
 
     private SongDTO song;
     private AudioTrackDTO track;
+    /** Guards reads and writes of the track, which are shared with the lock renewal thread. */
+    @Getter(AccessLevel.NONE)
+    private final Object trackLock = new Object();
+    @Getter(AccessLevel.NONE)
+    private ScheduledFuture<?> lockRenewal;
 
     protected AudioTrackTask(I input) {
         super(input);
@@ -148,11 +155,10 @@ public abstract class AudioTrackTask<I extends AudioTrackTask.Input, O extends A
 
     @Override
     public O process() throws Exception {
-        track = describeTrackOrThrow(trackId());
+        refreshTrack();
         song = songStorage.describeSong(songId());
         O output = processTrack();
-        track = songStorage().writeTrack(track);
-        output.setTrackETag(track.getETag());
+        output.setTrackETag(writeTrack().getETag());
         return output;
     }
 
@@ -167,38 +173,75 @@ public abstract class AudioTrackTask<I extends AudioTrackTask.Input, O extends A
 
     @Override
     protected boolean waitForLock() throws InterruptedException {
-        Instant timeLimit = clock().instant().plus(getLockTimeout());
-        refreshTrack();
-        while (true) {
-            while (track.getCurrentTaskId() != null) {
-                if (clock().instant().isAfter(timeLimit)) {
-                    return false;
-                }
-                log.info("Track {} is locked by task {}. Waiting...", trackFqId(), track.getCurrentTaskId());
-                Thread.sleep(LOCK_POLL_INTERVAL);
-                refreshTrack();
-            }
-            // attempt to lock
-            track.setCurrentTaskId(taskId());
-            try {
-                songStorage().writeTrack(track);
-                // Great, we got the lock.
-                return true;
-            } catch(ConflictException e) {
-                // Ugh, somebody else did something. Keep trying.
-                refreshTrack();
-            }
+        // If this task was resumed by another worker after it had already locked the track,
+        // the lock manager hands the lock straight back to it.
+        AudioTrackDTO locked = trackLockManager.acquire(songId(), trackId(), taskId(), getLockTimeout());
+        if (locked == null) {
+            return false;
         }
+        synchronized (trackLock) {
+            track = locked;
+        }
+        lockRenewal = trackLockManager.scheduleRenewal(this::renewLock);
+        return true;
     }
 
     @Override
     protected void releaseLock() {
-        track().setCurrentTaskId(null);
-        songStorage().writeTrack(track());
+        if (lockRenewal != null) {
+            lockRenewal.cancel(false);
+            lockRenewal = null;
+        }
+        synchronized (trackLock) {
+            trackLockManager.release(track, taskId());
+        }
     }
 
     protected void refreshTrack() {
-        track = describeTrackOrThrow(trackId());
+        synchronized (trackLock) {
+            track = describeTrackOrThrow(trackId());
+        }
+    }
+
+    /**
+     * Save the current track, extending the lock held by this task.
+     * @return the track, with its updated ETag.
+     */
+    protected AudioTrackDTO writeTrack() {
+        synchronized (trackLock) {
+            track.setLockExpiry(trackLockManager.newExpiry());
+            track = songStorage.writeTrack(track);
+            return track;
+        }
+    }
+
+    /**
+     * Extend the lock without saving in-progress changes to the track: write the stored copy with
+     * a new expiry, and then carry its ETag over to the working copy.
+     *
+     * This is only done while nobody else has written the track since the task read it, i.e. while the
+     * stored copy differs from the working copy only by the task's own changes. Otherwise, carrying the
+     * ETag over would let the task's next {@link #writeTrack()} silently overwrite the other writer's
+     * changes; instead, the stored copy is renewed, and the task's next write fails with a conflict.
+     */
+    private void renewLock() {
+        synchronized (trackLock) {
+            AudioTrackDTO stored = describeTrackOrThrow(trackId());
+            if (!taskId().equals(stored.getCurrentTaskId())) {
+                log.warn("Task {} no longer holds the lock on {} (held by {}).", taskId(), trackFqId(), stored.getCurrentTaskId());
+                return;
+            }
+            boolean unchangedSinceRead = stored.getETag().equals(track.getETag());
+            stored.setLockExpiry(trackLockManager.newExpiry());
+            songStorage.writeTrack(stored);
+            if (unchangedSinceRead) {
+                track.setETag(stored.getETag());
+                track.setLockExpiry(stored.getLockExpiry());
+            } else {
+                log.warn("Track {} was modified by another writer while task {} held the lock.", trackFqId(), taskId());
+            }
+            log.debug("Renewed lock on {} until {}", trackFqId(), stored.getLockExpiry());
+        }
     }
 
     protected AudioTrackDTO describeTrackOrThrow(String trackId) {
@@ -232,7 +275,7 @@ public abstract class AudioTrackTask<I extends AudioTrackTask.Input, O extends A
         FileMetadata updatedMetadata = mediaStorage().getMediaMetadata(track().getMediaLocation());
         log.debug("New metadata: {}", updatedMetadata);
         track().updateFileMetadata(updatedMetadata);
-        songStorage().writeTrack(track);
+        writeTrack();
         log.info("Metadata updated.");
         return track();
     }
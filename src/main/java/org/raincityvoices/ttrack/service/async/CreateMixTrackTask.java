@@ -37,6 +37,11 @@ public class CreateMixTrackTask extends MixTrackTaskBase<CreateMixTrackTask.Inpu
         super(new Input(mixTrack));
     }
 
+    /** Used to resume a queued task. */
+    CreateMixTrackTask(Input input) {
+        super(input);
+    }
+
     @Override
     public Class<Input> getInputClass() {
         return Input.class;
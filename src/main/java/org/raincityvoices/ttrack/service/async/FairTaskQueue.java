@@ -0,0 +1,112 @@
+package org.raincityvoices.ttrack.service.async;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.raincityvoices.ttrack.service.util.AutoLock;
+
+/**
+ * A blocking queue that orders items by priority, and within a priority, round-robins
+ * between fairness keys (e.g. song IDs). Items with the same key are taken in FIFO order.
+ *
+ * This means that one song with many queued tasks can't starve another song with a single
+ * task: after each item taken for a key, that key goes to the back of the line.
+ *
+ * @param <T> the type of queued items.
+ */
+class FairTaskQueue<T> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    /** For each priority, the pending items per key, with keys in round-robin order. */
+    private final Map<TaskPriority, LinkedHashMap<String, ArrayDeque<T>>> queues = new EnumMap<>(TaskPriority.class);
+    private int size;
+
+    FairTaskQueue() {
+        for (TaskPriority priority : TaskPriority.values()) {
+            queues.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    public void put(T item, TaskPriority priority, String key) {
+        try (AutoLock al = new AutoLock(lock)) {
+            queues.get(priority).computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(item);
+            size++;
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * Remove and return the next item, waiting up to the given time for one to be available.
+     * @return the item, or null if none became available in time.
+     */
+    public T poll(Duration timeout) throws InterruptedException {
+        long nanos = timeout.toNanos();
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the given item from the queue, if it has not been taken yet.
+     * @return true if the item was removed.
+     */
+    public boolean remove(T item) {
+        try (AutoLock al = new AutoLock(lock)) {
+            for (LinkedHashMap<String, ArrayDeque<T>> byKey : queues.values()) {
+                Iterator<ArrayDeque<T>> it = byKey.values().iterator();
+                while (it.hasNext()) {
+                    ArrayDeque<T> items = it.next();
+                    if (items.remove(item)) {
+                        if (items.isEmpty()) {
+                            it.remove();
+                        }
+                        size--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    public int size() {
+        try (AutoLock al = new AutoLock(lock)) {
+            return size;
+        }
+    }
+
+    private T next() {
+        for (LinkedHashMap<String, ArrayDeque<T>> byKey : queues.values()) {
+            if (byKey.isEmpty()) {
+                continue;
+            }
+            // Take from the key that has waited longest for its turn, then send it to the back.
+            Map.Entry<String, ArrayDeque<T>> first = byKey.entrySet().iterator().next();
+            String key = first.getKey();
+            ArrayDeque<T> items = byKey.remove(key);
+            T item = items.removeFirst();
+            if (!items.isEmpty()) {
+                byKey.put(key, items);
+            }
+            size--;
+            return item;
+        }
+        throw new IllegalStateException("Queue is empty but size is " + size);
+    }
+}
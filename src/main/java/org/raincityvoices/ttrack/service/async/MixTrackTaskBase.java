@@ -1,21 +1,20 @@
 package org.raincityvoices.ttrack.service.async;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.raincityvoices.ttrack.service.MediaUrlProvider;
 import org.raincityvoices.ttrack.service.api.MixInfo;
 import org.raincityvoices.ttrack.service.audio.AudioMixingStream;
-import org.raincityvoices.ttrack.service.audio.TarsosStreamAdapter;
-import org.raincityvoices.ttrack.service.audio.TarsosUtils;
+import org.raincityvoices.ttrack.service.audio.MixInputs;
 import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
 import org.raincityvoices.ttrack.service.audio.model.AudioPart;
-import org.raincityvoices.ttrack.service.storage.media.MediaContent;
 import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
 import org.raincityvoices.ttrack.service.util.Conversions;
 import org.springframework.context.annotation.Scope;
@@ -48,52 +47,92 @@ public abstract class MixTrackTaskBase<I extends AudioTrackTask.Input, O extends
 
     protected final AudioTrackDTO mixTrack() { return track(); }
 
+    /** Renders of the same mix track supersede each other. */
+    @Override
+    public String coalescingKey() {
+        return "track:" + trackFqId();
+    }
+
     protected boolean isMp3() {
-        return track().getAudioMix().numOutputs() <= 2;
+        return MpegAudioFileWriter.MP3.equals(targetFileType());
     }
 
     protected AudioFileFormat.Type targetFileType() {
-        return isMp3() ? MpegAudioFileWriter.MP3 : AudioFileFormat.Type.WAVE;
+        return AudioFormats.mixFileType(track().getAudioMix());
     }
 
     protected AudioTrackDTO performMix() throws UnsupportedAudioFileException, IOException {
         MixInfo mixInfo = Conversions.toMixTrack(track(), MediaUrlProvider.NOOP).mixInfo();
-        int numParts = mixInfo.parts().size();
         partTracks = mixInfo.parts().stream().map(AudioPart::value).map(this::describeTrackOrThrow).toList();
-        partTracks.forEach(pt -> {
-            Preconditions.checkArgument(pt.hasMedia(), "Track %s/%s has no audio", pt.getSongId(), pt.getId());
-        });
-        TarsosStreamAdapter[] adapters = new TarsosStreamAdapter[numParts];
-        try {
-            AudioInputStream[] inputStreams = new AudioInputStream[numParts];
-            boolean needAudioMod = (mixTrack().getPitchShift() != 0 || mixTrack().getSpeedFactor() != 1.0);
-            for (int i = 0; i < numParts; ++i) {
-                AudioTrackDTO partTrack = partTracks.get(i);
-                log.info("Reading media for part {} from {}", partTrack.getId(), partTrack.getMediaLocation());
-                MediaContent content = mediaStorage().getMedia(partTrack.getMediaLocation());
-                inputStreams[i] = AudioFormats.toPcmStream(AudioSystem.getAudioInputStream(content.stream()));
-                if (needAudioMod) {
-                    log.info("Applying pitch shift {}, speed factor {}", mixTrack().getPitchShift(), mixTrack().getSpeedFactor());
-                    adapters[i] = new TarsosStreamAdapter(
-                        TarsosUtils.getPitchAndSpeedDispatcher(inputStreams[i], mixTrack().getPitchShift(), mixTrack().getSpeedFactor()), debugSettings());
-                    inputStreams[i] = adapters[i].getAudioInputStream();
-                }
-            }
-
-            AudioMixingStream mixingStream = AudioMixingStream.create(inputStreams, mixTrack().getAudioMix());
-            AudioTrackDTO uploaded = uploadStream(mixingStream, generateMixFileName(), targetFileType());
+        for (int i = 0; i < partTracks.size(); ++i) {
+            AudioTrackDTO pt = partTracks.get(i);
+            Preconditions.checkArgument(pt.hasMedia() || !mixTrack().getAudioMix().usesInput(i),
+                "Track %s/%s has no audio", pt.getSongId(), pt.getId());
+        }
+        String fingerprint = RenderFingerprint.compute(mixTrack(), partETags(), encoderId());
+        if (mixTrack().hasMedia() && fingerprint.equals(mixTrack().getRenderFingerprint())) {
+            log.info("Mix track {} is unchanged since it was last rendered; skipping render.", trackFqId());
+            return mixTrack();
+        }
+        // Clear the old fingerprint until the new media is uploaded, in case the render fails halfway.
+        mixTrack().setRenderFingerprint(null);
+        try (MixInputs inputs = MixInputs.open(mediaStorage(), partTracks, mixTrack().getAudioMix(),
+                                               mixTrack().getPitchShift(), mixTrack().getSpeedFactor(),
+                                               0, MixInputs.END, debugSettings())) {
+            AudioMixingStream mixingStream = inputs.mix();
+            AudioTrackDTO uploaded = uploadStream(cancelable(mixingStream), generateMixFileName(), targetFileType());
             log.info("Uploaded mixed audio to {}", uploaded.getMediaLocation());
+            uploaded.setRenderFingerprint(fingerprint);
             return uploaded;
-        } finally {
-            for (TarsosStreamAdapter adapter : adapters) {
-                if (adapter != null) {
-                    // closing the adapter also closes the stream
-                    adapter.close();
-                }
-            }
         }
     }
 
+    /**
+     * @return the media ETags of the parts, in mix input order, or null for parts the mix doesn't use. Waits for
+     * parts that are still being uploaded, whose ETags aren't known yet.
+     */
+    private List<String> partETags() {
+        List<String> etags = new ArrayList<>(partTracks.size());
+        for (int i = 0; i < partTracks.size(); ++i) {
+            etags.add(mixTrack().getAudioMix().usesInput(i)
+                ? mediaStorage().awaitDurable(partTracks.get(i).getMediaLocation()).etag()
+                : null);
+        }
+        return etags;
+    }
+
+    /**
+     * Identifies the output format and encoder, so that a change of either forces a new render.
+     */
+    private String encoderId() {
+        if (!isMp3()) {
+            return targetFileType().toString();
+        }
+        Package encoderPackage = MpegAudioFileWriter.class.getPackage();
+        return String.format("%s/%s/%s", targetFileType(), MpegAudioFileWriter.class.getName(),
+            encoderPackage == null ? null : encoderPackage.getImplementationVersion());
+    }
+
+    /**
+     * Wrap the mixed stream so that the render stops promptly if this task is superseded.
+     */
+    private AudioInputStream cancelable(AudioInputStream stream) {
+        FilterInputStream checked = new FilterInputStream(stream) {
+            @Override
+            public int read() throws IOException {
+                checkCanceled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkCanceled();
+                return super.read(b, off, len);
+            }
+        };
+        return new AudioInputStream(checked, stream.getFormat(), stream.getFrameLength());
+    }
+
     private String generateMixFileName() {
         return String.format("%s - %s.%s", song().getTrackPrefix(), mixTrack().getId(), targetFileType().getExtension());
     }
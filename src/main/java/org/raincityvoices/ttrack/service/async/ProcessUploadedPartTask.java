@@ -1,15 +1,33 @@
 package org.raincityvoices.ttrack.service.async;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.raincityvoices.ttrack.service.audio.SeekIndex;
+import org.raincityvoices.ttrack.service.audio.SilenceMap;
+import org.raincityvoices.ttrack.service.audio.WorkingCopy;
+import org.raincityvoices.ttrack.service.audio.WorkingCopyStream;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
 import org.raincityvoices.ttrack.service.storage.media.MediaContent;
 import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
 import org.raincityvoices.ttrack.service.util.PrototypeBean;
+import org.raincityvoices.ttrack.service.util.Temp;
 
 import com.google.common.base.Preconditions;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * An aysnchronous task that updates the metadata for an uploaded audio track based on the audio contents.
+ * An aysnchronous task that updates the metadata for an uploaded audio track based on the audio contents,
+ * and builds the {@link SeekIndex} used to render parts of it, the {@link WorkingCopy} that renders read instead
+ * of decoding the original, and the {@link SilenceMap} used to skip its silent stretches when mixing.
  */
 @Slf4j
 @PrototypeBean
@@ -24,6 +42,12 @@ public class ProcessUploadedPartTask extends AudioTrackTask<AudioTrackTask.Input
         this.mediaLocation = track.getMediaLocation();
     }
 
+    /** Used to resume a queued task; initialization has already happened. */
+    ProcessUploadedPartTask(Input input) {
+        super(input);
+        this.mediaLocation = null;
+    }
+
     @Override
     protected String getTaskType() {
         return "ProcessUploadedPart";
@@ -34,6 +58,12 @@ public class ProcessUploadedPartTask extends AudioTrackTask<AudioTrackTask.Input
         return AudioTrackTask.Input.class;
     }
 
+    @Override
+    public TaskLane lane() {
+        // Decodes and transcodes the whole of the media.
+        return TaskLane.CPU;
+    }
+
     @Override
     protected void doInitialize() throws Exception {
         super.doInitialize();
@@ -45,8 +75,60 @@ public class ProcessUploadedPartTask extends AudioTrackTask<AudioTrackTask.Input
     @Override
     protected Output processTrack() throws Exception {
         String location = track().getMediaLocation();
+        // Everything built here is keyed on the media's ETag, which is only known once a write-behind upload completes.
+        TaskLaneExecutor.releaseSlotWhile(() -> mediaStorage().awaitDurable(location));
         MediaContent media = mediaStorage().getMedia(location);
+        String etag = media.metadata().etag();
         track().updateFileMetadata(media.metadata());
+        try (InputStream stream = media.stream()) {
+            track().setSeekIndex(SeekIndex.build(stream, etag));
+        }
+        log.info("Built seek index for {}: {}", trackFqId(), track().getSeekIndex());
+        try (Temp.File workFile = fileManager().tempFile("ttrack-work-", ".wav")) {
+            MediaContent original = mediaStorage().getMedia(location);
+            try (InputStream stream = original.stream()) {
+                if (!Objects.equals(etag, original.metadata().etag())) {
+                    // The part was replaced after it was indexed; the task for the new media will do the rest.
+                    log.info("Media for {} changed from {} to {} while it was processed; not making a working copy",
+                        trackFqId(), etag, original.metadata().etag());
+                    track().setWorkingCopy(null);
+                    track().setSilenceMap(null);
+                    return new Output();
+                }
+                AudioInputStream pcm = AudioFormats.toPcmStream(AudioSystem.getAudioInputStream(new BufferedInputStream(stream)));
+                fileManager().writeWavAudio(WorkingCopyStream.create(pcm), workFile);
+            }
+            track().setWorkingCopy(uploadWorkingCopy(workFile, etag));
+            log.info("Uploaded working copy of {}: {}", trackFqId(), track().getWorkingCopy());
+            // The working copy has the same timing as the original, and is much quicker to read.
+            try (AudioInputStream pcm = fileManager().getAudioInputStream(workFile)) {
+                track().setSilenceMap(SilenceMap.compute(pcm, etag));
+            }
+        } catch (UnsupportedAudioFileException e) {
+            log.warn("Unable to decode {} to transcode it and find its silent stretches", location, e);
+            track().setWorkingCopy(null);
+            track().setSilenceMap(null);
+        }
+        log.info("Mapped silence for {}: {}", trackFqId(), track().getSilenceMap());
         return new Output();
     }
+
+    /**
+     * Store the working copy alongside the original media.
+     * @param sourceEtag the ETag of the original.
+     */
+    private WorkingCopy uploadWorkingCopy(Temp.File workFile, String sourceEtag) throws IOException {
+        String workLocation = mediaStorage().locationFor(track().getSongId(), track().getId() + WorkingCopy.FILE_ID_SUFFIX);
+        FileMetadata metadata = FileMetadata.builder()
+            .fileName(track().getId() + WorkingCopy.FILE_ID_SUFFIX)
+            .contentType(AudioFormats.WAV_TYPE)
+            .build();
+        try (InputStream stream = fileManager().getInputStream(workFile)) {
+            mediaStorage().putMedia(workLocation, new MediaContent(stream, metadata));
+        }
+        String workEtag = mediaStorage().getMediaMetadata(workLocation).etag();
+        try (InputStream stream = fileManager().getInputStream(workFile)) {
+            return new WorkingCopy(workLocation, sourceEtag, SeekIndex.build(stream, workEtag));
+        }
+    }
 }
@@ -30,6 +30,11 @@ public class RefreshAllMixesTask extends AsyncTask<AsyncTask.Input, AsyncTask.Ou
         super(new Input(songId));
     }
 
+    /** Used to resume a queued task. */
+    RefreshAllMixesTask(Input input) {
+        super(input);
+    }
+
     @Override
     protected String getTaskType() {
         return "RefreshAllMixes";
@@ -40,6 +45,16 @@ public class RefreshAllMixesTask extends AsyncTask<AsyncTask.Input, AsyncTask.Ou
         return Input.class;
     }
 
+    @Override
+    public TaskLane lane() {
+        return TaskLane.BACKGROUND;
+    }
+
+    @Override
+    public String coalescingKey() {
+        return "mixes:" + songId();
+    }
+
     @Override
     protected void doInitialize() throws Exception {
         SongDTO song = songStorage.describeSong(songId());
@@ -53,7 +68,7 @@ public class RefreshAllMixesTask extends AsyncTask<AsyncTask.Input, AsyncTask.Ou
         List<AudioTrackDTO> tracksToRecreate = songStorage.listMixesForSong(songId());
         tracksToRecreate.forEach(t -> {
             log.debug("Launching task to recreate mix track {}", t.getId());
-            taskManager.schedule(CreateMixTrackTask.class, t);
+            taskManager.schedule(TaskPriority.BACKGROUND, CreateMixTrackTask.class, t);
         });
         // TODO add the list of task IDs to the output?
         return new Output();
@@ -17,6 +17,11 @@ public class RefreshMixTrackTask extends MixTrackTaskBase<AudioTrackTask.Input,
         super(new Input(track));
     }
 
+    /** Used to resume a queued task. */
+    RefreshMixTrackTask(Input input) {
+        super(input);
+    }
+
     @Override
     public Class<Input> getInputClass() {
         return Input.class;
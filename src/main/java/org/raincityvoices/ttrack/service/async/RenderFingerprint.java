@@ -0,0 +1,52 @@
+package org.raincityvoices.ttrack.service.async;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.raincityvoices.ttrack.service.audio.model.AudioMix;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes the fingerprint of a mix render: a SHA-256 hash of everything that determines the mixed
+ * audio, i.e. the media versions (ETags) of the parts used by the mix, the mix itself, the pitch shift
+ * and speed factor, and the encoder settings. If two renders have the same fingerprint, they produce
+ * the same audio, so the second one can be skipped.
+ *
+ * Parts that the mix doesn't use are left out, so that e.g. uploading a new version of the Bass part
+ * doesn't invalidate a mix that silences the Bass.
+ */
+final class RenderFingerprint {
+
+    /** Bump this to force all mixes to be re-rendered, e.g. after a change to the mixing code. */
+    private static final int VERSION = 1;
+
+    private RenderFingerprint() {}
+
+    /**
+     * @param mixTrack the mix track, with the mix, pitch shift and speed factor to render.
+     * @param partETags the media ETags of the mix's parts, in mix input order. Entries for parts that
+     *                  the mix doesn't use are ignored, and may be null.
+     * @param encoder identifies the output format and encoder settings.
+     */
+    static String compute(AudioTrackDTO mixTrack, List<String> partETags, String encoder) {
+        AudioMix mix = mixTrack.getAudioMix();
+        Preconditions.checkArgument(mix.numInputs() == partETags.size(),
+            "Mix has %s inputs but %s part ETags were given", mix.numInputs(), partETags.size());
+        StringBuilder canonical = new StringBuilder()
+            .append("v").append(VERSION).append('\n')
+            .append("mix=").append(JsonUtils.toJson(mix)).append('\n')
+            .append("pitch=").append(mixTrack.getPitchShift()).append('\n')
+            .append("speed=").append(mixTrack.getSpeedFactor()).append('\n')
+            .append("encoder=").append(encoder).append('\n');
+        for (int i = 0; i < partETags.size(); ++i) {
+            if (mix.usesInput(i)) {
+                canonical.append("part").append(i).append('=').append(partETags.get(i)).append('\n');
+            }
+        }
+        return Hashing.sha256().hashString(canonical, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,14 @@
+package org.raincityvoices.ttrack.service.async;
+
+/**
+ * The execution lane that a task runs in. Each lane has its own queue and its own
+ * concurrency limit, so that tasks with different resource profiles don't starve each other.
+ */
+public enum TaskLane {
+    /** CPU-bound work like decoding, mixing and encoding audio; sized to the number of cores. */
+    CPU,
+    /** Work that mostly waits on storage or the network; runs on virtual threads. */
+    IO,
+    /** Low-cost housekeeping, like fanning out other tasks. */
+    BACKGROUND
+}
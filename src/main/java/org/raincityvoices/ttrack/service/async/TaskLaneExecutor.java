@@ -0,0 +1,191 @@
+package org.raincityvoices.ttrack.service.async;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the tasks of one {@link TaskLane}: tasks wait in a {@link FairTaskQueue} until one of
+ * the lane's {@code concurrency} slots is free, and then run on the lane's executor.
+ *
+ * A slot bounds the work that is actually running, not the threads that run it: running work can give
+ * up its slot while it blocks without doing anything, e.g. while it waits for a track lock (see
+ * {@link #releaseSlotWhile(Callable)}), so the lane's executor must not limit its number of threads.
+ *
+ * Exports the following metrics, tagged with the lane name:
+ * <ul>
+ *   <li>{@code ttrack.tasks.queue.depth}: the number of tasks waiting to start</li>
+ *   <li>{@code ttrack.tasks.queue.wait}: how long tasks wait before starting</li>
+ *   <li>{@code ttrack.tasks.active}: the number of tasks running</li>
+ * </ul>
+ */
+@Slf4j
+@Accessors(fluent = true)
+class TaskLaneExecutor {
+
+    private class Entry {
+        final Supplier<?> work;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+        Entry(Supplier<?> work) { this.work = work; }
+    }
+
+    /** How long the dispatcher holds a free slot while it waits for work. */
+    private static final Duration IDLE_POLL_INTERVAL = Duration.ofMillis(100);
+    /** The lane whose work the current thread is running, while it holds a slot. */
+    private static final ThreadLocal<TaskLaneExecutor> CURRENT = new ThreadLocal<>();
+
+    @Getter
+    private final TaskLane lane;
+    @Getter
+    private final int concurrency;
+    private final ExecutorService runner;
+    private final FairTaskQueue<Entry> queue = new FairTaskQueue<>();
+    /** The queued entries, by their result futures. */
+    private final Map<CompletableFuture<?>, Entry> queued = new ConcurrentHashMap<>();
+    private final Semaphore slots;
+    private final Timer waitTimer;
+    private final Thread dispatcher;
+
+    TaskLaneExecutor(TaskLane lane, int concurrency, ExecutorService runner, MeterRegistry registry) {
+        this.lane = lane;
+        this.concurrency = concurrency;
+        this.runner = runner;
+        // Fair, so that work coming back from releaseSlotWhile() doesn't wait behind newer work.
+        this.slots = new Semaphore(concurrency, true);
+        String laneTag = lane.name().toLowerCase();
+        Gauge.builder("ttrack.tasks.queue.depth", queue, FairTaskQueue::size)
+            .description("Number of tasks waiting to start")
+            .tag("lane", laneTag)
+            .register(registry);
+        Gauge.builder("ttrack.tasks.active", slots, s -> concurrency - s.availablePermits())
+            .description("Number of tasks running")
+            .tag("lane", laneTag)
+            .register(registry);
+        this.waitTimer = Timer.builder("ttrack.tasks.queue.wait")
+            .description("Time tasks wait before starting")
+            .tag("lane", laneTag)
+            .register(registry);
+        this.dispatcher = new Thread(this::dispatchLoop, "task-lane-" + laneTag);
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queue work to run in this lane.
+     *
+     * @param priority the priority of the work within the lane.
+     * @param fairnessKey work with different keys gets turns in round-robin order.
+     * @return a future that completes with the result of the work.
+     */
+    @SuppressWarnings("unchecked")
+    <O> CompletableFuture<O> submit(Supplier<O> work, TaskPriority priority, String fairnessKey) {
+        Entry entry = new Entry(work);
+        queued.put(entry.result, entry);
+        queue.put(entry, priority, String.valueOf(fairnessKey));
+        return (CompletableFuture<O>) (CompletableFuture<?>) entry.result;
+    }
+
+    /**
+     * Drop work that is still waiting to start, and complete its future with a {@link CancellationException}.
+     *
+     * @param result the future returned when the work was submitted.
+     * @return true if the work was dropped; false if it has already started, or isn't from this lane.
+     */
+    boolean cancel(CompletableFuture<?> result) {
+        Entry entry = queued.remove(result);
+        if (entry == null || !queue.remove(entry)) {
+            return false;
+        }
+        entry.result.completeExceptionally(new CancellationException("Dropped from lane " + lane + " before it started."));
+        return true;
+    }
+
+    /**
+     * Run code that blocks without using this lane's resources, e.g. waiting for a lock, from work that
+     * is running in a lane. The work's slot is released while the code runs, so that other work can use
+     * it, and is reacquired before this returns. Outside of a lane, the code simply runs.
+     */
+    static <T> T releaseSlotWhile(Callable<T> blocking) throws Exception {
+        TaskLaneExecutor current = CURRENT.get();
+        if (current == null) {
+            return blocking.call();
+        }
+        CURRENT.remove();
+        current.slots.release();
+        try {
+            return blocking.call();
+        } finally {
+            current.slots.acquireUninterruptibly();
+            CURRENT.set(current);
+        }
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    void shutdown() {
+        dispatcher.interrupt();
+        runner.shutdown();
+    }
+
+    private void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                slots.acquire();
+                Entry entry;
+                try {
+                    entry = queue.poll(IDLE_POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    slots.release();
+                    throw e;
+                }
+                if (entry == null) {
+                    // Don't sit on an idle slot, which work returning from releaseSlotWhile() may need.
+                    slots.release();
+                    continue;
+                }
+                queued.remove(entry.result);
+                waitTimer.record(Duration.ofNanos(System.nanoTime() - entry.enqueuedNanos));
+                try {
+                    runner.execute(() -> run(entry));
+                } catch (RejectedExecutionException e) {
+                    slots.release();
+                    entry.result.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Failed to dispatch task in lane {}", lane, e);
+            }
+        }
+        log.info("Task lane {} stopped.", lane);
+    }
+
+    private void run(Entry entry) {
+        CURRENT.set(this);
+        try {
+            entry.result.complete(entry.work.get());
+        } catch (Throwable t) {
+            entry.result.completeExceptionally(t);
+        } finally {
+            CURRENT.remove();
+            slots.release();
+        }
+    }
+}
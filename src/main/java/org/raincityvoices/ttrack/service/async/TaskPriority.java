@@ -0,0 +1,13 @@
+package org.raincityvoices.ttrack.service.async;
+
+/**
+ * The priority of a task within its lane. Tasks with a higher priority are always
+ * started before tasks with a lower priority; the constants are declared in
+ * order of decreasing priority.
+ */
+public enum TaskPriority {
+    /** Work that a user requested directly, and is likely waiting for. */
+    USER,
+    /** Work that was triggered as a side effect, like refreshing all mixes of a song. */
+    BACKGROUND
+}
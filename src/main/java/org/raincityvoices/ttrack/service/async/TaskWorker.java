@@ -0,0 +1,278 @@
+package org.raincityvoices.ttrack.service.async;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.raincityvoices.ttrack.service.config.ServiceConfig.WorkerConfig;
+import org.raincityvoices.ttrack.service.exceptions.ConflictException;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.async.TaskLeaseDTO;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A worker that claims queued tasks from the shared AsyncTasks table and runs them.
+ *
+ * Any number of workers (on any number of instances) can serve the same queue. A worker
+ * claims a task by creating a lease row for it; while the task runs, the worker renews
+ * the lease periodically. If the worker dies, the lease expires, and the task becomes
+ * eligible to be claimed by another worker. A worker that finds its lease taken over (e.g.
+ * because it stalled) abandons its run of the task, which still counts against its capacity
+ * until it has stopped.
+ *
+ * Optionally, workers prefer tasks for songs whose media they already have in their
+ * local cache: a worker that has no cached media for a task's song only claims it once
+ * the task has been waiting for longer than {@link WorkerConfig#getLocalityDelay()},
+ * giving a better-placed worker the chance to claim it first.
+ */
+@Slf4j
+public class TaskWorker {
+
+    /**
+     * Runs a task that this worker has claimed.
+     */
+    @FunctionalInterface
+    public interface Dispatcher {
+        /**
+         * Start running the given task.
+         * @return a future that completes when the task has finished, successfully or not.
+         */
+        CompletableFuture<?> dispatch(AsyncTaskDTO task);
+
+        /**
+         * Stop running a task whose lease was taken over by another worker, without recording anything
+         * in its task record. The future returned by {@link #dispatch(AsyncTaskDTO)} must still complete
+         * once the task has stopped.
+         */
+        default void abandon(String taskId) {}
+    }
+
+    /** A task this worker has claimed and is running. */
+    private static class Claim {
+        final TaskLeaseDTO lease;
+        /** Set once another worker has taken over the lease; the task is then being abandoned. */
+        volatile boolean lost;
+        Claim(TaskLeaseDTO lease) { this.lease = lease; }
+    }
+
+    @Getter
+    private final String workerId;
+    private final AsyncTaskStorage taskStorage;
+    private final Dispatcher dispatcher;
+    private final WorkerConfig config;
+    private final Clock clock;
+    private final Predicate<AsyncTaskDTO> hasLocalData;
+    /** The tasks this worker is currently running, including abandoned tasks that haven't stopped yet, by task ID. */
+    private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    public TaskWorker(String workerId, AsyncTaskStorage taskStorage, Dispatcher dispatcher, WorkerConfig config,
+                      Clock clock, Predicate<AsyncTaskDTO> hasLocalData) {
+        this.workerId = workerId;
+        this.taskStorage = taskStorage;
+        this.dispatcher = dispatcher;
+        this.config = config;
+        this.clock = clock;
+        this.hasLocalData = hasLocalData;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        log.info("Starting task worker {} with config {}", workerId, config);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "task-worker-" + workerId);
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::pollSafely, 0, config.getPollInterval().toMillis(), TimeUnit.MILLISECONDS);
+        long heartbeatMillis = heartbeatInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::renewLeasesSafely, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        log.info("Stopping task worker {}", workerId);
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /** The number of tasks this worker is currently running. */
+    public int activeTaskCount() {
+        return claims.size();
+    }
+
+    private void pollSafely() {
+        try {
+            pollOnce();
+        } catch (Exception e) {
+            log.error("Worker {} failed to poll for tasks", workerId, e);
+        }
+    }
+
+    private void renewLeasesSafely() {
+        try {
+            renewLeases();
+        } catch (Exception e) {
+            log.error("Worker {} failed to renew leases", workerId, e);
+        }
+    }
+
+    /**
+     * Claim and dispatch as many runnable tasks as this worker has capacity for.
+     * @return the number of tasks claimed.
+     */
+    @VisibleForTesting
+    int pollOnce() {
+        int capacity = config.getMaxConcurrentTasks() - claims.size();
+        if (capacity <= 0) {
+            return 0;
+        }
+        // Fetch extra candidates, since some are running on other workers, or will be claimed by them or skipped.
+        List<AsyncTaskDTO> candidates = taskStorage.listQueuedTasks(Math.max(capacity * 4, config.getQueueListSize()));
+        Instant now = clock.instant();
+        int claimed = 0;
+        for (AsyncTaskDTO candidate : candidates) {
+            if (claimed >= capacity) {
+                break;
+            }
+            if (claims.containsKey(candidate.getTaskId()) || !isEligible(candidate, now)) {
+                continue;
+            }
+            TaskLeaseDTO lease = tryClaim(candidate.getTaskId(), now);
+            if (lease == null) {
+                continue;
+            }
+            // The task may have finished between listing and claiming it.
+            AsyncTaskDTO current = taskStorage.getTask(candidate.getTaskId());
+            if (current == null || AsyncTaskDTO.isTerminal(current.getStatus())) {
+                log.debug("Task {} finished before it was claimed; releasing lease.", candidate.getTaskId());
+                releaseLease(lease);
+                continue;
+            }
+            dispatch(current, lease);
+            claimed++;
+        }
+        return claimed;
+    }
+
+    private boolean isEligible(AsyncTaskDTO task, Instant now) {
+        if (!config.isPreferCachedSongs() || task.getScheduled() == null) {
+            return true;
+        }
+        if (task.getScheduled().plus(config.getLocalityDelay()).isBefore(now)) {
+            return true;
+        }
+        return hasLocalData.test(task);
+    }
+
+    /**
+     * Try to claim the given task by creating its lease, or by taking over an expired lease.
+     * @return the new lease, or null if the task is owned by another worker.
+     */
+    private TaskLeaseDTO tryClaim(String taskId, Instant now) {
+        TaskLeaseDTO lease = taskStorage.getLease(taskId);
+        if (lease != null && !lease.isExpiredAt(now)) {
+            return null;
+        }
+        if (lease == null) {
+            lease = TaskLeaseDTO.builder().taskId(taskId).build();
+        } else {
+            log.warn("Lease for task {} held by {} expired at {}; taking over.", taskId, lease.getOwner(), lease.getExpiry());
+        }
+        lease.setOwner(workerId);
+        lease.setExpiry(now.plus(config.getLeaseDuration()));
+        try {
+            TaskLeaseDTO claimed = taskStorage.putLease(lease);
+            log.info("Worker {} claimed task {}", workerId, taskId);
+            return claimed;
+        } catch (ConflictException e) {
+            log.debug("Task {} was claimed by another worker.", taskId);
+            return null;
+        }
+    }
+
+    private void dispatch(AsyncTaskDTO task, TaskLeaseDTO lease) {
+        Claim claim = new Claim(lease);
+        claims.put(task.getTaskId(), claim);
+        CompletableFuture<?> result;
+        try {
+            result = dispatcher.dispatch(task);
+        } catch (Exception e) {
+            log.error("Worker {} failed to dispatch task {}", workerId, task.getTaskId(), e);
+            claims.remove(task.getTaskId(), claim);
+            releaseLease(lease);
+            return;
+        }
+        result.whenComplete((output, error) -> {
+            claims.remove(task.getTaskId(), claim);
+            if (!claim.lost) {
+                releaseLease(lease);
+            }
+        });
+    }
+
+    /**
+     * Extend the leases of all tasks this worker is running. If a lease was taken over by
+     * another worker (e.g. because this worker stalled), the task is abandoned, so that it
+     * doesn't run on both workers at once.
+     */
+    @VisibleForTesting
+    void renewLeases() {
+        Instant expiry = clock.instant().plus(config.getLeaseDuration());
+        for (Map.Entry<String, Claim> entry : claims.entrySet()) {
+            Claim claim = entry.getValue();
+            if (claim.lost) {
+                continue;
+            }
+            claim.lease.setExpiry(expiry);
+            try {
+                taskStorage.putLease(claim.lease);
+            } catch (ConflictException e) {
+                log.warn("Worker {} lost the lease on task {}; abandoning it.", workerId, entry.getKey());
+                claim.lost = true;
+                abandon(entry.getKey());
+            }
+        }
+    }
+
+    private void abandon(String taskId) {
+        try {
+            dispatcher.abandon(taskId);
+        } catch (Exception e) {
+            log.error("Worker {} failed to abandon task {}", workerId, taskId, e);
+        }
+    }
+
+    private void releaseLease(TaskLeaseDTO lease) {
+        try {
+            // Conditional, so that a lease another worker took over after this one's lapsed is kept.
+            taskStorage.deleteLease(lease);
+        } catch (ConflictException e) {
+            log.warn("Worker {} no longer holds the lease on task {}; leaving it.", workerId, lease.getTaskId());
+        } catch (Exception e) {
+            // Not fatal: the lease will simply expire.
+            log.warn("Worker {} failed to release lease on task {}", workerId, lease.getTaskId(), e);
+        }
+    }
+
+    private Duration heartbeatInterval() {
+        return config.getLeaseDuration().dividedBy(3);
+    }
+}
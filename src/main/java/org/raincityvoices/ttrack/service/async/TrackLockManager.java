@@ -0,0 +1,301 @@
+package org.raincityvoices.ttrack.service.async;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.exceptions.ConflictException;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.storage.songs.SongStorage;
+import org.springframework.stereotype.Component;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Manages the per-track locks that ensure that only one task writes to a track at a time.
+ *
+ * The lock itself is persisted on the track row, as the ID of the holding task and an expiry
+ * time. The holder renews the lock while it runs; if it dies, the lock expires, and another
+ * task may take it over. Locks written before expiry times were introduced are considered stale
+ * once their task has finished (or no longer exists).
+ *
+ * Tasks waiting for a lock held by a task in the same process wait in a per-track FIFO queue,
+ * and the one at the front is woken up as soon as the lock is released. A task joins the queue
+ * before it first reads the track, and keeps its place until it takes the lock or gives up, so a
+ * release can't slip in between a task seeing the lock held and starting to wait for it. Tasks
+ * waiting for a lock held elsewhere poll the track with an increasing backoff, up to
+ * {@link #MAX_REMOTE_POLL_INTERVAL}.
+ */
+@Slf4j
+@Component
+public class TrackLockManager {
+
+    @VisibleForTesting
+    static final Duration MIN_REMOTE_POLL_INTERVAL = Duration.ofMillis(200);
+    @VisibleForTesting
+    static final Duration MAX_REMOTE_POLL_INTERVAL = Duration.ofSeconds(2);
+    /** Upper bound on any single wait, as a safety net in case a wake-up is missed. */
+    private static final Duration MAX_LOCAL_WAIT = Duration.ofSeconds(5);
+
+    /** A task waiting for a track lock. */
+    private static class Waiter {
+        private boolean woken;
+
+        synchronized void wake() {
+            woken = true;
+            notifyAll();
+        }
+
+        /** Wait until woken up or until the timeout expires, whichever is first. */
+        synchronized void await(Duration timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            long remaining;
+            while (!woken && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            woken = false;
+        }
+    }
+
+    private final SongStorage songStorage;
+    private final AsyncTaskStorage taskStorage;
+    private final Clock clock;
+    private final Duration leaseDuration;
+    /**
+     * Tasks waiting for each track (by fully-qualified track ID), in arrival order. A queue is removed once
+     * it is empty, under its own monitor, so that a task only joins a queue that is still in the map.
+     */
+    private final Map<String, ArrayDeque<Waiter>> waitQueues = new ConcurrentHashMap<>();
+    /** IDs of the tasks in this process that currently hold a track lock. */
+    private final Set<String> localHolders = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "track-lock-renewer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public TrackLockManager(SongStorage songStorage, AsyncTaskStorage taskStorage, Clock clock, ServiceConfig serviceConfig) {
+        this.songStorage = songStorage;
+        this.taskStorage = taskStorage;
+        this.clock = clock;
+        this.leaseDuration = serviceConfig.getTasks().getTrackLockLease();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * Lock a track on behalf of a task, waiting up to the given timeout for the current holder
+     * (if any) to release it.
+     *
+     * @return the locked track, whose ETag reflects the lock, or null if the timeout expired first.
+     * @throws IllegalArgumentException if the track does not exist.
+     */
+    public AudioTrackDTO acquire(String songId, String trackId, String taskId, Duration timeout) throws InterruptedException {
+        String fqId = AudioTrackDTO.fqId(songId, trackId);
+        Instant deadline = clock.instant().plus(timeout);
+        Duration remotePollInterval = MIN_REMOTE_POLL_INTERVAL;
+        Waiter waiter = new Waiter();
+        ArrayDeque<Waiter> queue = joinQueue(fqId, waiter);
+        boolean locked = false;
+        try {
+            while (true) {
+                AudioTrackDTO track = describeTrackOrThrow(songId, trackId);
+                Instant now = clock.instant();
+                if (isAvailable(track, taskId, now)) {
+                    if (track.getCurrentTaskId() != null && !taskId.equals(track.getCurrentTaskId())) {
+                        log.warn("Taking over stale lock on {} held by task {} (expiry {}).", fqId, track.getCurrentTaskId(), track.getLockExpiry());
+                    }
+                    track.setCurrentTaskId(taskId);
+                    track.setLockExpiry(newExpiry());
+                    try {
+                        songStorage.writeTrack(track);
+                        localHolders.add(taskId);
+                        locked = true;
+                        log.info("Task {} locked track {}", taskId, fqId);
+                        return track;
+                    } catch (ConflictException e) {
+                        log.debug("Conflict while locking {}; retrying.", fqId);
+                        continue;
+                    }
+                }
+                Duration remaining = Duration.between(now, deadline);
+                if (remaining.isNegative() || remaining.isZero()) {
+                    return null;
+                }
+                final Duration wait;
+                if (localHolders.contains(track.getCurrentTaskId())) {
+                    // We'll be woken up when the holder releases the lock.
+                    wait = MAX_LOCAL_WAIT;
+                } else {
+                    wait = remotePollInterval;
+                    remotePollInterval = min(remotePollInterval.multipliedBy(2), MAX_REMOTE_POLL_INTERVAL);
+                }
+                log.info("Track {} is locked by task {}. Waiting...", fqId, track.getCurrentTaskId());
+                waiter.await(min(wait, remaining, timeUntilExpiry(track, now)));
+            }
+        } finally {
+            boolean first;
+            synchronized (queue) {
+                first = queue.peekFirst() == waiter;
+                queue.remove(waiter);
+                if (queue.isEmpty()) {
+                    waitQueues.remove(fqId, queue);
+                }
+            }
+            if (first && !locked) {
+                // A release may have woken us up, so pass the turn on to the next in line.
+                wakeNext(fqId);
+            }
+        }
+    }
+
+    /**
+     * Release a track locked by the given task, and wake up the next task waiting for it.
+     * The given DTO is written back with the lock cleared, along with any other changes made to it.
+     */
+    public void release(AudioTrackDTO track, String taskId) {
+        String fqId = track.getFqId();
+        try {
+            AudioTrackDTO toWrite = track;
+            while (taskId.equals(toWrite.getCurrentTaskId())) {
+                toWrite.setCurrentTaskId(null);
+                toWrite.setLockExpiry(null);
+                try {
+                    songStorage.writeTrack(toWrite);
+                    log.info("Task {} released track {}", taskId, fqId);
+                    break;
+                } catch (ConflictException e) {
+                    log.debug("Conflict while releasing {}; retrying.", fqId);
+                    toWrite = describeTrackOrThrow(track.getSongId(), track.getId());
+                }
+            }
+        } finally {
+            localHolders.remove(taskId);
+            wakeNext(fqId);
+        }
+    }
+
+    /**
+     * @return the expiry time for a lock acquired or renewed now.
+     */
+    public Instant newExpiry() {
+        return clock.instant().plus(leaseDuration);
+    }
+
+    /**
+     * Periodically run the given renewal action while the lock is held.
+     * @return a handle to cancel the renewal when the lock is released.
+     */
+    public ScheduledFuture<?> scheduleRenewal(Runnable renewal) {
+        long periodMillis = leaseDuration.dividedBy(3).toMillis();
+        return renewer.scheduleWithFixedDelay(() -> {
+            try {
+                renewal.run();
+            } catch (Exception e) {
+                log.warn("Failed to renew track lock; will retry.", e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of tracks that tasks in this process are waiting for.
+     */
+    @VisibleForTesting
+    int waitedForTrackCount() {
+        return waitQueues.size();
+    }
+
+    private boolean isAvailable(AudioTrackDTO track, String taskId, Instant now) {
+        String holder = track.getCurrentTaskId();
+        if (holder == null || holder.equals(taskId)) {
+            return true;
+        }
+        if (track.getLockExpiry() != null) {
+            return !track.getLockExpiry().isAfter(now);
+        }
+        // Lock written without an expiry: stale once the holding task has finished.
+        if (localHolders.contains(holder)) {
+            return false;
+        }
+        AsyncTaskDTO holderTask = taskStorage.getTask(holder);
+        return holderTask == null || AsyncTaskDTO.isTerminal(holderTask.getStatus());
+    }
+
+    private Duration timeUntilExpiry(AudioTrackDTO track, Instant now) {
+        if (track.getLockExpiry() == null) {
+            return MAX_LOCAL_WAIT;
+        }
+        Duration untilExpiry = Duration.between(now, track.getLockExpiry());
+        return untilExpiry.isNegative() ? Duration.ZERO : untilExpiry;
+    }
+
+    /**
+     * Add a waiter to the back of the queue for the given track, creating the queue if needed.
+     * @return the queue joined.
+     */
+    private ArrayDeque<Waiter> joinQueue(String fqId, Waiter waiter) {
+        while (true) {
+            ArrayDeque<Waiter> queue = waitQueues.computeIfAbsent(fqId, k -> new ArrayDeque<>());
+            synchronized (queue) {
+                // The queue may have been emptied and removed since we looked it up.
+                if (waitQueues.get(fqId) == queue) {
+                    queue.addLast(waiter);
+                    return queue;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake up the task at the front of the queue for the given track. It stays at the front until it
+     * takes the lock or gives up, so a task that loses the lock to another process keeps its turn.
+     */
+    private void wakeNext(String fqId) {
+        ArrayDeque<Waiter> queue = waitQueues.get(fqId);
+        if (queue == null) {
+            return;
+        }
+        Waiter next;
+        synchronized (queue) {
+            next = queue.peekFirst();
+        }
+        if (next != null) {
+            next.wake();
+        }
+    }
+
+    private AudioTrackDTO describeTrackOrThrow(String songId, String trackId) {
+        AudioTrackDTO dto = songStorage.describeTrack(songId, trackId);
+        if (dto == null) {
+            throw new IllegalArgumentException(String.format("Track %s/%s does not exist.", songId, trackId));
+        }
+        return dto;
+    }
+
+    private static Duration min(Duration first, Duration... others) {
+        Duration result = first;
+        for (Duration d : others) {
+            if (d.compareTo(result) < 0) {
+                result = d;
+            }
+        }
+        return result;
+    }
+}
@@ -121,6 +121,11 @@ public class ZipTracksTask extends AsyncTask<ZipTracksTask.Input, ZipTracksTask.
         super(new Input(songId, trackIds)); 
     }
 
+    /** Used to resume a queued task. */
+    ZipTracksTask(Input input) {
+        super(input);
+    }
+
     @Override
     protected String getTaskType() {
         return "ZipAllTracks";
@@ -131,6 +136,12 @@ public class ZipTracksTask extends AsyncTask<ZipTracksTask.Input, ZipTracksTask.
         return Input.class;
     }
 
+    @Override
+    public TaskLane lane() {
+        // Mostly copying media between storage and the zip file.
+        return TaskLane.IO;
+    }
+
     @Override
     protected void doInitialize() throws Exception {
         song = songStorage.describeSong(songId());
@@ -164,6 +175,10 @@ public class ZipTracksTask extends AsyncTask<ZipTracksTask.Input, ZipTracksTask.
 
     @Override
     protected Output process() throws Exception {
+        if (song == null) {
+            // Resumed by a worker, so doInitialize() didn't run in this instance.
+            song = songStorage.describeSong(songId());
+        }
         blobName = taskId() + ".zip";
         zipFileName = song.getShortTitleOrTitle() + ".zip";
         try(Temp.File file = fileManager.tempFile(songId(), ".zip")) {
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -13,6 +14,7 @@ import javax.sound.sampled.AudioSystem;
 
 import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
 import org.raincityvoices.ttrack.service.audio.model.AudioMix;
+import org.raincityvoices.ttrack.service.audio.model.MixPlan;
 
 import com.azure.cosmos.implementation.guava25.base.Preconditions;
 
@@ -25,7 +27,8 @@ import lombok.extern.slf4j.Slf4j;
  * based on a specified {@link AudioMix}. All inputs must be mono and 16-bit-per-sample,
  * the number of inputs must match the AudioMix's {@link AudioMix#numInputs() numInputs()}, 
  * and the output will be 16-bits-per-sample and have as many channels as the AudioMix's
- * {@link AudioMix#numOutputs() numOutputs()}.
+ * {@link AudioMix#numOutputs() numOutputs()}. Inputs that the mix doesn't use are never
+ * read, and may be null.
  * 
  * <p>The mixing process converts input audio data (16-bit samples) to float buffers,
  * applies the mixing logic via an {@link AudioMix} instance, and converts the result
@@ -45,9 +48,27 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class AudioMixingStream extends AudioInputStream {
 
+    /**
+     * Tells the mixer where an input is known to be silent, so that it can skip that input there (see
+     * {@link SilenceMap}).
+     */
+    @FunctionalInterface
+    public interface InputSilence {
+        /** For inputs with no known silence. */
+        InputSilence NONE = (fromFrame, toFrame) -> false;
+
+        /**
+         * @return whether the input is silent from {@code fromFrame} (inclusive) to {@code toFrame} (exclusive),
+         * counting from the start of the input stream.
+         */
+        boolean isSilent(long fromFrame, long toFrame);
+    }
+
     private static class MixingStream extends InputStream {
         private final AudioInputStream[] inputStreams;
+        private final InputSilence[] silence;
         private final AudioMix mix;
+        private final MixPlan plan;
         private final int bufferFrames;
         private final AudioDebugger[] inDebuggers;
         private final AudioDebugger outDebugger;
@@ -57,22 +78,37 @@ public class AudioMixingStream extends AudioInputStream {
         private final FloatBuffer inBuffers[];
         private final FloatBuffer outBuffer;
 		private final TarsosDSPAudioFloatConverter converter;
+        /** Whether each input is audible in the current buffer. */
+        private final boolean[] active;
+        /** Whether each input's float buffer holds only zeros, so that it needn't be cleared again. */
+        private final boolean[] zeroed;
+        /** The number of frames mixed so far. */
+        private long position;
 
         public MixingStream(AudioInputStream[] inputStreams, AudioMix mix, int bufferFrames) {
-            this(inputStreams, mix, bufferFrames, AudioDebugger.Settings.NONE);
+            this(inputStreams, noSilence(inputStreams.length), mix, bufferFrames, AudioDebugger.Settings.NONE);
         }
 
-        MixingStream(AudioInputStream[] inputStreams, AudioMix mix, int bufferFrames, AudioDebugger.Settings debugSettings) {
+        MixingStream(AudioInputStream[] inputStreams, InputSilence[] silence, AudioMix mix, int bufferFrames, AudioDebugger.Settings debugSettings) {
             Preconditions.checkArgument(inputStreams.length == mix.numInputs());
+            Preconditions.checkArgument(silence.length == mix.numInputs());
             this.inputStreams = inputStreams;
+            this.silence = silence;
             this.mix = mix;
+            this.plan = mix.compile();
             this.bufferFrames = bufferFrames;
             this.inDebuggers = new AudioDebugger[numInputs()];
             for (int i = 0; i < numInputs(); ++i) {
-                this.inDebuggers[i] = new AudioDebugger("MixInput-" + i, inputStreams[i].getFormat(), debugSettings);
+                if (inputStreams[i] != null) {
+                    this.inDebuggers[i] = new AudioDebugger("MixInput-" + i, inputStreams[i].getFormat(), debugSettings);
+                }
+            }
+            this.inputFormat = firstFormat(inputStreams);
+            for (int i = 0; i < numInputs(); ++i) {
+                // Mixing reinterprets every input in the first one's format, so they must match; see ResamplingStream.
+                Preconditions.checkArgument(inputStreams[i] == null || inputFormat.matches(inputStreams[i].getFormat()),
+                    "Input %s has format %s; expected %s", i, inputStreams[i] == null ? null : inputStreams[i].getFormat(), inputFormat);
             }
-            // TODO validate matching
-            this.inputFormat = inputStreams[0].getFormat();
             Preconditions.checkArgument(inputFormat.getSampleSizeInBits() == 16, 
                     "Input sample size is " + inputFormat.getSampleSizeInBits() + "; only 16 supported.");
             Preconditions.checkArgument(inputFormat.getChannels() == 1,
@@ -88,6 +124,8 @@ public class AudioMixingStream extends AudioInputStream {
             }
             this.outBuffer = FloatBuffer.allocate(bufferFrames * outputFormat.getChannels());
             this.converter = TarsosDSPAudioFloatConverter.getConverter(JVMAudioInputStream.toTarsosDSPFormat(inputFormat));
+            this.active = new boolean[numInputs()];
+            this.zeroed = new boolean[numInputs()];
         }
 
         @Override
@@ -100,9 +138,33 @@ public class AudioMixingStream extends AudioInputStream {
             int numFrames = Math.min(len / outputFormat.getFrameSize(), bufferFrames);
             int bytesToRead = numFrames * inputFormat.getFrameSize();
             int minReadFrames = numFrames;
+            boolean anyActive = false;
             for (int i = 0; i < numInputs(); ++i) {
                 ByteBuffer bb = inBytes[i];
                 FloatBuffer fb = inBuffers[i];
+                if (!plan.usesInput(i)) {
+                    // The input contributes nothing, and needn't even be open.
+                    active[i] = false;
+                    continue;
+                }
+                active[i] = !silence[i].isSilent(position, position + numFrames);
+                anyActive |= active[i];
+                if (!active[i]) {
+                    // The input still has to be consumed, but its samples needn't be converted or mixed.
+                    int skippedBytes = skipInStream(i, bytesToRead);
+                    if (skippedBytes < 0) {
+                        return -1;
+                    }
+                    int skippedFrames = skippedBytes / format(i).getFrameSize();
+                    minReadFrames = Math.min(minReadFrames, skippedFrames);
+                    if (!zeroed[i]) {
+                        Arrays.fill(fb.array(), 0.0f);
+                        zeroed[i] = true;
+                    }
+                    fb.limit(skippedFrames).rewind();
+                    continue;
+                }
+                zeroed[i] = false;
                 int readBytes = readFromStream(i, bb.array(), 0, bytesToRead);
                 if (readBytes < 0) {
                     // EOF
@@ -119,8 +181,14 @@ public class AudioMixingStream extends AudioInputStream {
                 fb.limit(readFrames).rewind();
             }
             int outSamples = minReadFrames * outputFormat.getChannels();
+            position += minReadFrames;
+            if (!anyActive) {
+                // Every input that the mix uses is silent, so the output is too.
+                Arrays.fill(b, 0, minReadFrames * outputFormat.getFrameSize(), (byte) 0);
+                return minReadFrames * outputFormat.getFrameSize();
+            }
             outBuffer.limit(outSamples).rewind();
-            mix.mix(inBuffers, outBuffer);
+            plan.execute(inBuffers, active, outBuffer);
             if (outSamples != outBuffer.position()) {
                 log.warn("outBuffer.position = {}; expected {}", outBuffer.position(), outSamples);
             }
@@ -163,6 +231,32 @@ public class AudioMixingStream extends AudioInputStream {
             return readBytes;
         }
 
+        /**
+         * Skip {@code len} bytes of the input stream, unless it hits EOF. This is cheaper than reading them when
+         * the stream can seek, e.g. for PCM read from a file.
+         * @return the number of bytes skipped, or -1 at EOF.
+         */
+        private int skipInStream(int i, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int skipped = 0;
+            while (skipped < len) {
+                long n = inputStreams[i].skip(len - skipped);
+                if (n <= 0) {
+                    // skip() doesn't report EOF, and may skip nothing without being at EOF; reading tells us which.
+                    int readBytes = readFromStream(i, inBytes[i].array(), 0, len - skipped);
+                    if (readBytes > 0) {
+                        skipped += readBytes;
+                    }
+                    break;
+                }
+                skipped += (int) n;
+            }
+            log.debug("Skipped {} bytes of silence from stream {}", skipped, i);
+            return skipped == 0 ? -1 : skipped;
+        }
+
         public int numInputs() {
             return mix.numInputs();
         }
@@ -196,15 +290,44 @@ public class AudioMixingStream extends AudioInputStream {
      * and the same number of channels as {@link AudioMix#numOutputs() mix.numOutputs()}.
      */
     public static AudioMixingStream create(AudioInputStream inputStreams[], AudioMix mix, int bufferFrames, AudioDebugger.Settings debugSettings) {
-        MixingStream mixingStream = new MixingStream(inputStreams, mix, bufferFrames, debugSettings);
+        MixingStream mixingStream = new MixingStream(inputStreams, noSilence(inputStreams.length), mix, bufferFrames, debugSettings);
+        return new AudioMixingStream(mixingStream);
+    }
+
+    /**
+     * Same as {@link AudioMixingStream#create(AudioInputStream[], AudioMix)}, skipping the inputs where they are
+     * known to be silent.
+     * @param silence where each input is silent, in the same order as the inputs.
+     */
+    public static AudioMixingStream create(AudioInputStream inputStreams[], InputSilence[] silence, AudioMix mix) {
+        MixingStream mixingStream = new MixingStream(inputStreams, silence, mix,
+            (int) firstFormat(inputStreams).getFrameRate(), AudioDebugger.Settings.NONE);
         return new AudioMixingStream(mixingStream);
     }
 
+    /**
+     * @return the format of the first input that is open.
+     */
+    private static AudioFormat firstFormat(AudioInputStream[] inputStreams) {
+        for (AudioInputStream stream : inputStreams) {
+            if (stream != null) {
+                return stream.getFormat();
+            }
+        }
+        throw new IllegalArgumentException("No input streams to mix.");
+    }
+
+    private static InputSilence[] noSilence(int numInputs) {
+        InputSilence[] silence = new InputSilence[numInputs];
+        Arrays.fill(silence, InputSilence.NONE);
+        return silence;
+    }
+
     /**
      * Same as {@link AudioMixingStream#create(AudioInputStream, AudioMix, int)}, setting
      * the buffer size to one second of audio.
      */
     public static AudioMixingStream create(AudioInputStream inputStreams[], AudioMix mix) {
-        return create(inputStreams, mix, (int) inputStreams[0].getFormat().getFrameRate());
+        return create(inputStreams, mix, (int) firstFormat(inputStreams).getFrameRate());
     }
 }
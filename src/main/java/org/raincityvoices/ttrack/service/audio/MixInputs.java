@@ -0,0 +1,170 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+import org.raincityvoices.ttrack.service.audio.model.AudioMix;
+import org.raincityvoices.ttrack.service.storage.media.MediaContent;
+import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+
+import com.google.common.base.Preconditions;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The decoded audio of the parts that go into a mix, with any pitch shift and speed change applied, ready to
+ * be combined by an {@link AudioMixingStream}. Can be limited to a time range of the parts, in which case only
+ * the media needed for that range is decoded (see {@link SeekIndex}). Where a part's {@link SilenceMap} is current,
+ * the mix skips the part over its silent stretches. Where a part has a current {@link WorkingCopy}, that is read
+ * instead of the original media, with no decoding or format conversion. Parts recorded at different sample rates
+ * are resampled to the highest of their rates, so that they mix in time.
+ */
+@Slf4j
+public class MixInputs implements Closeable {
+
+    /** The range that covers the whole of every part. */
+    public static final long END = Long.MAX_VALUE;
+
+    private final AudioMix mix;
+    private final AudioInputStream[] streams;
+    private final TarsosStreamAdapter[] adapters;
+    private final AudioMixingStream.InputSilence[] silence;
+
+    private MixInputs(AudioMix mix, int numParts) {
+        this.mix = mix;
+        this.streams = new AudioInputStream[numParts];
+        this.adapters = new TarsosStreamAdapter[numParts];
+        this.silence = new AudioMixingStream.InputSilence[numParts];
+    }
+
+    /**
+     * Open the media of the parts that the mix uses; the others are not downloaded or decoded.
+     * @param fromMs the start of the range to read, in the parts' own time (before any speed change).
+     * @param toMs the end of the range, or {@link #END}.
+     */
+    public static MixInputs open(MediaStorage mediaStorage, List<AudioTrackDTO> partTracks, AudioMix mix, int pitchShift, double speedFactor,
+                                 long fromMs, long toMs, AudioDebugger.Settings debugSettings) throws IOException, UnsupportedAudioFileException {
+        Preconditions.checkArgument(partTracks.size() == mix.numInputs(), "Mix has %s inputs, but there are %s parts", mix.numInputs(), partTracks.size());
+        MixInputs inputs = new MixInputs(mix, partTracks.size());
+        try {
+            boolean needAudioMod = (pitchShift != 0 || speedFactor != 1.0);
+            String[] sourceEtags = new String[partTracks.size()];
+            float sampleRate = 0.0f;
+            for (int i = 0; i < partTracks.size(); ++i) {
+                AudioTrackDTO partTrack = partTracks.get(i);
+                if (!mix.usesInput(i)) {
+                    log.info("Skipping part {}, which the mix doesn't use", partTrack.getId());
+                    inputs.silence[i] = AudioMixingStream.InputSilence.NONE;
+                    continue;
+                }
+                sourceEtags[i] = mediaStorage.getMediaMetadata(partTrack.getMediaLocation()).etag();
+                inputs.streams[i] = openWorkingCopy(mediaStorage, partTrack, sourceEtags[i], fromMs, toMs);
+                if (inputs.streams[i] == null) {
+                    log.info("Reading media for part {} from {}", partTrack.getId(), partTrack.getMediaLocation());
+                    MediaContent content = mediaStorage.getMedia(partTrack.getMediaLocation());
+                    sourceEtags[i] = content.metadata().etag();
+                    inputs.streams[i] = openPart(content, partTrack, fromMs, toMs);
+                }
+                sampleRate = Math.max(sampleRate, inputs.streams[i].getFormat().getSampleRate());
+            }
+            for (int i = 0; i < partTracks.size(); ++i) {
+                if (inputs.streams[i] == null) {
+                    continue;
+                }
+                inputs.streams[i] = ResamplingStream.toSampleRate(inputs.streams[i], sampleRate);
+                inputs.silence[i] = silenceOf(sourceEtags[i], partTracks.get(i), fromMs, speedFactor, sampleRate);
+                if (needAudioMod) {
+                    log.info("Applying pitch shift {}, speed factor {}", pitchShift, speedFactor);
+                    inputs.adapters[i] = new TarsosStreamAdapter(
+                        TarsosUtils.getPitchAndSpeedDispatcher(inputs.streams[i], pitchShift, speedFactor), debugSettings);
+                    inputs.streams[i] = inputs.adapters[i].getAudioInputStream();
+                }
+            }
+            return inputs;
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            inputs.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the range of the part's working copy, or null if it has no working copy made from its current media.
+     */
+    private static AudioInputStream openWorkingCopy(MediaStorage mediaStorage, AudioTrackDTO partTrack, String sourceEtag,
+                                                    long fromMs, long toMs) throws IOException {
+        WorkingCopy copy = partTrack.getWorkingCopy();
+        if (copy == null || !isCurrent(sourceEtag, copy.sourceEtag())) {
+            return null;
+        }
+        MediaContent content = mediaStorage.getMedia(copy.location());
+        if (!copy.isCurrent(sourceEtag, content.metadata().etag())) {
+            log.info("Working copy of part {} is out of date", partTrack.getId());
+            content.stream().close();
+            return null;
+        }
+        log.info("Reading working copy of part {} from {}", partTrack.getId(), copy.location());
+        try {
+            return copy.openRange(content.stream(), fromMs, toMs);
+        } catch (IOException | RuntimeException e) {
+            content.stream().close();
+            throw e;
+        }
+    }
+
+    private static AudioInputStream openPart(MediaContent content, AudioTrackDTO partTrack, long fromMs, long toMs)
+            throws IOException, UnsupportedAudioFileException {
+        if (fromMs == 0 && toMs == END) {
+            return AudioFormats.toPcmStream(AudioSystem.getAudioInputStream(content.stream()));
+        }
+        SeekIndex index = partTrack.getSeekIndex();
+        if (index != null && isCurrent(content.metadata().etag(), index.etag())) {
+            log.debug("Reading {} - {} ms of part {} using its seek index", fromMs, toMs, partTrack.getId());
+            return index.openRange(content.stream(), fromMs, toMs);
+        }
+        log.info("Part {} has no seek index for its current media; decoding from the start.", partTrack.getId());
+        return SeekIndex.decodeRange(content.stream(), fromMs, toMs);
+    }
+
+    private static AudioMixingStream.InputSilence silenceOf(String sourceEtag, AudioTrackDTO partTrack, long fromMs,
+                                                            double speedFactor, float frameRate) {
+        SilenceMap map = partTrack.getSilenceMap();
+        if (map == null || !isCurrent(sourceEtag, map.etag())) {
+            return AudioMixingStream.InputSilence.NONE;
+        }
+        return map.forStream(fromMs, speedFactor, frameRate);
+    }
+
+    /**
+     * @return whether data computed from media with the given ETag applies to media with the current ETag.
+     */
+    private static boolean isCurrent(String currentETag, String etag) {
+        return StringUtils.isNotEmpty(currentETag) && currentETag.equals(etag);
+    }
+
+    /**
+     * Mix the inputs, skipping each one wherever it is silent.
+     */
+    public AudioMixingStream mix() {
+        return AudioMixingStream.create(streams, silence, mix);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < streams.length; ++i) {
+            if (adapters[i] != null) {
+                // closing the adapter also closes the stream
+                adapters[i].close();
+            } else if (streams[i] != null) {
+                streams[i].close();
+            }
+        }
+    }
+}
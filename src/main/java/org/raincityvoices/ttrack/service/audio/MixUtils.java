@@ -65,10 +65,21 @@ public class MixUtils {
             .build();
     }
     
+    /**
+     * Parse a mix description as {@link #parseStereoMix(String, List)} does, or "all" for an {@link AllPartsMix}.
+     * JSON that names its type, e.g. {@code {"_type": "MatrixMix", ...}}, can describe any kind of mix.
+     */
     public static AudioMix parseMix(String description, List<AudioPart> parts) {
         if (description.equalsIgnoreCase("all")) {
             return allChannelMix(parts.size());
         }
+        if (description.trim().startsWith("{") && description.contains("\"_type\"")) {
+            try {
+                return MAPPER.readValue(description, AudioMix.class);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Unable to parse JSON as AudioMix: " + description, e);
+            }
+        }
         return parseStereoMix(description, parts);
     }
     /** 
@@ -0,0 +1,180 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+
+/**
+ * Converts mono audio from one sample rate to another with a polyphase windowed-sinc filter. The rates' ratio is
+ * reduced to {@code up / down} (e.g. 160 / 147 for 44.1 kHz to 48 kHz), and each output sample is computed from
+ * the input samples around it with one of {@code up} precomputed filter phases, so no intermediate upsampled
+ * signal is ever built.
+ * <p>
+ * The resampler is streaming: input is passed in blocks of up to {@code maxInputFrames} samples, and the output
+ * that the input so far determines is returned for each block. All buffers are allocated up front, so resampling
+ * doesn't allocate. Output sample {@code n} is aligned with input time {@code n * down / up} (the filter's delay
+ * is compensated), so resampled parts stay in time with the others.
+ * <p>
+ * Note: this class is _not_ thread-safe; use one resampler per stream.
+ */
+public class PolyphaseResampler {
+
+    /** The number of input samples on either side of each output sample that the filter uses, when upsampling. */
+    static final int HALF_TAPS = 16;
+    /** The cutoff frequency, as a fraction of the Nyquist frequency of the lower of the two rates. */
+    static final double ROLLOFF = 0.95;
+    /** The Kaiser window's beta: about 80 dB of stopband attenuation. */
+    static final double KAISER_BETA = 8.0;
+    /**
+     * The most filter phases to precompute. Rates with an awkward ratio (e.g. 44100 to 47999) use the nearest of
+     * this many phases, which is accurate to well below 16-bit resolution.
+     */
+    static final int MAX_PHASES = 4096;
+
+    private final int up;
+    private final int down;
+    private final int halfTaps;
+    private final int taps;
+    private final int numPhases;
+    /** The filter for phase p is at coefficients[p * taps] to coefficients[(p + 1) * taps - 1]. */
+    private final float[] coefficients;
+    private final int maxInputFrames;
+
+    /** Input samples that are still needed, preceded at the start by silence. */
+    private final float[] buffer;
+    private int bufferLength;
+    /** The index in the buffer of the input sample at or just before the next output sample... */
+    private int center;
+    /** ...and how far past it the output sample is, in units of 1 / up of an input sample. */
+    private int phase;
+    private long inputFrames;
+    private long outputFrames;
+
+    public PolyphaseResampler(int inputRate, int outputRate, int maxInputFrames) {
+        Preconditions.checkArgument(inputRate > 0 && outputRate > 0, "Invalid rates: %s, %s", inputRate, outputRate);
+        Preconditions.checkArgument(maxInputFrames > 0, "Invalid block size: %s", maxInputFrames);
+        int gcd = IntMath.gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        double cutoff = ROLLOFF * Math.min(1.0, (double) up / down);
+        this.halfTaps = (int) Math.ceil(HALF_TAPS / Math.min(1.0, (double) up / down));
+        this.taps = 2 * halfTaps;
+        this.numPhases = Math.min(up, MAX_PHASES);
+        this.coefficients = computeCoefficients(numPhases, halfTaps, cutoff);
+        this.maxInputFrames = maxInputFrames;
+        // Room for the samples that the next output needs, a block, and the silence that flush() appends.
+        this.buffer = new float[taps + halfTaps + maxInputFrames];
+        reset();
+    }
+
+    /**
+     * Compute the Kaiser-windowed sinc filter for each phase, i.e. for outputs that fall {@code p / phases} of the
+     * way from one input sample to the next. Each phase is normalized to unity gain, so that DC passes unchanged.
+     */
+    private static float[] computeCoefficients(int phases, int halfTaps, double cutoff) {
+        int taps = 2 * halfTaps;
+        float[] coefficients = new float[phases * taps];
+        double kaiserNorm = besselI0(KAISER_BETA);
+        for (int p = 0; p < phases; ++p) {
+            double[] phaseCoefficients = new double[taps];
+            double sum = 0.0;
+            for (int k = 0; k < taps; ++k) {
+                double distance = (double) p / phases + halfTaps - 1 - k;
+                double x = distance / halfTaps;
+                double window = Math.abs(x) >= 1.0 ? 0.0 : besselI0(KAISER_BETA * Math.sqrt(1.0 - x * x)) / kaiserNorm;
+                phaseCoefficients[k] = cutoff * sinc(cutoff * distance) * window;
+                sum += phaseCoefficients[k];
+            }
+            for (int k = 0; k < taps; ++k) {
+                coefficients[p * taps + k] = (float) (phaseCoefficients[k] / sum);
+            }
+        }
+        return coefficients;
+    }
+
+    private static double sinc(double x) {
+        return x == 0.0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /** The zeroth-order modified Bessel function of the first kind, by its power series. */
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        for (int k = 1; term > 1e-12 * sum; ++k) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    /** Start a new stream, as if no input had been processed. */
+    public void reset() {
+        // The stream is preceded by silence, so the first outputs have inputs on both sides.
+        Arrays.fill(buffer, 0.0f);
+        bufferLength = halfTaps - 1;
+        center = halfTaps - 1;
+        phase = 0;
+        inputFrames = 0;
+        outputFrames = 0;
+    }
+
+    /** The most samples that a single call to {@link #process} or {@link #flush} can output. */
+    public int maxOutputFrames() {
+        return (int) ((long) (maxInputFrames + taps) * up / down) + 2;
+    }
+
+    /**
+     * Resample the next block of input.
+     * @param in the input samples, of which the first {@code length} are used; at most {@code maxInputFrames}.
+     * @param out receives the output samples that the input so far determines; must have room for
+     * {@link #maxOutputFrames()}.
+     * @return the number of samples output.
+     */
+    public int process(float[] in, int length, float[] out) {
+        Preconditions.checkArgument(length <= maxInputFrames, "Block of %s frames exceeds %s", length, maxInputFrames);
+        System.arraycopy(in, 0, buffer, bufferLength, length);
+        bufferLength += length;
+        inputFrames += length;
+        return produce(out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Output the rest of the stream, once all the input has been processed.
+     * @return the number of samples output, which with the earlier output add up to the input's length at the
+     * new rate.
+     */
+    public int flush(float[] out) {
+        // Whatever follows the stream is silence.
+        Arrays.fill(buffer, bufferLength, bufferLength + halfTaps, 0.0f);
+        bufferLength += halfTaps;
+        long totalOutputFrames = (inputFrames * up + down - 1) / down;
+        return produce(out, totalOutputFrames);
+    }
+
+    private int produce(float[] out, long maxTotalOutputFrames) {
+        int count = 0;
+        while (center + halfTaps < bufferLength && outputFrames < maxTotalOutputFrames) {
+            int phaseIndex = numPhases == up ? phase : (int) ((long) phase * numPhases / up);
+            int coefficientStart = phaseIndex * taps;
+            int inputStart = center - halfTaps + 1;
+            float sample = 0.0f;
+            for (int k = 0; k < taps; ++k) {
+                sample += coefficients[coefficientStart + k] * buffer[inputStart + k];
+            }
+            out[count++] = sample;
+            ++outputFrames;
+            phase += down;
+            center += phase / up;
+            phase %= up;
+        }
+        // Drop the input that no later output needs.
+        int drop = Math.min(center - halfTaps + 1, bufferLength);
+        if (drop > 0) {
+            System.arraycopy(buffer, drop, buffer, 0, bufferLength - drop);
+            bufferLength -= drop;
+            center -= drop;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,133 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.google.common.base.Preconditions;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link AudioInputStream} that converts a mono, 16-bit PCM stream to a different sample rate with a
+ * {@link PolyphaseResampler}.
+ */
+@Slf4j
+public class ResamplingStream extends AudioInputStream {
+
+    private static class Resampler extends InputStream {
+
+        private final AudioInputStream inputStream;
+        private final AudioFormat inputFormat;
+        private final AudioFormat outputFormat;
+        private final PolyphaseResampler resampler;
+        private final TarsosDSPAudioFloatConverter converter;
+        private final byte[] inBytes;
+        private final float[] inSamples;
+        private final float[] outSamples;
+        private final byte[] outBytes;
+        /** The resampled bytes that haven't been read yet are outBytes[outPosition] to outBytes[outLimit - 1]. */
+        private int outPosition;
+        private int outLimit;
+        private boolean flushed;
+
+        Resampler(AudioInputStream inputStream, float outputRate, int bufferFrames) {
+            this.inputStream = inputStream;
+            this.inputFormat = inputStream.getFormat();
+            Preconditions.checkArgument(inputFormat.getSampleSizeInBits() == 16,
+                "Input sample size is " + inputFormat.getSampleSizeInBits() + "; only 16 supported.");
+            Preconditions.checkArgument(inputFormat.getChannels() == 1, "Only mono streams can be resampled.");
+            this.outputFormat = withSampleRate(inputFormat, outputRate);
+            this.resampler = new PolyphaseResampler(Math.round(inputFormat.getSampleRate()), Math.round(outputRate), bufferFrames);
+            this.converter = TarsosDSPAudioFloatConverter.getConverter(JVMAudioInputStream.toTarsosDSPFormat(inputFormat));
+            this.inBytes = new byte[bufferFrames * inputFormat.getFrameSize()];
+            this.inSamples = new float[bufferFrames];
+            this.outSamples = new float[resampler.maxOutputFrames()];
+            this.outBytes = new byte[outSamples.length * outputFormat.getFrameSize()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException("Single-byte reads are not supported.");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (outPosition == outLimit) {
+                if (flushed) {
+                    return -1;
+                }
+                fill();
+            }
+            int bytes = Math.min(len / outputFormat.getFrameSize() * outputFormat.getFrameSize(), outLimit - outPosition);
+            System.arraycopy(outBytes, outPosition, b, off, bytes);
+            outPosition += bytes;
+            return bytes;
+        }
+
+        /** Resample the next block of the input, or what's left of the output at EOF. */
+        private void fill() throws IOException {
+            int readBytes = inputStream.readNBytes(inBytes, 0, inBytes.length);
+            int readFrames = readBytes / inputFormat.getFrameSize();
+            int numSamples;
+            if (readFrames > 0) {
+                converter.toFloatArray(inBytes, inSamples, readFrames);
+                numSamples = resampler.process(inSamples, readFrames, outSamples);
+            } else {
+                log.debug("EOF; flushing resampler");
+                numSamples = resampler.flush(outSamples);
+                flushed = true;
+            }
+            for (int i = 0; i < numSamples; ++i) {
+                // The filter can overshoot full scale slightly.
+                outSamples[i] = Math.max(-1.0f, Math.min(1.0f, outSamples[i]));
+            }
+            converter.toByteArray(outSamples, numSamples, outBytes);
+            outPosition = 0;
+            outLimit = numSamples * outputFormat.getFrameSize();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    private ResamplingStream(Resampler resampler, long frameLength) {
+        super(resampler, resampler.outputFormat, frameLength);
+    }
+
+    /**
+     * @param inputStream a mono, 16-bit PCM stream.
+     * @param outputRate the sample rate to convert to.
+     * @param bufferFrames the number of input frames to resample at a time.
+     */
+    public static AudioInputStream create(AudioInputStream inputStream, float outputRate, int bufferFrames) {
+        long inputLength = inputStream.getFrameLength();
+        long frameLength = inputLength == AudioSystem.NOT_SPECIFIED
+            ? AudioSystem.NOT_SPECIFIED
+            : (long) Math.ceil(inputLength * outputRate / inputStream.getFormat().getSampleRate());
+        return new ResamplingStream(new Resampler(inputStream, outputRate, bufferFrames), frameLength);
+    }
+
+    /**
+     * @return the stream, converted to the given sample rate if it isn't already, a second at a time.
+     */
+    public static AudioInputStream toSampleRate(AudioInputStream inputStream, float outputRate) {
+        if (inputStream.getFormat().getSampleRate() == outputRate) {
+            return inputStream;
+        }
+        log.info("Resampling stream from {} Hz to {} Hz", inputStream.getFormat().getSampleRate(), outputRate);
+        return create(inputStream, outputRate, Math.round(inputStream.getFormat().getSampleRate()));
+    }
+
+    static AudioFormat withSampleRate(AudioFormat format, float sampleRate) {
+        return new AudioFormat(format.getEncoding(), sampleRate, format.getSampleSizeInBits(), format.getChannels(),
+            format.getFrameSize(), sampleRate, format.isBigEndian());
+    }
+}
@@ -0,0 +1,366 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.IOUtils;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+
+import com.google.common.base.Preconditions;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Byte offsets into an audio file, built once when the file is uploaded, so that a time range of the audio
+ * can be read without decoding everything before it.
+ *
+ * For MP3, this is a table of MPEG frame offsets: one seek point every {@code framesPerPoint} frames. For WAV,
+ * the offset of any sample can be computed from the offset of the data chunk and the sample format.
+ *
+ * @param etag the ETag of the media that the index was built from; the index is only valid for that media.
+ * @param sampleRate the number of samples per second (per channel).
+ * @param channels the number of channels (WAV only).
+ * @param bitsPerSample the sample size (WAV only).
+ * @param dataOffset the byte offset of the first MPEG frame, or of the WAV sample data.
+ * @param dataLength the length of the WAV sample data in bytes (WAV only).
+ * @param samplesPerFrame the number of samples (per channel) in each MPEG frame (MP3 only).
+ * @param framesPerPoint the number of MPEG frames between seek points (MP3 only).
+ * @param points the byte offset of every {@code framesPerPoint}th MPEG frame, starting with the first (MP3 only).
+ */
+@Slf4j
+public record SeekIndex(Format format, String etag, int sampleRate, int channels, int bitsPerSample,
+                        long dataOffset, long dataLength, int samplesPerFrame, int framesPerPoint, long[] points) {
+
+    public enum Format { MP3, WAV }
+
+    /**
+     * The index is stored with the track, so the number of MP3 seek points is capped; a longer file gets
+     * more frames between points.
+     */
+    static final int MAX_POINTS = 1024;
+    static final int MIN_FRAMES_PER_POINT = 8;
+    /**
+     * The number of MPEG frames read before the first frame of a range. A layer III frame can keep up to 511 bytes
+     * of its data in the frames before it (the "bit reservoir"), so the decoder skips the first few frames after
+     * a seek, up to 11 at the lowest bit rates; and its filter banks carry state from frame to frame, so the first
+     * frames that it does decode are not exact.
+     */
+    static final int PREROLL_FRAMES = 12;
+    private static final int SKIP_BUFFER_FRAMES = 4096;
+
+    /**
+     * Read the whole file and build its index.
+     * @return the index, or null if the file is neither an MP3 nor a PCM WAV file.
+     */
+    public static SeekIndex build(InputStream media, String etag) throws IOException {
+        CountingReader reader = new CountingReader(media);
+        byte[] start = reader.peek(4);
+        if (start.length == 4 && "RIFF".equals(new String(start, StandardCharsets.US_ASCII))) {
+            return buildWav(reader, etag);
+        }
+        return buildMp3(reader, etag);
+    }
+
+    /**
+     * Read the samples from {@code fromMs} (inclusive) to {@code toMs} (exclusive) of the media that this index was
+     * built from, decoding as little of the media before {@code fromMs} as possible.
+     * @param media the whole media file, positioned at its start.
+     * @return a PCM stream of the range, which ends early if the media does.
+     */
+    public AudioInputStream openRange(InputStream media, long fromMs, long toMs) throws IOException, UnsupportedAudioFileException {
+        Preconditions.checkArgument(0 <= fromMs && fromMs <= toMs, "Invalid range: %s - %s ms", fromMs, toMs);
+        long fromSample = toSamples(fromMs);
+        long numSamples = toSamples(toMs) - fromSample;
+        if (format == Format.WAV) {
+            AudioFormat pcm = new AudioFormat(bitsPerSample == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+                sampleRate, bitsPerSample, channels, frameSize(), sampleRate, false);
+            long totalSamples = dataLength / frameSize();
+            fromSample = Math.min(fromSample, totalSamples);
+            IOUtils.skipFully(media, dataOffset + fromSample * frameSize());
+            return new AudioInputStream(media, pcm, Math.min(numSamples, totalSamples - fromSample));
+        }
+        long fromFrame = Math.max(0, fromSample / samplesPerFrame - PREROLL_FRAMES);
+        int point = (int) Math.min(fromFrame / framesPerPoint, points.length - 1);
+        IOUtils.skipFully(media, points[point]);
+        BufferedInputStream frames = new BufferedInputStream(media);
+        int skippedFrames = leadingFramesWithoutMainData(frames);
+        AudioInputStream decoded = AudioFormats.toPcmStream(AudioSystem.getAudioInputStream(frames));
+        long firstDecodedSample = ((long) point * framesPerPoint + skippedFrames) * samplesPerFrame;
+        return skipAndLimit(decoded, fromSample - firstDecodedSample, numSamples);
+    }
+
+    /**
+     * Read a range of media that has no (valid) index, by decoding it from the start.
+     * @see #openRange(InputStream, long, long)
+     */
+    public static AudioInputStream decodeRange(InputStream media, long fromMs, long toMs) throws IOException, UnsupportedAudioFileException {
+        Preconditions.checkArgument(0 <= fromMs && fromMs <= toMs, "Invalid range: %s - %s ms", fromMs, toMs);
+        AudioInputStream decoded = AudioFormats.toPcmStream(AudioSystem.getAudioInputStream(media));
+        float rate = decoded.getFormat().getFrameRate();
+        long fromSample = (long) (fromMs * (double) rate / 1000);
+        long toSample = toMs == Long.MAX_VALUE ? Long.MAX_VALUE : (long) (toMs * (double) rate / 1000);
+        return skipAndLimit(decoded, fromSample, toSample - fromSample);
+    }
+
+    private static AudioInputStream skipAndLimit(AudioInputStream stream, long skipFrames, long numFrames) throws IOException {
+        int frameSize = stream.getFormat().getFrameSize();
+        // A decoded stream can only be skipped by decoding, so read and discard whole frames.
+        byte[] discard = new byte[SKIP_BUFFER_FRAMES * frameSize];
+        long skipBytes = skipFrames * frameSize;
+        while (skipBytes > 0) {
+            int read = stream.read(discard, 0, (int) Math.min(discard.length, skipBytes));
+            if (read < 0) {
+                break;
+            }
+            skipBytes -= read;
+        }
+        return new AudioInputStream(stream, stream.getFormat(), numFrames);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof SeekIndex other
+            && format == other.format && Objects.equals(etag, other.etag) && sampleRate == other.sampleRate
+            && channels == other.channels && bitsPerSample == other.bitsPerSample && dataOffset == other.dataOffset
+            && dataLength == other.dataLength && samplesPerFrame == other.samplesPerFrame
+            && framesPerPoint == other.framesPerPoint && Arrays.equals(points, other.points);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(format, etag, sampleRate, dataOffset, Arrays.hashCode(points));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SeekIndex[%s, etag=%s, %d Hz, %d seek points]", format, etag, sampleRate,
+            points == null ? 0 : points.length);
+    }
+
+    /**
+     * Count the frames at the start of the stream that the decoder will skip, because their main data begins in
+     * the bit reservoir, i.e. in a frame before the start of the stream. The decoder produces no samples for them.
+     */
+    static int leadingFramesWithoutMainData(BufferedInputStream frames) throws IOException {
+        // Once the reservoir holds a whole frame's worth of data, no further frames are skipped.
+        frames.mark(4 * MpegHeader.MAX_LENGTH);
+        try {
+            long reservoir = 0;
+            int skipped = 0;
+            while (true) {
+                // The header, the CRC if there is one, and the start of the side information.
+                byte[] bytes = frames.readNBytes(8);
+                MpegHeader header = bytes.length == 8 ? MpegHeader.parse(bytes) : null;
+                if (header == null || header.mainDataBegin(bytes) <= reservoir) {
+                    break;
+                }
+                ++skipped;
+                reservoir += header.mainDataLength();
+                IOUtils.skipFully(frames, header.length() - bytes.length);
+            }
+            return skipped;
+        } finally {
+            frames.reset();
+        }
+    }
+
+    private long toSamples(long ms) {
+        return ms == Long.MAX_VALUE ? Long.MAX_VALUE / 2 : ms * sampleRate / 1000;
+    }
+
+    private int frameSize() {
+        return channels * ((bitsPerSample + 7) / 8);
+    }
+
+    private static SeekIndex buildWav(CountingReader reader, String etag) throws IOException {
+        reader.skip(12); // "RIFF", size, "WAVE"
+        int channels = 0;
+        int sampleRate = 0;
+        int bits = 0;
+        boolean isPcm = false;
+        while (true) {
+            byte[] header = reader.read(8);
+            if (header.length < 8) {
+                log.warn("WAV file has no data chunk");
+                return null;
+            }
+            String id = new String(header, 0, 4, StandardCharsets.US_ASCII);
+            long size = littleEndian(header, 4, 4);
+            if (id.equals("data")) {
+                if (!isPcm || channels <= 0 || bits <= 0) {
+                    log.info("Not indexing non-PCM WAV file");
+                    return null;
+                }
+                return new SeekIndex(Format.WAV, etag, sampleRate, channels, bits, reader.position(), size, 0, 0, null);
+            }
+            if (id.equals("fmt ")) {
+                byte[] fmt = reader.read((int) size);
+                int tag = (int) littleEndian(fmt, 0, 2);
+                channels = (int) littleEndian(fmt, 2, 2);
+                sampleRate = (int) littleEndian(fmt, 4, 4);
+                bits = (int) littleEndian(fmt, 14, 2);
+                // WAVE_FORMAT_EXTENSIBLE gives the actual format tag at the start of its sub-format GUID.
+                isPcm = tag == 1 || (tag == 0xFFFE && fmt.length >= 26 && littleEndian(fmt, 24, 2) == 1);
+                reader.skip(size % 2);
+            } else {
+                // Chunks are padded to an even size.
+                reader.skip(size + size % 2);
+            }
+        }
+    }
+
+    private static SeekIndex buildMp3(CountingReader reader, String etag) throws IOException {
+        skipId3v2(reader);
+        List<Long> offsets = new ArrayList<>();
+        int sampleRate = 0;
+        int samplesPerFrame = 0;
+        byte[] header = reader.read(4);
+        while (header.length == 4) {
+            MpegHeader frame = MpegHeader.parse(header);
+            if (frame == null || (sampleRate != 0 && frame.sampleRate() != sampleRate)) {
+                // Not a frame header (e.g. a trailing tag, or junk): look for the next one a byte further on.
+                byte[] next = reader.read(1);
+                if (next.length == 0) {
+                    break;
+                }
+                header = new byte[] { header[1], header[2], header[3], next[0] };
+                continue;
+            }
+            sampleRate = frame.sampleRate();
+            samplesPerFrame = frame.samplesPerFrame();
+            offsets.add(reader.position() - 4);
+            reader.skip(frame.length() - 4);
+            header = reader.read(4);
+        }
+        if (offsets.isEmpty()) {
+            log.info("No MPEG frames found; not indexing.");
+            return null;
+        }
+        int framesPerPoint = Math.max(MIN_FRAMES_PER_POINT, (offsets.size() + MAX_POINTS - 1) / MAX_POINTS);
+        long[] points = new long[(offsets.size() + framesPerPoint - 1) / framesPerPoint];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = offsets.get(i * framesPerPoint);
+        }
+        log.info("Indexed {} MPEG frames with {} seek points", offsets.size(), points.length);
+        return new SeekIndex(Format.MP3, etag, sampleRate, 0, 0, points[0], 0, samplesPerFrame, framesPerPoint, points);
+    }
+
+    private static void skipId3v2(CountingReader reader) throws IOException {
+        byte[] start = reader.peek(10);
+        if (start.length < 10 || !"ID3".equals(new String(start, 0, 3, StandardCharsets.US_ASCII))) {
+            return;
+        }
+        // The tag size is "synchsafe": 7 bits per byte.
+        long size = ((start[6] & 0x7F) << 21) | ((start[7] & 0x7F) << 14) | ((start[8] & 0x7F) << 7) | (start[9] & 0x7F);
+        boolean hasFooter = (start[5] & 0x10) != 0;
+        reader.skip(10 + size + (hasFooter ? 10 : 0));
+    }
+
+    private static long littleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; --i) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /** The fields of an MPEG audio layer III frame header that determine the frame's length, duration and layout. */
+    record MpegHeader(int sampleRate, int samplesPerFrame, int length, boolean mpeg1, boolean hasCrc, boolean mono) {
+
+        private static final int[] MPEG1_BITRATES = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 };
+        private static final int[] MPEG2_BITRATES = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 };
+        private static final int[] MPEG1_SAMPLE_RATES = { 44100, 48000, 32000 };
+        /** The length of the longest possible frame (320 kbps at 32 kHz, with padding). */
+        static final int MAX_LENGTH = 1441;
+
+        /**
+         * @return the header, or null if the bytes are not a valid layer III frame header. Free-format frames,
+         * which don't give their bit rate, are not supported.
+         */
+        static MpegHeader parse(byte[] h) {
+            if ((h[0] & 0xFF) != 0xFF || (h[1] & 0xE0) != 0xE0) {
+                return null;
+            }
+            int version = (h[1] >> 3) & 0x3; // 0: MPEG 2.5, 1: reserved, 2: MPEG 2, 3: MPEG 1
+            int layer = (h[1] >> 1) & 0x3;   // 1: layer III
+            int bitrateIndex = (h[2] >> 4) & 0xF;
+            int sampleRateIndex = (h[2] >> 2) & 0x3;
+            if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null;
+            }
+            boolean mpeg1 = version == 3;
+            int bitrate = (mpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[bitrateIndex] * 1000;
+            int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+            int padding = (h[2] >> 1) & 0x1;
+            int samplesPerFrame = mpeg1 ? 1152 : 576;
+            int length = samplesPerFrame / 8 * bitrate / sampleRate + padding;
+            boolean hasCrc = (h[1] & 0x1) == 0;
+            boolean mono = ((h[3] >> 6) & 0x3) == 3;
+            return new MpegHeader(sampleRate, samplesPerFrame, length, mpeg1, hasCrc, mono);
+        }
+
+        /**
+         * @param frame the start of the frame, including at least two bytes of side information.
+         * @return how many bytes before the frame its main data begins.
+         */
+        int mainDataBegin(byte[] frame) {
+            int pos = hasCrc ? 6 : 4;
+            return mpeg1 ? ((frame[pos] & 0xFF) << 1) | ((frame[pos + 1] & 0xFF) >> 7) : frame[pos] & 0xFF;
+        }
+
+        /** The number of bytes of main data (i.e. not header, CRC or side information) in the frame. */
+        int mainDataLength() {
+            int sideInfoLength = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            return length - 4 - (hasCrc ? 2 : 0) - sideInfoLength;
+        }
+    }
+
+    /** Reads a stream while keeping track of the position in it. */
+    private static class CountingReader {
+        private final BufferedInputStream in;
+        private long position;
+
+        CountingReader(InputStream in) {
+            this.in = new BufferedInputStream(in);
+        }
+
+        long position() {
+            return position;
+        }
+
+        /** Read up to {@code n} bytes, returning fewer only at the end of the stream. */
+        byte[] read(int n) throws IOException {
+            byte[] bytes = in.readNBytes(n);
+            position += bytes.length;
+            return bytes;
+        }
+
+        byte[] peek(int n) throws IOException {
+            in.mark(n);
+            byte[] bytes = in.readNBytes(n);
+            in.reset();
+            return bytes;
+        }
+
+        void skip(long n) throws IOException {
+            try {
+                IOUtils.skipFully(in, n);
+                position += n;
+            } catch (EOFException e) {
+                position = Long.MAX_VALUE;
+            }
+        }
+    }
+}
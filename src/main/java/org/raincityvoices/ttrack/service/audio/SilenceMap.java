@@ -0,0 +1,106 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Which blocks of a part's audio are silent, computed once when the part is uploaded, so that the mixer can skip
+ * the part wherever it has nothing to contribute (e.g. during long rests, or in a duet of two parts of many).
+ *
+ * @param etag the ETag of the media that the map was computed from; the map is only valid for that media.
+ * @param blockMs the length of each block.
+ * @param numBlocks the number of blocks in the audio.
+ * @param silentBlocks the silent blocks, as the words of a {@link BitSet}.
+ */
+@Slf4j
+public record SilenceMap(String etag, int blockMs, int numBlocks, long[] silentBlocks) {
+
+    public static final int BLOCK_MS = 250;
+    /** The peak amplitude (relative to full scale) at or below which a block counts as silent: -60 dBFS. */
+    static final float SILENCE_THRESHOLD = 0.001f;
+
+    /**
+     * Read the whole stream and map its silent blocks.
+     * @param pcm the decoded audio.
+     */
+    public static SilenceMap compute(AudioInputStream pcm, String etag) throws IOException {
+        AudioFormat format = pcm.getFormat();
+        int blockFrames = Math.max(1, Math.round(format.getFrameRate() * BLOCK_MS / 1000));
+        byte[] bytes = new byte[blockFrames * format.getFrameSize()];
+        float[] samples = new float[blockFrames * format.getChannels()];
+        TarsosDSPAudioFloatConverter converter = TarsosDSPAudioFloatConverter.getConverter(JVMAudioInputStream.toTarsosDSPFormat(format));
+        BitSet silent = new BitSet();
+        int numBlocks = 0;
+        int read;
+        while ((read = pcm.readNBytes(bytes, 0, bytes.length)) > 0) {
+            int numSamples = read / format.getFrameSize() * format.getChannels();
+            converter.toFloatArray(bytes, samples, numSamples);
+            float peak = 0.0f;
+            for (int i = 0; i < numSamples; ++i) {
+                peak = Math.max(peak, Math.abs(samples[i]));
+            }
+            if (peak <= SILENCE_THRESHOLD) {
+                silent.set(numBlocks);
+            }
+            ++numBlocks;
+        }
+        log.info("{} of {} blocks are silent", silent.cardinality(), numBlocks);
+        return new SilenceMap(etag, BLOCK_MS, numBlocks, silent.toLongArray());
+    }
+
+    /**
+     * @return whether the audio from {@code fromMs} to {@code toMs} is silent. To allow for inexact timing, e.g.
+     * from decoder delay or time stretching, the blocks on either side of the range must be silent too.
+     */
+    public boolean isSilent(double fromMs, double toMs) {
+        int first = Math.max(0, (int) Math.floor(fromMs / blockMs) - 1);
+        int last = Math.min(numBlocks - 1, (int) Math.ceil(toMs / blockMs));
+        for (int block = first; block <= last; ++block) {
+            if (!isSilentBlock(block)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the map as seen by a stream that starts at {@code startMs} of the audio, and plays it
+     * {@code speedFactor} times as fast.
+     */
+    public AudioMixingStream.InputSilence forStream(long startMs, double speedFactor, float frameRate) {
+        double msPerFrame = 1000.0 * speedFactor / frameRate;
+        return (fromFrame, toFrame) -> isSilent(startMs + fromFrame * msPerFrame, startMs + toFrame * msPerFrame);
+    }
+
+    private boolean isSilentBlock(int block) {
+        int word = block >> 6;
+        return word < silentBlocks.length && (silentBlocks[word] & (1L << (block & 63))) != 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof SilenceMap other
+            && Objects.equals(etag, other.etag) && blockMs == other.blockMs && numBlocks == other.numBlocks
+            && Arrays.equals(silentBlocks, other.silentBlocks);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(etag, blockMs, numBlocks, Arrays.hashCode(silentBlocks));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SilenceMap[etag=%s, %d of %d blocks of %d ms silent]", etag,
+            BitSet.valueOf(silentBlocks).cardinality(), numBlocks, blockMs);
+    }
+}
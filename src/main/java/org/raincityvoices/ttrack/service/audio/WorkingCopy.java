@@ -0,0 +1,58 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A copy of a part's uploaded media in the canonical format that the mixer works in (see {@link #FORMAT}),
+ * made once when the part is uploaded (see {@link WorkingCopyStream}), so that renders don't have to decode,
+ * downmix or resample the original. The original is kept as it was uploaded.
+ *
+ * @param location the location of the copy in MediaStorage.
+ * @param sourceEtag the ETag of the original media that the copy was made from; the copy is only valid for that
+ * media.
+ * @param index the layout of the copy's WAV file, whose ETag is that of the copy itself.
+ */
+public record WorkingCopy(String location, String sourceEtag, SeekIndex index) {
+
+    /** Mono, 16-bit, 48 kHz PCM. */
+    public static final AudioFormat FORMAT = AudioFormats.MONO_PCM_48KHZ;
+    /** Appended to a part's ID for the file ID of its working copy. */
+    public static final String FILE_ID_SUFFIX = ".work.wav";
+
+    public WorkingCopy {
+        Preconditions.checkNotNull(location);
+        Preconditions.checkNotNull(index);
+        Preconditions.checkArgument(index.format() == SeekIndex.Format.WAV, "Working copy must be a WAV file");
+    }
+
+    /**
+     * @return whether the copy was made from the given media, and is the given copy.
+     */
+    public boolean isCurrent(String currentSourceEtag, String currentEtag) {
+        return currentSourceEtag != null && currentSourceEtag.equals(sourceEtag)
+            && currentEtag != null && currentEtag.equals(index.etag());
+    }
+
+    /**
+     * Read a range of the copy directly as PCM, skipping straight to its start without any decoding.
+     * @param media the whole copy, positioned at its start.
+     * @see SeekIndex#openRange(InputStream, long, long)
+     */
+    public AudioInputStream openRange(InputStream media, long fromMs, long toMs) throws IOException {
+        try {
+            return index.openRange(media, fromMs, toMs);
+        } catch (UnsupportedAudioFileException e) {
+            // Only MP3s are decoded to seek, and the index is of a WAV file.
+            throw new IllegalStateException(e);
+        }
+    }
+}
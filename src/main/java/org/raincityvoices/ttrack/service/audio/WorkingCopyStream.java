@@ -0,0 +1,160 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.google.common.base.Preconditions;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link AudioInputStream} that transcodes PCM audio of any sample size, channel count and sample rate to the
+ * {@link WorkingCopy#FORMAT working copy format} in a single pass: each block is downmixed to mono, resampled with
+ * a {@link PolyphaseResampler}, and reduced to 16 bits with TPDF (triangular) dither, so that the quantization
+ * error is noise rather than distortion that follows the signal.
+ */
+@Slf4j
+public class WorkingCopyStream extends AudioInputStream {
+
+    /** The number of input frames transcoded at a time. */
+    static final int BUFFER_FRAMES = 4096;
+
+    private static class Transcoder extends InputStream {
+
+        private final AudioInputStream inputStream;
+        private final AudioFormat inputFormat;
+        private final int channels;
+        private final TarsosDSPAudioFloatConverter converter;
+        /** Null if the input is already at the working copy's rate. */
+        private final PolyphaseResampler resampler;
+        private final byte[] inBytes;
+        private final float[] inSamples;
+        private final float[] monoSamples;
+        private final float[] outSamples;
+        private final byte[] outBytes;
+        /** The transcoded bytes that haven't been read yet are outBytes[outPosition] to outBytes[outLimit - 1]. */
+        private int outPosition;
+        private int outLimit;
+        private boolean flushed;
+        /** The state of the xorshift generator of the dither noise. */
+        private long random = 0x9E3779B97F4A7C15L;
+
+        Transcoder(AudioInputStream inputStream) {
+            this.inputStream = inputStream;
+            this.inputFormat = inputStream.getFormat();
+            Preconditions.checkArgument(inputFormat.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                    || inputFormat.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED
+                    || inputFormat.getEncoding() == AudioFormat.Encoding.PCM_FLOAT,
+                "Input must be PCM, not " + inputFormat.getEncoding());
+            this.channels = inputFormat.getChannels();
+            this.converter = TarsosDSPAudioFloatConverter.getConverter(JVMAudioInputStream.toTarsosDSPFormat(inputFormat));
+            int inputRate = Math.round(inputFormat.getSampleRate());
+            int outputRate = Math.round(WorkingCopy.FORMAT.getSampleRate());
+            this.resampler = inputRate == outputRate ? null : new PolyphaseResampler(inputRate, outputRate, BUFFER_FRAMES);
+            this.inBytes = new byte[BUFFER_FRAMES * inputFormat.getFrameSize()];
+            this.inSamples = new float[BUFFER_FRAMES * channels];
+            this.monoSamples = new float[BUFFER_FRAMES];
+            this.outSamples = resampler == null ? monoSamples : new float[resampler.maxOutputFrames()];
+            this.outBytes = new byte[outSamples.length * WorkingCopy.FORMAT.getFrameSize()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException("Single-byte reads are not supported.");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (outPosition == outLimit) {
+                if (flushed) {
+                    return -1;
+                }
+                fill();
+            }
+            int frameSize = WorkingCopy.FORMAT.getFrameSize();
+            int bytes = Math.min(len / frameSize * frameSize, outLimit - outPosition);
+            System.arraycopy(outBytes, outPosition, b, off, bytes);
+            outPosition += bytes;
+            return bytes;
+        }
+
+        /** Transcode the next block of the input, or what's left of the output at EOF. */
+        private void fill() throws IOException {
+            int readBytes = inputStream.readNBytes(inBytes, 0, inBytes.length);
+            int readFrames = readBytes / inputFormat.getFrameSize();
+            int numSamples;
+            if (readFrames > 0) {
+                converter.toFloatArray(inBytes, inSamples, readFrames * channels);
+                downmix(readFrames);
+                numSamples = resampler == null ? readFrames : resampler.process(monoSamples, readFrames, outSamples);
+            } else {
+                log.debug("EOF; flushing transcoder");
+                numSamples = resampler == null ? 0 : resampler.flush(outSamples);
+                flushed = true;
+            }
+            quantize(numSamples);
+            outPosition = 0;
+            outLimit = numSamples * WorkingCopy.FORMAT.getFrameSize();
+        }
+
+        private void downmix(int numFrames) {
+            if (channels == 1) {
+                System.arraycopy(inSamples, 0, monoSamples, 0, numFrames);
+                return;
+            }
+            float scale = 1.0f / channels;
+            for (int f = 0, s = 0; f < numFrames; ++f) {
+                float sum = 0.0f;
+                for (int c = 0; c < channels; ++c) {
+                    sum += inSamples[s++];
+                }
+                monoSamples[f] = sum * scale;
+            }
+        }
+
+        /** Convert the output samples to 16-bit little-endian PCM, with dither. */
+        private void quantize(int numSamples) {
+            for (int i = 0, o = 0; i < numSamples; ++i) {
+                float dither = nextUniform() - nextUniform();
+                long sample = Math.round(outSamples[i] * Short.MAX_VALUE + dither);
+                sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                outBytes[o++] = (byte) sample;
+                outBytes[o++] = (byte) (sample >> 8);
+            }
+        }
+
+        /** @return a uniformly distributed number in [0, 1). */
+        private float nextUniform() {
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            return (random >>> 40) * 0x1.0p-24f;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    private WorkingCopyStream(Transcoder transcoder, long frameLength) {
+        super(transcoder, WorkingCopy.FORMAT, frameLength);
+    }
+
+    /**
+     * @param inputStream decoded PCM audio, in any format.
+     */
+    public static WorkingCopyStream create(AudioInputStream inputStream) {
+        long inputLength = inputStream.getFrameLength();
+        long frameLength = inputLength == AudioSystem.NOT_SPECIFIED
+            ? AudioSystem.NOT_SPECIFIED
+            : (long) Math.ceil(inputLength * (double) WorkingCopy.FORMAT.getSampleRate() / inputStream.getFormat().getSampleRate());
+        return new WorkingCopyStream(new Transcoder(inputStream), frameLength);
+    }
+}
@@ -1,29 +1,37 @@
 package org.raincityvoices.ttrack.service.audio.model;
 
 import java.nio.FloatBuffer;
-import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.ToString;
 import lombok.Value;
 import lombok.experimental.Accessors;
 
 /**
  * An implementation of {@link AudioMix} that creates a one-channel-per-part
  * output, with output samples in the same order as the input parts.
+ * This is a special case of a {@link MatrixMix}, in which every output is a copy of an input.
  */
 @Value
+@EqualsAndHashCode(exclude = "plan")
+@ToString(exclude = "plan")
 @Accessors(fluent = true)
 @Getter(onMethod=@__(@JsonProperty()))
 public class AllPartsMix implements AudioMix {
 
     int numParts;
+    @Getter(AccessLevel.NONE)
+    MixPlan plan;
 
     @JsonCreator
     public AllPartsMix(int numParts) {
         this.numParts = numParts;
+        this.plan = MixPlan.compile(this);
     }
 
     @Override
@@ -32,14 +40,17 @@ public class AllPartsMix implements AudioMix {
     @Override
     public int numOutputs() { return numParts; }
 
+    @Override
+    public float factor(int input, int output) { return input == output ? 1.0f : 0.0f; }
+
+    @Override
+    public MixPlan compile() {
+        return plan;
+    }
+
     @Override
     public void mix(FloatBuffer[] ins, FloatBuffer out) {
-        int leastRemaining = Stream.of(ins).mapToInt(FloatBuffer::remaining).min().getAsInt();
-        while (leastRemaining-- > 0) {
-            for (int i = 0; i < numInputs(); ++i) {
-                out.put(ins[i].get());
-            }
-        }                
+        plan.execute(ins, out);
     }
 
 }
@@ -76,6 +76,21 @@ public class AudioFormats {
         throw new IllegalArgumentException("Unsupported target format type: " + formatType);
     }
 
+    /**
+     * The file type that a mix is rendered to: MP3 for mono and stereo mixes, and WAV for mixes with more output
+     * channels, which the MP3 encoder doesn't support.
+     */
+    public static AudioFileFormat.Type mixFileType(AudioMix mix) {
+        return mix.numOutputs() <= 2 ? MpegAudioFileWriter.MP3 : AudioFileFormat.Type.WAVE;
+    }
+
+    /**
+     * The MIME type of files of the given type.
+     */
+    public static String contentType(AudioFileFormat.Type fileType) {
+        return MpegAudioFileWriter.MP3.equals(fileType) ? MP3_TYPE : WAV_TYPE;
+    }
+
     /**
      * Given a PCM-like (fixed frame and sample size) AudioFormat, return a new AudioFormat that 
      * has the same characteristics, but a different number of channels. This new format can be 
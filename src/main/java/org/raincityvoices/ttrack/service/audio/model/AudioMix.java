@@ -17,7 +17,8 @@ import com.fasterxml.jackson.annotation.OptBoolean;
 @JsonSubTypes({
     @JsonSubTypes.Type(value = MonoMix.class, name = "MonoMix"),
     @JsonSubTypes.Type(value = StereoMix.class, name = "StereoMix"),
-    @JsonSubTypes.Type(value = AllPartsMix.class, name = "AllPartsMix")
+    @JsonSubTypes.Type(value = AllPartsMix.class, name = "AllPartsMix"),
+    @JsonSubTypes.Type(value = MatrixMix.class, name = "MatrixMix")
 })
 @JsonIgnoreProperties(ignoreUnknown = true)
 public interface AudioMix {
@@ -32,5 +33,40 @@ public interface AudioMix {
     /** The number of output channels. */
     int numOutputs();
 
+    /**
+     * The factor by which the given input is multiplied in the given output channel; 0.0 if the input doesn't
+     * contribute to it.
+     */
+    float factor(int input, int output);
+
+    /**
+     * Whether the given input contributes to any output channel. Unused inputs don't affect the
+     * mixed audio, so e.g. a new version of an unused part doesn't require a new render.
+     */
+    default boolean usesInput(int input) {
+        for (int output = 0; output < numOutputs(); ++output) {
+            if (factor(input, output) != 0.0f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void mix(FloatBuffer[] ins, FloatBuffer out);
-}
\ No newline at end of file
+
+    /**
+     * Mix like {@link #mix(FloatBuffer[], FloatBuffer)}, skipping the inputs for which {@code active[i]} is false,
+     * because they are silent throughout the buffers. For repeated mixing, {@link #compile()} the mix once and
+     * execute the plan instead.
+     */
+    default void mix(FloatBuffer[] ins, boolean[] active, FloatBuffer out) {
+        compile().execute(ins, active, out);
+    }
+
+    /**
+     * Compile the mix into a plan that reads only the inputs that contribute to each output.
+     */
+    default MixPlan compile() {
+        return MixPlan.compile(this);
+    }
+}
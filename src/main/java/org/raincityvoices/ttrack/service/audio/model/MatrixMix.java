@@ -0,0 +1,164 @@
+package org.raincityvoices.ttrack.service.audio.model;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * An {@link AudioMix} with any number of inputs and output channels, in which each output channel is a weighted
+ * sum of some of the inputs. For example, a 5.1 layout, or one part on the left and the others on the right at
+ * -6 dB.
+ * <p>
+ * The weights are stored as a sparse matrix in compressed sparse row (CSR) form: the inputs of output channel
+ * {@code o} are {@code columns[rowOffsets[o]]} up to (but not including) {@code columns[rowOffsets[o + 1]]},
+ * in ascending order, and their weights are at the same indexes of {@code weights}. Inputs that are not
+ * listed for a channel don't contribute to it. For example, {@code MatrixMix(3, {0, 1, 3}, {0, 1, 2},
+ * {1.0, 0.5, 0.5})} puts the first input on the left, and the other two at half volume on the right.
+ * <p>
+ * Each weight must be in (0.0, 1.0]; unlike {@link MonoMix}, the weights of a channel needn't sum to 1.
+ */
+@Value
+@Accessors(fluent = true)
+@EqualsAndHashCode(exclude = "plan")
+@ToString(exclude = "plan")
+@JsonIgnoreProperties({"plan"})
+public class MatrixMix implements AudioMix {
+
+    @JsonProperty("inputs")
+    int numInputs;
+    @JsonProperty("rowOffsets")
+    int[] rowOffsets;
+    @JsonProperty("columns")
+    int[] columns;
+    @JsonProperty("weights")
+    float[] weights;
+    @Getter(AccessLevel.NONE)
+    MixPlan plan;
+
+    @JsonCreator
+    public MatrixMix(@JsonProperty("inputs") int numInputs, @JsonProperty("rowOffsets") int[] rowOffsets,
+                     @JsonProperty("columns") int[] columns, @JsonProperty("weights") float[] weights) {
+        Preconditions.checkNotNull(rowOffsets);
+        Preconditions.checkNotNull(columns);
+        Preconditions.checkNotNull(weights);
+        this.numInputs = numInputs;
+        this.rowOffsets = rowOffsets.clone();
+        this.columns = columns.clone();
+        this.weights = weights.clone();
+        validate();
+        this.plan = new MixPlan(numInputs, this.rowOffsets, this.columns, this.weights);
+    }
+
+    /**
+     * @param factors the weight of each input in each output channel, i.e. {@code factors[output][input]}.
+     * Zero weights are left out.
+     */
+    public static MatrixMix fromDense(float[][] factors) {
+        Preconditions.checkArgument(factors.length > 0, "No output channels");
+        int numInputs = factors[0].length;
+        int[] rowOffsets = new int[factors.length + 1];
+        int[] columns = new int[factors.length * numInputs];
+        float[] weights = new float[columns.length];
+        int count = 0;
+        for (int out = 0; out < factors.length; ++out) {
+            Preconditions.checkArgument(factors[out].length == numInputs,
+                "Output %s has %s factors; expected %s", out, factors[out].length, numInputs);
+            for (int in = 0; in < numInputs; ++in) {
+                if (factors[out][in] != 0.0f) {
+                    columns[count] = in;
+                    weights[count] = factors[out][in];
+                    ++count;
+                }
+            }
+            rowOffsets[out + 1] = count;
+        }
+        return new MatrixMix(numInputs, rowOffsets, Arrays.copyOf(columns, count), Arrays.copyOf(weights, count));
+    }
+
+    /**
+     * @return the same mix as the given one, as a matrix.
+     */
+    public static MatrixMix of(AudioMix mix) {
+        float[][] factors = new float[mix.numOutputs()][mix.numInputs()];
+        for (int out = 0; out < mix.numOutputs(); ++out) {
+            for (int in = 0; in < mix.numInputs(); ++in) {
+                factors[out][in] = mix.factor(in, out);
+            }
+        }
+        return fromDense(factors);
+    }
+
+    @Override
+    public int numOutputs() {
+        return rowOffsets.length - 1;
+    }
+
+    @Override
+    public float factor(int input, int output) {
+        Preconditions.checkElementIndex(input, numInputs);
+        Preconditions.checkElementIndex(output, numOutputs());
+        int index = Arrays.binarySearch(columns, rowOffsets[output], rowOffsets[output + 1], input);
+        return index >= 0 ? weights[index] : 0.0f;
+    }
+
+    @Override
+    public boolean usesInput(int input) {
+        return plan.usesInput(input);
+    }
+
+    @Override
+    public MixPlan compile() {
+        return plan;
+    }
+
+    @Override
+    public void mix(FloatBuffer[] ins, FloatBuffer out) {
+        plan.execute(ins, out);
+    }
+
+    public void validate() {
+        if (numInputs <= 0) {
+            throw new IllegalArgumentException("No inputs to mix");
+        }
+        if (rowOffsets.length < 2) {
+            throw new IllegalArgumentException("No output channels");
+        }
+        if (rowOffsets[0] != 0) {
+            throw new IllegalArgumentException("First row offset is " + rowOffsets[0] + ", expected 0");
+        }
+        if (columns.length != weights.length) {
+            throw new IllegalArgumentException(columns.length + " columns, but " + weights.length + " weights");
+        }
+        if (rowOffsets[rowOffsets.length - 1] != columns.length) {
+            throw new IllegalArgumentException("Last row offset is " + rowOffsets[rowOffsets.length - 1]
+                + ", expected " + columns.length);
+        }
+        for (int out = 0; out < numOutputs(); ++out) {
+            if (rowOffsets[out + 1] < rowOffsets[out]) {
+                throw new IllegalArgumentException("Row offsets decrease at output " + out);
+            }
+            for (int k = rowOffsets[out]; k < rowOffsets[out + 1]; ++k) {
+                if (columns[k] < 0 || columns[k] >= numInputs) {
+                    throw new IllegalArgumentException("Input " + columns[k] + " of output " + out + " out of range");
+                }
+                if (k > rowOffsets[out] && columns[k] <= columns[k - 1]) {
+                    throw new IllegalArgumentException("Inputs of output " + out + " not in ascending order");
+                }
+                if (!(weights[k] > 0.0f && weights[k] <= 1.0f)) {
+                    throw new IllegalArgumentException("Weight out of range (0.0, 1.0]: " + weights[k]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.raincityvoices.ttrack.service.audio.model;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An {@link AudioMix} compiled for execution: for each output channel, only the inputs with a non-zero factor,
+ * stored as a sparse matrix in compressed sparse row (CSR) form, as in {@link MatrixMix}.
+ * Inputs that no output uses are never read, and an output that is a single input at a factor of exactly 1.0
+ * (e.g. in a "Solo" or "Left" mix) is a plain copy of that input.
+ * <p>
+ * This is the one mixing kernel that every kind of mix shares. It works through the frames in blocks of
+ * {@link #BLOCK_FRAMES}, so that the part of the output being written and the parts of the inputs being read
+ * stay in the CPU cache while each output channel is built up.
+ * <p>
+ * Plans are immutable, and so can be shared between threads.
+ */
+public final class MixPlan {
+
+    /** The number of frames mixed at a time. */
+    static final int BLOCK_FRAMES = 256;
+    /** Marks an output that is not a plain copy of an input. */
+    private static final int NOT_A_COPY = -1;
+
+    private final int numInputs;
+    private final int numOutputs;
+    /** The sources of output o are at indexes rowOffsets[o] (inclusive) to rowOffsets[o + 1] (exclusive)... */
+    private final int[] rowOffsets;
+    /** ...of the inputs, in ascending order for each output... */
+    private final int[] columns;
+    /** ...and their factors. */
+    private final float[] weights;
+    /** For each output, the input that it copies, or NOT_A_COPY. */
+    private final int[] copies;
+    private final boolean[] usedInputs;
+    private final boolean[] allActive;
+
+    /**
+     * Create a plan from a sparse matrix that is already known to be valid; see {@link MatrixMix#validate()}.
+     */
+    MixPlan(int numInputs, int[] rowOffsets, int[] columns, float[] weights) {
+        this.numInputs = numInputs;
+        this.numOutputs = rowOffsets.length - 1;
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+        this.weights = weights;
+        this.copies = new int[numOutputs];
+        this.usedInputs = new boolean[numInputs];
+        for (int out = 0; out < numOutputs; ++out) {
+            int start = rowOffsets[out];
+            boolean isCopy = rowOffsets[out + 1] - start == 1 && weights[start] == 1.0f;
+            copies[out] = isCopy ? columns[start] : NOT_A_COPY;
+            for (int k = start; k < rowOffsets[out + 1]; ++k) {
+                usedInputs[columns[k]] = true;
+            }
+        }
+        this.allActive = new boolean[numInputs];
+        Arrays.fill(allActive, true);
+    }
+
+    public static MixPlan compile(AudioMix mix) {
+        int[] rowOffsets = new int[mix.numOutputs() + 1];
+        int[] columns = new int[mix.numInputs() * mix.numOutputs()];
+        float[] weights = new float[columns.length];
+        int count = 0;
+        for (int out = 0; out < mix.numOutputs(); ++out) {
+            for (int in = 0; in < mix.numInputs(); ++in) {
+                float factor = mix.factor(in, out);
+                if (factor != 0.0f) {
+                    columns[count] = in;
+                    weights[count] = factor;
+                    ++count;
+                }
+            }
+            rowOffsets[out + 1] = count;
+        }
+        return new MixPlan(mix.numInputs(), rowOffsets, Arrays.copyOf(columns, count), Arrays.copyOf(weights, count));
+    }
+
+    public int numInputs() {
+        return numInputs;
+    }
+
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    /** Whether any output uses the given input. */
+    public boolean usesInput(int input) {
+        return usedInputs[input];
+    }
+
+    /** Whether the given output is a plain copy of a single input. */
+    public boolean isCopy(int output) {
+        return copies[output] != NOT_A_COPY;
+    }
+
+    /**
+     * Mix with every input active.
+     * @see #execute(FloatBuffer[], boolean[], FloatBuffer)
+     */
+    public void execute(FloatBuffer[] ins, FloatBuffer out) {
+        execute(ins, allActive, out);
+    }
+
+    /**
+     * Mix as many frames as the inputs that the plan uses all have remaining, and advance every input by that
+     * many frames. Inputs that the plan doesn't use aren't read, and may be empty.
+     * @param active whether each input is audible; inputs that are not are treated as silent, and not read.
+     * @param out receives the output frames, with the channels interleaved. Must be backed by an array, as must
+     * the inputs.
+     */
+    public void execute(FloatBuffer[] ins, boolean[] active, FloatBuffer out) {
+        Preconditions.checkArgument(ins.length == numInputs, "Expected %s inputs, got %s", numInputs, ins.length);
+        int numFrames = Math.min(minRemaining(ins), out.remaining() / numOutputs);
+        float[] outSamples = out.array();
+        int outStart = out.arrayOffset() + out.position();
+        for (int block = 0; block < numFrames; block += BLOCK_FRAMES) {
+            int blockFrames = Math.min(BLOCK_FRAMES, numFrames - block);
+            int blockStart = outStart + block * numOutputs;
+            for (int o = 0; o < numOutputs; ++o) {
+                if (isCopy(o) && active[copies[o]]) {
+                    copy(ins[copies[o]], block, outSamples, blockStart + o, blockFrames);
+                    continue;
+                }
+                clear(outSamples, blockStart + o, blockFrames);
+                for (int k = rowOffsets[o]; k < rowOffsets[o + 1]; ++k) {
+                    int in = columns[k];
+                    if (active[in]) {
+                        accumulate(ins[in], block, weights[k], outSamples, blockStart + o, blockFrames);
+                    }
+                }
+            }
+        }
+        out.position(out.position() + numFrames * numOutputs);
+        for (int in = 0; in < numInputs; ++in) {
+            if (usedInputs[in]) {
+                ins[in].position(ins[in].position() + numFrames);
+            }
+        }
+    }
+
+    private int minRemaining(FloatBuffer[] ins) {
+        int min = Integer.MAX_VALUE;
+        for (int in = 0; in < numInputs; ++in) {
+            if (usedInputs[in]) {
+                min = Math.min(min, ins[in].remaining());
+            }
+        }
+        return min == Integer.MAX_VALUE ? 0 : min;
+    }
+
+    private void copy(FloatBuffer in, int offset, float[] out, int outStart, int numFrames) {
+        float[] inSamples = in.array();
+        int inStart = in.arrayOffset() + in.position() + offset;
+        if (numOutputs == 1) {
+            System.arraycopy(inSamples, inStart, out, outStart, numFrames);
+            return;
+        }
+        for (int f = 0, o = outStart; f < numFrames; ++f, o += numOutputs) {
+            out[o] = inSamples[inStart + f];
+        }
+    }
+
+    private void clear(float[] out, int outStart, int numFrames) {
+        if (numOutputs == 1) {
+            Arrays.fill(out, outStart, outStart + numFrames, 0.0f);
+            return;
+        }
+        for (int f = 0, o = outStart; f < numFrames; ++f, o += numOutputs) {
+            out[o] = 0.0f;
+        }
+    }
+
+    private void accumulate(FloatBuffer in, int offset, float factor, float[] out, int outStart, int numFrames) {
+        float[] inSamples = in.array();
+        int inStart = in.arrayOffset() + in.position() + offset;
+        for (int f = 0, o = outStart; f < numFrames; ++f, o += numOutputs) {
+            out[o] += inSamples[inStart + f] * factor;
+        }
+    }
+}
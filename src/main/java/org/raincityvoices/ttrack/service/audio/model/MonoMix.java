@@ -1,13 +1,16 @@
 package org.raincityvoices.ttrack.service.audio.model;
 
 import java.nio.FloatBuffer;
-import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
 
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.Value;
 import lombok.experimental.Accessors;
 import lombok.extern.jackson.Jacksonized;
@@ -19,11 +22,15 @@ import lombok.extern.jackson.Jacksonized;
  * For example, {@code MonoMix(0.4, 0.2, 0.2, 0.2)} will create a mono output
  * where the first part is twice as loud as the others (assuming all parts are
  * more or less the same volume).
+ * <p>
+ * This is a special case of a {@link MatrixMix} with one output, and mixes with the same kernel.
  */
 @Accessors(fluent = true)
 @Value
-@EqualsAndHashCode(exclude = "sample")
+@EqualsAndHashCode(exclude = "plan")
+@ToString(exclude = "plan")
 @Jacksonized
+@JsonIgnoreProperties({"plan"})
 public class MonoMix implements AudioMix {
     private static final double TOTAL_FACTOR_TOLERANCE = 0.0001;
 
@@ -33,14 +40,15 @@ public class MonoMix implements AudioMix {
      */
     @JsonProperty("mixFactors")
     float[] mixFactors;
-    @JsonIgnore
-    float[] sample;
+
+    @Getter(AccessLevel.NONE)
+    MixPlan plan;
 
     @JsonCreator
     public MonoMix(float... mixFactors) {
         this.mixFactors = mixFactors.clone();
-        this.sample = new float[numInputs()];
         validate();
+        this.plan = MixPlan.compile(this);
     }
 
     @Override
@@ -53,29 +61,30 @@ public class MonoMix implements AudioMix {
         return 1;
     }
 
-    public void mixOne(FloatBuffer in, FloatBuffer out) {
-        float mixed = 0.0f;
-        for (int i = 0; i < numInputs(); i++) {
-            mixed += in.get() * mixFactors[i];
-        }
-        out.put(mixed);
+    @Override
+    public float factor(int input, int output) {
+        Preconditions.checkElementIndex(output, 1);
+        return mixFactors[input];
     }
 
-    public void mix(FloatBuffer[] ins, FloatBuffer out) {
-        int leastRemaining = Stream.of(ins).mapToInt(FloatBuffer::remaining).min().getAsInt();
-        while (leastRemaining-- > 0) {
-            mixOne(ins, out);
-        }
+    @Override
+    public boolean usesInput(int input) {
+        return mixFactors[input] != 0.0f;
     }
 
-    public void mixOne(FloatBuffer[] ins, FloatBuffer out) {
-        float mixed = 0.0f;
-        for (int i = 0; i < numInputs(); i++) {
-            mixed += ins[i].get() * mixFactors[i];
-        }
-        out.put(mixed);
+    @Override
+    public MixPlan compile() {
+        return plan;
+    }
+
+    @Override
+    public void mix(FloatBuffer[] ins, FloatBuffer out) {
+        plan.execute(ins, out);
     }
 
+    /**
+     * Mix a single sample of each input.
+     */
     public float mixOne(float[] ins) {
         float mixed = 0.0f;
         for (int i = 0; i < numInputs(); i++) {
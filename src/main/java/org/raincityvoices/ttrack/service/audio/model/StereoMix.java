@@ -1,13 +1,15 @@
 package org.raincityvoices.ttrack.service.audio.model;
 
 import java.nio.FloatBuffer;
-import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
 
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.ToString;
 import lombok.Value;
 import lombok.experimental.Accessors;
@@ -22,13 +24,14 @@ import lombok.extern.jackson.Jacksonized;
  * will produce an equally-mixed left channel, and the first input part as-is in
  * the right channel.
  * <p>
- * Note: this class is _not_ thread-safe.
+ * This is a special case of a {@link MatrixMix} with two outputs, and mixes with the same kernel.
  */
 @Value
-@ToString(exclude = {"leftMix", "rightMix", "sample"})
+@EqualsAndHashCode(exclude = "plan")
+@ToString(exclude = "plan")
 @Accessors(fluent = true)
 @Jacksonized
-@JsonIgnoreProperties({"sample", "leftMix", "rightMix"})
+@JsonIgnoreProperties({"plan"})
 public class StereoMix implements AudioMix {
 
     private static final double TOTAL_FACTOR_TOLERANCE = 0.0001;
@@ -42,10 +45,8 @@ public class StereoMix implements AudioMix {
     @JsonProperty("rightFactors")
     float[] rightFactors;
 
-    MonoMix leftMix;
-    MonoMix rightMix;
-    // Pre-allocated array for doing the mixing in, to avoid reallocating for every sample.
-    float[] sample;
+    @Getter(AccessLevel.NONE)
+    MixPlan plan;
 
     @JsonCreator
     public StereoMix(float[] leftFactors, float[] rightFactors) {
@@ -54,9 +55,10 @@ public class StereoMix implements AudioMix {
         Preconditions.checkArgument(leftFactors.length == rightFactors.length);
         this.leftFactors = leftFactors;
         this.rightFactors = rightFactors;
-        this.leftMix = new MonoMix(leftFactors);
-        this.rightMix = new MonoMix(rightFactors);
-        this.sample = new float[numInputs()];
+        // Each channel must be a valid MonoMix.
+        new MonoMix(leftFactors);
+        new MonoMix(rightFactors);
+        this.plan = MixPlan.compile(this);
     }
 
     @Override
@@ -69,15 +71,24 @@ public class StereoMix implements AudioMix {
         return NUM_CHANNELS;
     }
 
+    @Override
+    public float factor(int input, int output) {
+        Preconditions.checkElementIndex(output, NUM_CHANNELS);
+        return output == LEFT_CHANNEL ? leftFactors[input] : rightFactors[input];
+    }
+
+    @Override
+    public boolean usesInput(int input) {
+        return leftFactors[input] != 0.0f || rightFactors[input] != 0.0f;
+    }
+
+    @Override
+    public MixPlan compile() {
+        return plan;
+    }
+
     @Override
     public void mix(FloatBuffer[] ins, FloatBuffer out) {
-        int leastRemaining = Stream.of(ins).mapToInt(FloatBuffer::remaining).min().getAsInt();
-        while (leastRemaining-- > 0) {
-            for (int i = 0; i < numInputs(); ++i) {
-                sample[i] = ins[i].get();
-            }
-            out.put(leftMix.mixOne(sample));
-            out.put(rightMix.mixOne(sample));
-        }
+        plan.execute(ins, out);
     }
 }
@@ -2,18 +2,38 @@ package org.raincityvoices.ttrack.service.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
 
 import org.apache.commons.io.FileUtils;
+import org.raincityvoices.ttrack.service.async.AsyncTaskManager;
+import org.raincityvoices.ttrack.service.async.TaskLane;
+import org.raincityvoices.ttrack.service.async.TaskWorker;
+import org.raincityvoices.ttrack.service.storage.MemoryTierCache;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.files.ContentAddressedFileStorage;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader;
 import org.raincityvoices.ttrack.service.storage.files.RemoteFileStorage;
 import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage;
+import org.raincityvoices.ttrack.service.storage.media.MediaPrefetcher;
 import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataManifest;
 import org.raincityvoices.ttrack.service.util.DefaultFileManager;
 import org.raincityvoices.ttrack.service.util.FileManager;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Data;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -29,15 +49,170 @@ public class ServiceConfig {
     @Data
     public static class CacheConfig {
          private File directory;
+         /** Maximum total size of the cached media files; the least recently used files are evicted beyond this. */
+         private DataSize maxSize = DataSize.ofGigabytes(2);
+         /** Maximum number of media locations whose cache state is kept in memory. */
+         private int maxLocations = 1000;
+         /** How long cached media is served without checking remote storage for a newer version. */
+         private Duration metadataTtl = Duration.ofSeconds(30);
+         /** How long past its TTL cached media is still served, while it is revalidated in the background. */
+         private Duration staleWhileRevalidate = Duration.ofMinutes(5);
+         /** Size of each range request when downloading large media; smaller media is downloaded in one request. */
+         private DataSize downloadChunkSize = DataSize.ofMegabytes(8);
+         /** Maximum number of range requests in flight for a single media download. */
+         private int downloadParallelism = 4;
+         /**
+          * Whether uploaded media is readable as soon as it is on local disk, and uploaded to remote storage in the background.
+          * Until the upload completes, other instances don't see the new media, and the pending uploads are only recorded
+          * under {@link #directory}, which must then be a persistent volume for them to survive a restart.
+          */
+         private boolean writeBehind = false;
+         /** Maximum number of background uploads running at once. */
+         private int uploadConcurrency = 2;
+         /** Maximum total size of each in-memory cache of small media and timed data. */
+         private DataSize memoryMaxSize = DataSize.ofMegabytes(32);
+         /** Media and timed data larger than this are not kept in memory. */
+         private DataSize memoryMaxEntrySize = DataSize.ofKilobytes(256);
+         /** Whether opening a song fetches its part media into the cache in the background. */
+         private boolean prefetchEnabled = true;
+         /** Maximum number of media locations prefetched at once. */
+         private int prefetchConcurrency = 2;
+    }
+
+    @Data
+    public static class MediaConfig {
+        /**
+         * If true, media is stored once per distinct content, under its SHA-256 digest, and each part's location
+         * points to it, so identical uploads are not stored twice.
+         */
+        private boolean contentAddressed = false;
+    }
+
+    @Data
+    public static class TasksConfig {
+        /**
+         * If true, scheduled tasks are placed on the shared work queue in the AsyncTasks table,
+         * rather than executed by the instance that scheduled them.
+         */
+        private boolean queued = false;
+        private WorkerConfig worker = new WorkerConfig();
+        /** Maximum number of CPU-bound tasks running at once; 0 means one per available core. */
+        private int cpuConcurrency = 0;
+        /** Maximum number of I/O-bound tasks running at once, on virtual threads. */
+        private int ioConcurrency = 32;
+        /** Maximum number of background housekeeping tasks running at once. */
+        private int backgroundConcurrency = 2;
+        /** How long a track lock lasts without being renewed by its task. */
+        private Duration trackLockLease = Duration.ofMinutes(2);
+    }
+
+    @Data
+    public static class WorkerConfig {
+        /** Whether this instance runs a worker that claims tasks from the shared work queue. */
+        private boolean enabled = false;
+        /** Unique ID of this worker; defaults to the host name plus a random suffix. */
+        private String id;
+        private int maxConcurrentTasks = 4;
+        private Duration pollInterval = Duration.ofSeconds(2);
+        /**
+         * Maximum number of the oldest unfinished tasks listed from the work queue per poll. Tasks other workers are
+         * running are listed too, so this should exceed the number of tasks that run at once across all workers.
+         */
+        private int queueListSize = 50;
+        /** How long a claimed task stays owned by this worker without a heartbeat. */
+        private Duration leaseDuration = Duration.ofSeconds(60);
+        /** Whether to give workers that already cache a song's media first pick of its tasks. */
+        private boolean preferCachedSongs = true;
+        /** How long a task waits for a worker with cached media, before any worker may claim it. */
+        private Duration localityDelay = Duration.ofSeconds(5);
     }
 
     @Getter @Setter
     private CacheConfig cache;
 
+    @Getter @Setter
+    private MediaConfig media = new MediaConfig();
+
+    @Getter @Setter
+    private TasksConfig tasks = new TasksConfig();
+
     @Bean
-    public MediaStorage mediaStorage(RemoteFileStorage remoteStorage) throws IOException {
+    public MediaStorage mediaStorage(RemoteFileStorage remoteStorage, MeterRegistry meterRegistry) throws IOException {
         FileUtils.forceMkdir(cache.directory);
-        return new DiskCachingMediaStorage(remoteStorage, cache.directory);
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .maxBytes(cache.getMaxSize().toBytes())
+            .maxLocations(cache.getMaxLocations())
+            .metadataTtl(cache.getMetadataTtl())
+            .staleWhileRevalidate(cache.getStaleWhileRevalidate())
+            .writeBehind(cache.isWriteBehind())
+            .uploadConcurrency(cache.getUploadConcurrency())
+            .build();
+        MemoryTierCache<byte[]> memoryTier = new MemoryTierCache<>("media", memoryCacheSettings(), meterRegistry);
+        if (media.isContentAddressed()) {
+            remoteStorage = new ContentAddressedFileStorage(remoteStorage);
+        }
+        DiskCachingMediaStorage storage = new DiskCachingMediaStorage(remoteStorage, cache.directory, new DefaultFileManager(), settings, memoryTier);
+        storage.bindTo(meterRegistry);
+        return storage;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public MediaPrefetcher mediaPrefetcher(MediaStorage mediaStorage, AsyncTaskManager taskManager) {
+        MediaPrefetcher.Settings settings = MediaPrefetcher.Settings.builder()
+            .enabled(cache.isPrefetchEnabled())
+            .concurrency(cache.getPrefetchConcurrency())
+            .build();
+        // Back off while user-facing work is waiting to run.
+        return new MediaPrefetcher(mediaStorage,
+            () -> taskManager.queueDepth(TaskLane.CPU) > 0 || taskManager.queueDepth(TaskLane.IO) > 0,
+            settings);
+    }
+
+    @Bean
+    public MemoryTierCache<TimedDataManifest> timedDataMemoryCache(MeterRegistry meterRegistry) {
+        return new MemoryTierCache<>("timed-data", memoryCacheSettings(), meterRegistry);
+    }
+
+    private MemoryTierCache.Settings memoryCacheSettings() {
+        return MemoryTierCache.Settings.builder()
+            .maxBytes(cache.getMemoryMaxSize().toBytes())
+            .maxEntryBytes(cache.getMemoryMaxEntrySize().toBytes())
+            .build();
+    }
+
+    @Bean
+    public ParallelRangeDownloader rangeDownloader() {
+        ParallelRangeDownloader.Settings settings = ParallelRangeDownloader.Settings.builder()
+            .chunkBytes(cache.getDownloadChunkSize().toBytes())
+            .parallelism(cache.getDownloadParallelism())
+            .build();
+        return new ParallelRangeDownloader(settings,
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("range-download-", 0).factory()));
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(name = "service.tasks.worker.enabled", havingValue = "true")
+    public TaskWorker taskWorker(AsyncTaskStorage taskStorage, AsyncTaskManager taskManager,
+                                 MediaStorage mediaStorage, Clock clock) throws UnknownHostException {
+        WorkerConfig workerConfig = tasks.getWorker();
+        String workerId = workerConfig.getId() != null
+            ? workerConfig.getId()
+            : InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        Predicate<AsyncTaskDTO> hasLocalData = (mediaStorage instanceof DiskCachingMediaStorage cachingStorage)
+            ? task -> task.getInput() != null && cachingStorage.hasCachedMedia(task.getInput().getSongId())
+            : task -> false;
+        TaskWorker.Dispatcher dispatcher = new TaskWorker.Dispatcher() {
+            @Override
+            public CompletableFuture<?> dispatch(AsyncTaskDTO task) {
+                return taskManager.resume(task);
+            }
+
+            @Override
+            public void abandon(String taskId) {
+                taskManager.abandon(taskId);
+            }
+        };
+        return new TaskWorker(workerId, taskStorage, dispatcher, workerConfig, clock, hasLocalData);
     }
 
     @Bean
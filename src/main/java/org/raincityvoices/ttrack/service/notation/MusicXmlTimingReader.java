@@ -0,0 +1,481 @@
+package org.raincityvoices.ttrack.service.notation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.raincityvoices.ttrack.service.api.TimedTextData;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads measure start times and lyrics from a partwise MusicXML score, or a compressed ({@code .mxl}) one,
+ * in a single streaming pass.
+ *
+ * Only what is needed for timing is kept while reading: the length of each measure (from note, backup and
+ * forward durations, in quarter notes), tempo changes ({@code <sound tempo>}), repeats and endings, and the
+ * lyrics of each note. Measures are then played in order, following repeats and endings, to compute times.
+ * On the Nth time through a repeated section, lyrics for verse N are used if there are any.
+ *
+ * Measure times are written as {@link TimedTextData#TYPE_MEASURES} data for the shared part, and lyrics as
+ * {@link TimedTextData#TYPE_LYRICS} data for each part, named by its {@code <part-name>}. Each lyric entry is
+ * one syllable; syllables that continue a word end with a hyphen.
+ */
+@Slf4j
+public class MusicXmlTimingReader {
+
+    /** The tempo assumed until the score gives one, in quarter notes per minute. */
+    public static final double DEFAULT_TEMPO_BPM = 120;
+    /** Stops runaway repeats in malformed scores from playing forever. */
+    private static final int MAX_REPEAT_FACTOR = 16;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+    public record NotationTiming(TimedTextDTO measures, List<TimedTextDTO> lyrics) {}
+
+    private static class MeasureInfo {
+        String number;
+        double lengthQuarters;
+        boolean forwardRepeat;
+        boolean backwardRepeat;
+        int repeatTimes = 2;
+        /** The endings this measure belongs to, or null if it is not part of an ending. */
+        Set<Integer> endingNumbers;
+        /** Tempo changes within the measure, in order: {offset in quarter notes, quarter notes per minute}. */
+        final List<double[]> tempoChanges = new ArrayList<>();
+    }
+
+    /** The lyrics of one note, by verse number. */
+    private record LyricEvent(int measureIndex, double offsetQuarters, Map<String, String> textByVerse) {}
+
+    private record PlayedMeasure(int index, int pass) {}
+
+    private final List<MeasureInfo> measures = new ArrayList<>();
+    private final Map<String, String> partNames = new HashMap<>();
+    private final Map<String, List<LyricEvent>> lyricsByPart = new LinkedHashMap<>();
+
+    // State while reading a part
+    private int partIndex = -1;
+    private String partId;
+    private int measureIndex;
+    private double divisions;
+    private double position;
+    private double maxPosition;
+    private double lastNoteStart;
+    private Set<Integer> activeEnding;
+
+    /**
+     * @return true if the file name is that of a MusicXML score.
+     */
+    public static boolean isMusicXml(String fileName) {
+        String lower = StringUtils.defaultString(fileName).toLowerCase();
+        return lower.endsWith(".musicxml") || lower.endsWith(".xml") || lower.endsWith(".mxl");
+    }
+
+    /**
+     * Read a MusicXML score, which may be compressed. A reader can only be used once.
+     */
+    public NotationTiming read(InputStream in) throws IOException, XMLStreamException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        if (isZip(buffered)) {
+            ZipInputStream zip = new ZipInputStream(buffered);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!entry.isDirectory() && !name.startsWith("META-INF/") && isMusicXml(name)) {
+                    log.debug("Reading score {} from compressed MusicXML", name);
+                    parse(zip);
+                    return buildTiming();
+                }
+            }
+            throw new IOException("Compressed MusicXML file contains no score");
+        }
+        parse(buffered);
+        return buildTiming();
+    }
+
+    private static boolean isZip(BufferedInputStream in) throws IOException {
+        in.mark(4);
+        byte[] magic = in.readNBytes(4);
+        in.reset();
+        return magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Scores declare the MusicXML DTD, which must not be fetched.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    private void parse(InputStream in) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("measure")) {
+                    endMeasure();
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "score-part" -> readScorePart(reader);
+                    case "part" -> startPart(reader.getAttributeValue(null, "id"));
+                    case "measure" -> startMeasure(reader.getAttributeValue(null, "number"));
+                    case "divisions" -> divisions = Double.parseDouble(reader.getElementText().trim());
+                    case "note" -> readNote(reader);
+                    case "backup" -> position -= readDuration(reader);
+                    case "forward" -> {
+                        position += readDuration(reader);
+                        maxPosition = Math.max(maxPosition, position);
+                    }
+                    case "sound" -> readSound(reader);
+                    case "barline" -> readBarline(reader);
+                    default -> {}
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readScorePart(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("score-part")) {
+            if (reader.isStartElement()) {
+                if (reader.getLocalName().equals("part-name")) {
+                    partNames.put(id, reader.getElementText().trim());
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+    }
+
+    private void startPart(String id) {
+        ++partIndex;
+        partId = id;
+        measureIndex = -1;
+        divisions = 1;
+        activeEnding = null;
+    }
+
+    private void startMeasure(String number) {
+        ++measureIndex;
+        if (measureIndex == measures.size()) {
+            measures.add(new MeasureInfo());
+        }
+        MeasureInfo measure = measures.get(measureIndex);
+        if (partIndex == 0) {
+            measure.number = number;
+            measure.endingNumbers = activeEnding;
+        }
+        position = 0;
+        maxPosition = 0;
+        lastNoteStart = 0;
+    }
+
+    private void endMeasure() {
+        MeasureInfo measure = measures.get(measureIndex);
+        measure.lengthQuarters = Math.max(measure.lengthQuarters, maxPosition / divisions);
+    }
+
+    private void readNote(XMLStreamReader reader) throws XMLStreamException {
+        boolean chord = false;
+        double duration = 0;
+        Map<String, String> lyrics = null;
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("note")) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "chord" -> { chord = true; skipElement(reader); }
+                case "duration" -> duration = Double.parseDouble(reader.getElementText().trim());
+                case "lyric" -> {
+                    if (lyrics == null) {
+                        lyrics = new LinkedHashMap<>();
+                    }
+                    String number = StringUtils.defaultIfBlank(reader.getAttributeValue(null, "number"), "1");
+                    String text = readLyric(reader);
+                    if (!text.isEmpty()) {
+                        lyrics.putIfAbsent(number, text);
+                    }
+                }
+                default -> skipElement(reader);
+            }
+        }
+        double start = chord ? lastNoteStart : position;
+        if (!chord) {
+            lastNoteStart = position;
+            position += duration;
+            maxPosition = Math.max(maxPosition, position);
+        }
+        if (lyrics != null && !lyrics.isEmpty()) {
+            lyricsByPart.computeIfAbsent(partId, id -> new ArrayList<>())
+                .add(new LyricEvent(measureIndex, start / divisions, lyrics));
+        }
+    }
+
+    private String readLyric(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        String syllabic = "single";
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("lyric")) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "text" -> {
+                    if (!text.isEmpty()) {
+                        text.append(' ');
+                    }
+                    text.append(reader.getElementText().trim());
+                }
+                case "syllabic" -> syllabic = reader.getElementText().trim();
+                default -> skipElement(reader);
+            }
+        }
+        if (!text.isEmpty() && (syllabic.equals("begin") || syllabic.equals("middle"))) {
+            text.append('-');
+        }
+        return text.toString();
+    }
+
+    private double readDuration(XMLStreamReader reader) throws XMLStreamException {
+        String element = reader.getLocalName();
+        double duration = 0;
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals(element)) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            if (reader.getLocalName().equals("duration")) {
+                duration = Double.parseDouble(reader.getElementText().trim());
+            } else {
+                skipElement(reader);
+            }
+        }
+        return duration;
+    }
+
+    private void readSound(XMLStreamReader reader) {
+        String tempo = reader.getAttributeValue(null, "tempo");
+        if (tempo == null || measureIndex < 0) {
+            return;
+        }
+        try {
+            double bpm = Double.parseDouble(tempo.trim());
+            if (bpm > 0) {
+                measures.get(measureIndex).tempoChanges.add(new double[] { position / divisions, bpm });
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid tempo '{}' in measure {}", tempo, measureIndex + 1);
+        }
+    }
+
+    private void readBarline(XMLStreamReader reader) throws XMLStreamException {
+        MeasureInfo measure = measures.get(measureIndex);
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("barline")) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            // Repeats and endings are the same in every part, so only the first part's are used.
+            if (partIndex == 0 && reader.getLocalName().equals("repeat")) {
+                if ("forward".equals(reader.getAttributeValue(null, "direction"))) {
+                    measure.forwardRepeat = true;
+                } else {
+                    measure.backwardRepeat = true;
+                    String times = reader.getAttributeValue(null, "times");
+                    if (StringUtils.isNumeric(times)) {
+                        measure.repeatTimes = Integer.parseInt(times);
+                    }
+                }
+            } else if (partIndex == 0 && reader.getLocalName().equals("ending")) {
+                String type = reader.getAttributeValue(null, "type");
+                if ("start".equals(type)) {
+                    activeEnding = parseEndingNumbers(reader.getAttributeValue(null, "number"));
+                    measure.endingNumbers = activeEnding;
+                } else {
+                    activeEnding = null;
+                }
+            }
+            skipElement(reader);
+        }
+    }
+
+    private static Set<Integer> parseEndingNumbers(String numbers) {
+        Set<Integer> parsed = new TreeSet<>();
+        for (String number : StringUtils.defaultString(numbers).split("[^0-9]+")) {
+            if (!number.isEmpty()) {
+                parsed.add(Integer.parseInt(number));
+            }
+        }
+        return parsed;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ++depth;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                --depth;
+            }
+        }
+    }
+
+    /**
+     * @return the order in which measures are played, following repeats and endings.
+     */
+    private List<PlayedMeasure> playbackOrder() {
+        List<PlayedMeasure> order = new ArrayList<>();
+        Map<Integer, Integer> repeatsPlayed = new HashMap<>();
+        int maxPlayed = measures.size() * MAX_REPEAT_FACTOR;
+        int repeatStart = 0;
+        int pass = 1;
+        boolean jumpedBack = false;
+        boolean inEnding = false;
+        int i = 0;
+        while (i < measures.size() && order.size() < maxPlayed) {
+            MeasureInfo measure = measures.get(i);
+            if (measure.forwardRepeat && !jumpedBack) {
+                repeatStart = i;
+                pass = 1;
+            }
+            jumpedBack = false;
+            if (measure.endingNumbers != null) {
+                inEnding = true;
+                if (!measure.endingNumbers.contains(pass)) {
+                    ++i;
+                    continue;
+                }
+            } else if (inEnding) {
+                // Past the last ending: the repeated section is done.
+                inEnding = false;
+                repeatStart = i;
+                pass = 1;
+            }
+            order.add(new PlayedMeasure(i, pass));
+            if (measure.backwardRepeat) {
+                int played = repeatsPlayed.merge(i, 1, Integer::sum);
+                if (played < measure.repeatTimes) {
+                    ++pass;
+                    i = repeatStart;
+                    jumpedBack = true;
+                    inEnding = false;
+                    continue;
+                }
+                repeatsPlayed.remove(i);
+                if (measure.endingNumbers == null) {
+                    repeatStart = i + 1;
+                    pass = 1;
+                }
+            }
+            ++i;
+        }
+        return order;
+    }
+
+    private NotationTiming buildTiming() {
+        // Tempo changes from later parts were added after those from earlier ones.
+        measures.forEach(m -> m.tempoChanges.sort(Comparator.comparingDouble(change -> change[0])));
+        Map<String, List<List<LyricEvent>>> lyricsByMeasure = new LinkedHashMap<>();
+        lyricsByPart.forEach((id, events) -> {
+            List<List<LyricEvent>> byMeasure = new ArrayList<>(measures.size());
+            for (int m = 0; m < measures.size(); ++m) {
+                byMeasure.add(new ArrayList<>());
+            }
+            events.forEach(event -> byMeasure.get(event.measureIndex()).add(event));
+            lyricsByMeasure.put(id, byMeasure);
+        });
+
+        List<TimedTextDTO.Entry> measureEntries = new ArrayList<>();
+        Map<String, List<TimedTextDTO.Entry>> lyricEntries = new LinkedHashMap<>();
+        lyricsByMeasure.keySet().forEach(id -> lyricEntries.put(id, new ArrayList<>()));
+        double bpm = DEFAULT_TEMPO_BPM;
+        double startMs = 0;
+        for (PlayedMeasure played : playbackOrder()) {
+            MeasureInfo measure = measures.get(played.index());
+            measureEntries.add(new TimedTextDTO.Entry(Math.round(startMs), StringUtils.defaultString(measure.number)));
+            for (Map.Entry<String, List<List<LyricEvent>>> part : lyricsByMeasure.entrySet()) {
+                for (LyricEvent event : part.getValue().get(played.index())) {
+                    String text = lyricForPass(event, played.pass());
+                    if (text != null) {
+                        double offsetMs = offsetMs(measure, bpm, event.offsetQuarters());
+                        lyricEntries.get(part.getKey()).add(new TimedTextDTO.Entry(Math.round(startMs + offsetMs), text));
+                    }
+                }
+            }
+            startMs += offsetMs(measure, bpm, measure.lengthQuarters);
+            if (!measure.tempoChanges.isEmpty()) {
+                bpm = measure.tempoChanges.get(measure.tempoChanges.size() - 1)[1];
+            }
+        }
+
+        TimedTextDTO measureData = TimedTextDTO.builder()
+            .part(TimedTextData.SHARED_PART_NAME)
+            .type(TimedTextData.TYPE_MEASURES.value())
+            .entries(measureEntries)
+            .build();
+        List<TimedTextDTO> lyricData = lyricEntries.entrySet().stream()
+            .filter(e -> !e.getValue().isEmpty())
+            .map(e -> TimedTextDTO.builder()
+                .part(partNames.getOrDefault(e.getKey(), e.getKey()))
+                .type(TimedTextData.TYPE_LYRICS.value())
+                .entries(e.getValue())
+                .build())
+            .toList();
+        log.info("Read {} measures ({} played) and lyrics for {} parts", measures.size(), measureEntries.size(), lyricData.size());
+        return new NotationTiming(measureData, lyricData);
+    }
+
+    /**
+     * @return the time from the start of the measure to the given offset, given the tempo at its start.
+     */
+    private static double offsetMs(MeasureInfo measure, double startBpm, double offsetQuarters) {
+        double bpm = startBpm;
+        double quarters = 0;
+        double ms = 0;
+        for (double[] change : measure.tempoChanges) {
+            if (change[0] >= offsetQuarters) {
+                break;
+            }
+            ms += (change[0] - quarters) * 60_000 / bpm;
+            quarters = change[0];
+            bpm = change[1];
+        }
+        return ms + (offsetQuarters - quarters) * 60_000 / bpm;
+    }
+
+    private static String lyricForPass(LyricEvent event, int pass) {
+        Map<String, String> byVerse = event.textByVerse();
+        String text = byVerse.get(Integer.toString(pass));
+        if (text == null && pass > 1) {
+            // Repeated sections often only have lyrics written for the first time through.
+            text = byVerse.get("1");
+        }
+        if (text == null && byVerse.keySet().stream().noneMatch(StringUtils::isNumeric)) {
+            text = byVerse.values().iterator().next();
+        }
+        return text;
+    }
+}
@@ -1,6 +1,7 @@
 package org.raincityvoices.ttrack.service.storage;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.raincityvoices.ttrack.service.exceptions.ConflictException;
 import org.raincityvoices.ttrack.service.storage.mapper.TableEntityMapper;
@@ -48,7 +49,8 @@ public class BasicTablesDAO<DTO extends BaseDTO> {
      * Queries the table for all entities matching the given filter expression.
      * 
      * @param filter the OData filter expression to apply when querying entities
-     * @param maxResults the maximum number of entities to return, or null for no limit
+     * @param maxResults the maximum number of entities to return, or null for no limit. With a limit, no
+     * more pages of results are fetched than are needed to reach it.
      * @return a list of DTOs representing the entities that match the filter criteria;
      * may be empty.
      */
@@ -59,7 +61,9 @@ public class BasicTablesDAO<DTO extends BaseDTO> {
                 .setFilter(filter)
                 .setTop(maxResults),
             null, null);
-        return results.stream().map(mapper::fromTableEntity).toList();
+        // $top only sets the page size; the stream would otherwise follow continuations to the end.
+        Stream<TableEntity> entities = maxResults == null ? results.stream() : results.stream().limit(maxResults);
+        return entities.map(mapper::fromTableEntity).toList();
     }
 
     /**
@@ -109,7 +113,9 @@ public class BasicTablesDAO<DTO extends BaseDTO> {
             log.debug("ETag header: '{}'", response.getHeaders().getValue(HttpHeaderName.ETAG));
             dto.setETag(response.getHeaders().getValue(HttpHeaderName.ETAG));
         } catch(TableServiceException e) {
-            if (e.getResponse().getStatusCode() == 409) {
+            int status = e.getResponse().getStatusCode();
+            // 409 if the row already exists on create; 412 if the ETag doesn't match on update.
+            if (status == HttpStatus.CONFLICT.value() || status == HttpStatus.PRECONDITION_FAILED.value()) {
                 throw new ConflictException("Entity " + fullKey + " has been updated since last read.");
             }
             throw new RuntimeException("Failed to write " + fullKey + " to table.", e);
@@ -139,4 +145,35 @@ public class BasicTablesDAO<DTO extends BaseDTO> {
         }
     }
 
+    /**
+     * Delete the table row for the given entity, if it hasn't been modified since the entity was read,
+     * i.e. if its ETag still matches the entity's.
+     * @return {@code true} if the entity existed (and is now deleted), {@code false}
+     * if it did not exist.
+     * @throws ConflictException if the row has been modified since the entity was read.
+     */
+    public boolean deleteIfUnchanged(DTO dto) {
+        Preconditions.checkArgument(dto.hasETag(), "Conditional delete of an entity with no ETag");
+        TableEntity entity;
+        try {
+            entity = mapper.toTableEntity(dto);
+        } catch(Exception e) {
+            throw new RuntimeException("Failed to convert " + dto + " to Tables entity.", e);
+        }
+        String fullKey = entity.getPartitionKey() + "/" + entity.getRowKey();
+        try {
+            client.deleteEntityWithResponse(entity, true, null, null);
+            return true;
+        } catch(TableServiceException e) {
+            int status = e.getResponse().getStatusCode();
+            if (status == HttpStatus.NOT_FOUND.value()) {
+                return false;
+            }
+            if (status == HttpStatus.PRECONDITION_FAILED.value()) {
+                throw new ConflictException("Entity " + fullKey + " has been updated since last read.");
+            }
+            throw new RuntimeException("Exception while trying to delete entity " + fullKey, e);
+        }
+    }
+
 }
@@ -0,0 +1,128 @@
+package org.raincityvoices.ttrack.service.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * An in-heap cache with a byte budget for small, frequently read values, in front of a slower tier such as
+ * the disk cache or blob storage.
+ *
+ * <p>Each value is stored with the ETag of the version it was read from, and is only returned to callers that
+ * ask for that same ETag, so a value can never be served for a newer version of its source. Values without
+ * an ETag, and values larger than {@link Settings#getMaxEntryBytes()}, are not cached.
+ *
+ * <p>Exports the standard Micrometer cache metrics ({@code cache.gets}, {@code cache.evictions}, etc.), tagged
+ * with the cache name, and {@code ttrack.cache.memory.bytes}: the total size of the cached values.
+ */
+public class MemoryTierCache<V> {
+
+    @Value
+    @Builder
+    public static class Settings {
+        public static final Settings DEFAULT = Settings.builder().build();
+        /** Maximum total size of the cached values. */
+        @Builder.Default
+        long maxBytes = 32 * 1024 * 1024;
+        /** Values larger than this are not cached. */
+        @Builder.Default
+        long maxEntryBytes = 256 * 1024;
+    }
+
+    public record Entry<V>(String etag, V value, int weightBytes) {}
+
+    private final Settings settings;
+    private final Cache<String, Entry<V>> cache;
+    private final AtomicLong bytes = new AtomicLong();
+
+    public MemoryTierCache(String name, Settings settings, MeterRegistry registry) {
+        this.settings = settings;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(settings.getMaxBytes())
+            .<String, Entry<V>>weigher((key, entry) -> entry.weightBytes())
+            .removalListener(this::onRemoval)
+            .recordStats()
+            .build();
+        if (registry != null) {
+            GuavaCacheMetrics.monitor(registry, cache, name);
+            Gauge.builder("ttrack.cache.memory.bytes", bytes, AtomicLong::get)
+                .description("Total size of the values in the memory cache")
+                .tag("cache", name)
+                .baseUnit("bytes")
+                .register(registry);
+        }
+    }
+
+    /**
+     * @return a cache that never stores anything.
+     */
+    public static <V> MemoryTierCache<V> disabled() {
+        return new MemoryTierCache<>("disabled", Settings.builder().maxBytes(0).maxEntryBytes(0).build(), null);
+    }
+
+    /**
+     * @return true if a value of the given size would be cached.
+     */
+    public boolean accepts(long lengthBytes) {
+        return lengthBytes > 0 && lengthBytes <= settings.getMaxEntryBytes();
+    }
+
+    /**
+     * @return the cached value for the given version of the key, or null if it isn't cached.
+     */
+    public V get(String key, String etag) {
+        Entry<V> entry = cache.getIfPresent(key);
+        if (entry == null || StringUtils.isEmpty(etag) || !etag.equals(entry.etag())) {
+            return null;
+        }
+        return entry.value();
+    }
+
+    /**
+     * @return the cached entry for the key, whatever its version, or null if there is none. Callers that
+     * use its value must first confirm that its ETag is current.
+     */
+    public Entry<V> getIfPresent(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Cache a value read from the given version of the key, replacing any other version.
+     * @return true if the value was cached.
+     */
+    public boolean put(String key, String etag, V value, long lengthBytes) {
+        if (StringUtils.isEmpty(etag) || !accepts(lengthBytes)) {
+            cache.invalidate(key);
+            return false;
+        }
+        bytes.addAndGet(lengthBytes);
+        cache.put(key, new Entry<>(etag, value, (int) lengthBytes));
+        return true;
+    }
+
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    private void onRemoval(RemovalNotification<String, Entry<V>> notification) {
+        bytes.addAndGet(-notification.getValue().weightBytes());
+    }
+}
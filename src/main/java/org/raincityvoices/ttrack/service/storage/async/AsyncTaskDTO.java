@@ -58,6 +58,15 @@ public class AsyncTaskDTO extends BaseDTO {
     
     /** Type of task (e.g., "CreateMixTrackTask", "ProcessUploadedTrackTask", "UploadPartTrackTask"). */
     String taskType;
+    /** Fully-qualified name of the task class, used by workers to reconstruct queued tasks. */
+    String taskClass;
+    /**
+     * True if the task was placed on the shared work queue, to be claimed by any worker;
+     * false (or null, for older rows) if it is executed by the instance that scheduled it.
+     */
+    Boolean queued;
+    /** Priority of the task within its execution lane; see TaskPriority. */
+    String priority;
     /** When the task was added to the execution queue. */
     Instant scheduled;
     /** When the task started executing. */
@@ -82,4 +91,11 @@ public class AsyncTaskDTO extends BaseDTO {
     /** Azure Table timestamp for tracking when the row was last modified. */
     @Getter(onMethod=@__(@Timestamp))
     Instant updated;
+
+    /**
+     * @return true if the given status is one from which a task will never move again.
+     */
+    public static boolean isTerminal(String status) {
+        return SUCCEEDED.equals(status) || FAILED.equals(status) || TIMEDOUT.equals(status) || CANCELED.equals(status);
+    }
 }
@@ -1,5 +1,7 @@
 package org.raincityvoices.ttrack.service.storage.async;
 
+import java.util.List;
+
 /**
  * Abstraction for persistent storage of async task tracking data.
  * Implementations store task lifecycle information in a persistent table.
@@ -32,4 +34,38 @@ public interface AsyncTaskStorage {
      * @return the task DTO if found; null if not found.
      */
     AsyncTaskDTO getTask(String taskId);
+
+    /**
+     * List queued tasks that have not finished yet, i.e. tasks that are either waiting
+     * for a worker, or are owned by a worker whose lease may have expired. Tasks are listed in
+     * the order they were scheduled, so that older tasks are claimed first.
+     * 
+     * @param maxResults the maximum number of tasks to return.
+     * @return the matching tasks; may be empty.
+     */
+    List<AsyncTaskDTO> listQueuedTasks(int maxResults);
+
+    /**
+     * @return the lease for the given task, or null if no worker has claimed it.
+     */
+    TaskLeaseDTO getLease(String taskId);
+
+    /**
+     * Create or renew a task lease. If the lease has an ETag, the update is conditional
+     * on the lease not having been modified since it was read; otherwise, creation fails
+     * if a lease already exists.
+     * 
+     * @throws org.raincityvoices.ttrack.service.exceptions.ConflictException if another
+     * worker has written the lease in the meantime.
+     */
+    TaskLeaseDTO putLease(TaskLeaseDTO lease);
+
+    /**
+     * Delete the given lease, unless it has been modified since it was read or written, e.g. because
+     * another worker took it over after it expired.
+     *
+     * @throws org.raincityvoices.ttrack.service.exceptions.ConflictException if the lease has been
+     * modified in the meantime.
+     */
+    void deleteLease(TaskLeaseDTO lease);
 }
@@ -1,5 +1,8 @@
 package org.raincityvoices.ttrack.service.storage.async;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.raincityvoices.ttrack.service.storage.BasicTablesDAO;
 import org.springframework.stereotype.Component;
 
@@ -10,15 +13,23 @@ import lombok.extern.slf4j.Slf4j;
 /**
  * Azure Tables implementation of AsyncTaskStorage.
  * Stores async task tracking records in the AsyncTasks table.
+ * Queued tasks that haven't finished also have an entry in the queue partition (see {@link QueuedTaskDTO}),
+ * which is what workers list.
  */
 @Slf4j
 @Component
 public class AzureTablesAsyncTaskStorage implements AsyncTaskStorage {
     
+    private static final String QUEUE_FILTER = "PartitionKey eq '" + QueuedTaskDTO.PARTITION_KEY + "'";
+
     private final BasicTablesDAO<AsyncTaskDTO> dao;
+    private final BasicTablesDAO<TaskLeaseDTO> leaseDao;
+    private final BasicTablesDAO<QueuedTaskDTO> queueDao;
     
     public AzureTablesAsyncTaskStorage(TableClient asyncTasksTableClient) {
         this.dao = new BasicTablesDAO<>(AsyncTaskDTO.class, asyncTasksTableClient);
+        this.leaseDao = new BasicTablesDAO<>(TaskLeaseDTO.class, asyncTasksTableClient);
+        this.queueDao = new BasicTablesDAO<>(QueuedTaskDTO.class, asyncTasksTableClient);
     }
     
     @Override
@@ -30,6 +41,10 @@ public class AzureTablesAsyncTaskStorage implements AsyncTaskStorage {
         }
         
         dao.put(taskDto);
+        // Written after the task, so that a listed entry always has a task to go with it.
+        if (isOnQueue(taskDto)) {
+            queueDao.put(QueuedTaskDTO.forTask(taskDto));
+        }
 
         return taskDto;
     }
@@ -44,6 +59,9 @@ public class AzureTablesAsyncTaskStorage implements AsyncTaskStorage {
         }
 
         dao.put(taskDto);
+        if (Boolean.TRUE.equals(taskDto.getQueued()) && AsyncTaskDTO.isTerminal(taskDto.getStatus())) {
+            dequeue(taskDto);
+        }
         
         return taskDto;
     }
@@ -60,4 +78,53 @@ public class AzureTablesAsyncTaskStorage implements AsyncTaskStorage {
         
         return dao.delete(taskId, "");
     }
+
+    /**
+     * Reads at most {@code maxResults} queue entries, oldest first, and the tasks they refer to. Entries
+     * left behind by a task whose completion wasn't fully recorded are removed as they are found.
+     */
+    @Override
+    public List<AsyncTaskDTO> listQueuedTasks(int maxResults) {
+        List<AsyncTaskDTO> tasks = new ArrayList<>();
+        for (QueuedTaskDTO entry : queueDao.query(QUEUE_FILTER, maxResults)) {
+            AsyncTaskDTO task = dao.get(entry.getTaskId(), "");
+            if (task == null || AsyncTaskDTO.isTerminal(task.getStatus())) {
+                log.info("Removing queue entry {} for finished task {}", entry.getEntryId(), entry.getTaskId());
+                queueDao.delete(QueuedTaskDTO.PARTITION_KEY, entry.getEntryId());
+                continue;
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    @Override
+    public TaskLeaseDTO getLease(String taskId) {
+        return leaseDao.get(taskId, TaskLeaseDTO.ROW_KEY);
+    }
+
+    @Override
+    public TaskLeaseDTO putLease(TaskLeaseDTO lease) {
+        log.debug("Writing lease for task {}: owner={}, expiry={}", lease.getTaskId(), lease.getOwner(), lease.getExpiry());
+        leaseDao.put(lease);
+        return lease;
+    }
+
+    @Override
+    public void deleteLease(TaskLeaseDTO lease) {
+        leaseDao.deleteIfUnchanged(lease);
+    }
+
+    private static boolean isOnQueue(AsyncTaskDTO taskDto) {
+        return Boolean.TRUE.equals(taskDto.getQueued()) && !AsyncTaskDTO.isTerminal(taskDto.getStatus());
+    }
+
+    private void dequeue(AsyncTaskDTO taskDto) {
+        try {
+            queueDao.delete(QueuedTaskDTO.PARTITION_KEY, QueuedTaskDTO.entryId(taskDto.getScheduled(), taskDto.getTaskId()));
+        } catch (Exception e) {
+            // Not fatal: the entry is removed the next time a worker lists it.
+            log.warn("Failed to remove task {} from the queue", taskDto.getTaskId(), e);
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package org.raincityvoices.ttrack.service.storage.async;
+
+import java.time.Instant;
+
+import org.raincityvoices.ttrack.service.storage.BaseDTO;
+import org.raincityvoices.ttrack.service.storage.mapper.RowKey;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * An entry on the shared work queue in the AsyncTasks table, for a queued task that hasn't finished yet.
+ * Workers list the queue from these entries, rather than by filtering the task rows, which would scan
+ * every task ever run. The entry is removed once its task finishes.
+ *
+ * PartitionKey: always {@value #PARTITION_KEY}.
+ * RowKey: the task's scheduled time and ID (see {@link #entryId(Instant, String)}), so that entries are
+ * listed oldest first.
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class QueuedTaskDTO extends BaseDTO {
+
+    public static final String PARTITION_KEY = "queue";
+
+    public String getPartitionKey() { return PARTITION_KEY; }
+    public void setPartitionKey(String s) {}
+
+    /** Row key: the task's scheduled time, then its ID. */
+    @Getter(onMethod=@__(@RowKey))
+    String entryId;
+    /** The ID of the queued task. */
+    String taskId;
+
+    public static QueuedTaskDTO forTask(AsyncTaskDTO task) {
+        return new QueuedTaskDTO(entryId(task.getScheduled(), task.getTaskId()), task.getTaskId());
+    }
+
+    /**
+     * @return the row key of the entry for the task with the given scheduled time and ID. The time is
+     * zero-padded, so that row keys sort in the order the tasks were scheduled.
+     */
+    public static String entryId(Instant scheduled, String taskId) {
+        long millis = scheduled == null ? 0 : scheduled.toEpochMilli();
+        return String.format("%019d_%s", millis, taskId);
+    }
+}
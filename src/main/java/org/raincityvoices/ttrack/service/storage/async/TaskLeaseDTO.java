@@ -0,0 +1,58 @@
+package org.raincityvoices.ttrack.service.storage.async;
+
+import java.time.Instant;
+
+import org.raincityvoices.ttrack.service.storage.BaseDTO;
+import org.raincityvoices.ttrack.service.storage.mapper.PartitionKey;
+import org.raincityvoices.ttrack.service.storage.mapper.Timestamp;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Represents a worker's lease on a queued task in the AsyncTasks table.
+ * A worker owns a task for as long as it keeps renewing the lease; if the worker
+ * dies, the lease expires and any other worker may take the task over.
+ * 
+ * The lease is kept in its own row (next to the task row) so that heartbeats never
+ * conflict with the status updates that the running task makes to its own row.
+ * 
+ * PartitionKey: the task ID.
+ * RowKey: always {@value #ROW_KEY}.
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class TaskLeaseDTO extends BaseDTO {
+
+    public static final String ROW_KEY = "lease";
+
+    /** Partition key: the ID of the leased task. */
+    @Getter(onMethod=@__(@PartitionKey))
+    String taskId;
+
+    public String getRowKey() { return ROW_KEY; }
+    public void setRowKey(String s) {}
+
+    /** ID of the worker that currently holds the lease. */
+    String owner;
+    /** Time after which the lease is considered abandoned. */
+    Instant expiry;
+
+    /** Azure Table timestamp for tracking when the row was last modified. */
+    @Getter(onMethod=@__(@Timestamp))
+    Instant updated;
+
+    /**
+     * @return true if the lease is no longer valid at the given time.
+     */
+    public boolean isExpiredAt(Instant now) {
+        return expiry == null || !expiry.isAfter(now);
+    }
+}
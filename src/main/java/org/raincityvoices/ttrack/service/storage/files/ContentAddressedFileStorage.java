@@ -0,0 +1,166 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link RemoteFileStorage} that stores each distinct content once, and maps locations to content.
+ *
+ * <p>Content is stored in the underlying storage at a location derived from its SHA-256 digest (see
+ * {@link #contentLocation(String)}). Each location holds an empty pointer file, whose metadata records the
+ * digest of its content, as well as the file name and content type. Uploading content that is already
+ * stored only writes the pointer, and uploading the content that a location already points to writes nothing.
+ *
+ * <p>The ETag of a location is the digest of its content, so it only changes when the content does.
+ * Locations written before content addressing was enabled hold their content directly, and are served as-is.
+ *
+ * <p>Content is never deleted, since other locations may point to it.
+ */
+@Slf4j
+public class ContentAddressedFileStorage implements RemoteFileStorage {
+
+    static final String CONTENT_PREFIX = "content/sha256/";
+
+    private final RemoteFileStorage delegate;
+
+    public ContentAddressedFileStorage(RemoteFileStorage delegate) {
+        this.delegate = delegate;
+    }
+
+    public static String contentLocation(String sha256) {
+        return CONTENT_PREFIX + sha256;
+    }
+
+    @Override
+    public boolean exists(String location) {
+        return delegate.exists(location);
+    }
+
+    @Override
+    public FileMetadata download(String location, FileMetadata currentMetadata, File destination) {
+        return download(location, currentMetadata, destination, DownloadListener.NONE);
+    }
+
+    @Override
+    public FileMetadata download(String location, FileMetadata currentMetadata, File destination, DownloadListener listener) {
+        FileMetadata pointer = delegate.fetchMetadata(location);
+        if (!isPointer(pointer)) {
+            return delegate.download(location, currentMetadata, destination, listener);
+        }
+        FileMetadata metadata = resolve(pointer);
+        if (metadata == null || metadata.etag().equals(currentMetadata.etag())) {
+            return metadata;
+        }
+        // Report the location's metadata, rather than that of the content file, to the listener.
+        DownloadListener locationListener = new DownloadListener() {
+            @Override public void started(FileMetadata contentMetadata) { listener.started(metadata); }
+            @Override public void progress(long bytesWritten) { listener.progress(bytesWritten); }
+        };
+        FileMetadata downloaded = delegate.download(contentLocation(pointer.contentSha256()), FileMetadata.UNKNOWN,
+            destination, locationListener);
+        return downloaded == null ? null : metadata;
+    }
+
+    @Override
+    public FileMetadata fetchMetadata(String location) {
+        FileMetadata pointer = delegate.fetchMetadata(location);
+        if (!isPointer(pointer)) {
+            return pointer;
+        }
+        return resolve(pointer);
+    }
+
+    @Override
+    public String getDownloadUrl(String location, Duration timeout) {
+        FileMetadata pointer = delegate.fetchMetadata(location);
+        if (!isPointer(pointer)) {
+            return delegate.getDownloadUrl(location, timeout);
+        }
+        // The content file has no headers of its own, and may be shared by locations with different file names.
+        return delegate.getDownloadUrl(contentLocation(pointer.contentSha256()), pointer.contentSha256(), pointer, timeout);
+    }
+
+    @Override
+    public String getDownloadUrl(String location, FileMetadata current, Duration timeout) {
+        String sha256 = current.contentSha256();
+        if (sha256 == null || !sha256.equals(current.etag())) {
+            // Not a resolved pointer, so the location holds its content directly.
+            return delegate.getDownloadUrl(location, current, timeout);
+        }
+        return delegate.getDownloadUrl(contentLocation(sha256), sha256, current, timeout);
+    }
+
+    @Override
+    public void upload(File source, String location) {
+        String sha256;
+        try {
+            sha256 = Files.asByteSource(source).hash(Hashing.sha256()).toString();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to hash " + source, e);
+        }
+        FileMetadata current = delegate.fetchMetadata(location);
+        if (isPointer(current) && sha256.equals(current.contentSha256())) {
+            log.info("{} already holds content {}; not uploading it again.", location, sha256);
+            return;
+        }
+        String contentLocation = contentLocation(sha256);
+        if (delegate.exists(contentLocation)) {
+            log.info("Content {} for {} is already stored.", sha256, location);
+        } else {
+            delegate.upload(source, contentLocation);
+        }
+        writePointer(location, sha256);
+    }
+
+    @Override
+    public void updateMetadata(FileMetadata metadata, String location) {
+        FileMetadata pointer = delegate.fetchMetadata(location);
+        String sha256 = isPointer(pointer) ? pointer.contentSha256() : metadata.contentSha256();
+        delegate.updateMetadata(metadata.withContentSha256(sha256), location);
+    }
+
+    @Override
+    public void delete(String location) {
+        delegate.delete(location);
+    }
+
+    private static boolean isPointer(FileMetadata metadata) {
+        return metadata != null && metadata.contentSha256() != null && metadata.lengthBytes() == 0;
+    }
+
+    /**
+     * @return the location's metadata, with the length and digest of its content, and the digest as ETag.
+     */
+    private FileMetadata resolve(FileMetadata pointer) {
+        FileMetadata content = delegate.fetchMetadata(contentLocation(pointer.contentSha256()));
+        if (content == null) {
+            log.error("Content {} is missing from storage.", pointer.contentSha256());
+            return null;
+        }
+        return pointer
+            .withLengthBytes(content.lengthBytes())
+            .withEtag(pointer.contentSha256());
+    }
+
+    private void writePointer(String location, String sha256) {
+        File empty = null;
+        try {
+            empty = File.createTempFile("pointer", null);
+            // In one request, so that the location is never an empty file without a digest, which would be
+            // served as legacy content.
+            delegate.upload(empty, FileMetadata.UNKNOWN.withContentSha256(sha256), location);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write pointer to " + location, e);
+        } finally {
+            if (empty != null) {
+                empty.delete();
+            }
+        }
+    }
+}
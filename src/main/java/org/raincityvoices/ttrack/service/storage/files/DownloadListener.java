@@ -0,0 +1,25 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+/**
+ * Receives notifications as a file is downloaded from remote storage, so that it can be read
+ * while the download is still in progress.
+ */
+public interface DownloadListener {
+
+    DownloadListener NONE = new DownloadListener() {
+        @Override public void started(FileMetadata metadata) {}
+        @Override public void progress(long bytesWritten) {}
+    };
+
+    /**
+     * Called once the remote storage has confirmed that new content will be transferred, before any of it is
+     * written to the destination. Not called if the content hasn't changed, or doesn't exist.
+     */
+    void started(FileMetadata metadata);
+
+    /**
+     * Called each time more content has been written to the destination, and is available to readers.
+     * @param bytesWritten the total number of bytes written so far.
+     */
+    void progress(long bytesWritten);
+}
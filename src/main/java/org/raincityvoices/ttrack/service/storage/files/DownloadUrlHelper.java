@@ -1,49 +1,151 @@
 package org.raincityvoices.ttrack.service.storage.files;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobHttpHeaders;
 import com.azure.storage.blob.models.UserDelegationKey;
 import com.azure.storage.blob.sas.BlobSasPermission;
 import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
 import com.azure.storage.common.sas.SasProtocol;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Generates read-only SAS URLs for blobs, signed with a user delegation key.
+ *
+ * <p>The delegation key is cached, and fetched again only when it would expire before a requested URL does,
+ * so most URLs are generated without a call to storage. URL start and expiry times are snapped to
+ * {@link #URL_TIME_BUCKET} boundaries, which makes the URL for a blob the same for every request within a
+ * bucket; generated URLs are cached for the duration of their bucket, and browsers can cache the media behind them.
+ * So that they don't serve an old version of a blob that has since been replaced, URLs include the blob's ETag.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class DownloadUrlHelper {
+
+    /** Granularity of URL start and expiry times. URLs are valid for up to this much longer than requested. */
+    static final Duration URL_TIME_BUCKET = Duration.ofMinutes(15);
+    /** Allowance for clock skew between this service and storage. */
+    private static final Duration CLOCK_SKEW = Duration.ofMinutes(5);
+    /** How long each delegation key is requested for, unless a URL needs it for longer. */
+    static final Duration KEY_VALIDITY = Duration.ofHours(12);
+    /** Storage does not issue delegation keys valid for longer than this. */
+    private static final Duration MAX_KEY_VALIDITY = Duration.ofDays(7);
+    private static final int MAX_CACHED_URLS = 10_000;
+
     private final BlobServiceClient blobServiceClient;
+    private final Cache<String, String> urls = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_URLS)
+        .expireAfterWrite(URL_TIME_BUCKET)
+        .build();
+    private UserDelegationKey delegationKey;
 
     @VisibleForTesting Clock clock = Clock.systemUTC();
 
+    /**
+     * @return a URL from which the blob can be read for at least the given time, for blobs that are never replaced.
+     */
     public String getDownloadUrl(BlobClient client, Duration timeout) {
-        OffsetDateTime expiry = clock.instant().plus(timeout).atOffset(ZoneOffset.UTC);
+        return getDownloadUrl(client, null, timeout);
+    }
+
+    /**
+     * @param etag the ETag of the current version of the blob, or null if it is not known.
+     * @return a URL from which the blob can be read for at least the given time, which is different for each version.
+     */
+    public String getDownloadUrl(BlobClient client, String etag, Duration timeout) {
+        return getDownloadUrl(client, etag, null, timeout);
+    }
+
+    /**
+     * @param responseHeaders the Content-Type and Content-Disposition with which storage serves the blob from
+     * the URL, in place of the blob's own, or null to serve it with its own.
+     * @return a URL from which the blob can be read for at least the given time, which is different for each version.
+     */
+    public String getDownloadUrl(BlobClient client, String etag, BlobHttpHeaders responseHeaders, Duration timeout) {
+        Instant now = clock.instant();
+        OffsetDateTime start = floor(now).minus(CLOCK_SKEW).atOffset(ZoneOffset.UTC);
+        OffsetDateTime expiry = ceil(now.plus(timeout)).atOffset(ZoneOffset.UTC);
+        String cacheKey = client.getBlobUrl() + "|" + etag + "|" + expiry.toInstant();
+        if (responseHeaders != null) {
+            cacheKey += "|" + responseHeaders.getContentType() + "|" + responseHeaders.getContentDisposition();
+        }
+        try {
+            return urls.get(cacheKey, () -> signUrl(client, etag, responseHeaders, start, expiry));
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to generate download URL for " + client.getBlobName(), e.getCause());
+        }
+    }
 
-        // Create a User Delegation Key so we can sign a SAS using Azure AD credentials
-        OffsetDateTime keyStart = clock.instant().atOffset(ZoneOffset.UTC).minusMinutes(5);
-        OffsetDateTime keyExpiry = keyStart.plus(timeout).plusMinutes(5);
-        UserDelegationKey userDelegationKey = blobServiceClient.getUserDelegationKey(keyStart, keyExpiry);
+    private String signUrl(BlobClient client, String etag, BlobHttpHeaders responseHeaders, OffsetDateTime start, OffsetDateTime expiry) {
+        UserDelegationKey userDelegationKey = delegationKey(start, expiry);
 
         // Build BlobServiceSasSignatureValues with permissions for the single blob
         BlobSasPermission permission = BlobSasPermission.parse("r");
         BlobServiceSasSignatureValues sasValues = new BlobServiceSasSignatureValues(expiry, permission)
-            .setStartTime(keyStart)
+            .setStartTime(start)
             .setProtocol(SasProtocol.HTTPS_ONLY);
+        if (responseHeaders != null) {
+            sasValues
+                .setContentType(responseHeaders.getContentType())
+                .setContentDisposition(responseHeaders.getContentDisposition());
+        }
 
         String sasToken = client.generateUserDelegationSas(sasValues, userDelegationKey);
         String url = client.getBlobUrl() + "?" + sasToken;
+        if (StringUtils.isNotEmpty(etag)) {
+            // Storage ignores the parameter; it only makes the URL of each version unique.
+            url += "&v=" + URLEncoder.encode(etag, StandardCharsets.UTF_8);
+        }
         log.info("Download URL for {}/{}: {}", client.getContainerName(), client.getBlobName(), url);
         return url;
     }
 
+    /**
+     * @return a delegation key valid for the whole period from start to expiry, fetching a new one if the
+     * cached key is not.
+     */
+    private synchronized UserDelegationKey delegationKey(OffsetDateTime start, OffsetDateTime expiry) {
+        if (delegationKey == null
+                || delegationKey.getSignedStart().isAfter(start)
+                || delegationKey.getSignedExpiry().isBefore(expiry)) {
+            OffsetDateTime keyExpiry = start.plus(KEY_VALIDITY);
+            if (keyExpiry.isBefore(expiry)) {
+                keyExpiry = expiry;
+            }
+            if (keyExpiry.isAfter(start.plus(MAX_KEY_VALIDITY))) {
+                keyExpiry = start.plus(MAX_KEY_VALIDITY);
+            }
+            log.info("Fetching user delegation key valid from {} to {}", start, keyExpiry);
+            delegationKey = blobServiceClient.getUserDelegationKey(start, keyExpiry);
+        }
+        return delegationKey;
+    }
+
+    private static Instant floor(Instant instant) {
+        long bucketMillis = URL_TIME_BUCKET.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(instant.toEpochMilli(), bucketMillis) * bucketMillis);
+    }
+
+    private static Instant ceil(Instant instant) {
+        Instant floor = floor(instant);
+        return floor.equals(instant) ? floor : floor.plus(URL_TIME_BUCKET);
+    }
 }
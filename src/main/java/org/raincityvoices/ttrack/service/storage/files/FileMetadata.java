@@ -43,8 +43,12 @@ public class FileMetadata {
     @With float durationSec;
     @With Instant updated;
     @Default @With String etag = "";
+    /** The SHA-256 digest of the content, as a hex string, or null if it isn't known. */
+    @With String contentSha256;
 
     public static final FileMetadata UNKNOWN = FileMetadata.builder().build();
+    /** The key of the blob metadata entry that records the SHA-256 digest of the blob's content. */
+    public static final String SHA256_METADATA_KEY = "sha256";
 
     public static FileMetadata fromMultipartFile(MultipartFile mpFile) {
         String contentType = mpFile.getContentType();
@@ -67,6 +71,7 @@ public class FileMetadata {
                 .lengthBytes(props.getBlobSize())
                 .updated(props.getLastModified().toInstant())
                 .etag(props.getETag())
+                .contentSha256(props.getMetadata() != null ? props.getMetadata().get(SHA256_METADATA_KEY) : null)
                 .build();
     }
 
@@ -168,6 +173,7 @@ public class FileMetadata {
                 .durationSec(other.durationSec() > 0.0 ? other.durationSec() : durationSec())
                 .updated(ObjectUtils.max(other.updated(), updated()))
                 .etag(!StringUtils.isEmpty(other.etag()) ? other.etag() : etag())
+                .contentSha256(other.contentSha256() != null ? other.contentSha256() : contentSha256())
                 .build();
     }
 
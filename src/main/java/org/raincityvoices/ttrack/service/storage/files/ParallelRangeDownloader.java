@@ -0,0 +1,265 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Downloads a file in fixed-size chunks, several at a time, writing each chunk at its position in a
+ * preallocated destination file.
+ *
+ * <p>Completed chunks are recorded in a sidecar file next to the destination (see {@link #progressFile(File)}),
+ * so that a download interrupted e.g. by a crash can be resumed later, as long as the remote file hasn't changed.
+ * If the source provides an MD5 hash of the whole file, the downloaded file is checked against it.
+ *
+ * <p>Listeners are notified of progress as the completed chunks at the start of the file grow, so that the
+ * file can be read sequentially while it is downloaded. If the file is checked against an MD5 hash, its last
+ * byte is only reported once the check has passed.
+ */
+@Slf4j
+public class ParallelRangeDownloader {
+
+    public static final String PROGRESS_FILE_SUFFIX = ".progress";
+
+    /**
+     * A remote file that can be read in ranges.
+     */
+    public interface RangeSource {
+        /**
+         * Write the given range of the file's content to the output stream.
+         */
+        void readRange(long offset, long lengthBytes, OutputStream out) throws IOException;
+    }
+
+    @Value
+    @Builder
+    public static class Settings {
+        public static final Settings DEFAULT = Settings.builder().build();
+        /** Size of each range request. Files no larger than this are downloaded in a single request. */
+        @Builder.Default
+        long chunkBytes = 8 * 1024 * 1024;
+        /** Maximum number of range requests in flight for a single file. */
+        @Builder.Default
+        int parallelism = 4;
+    }
+
+    /** The contents of the sidecar file that records which chunks have been downloaded. */
+    record Progress(String etag, long lengthBytes, long chunkBytes, List<Integer> completedChunks) {}
+
+    private final Settings settings;
+    private final ExecutorService executor;
+
+    public ParallelRangeDownloader(Settings settings, ExecutorService executor) {
+        this.settings = settings;
+        this.executor = executor;
+    }
+
+    public Settings settings() {
+        return settings;
+    }
+
+    /**
+     * @return the sidecar file that records the progress of a download to the given destination.
+     */
+    public static File progressFile(File destination) {
+        return new File(destination.getPath() + PROGRESS_FILE_SUFFIX);
+    }
+
+    /**
+     * Download the file described by the metadata to the destination, resuming a previous download of the
+     * same version if there is one.
+     * @param expectedMd5 the MD5 hash of the whole file, or null if it is not known.
+     */
+    public void download(RangeSource source, FileMetadata metadata, byte[] expectedMd5,
+                         File destination, DownloadListener listener) throws IOException {
+        long length = metadata.lengthBytes();
+        long chunkBytes = settings.getChunkBytes();
+        int numChunks = (int) Math.max(1, (length + chunkBytes - 1) / chunkBytes);
+        File progressFile = progressFile(destination);
+        BitSet completed = loadProgress(progressFile, metadata, destination);
+        if (!completed.isEmpty()) {
+            log.info("Resuming download to {}: {} of {} chunks already downloaded.", destination, completed.cardinality(), numChunks);
+        }
+        ChunkTracker tracker = new ChunkTracker(metadata, completed, numChunks, expectedMd5 != null, progressFile, listener);
+
+        try (RandomAccessFile raf = new RandomAccessFile(destination, "rw")) {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            listener.started(metadata);
+            tracker.reportProgress();
+
+            AtomicInteger nextChunk = new AtomicInteger();
+            List<Future<?>> workers = new ArrayList<>();
+            int numWorkers = Math.min(settings.getParallelism(), numChunks - completed.cardinality());
+            for (int w = 0; w < numWorkers; ++w) {
+                workers.add(executor.submit(() -> {
+                    for (int chunk = nextChunk.getAndIncrement(); chunk < numChunks; chunk = nextChunk.getAndIncrement()) {
+                        if (tracker.isComplete(chunk)) {
+                            continue;
+                        }
+                        long offset = chunk * chunkBytes;
+                        long chunkLength = Math.min(chunkBytes, length - offset);
+                        ChannelOutputStream out = new ChannelOutputStream(channel, offset);
+                        source.readRange(offset, chunkLength, out);
+                        if (out.written() != chunkLength) {
+                            throw new IOException("Expected " + chunkLength + " bytes at offset " + offset + " but got " + out.written());
+                        }
+                        // Make the chunk durable before recording it, so that a crash can't leave a hole behind
+                        // a chunk that the progress file says is complete.
+                        channel.force(false);
+                        tracker.complete(chunk);
+                    }
+                    return null;
+                }));
+            }
+            awaitAll(workers);
+        }
+
+        if (expectedMd5 != null) {
+            byte[] actualMd5 = Files.asByteSource(destination).hash(Hashing.md5()).asBytes();
+            if (!Arrays.equals(expectedMd5, actualMd5)) {
+                progressFile.delete();
+                destination.delete();
+                throw new IOException("Downloaded file " + destination + " does not match its MD5 hash");
+            }
+        }
+        progressFile.delete();
+        listener.progress(length);
+    }
+
+    private BitSet loadProgress(File progressFile, FileMetadata metadata, File destination) {
+        if (progressFile.exists()) {
+            try {
+                Progress progress = JsonUtils.MAPPER.readValue(progressFile, Progress.class);
+                if (progress.etag().equals(metadata.etag())
+                    && progress.lengthBytes() == metadata.lengthBytes()
+                    && progress.chunkBytes() == settings.getChunkBytes()
+                    && destination.length() == metadata.lengthBytes()) {
+                    BitSet completed = new BitSet();
+                    progress.completedChunks().forEach(completed::set);
+                    return completed;
+                }
+                log.info("Discarding progress of previous download to {}, of a different version.", destination);
+            } catch (IOException e) {
+                log.warn("Unable to read download progress from {}; starting over.", progressFile, e);
+            }
+        }
+        return new BitSet();
+    }
+
+    private static void awaitAll(List<Future<?>> workers) throws IOException {
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            workers.forEach(w -> w.cancel(true));
+            throw e.getCause() instanceof IOException io ? io : new IOException("Ranged download failed", e.getCause());
+        } catch (InterruptedException e) {
+            workers.forEach(w -> w.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during ranged download", e);
+        }
+    }
+
+    /**
+     * Keeps track of completed chunks, persists them to the progress file, and reports the length of the
+     * completed prefix of the file to the listener.
+     */
+    private class ChunkTracker {
+        private final FileMetadata metadata;
+        private final BitSet completed;
+        private final int numChunks;
+        private final boolean holdLastByte;
+        private final File progressFile;
+        private final DownloadListener listener;
+
+        ChunkTracker(FileMetadata metadata, BitSet completed, int numChunks, boolean holdLastByte,
+                     File progressFile, DownloadListener listener) {
+            this.metadata = metadata;
+            this.completed = completed;
+            this.numChunks = numChunks;
+            this.holdLastByte = holdLastByte;
+            this.progressFile = progressFile;
+            this.listener = listener;
+        }
+
+        synchronized boolean isComplete(int chunk) {
+            return completed.get(chunk);
+        }
+
+        synchronized void complete(int chunk) throws IOException {
+            completed.set(chunk);
+            if (completed.cardinality() < numChunks) {
+                JsonUtils.MAPPER.writeValue(progressFile,
+                    new Progress(metadata.etag(), metadata.lengthBytes(), settings.getChunkBytes(),
+                        completed.stream().boxed().toList()));
+            }
+            reportProgress();
+        }
+
+        synchronized void reportProgress() {
+            int prefixChunks = completed.nextClearBit(0);
+            long prefixBytes = Math.min(metadata.lengthBytes(), prefixChunks * settings.getChunkBytes());
+            if (holdLastByte && prefixBytes == metadata.lengthBytes()) {
+                prefixBytes--;
+            }
+            if (prefixBytes > 0) {
+                listener.progress(prefixBytes);
+            }
+        }
+    }
+
+    /**
+     * Writes to a file channel at a given position, so that several streams can write to one file at once.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+        private long written;
+
+        ChannelOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        long written() {
+            return written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                int n = channel.write(buffer, position);
+                position += n;
+                written += n;
+            }
+        }
+    }
+}
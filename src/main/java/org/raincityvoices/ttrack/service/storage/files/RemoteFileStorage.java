@@ -11,9 +11,49 @@ public interface RemoteFileStorage {
      * TODO replace null return value with specific exception?
      */
     FileMetadata download(String location, FileMetadata currentMetadata, File destination);
+    /**
+     * Download the file like {@link #download(String, FileMetadata, File)}, notifying the listener as content
+     * is written, so that it can be read before the download completes. By default, the listener is only
+     * notified once the whole file has been downloaded.
+     */
+    default FileMetadata download(String location, FileMetadata currentMetadata, File destination, DownloadListener listener) {
+        FileMetadata metadata = download(location, currentMetadata, destination);
+        if (metadata != null && !metadata.etag().equals(currentMetadata.etag())) {
+            listener.started(metadata);
+            listener.progress(destination.length());
+        }
+        return metadata;
+    }
     FileMetadata fetchMetadata(String location);
+    /**
+     * @return a URL from which the current version of the file can be read for at least the given time. URLs of
+     * different versions of a file differ, so that caches don't serve an old version from the URL of a new one.
+     */
     String getDownloadUrl(String location, Duration timeout);
+    /**
+     * Get a URL like {@link #getDownloadUrl(String, Duration)}, for a caller that knows the current version of
+     * the file, so that it needn't be looked up again. By default, it is looked up anyway.
+     * @param current the metadata of the current version of the file, as returned by {@link #fetchMetadata(String)}.
+     */
+    default String getDownloadUrl(String location, FileMetadata current, Duration timeout) {
+        return getDownloadUrl(location, timeout);
+    }
+    /**
+     * Get a URL for the version of the file with the given ETag, whose responses have the content type and
+     * file name of the given metadata, rather than those stored with the file. By default, they are those stored.
+     */
+    default String getDownloadUrl(String location, String etag, FileMetadata servedAs, Duration timeout) {
+        return getDownloadUrl(location, timeout);
+    }
     void upload(File source, String location);
+    /**
+     * Upload the file together with its metadata, so that the location is never seen with the new content but
+     * the old (or no) metadata. By default, the metadata is written after the file.
+     */
+    default void upload(File source, FileMetadata metadata, String location) {
+        upload(source, location);
+        updateMetadata(metadata, location);
+    }
     void updateMetadata(FileMetadata metadata, String location);
     void delete(String mediaLocation);
 }
\ No newline at end of file
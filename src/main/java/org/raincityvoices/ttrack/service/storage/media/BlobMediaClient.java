@@ -1,24 +1,36 @@
 package org.raincityvoices.ttrack.service.storage.media;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.time.Duration;
+import java.util.Map;
 
+import org.raincityvoices.ttrack.service.storage.files.DownloadListener;
 import org.raincityvoices.ttrack.service.storage.files.DownloadUrlHelper;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader.RangeSource;
 import org.raincityvoices.ttrack.service.storage.files.RemoteFileStorage;
 import org.springframework.stereotype.Component;
 
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
 import com.azure.storage.blob.models.BlobRequestConditions;
 import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -36,17 +48,41 @@ public class BlobMediaClient implements RemoteFileStorage {
 
     private final BlobContainerClient mediaContainerClient;
     private final DownloadUrlHelper downloadUrlHelper;
+    private final ParallelRangeDownloader rangeDownloader;
 
     @Override
     public FileMetadata download(String location, FileMetadata currentMetadata, File destination) {
+        return download(location, currentMetadata, destination, DownloadListener.NONE);
+    }
+
+    @Override
+    public FileMetadata download(String location, FileMetadata currentMetadata, File destination, DownloadListener listener) {
         String currentETag = currentMetadata.etag();
         log.info("Downloading blob {} to local file {} (current ETag: {})", location, destination.getAbsolutePath(), currentETag);
-        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(destination))) {
-            BlobDownloadResponse response = client(location).downloadStreamWithResponse(stream, null, null, 
-                new BlobRequestConditions().setIfNoneMatch(currentETag), false, null, null);
-            return FileMetadata.fromBlobDownloadHeaders(response.getDeserializedHeaders());
-        } catch(BlobStorageException e) {
-            switch (e.getStatusCode()) {
+        BlobClient client = client(location);
+        try {
+            BlobProperties properties = client.getPropertiesWithResponse(
+                new BlobRequestConditions().setIfNoneMatch(currentETag), null, Context.NONE).getValue();
+            FileMetadata metadata = FileMetadata.fromBlobProperties(properties);
+            // Make sure every request reads the same version of the blob.
+            BlobRequestConditions sameVersion = new BlobRequestConditions().setIfMatch(metadata.etag());
+            if (metadata.lengthBytes() > rangeDownloader.settings().getChunkBytes()) {
+                RangeSource source = (offset, length, out) -> client.downloadStreamWithResponse(
+                    out, new BlobRange(offset, length), null, sameVersion, false, null, Context.NONE);
+                rangeDownloader.download(source, metadata, properties.getContentMd5(), destination, listener);
+            } else {
+                listener.started(metadata);
+                try (OutputStream out = new ProgressOutputStream(new FileOutputStream(destination), listener)) {
+                    client.downloadStreamWithResponse(out, null, null, sameVersion, false, null, Context.NONE);
+                }
+            }
+            return metadata;
+        } catch(Exception e) {
+            int statusCode = Throwables.getCausalChain(e).stream()
+                .filter(BlobStorageException.class::isInstance)
+                .map(t -> ((BlobStorageException) t).getStatusCode())
+                .findFirst().orElse(-1);
+            switch (statusCode) {
                 case 304: 
                     log.info("ETag hasn't changed.");
                     return fetchMetadata(location);
@@ -54,24 +90,46 @@ public class BlobMediaClient implements RemoteFileStorage {
                     log.info("Blob does not exist.");
                     return null;
                 default:
-                    throw new RuntimeException("Failed to download media from blob " + location + " to local file " + destination);                    
+                    throw new RuntimeException("Failed to download media from blob " + location + " to local file " + destination, e);
             }
-        } catch(Exception e) {
-            throw new RuntimeException("Failed to download media from blob " + location + " to local file " + destination);
         }
     }
 
     @Override
     public String getDownloadUrl(String location, Duration timeout) {
-        return downloadUrlHelper.getDownloadUrl(client(location), timeout);
+        FileMetadata metadata = fetchMetadata(location);
+        return downloadUrlHelper.getDownloadUrl(client(location), metadata != null ? metadata.etag() : null, timeout);
+    }
+
+    @Override
+    public String getDownloadUrl(String location, FileMetadata current, Duration timeout) {
+        return downloadUrlHelper.getDownloadUrl(client(location), current.etag(), timeout);
+    }
+
+    @Override
+    public String getDownloadUrl(String location, String etag, FileMetadata servedAs, Duration timeout) {
+        return downloadUrlHelper.getDownloadUrl(client(location), etag, servedAs.toBlobHttpHeaders(), timeout);
     }
     
     @Override
     public void upload(File source, String location) {        
+        upload(source, new BlobHttpHeaders(), null, location);
+    }
+
+    @Override
+    public void upload(File source, FileMetadata metadata, String location) {
+        upload(source, metadata.toBlobHttpHeaders(), blobMetadata(metadata), location);
+    }
+
+    private void upload(File source, BlobHttpHeaders headers, Map<String, String> blobMetadata, String location) {
         log.info("Uploading from {} to {}...", source.getAbsolutePath(), location);
-        try {
-            client(location).upload(new BufferedInputStream(new FileInputStream(source)), true);
-        } catch (FileNotFoundException e) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            // Record the MD5 hash, so that downloads can be checked against it.
+            byte[] md5 = Files.asByteSource(source).hash(Hashing.md5()).asBytes();
+            client(location).uploadWithResponse(new BlobParallelUploadOptions(in)
+                .setHeaders(headers.setContentMd5(md5))
+                .setMetadata(blobMetadata), null, Context.NONE);
+        } catch (IOException e) {
             throw new RuntimeException("Failed to upload media to blob " + location, e);
         }
     }
@@ -101,7 +159,20 @@ public class BlobMediaClient implements RemoteFileStorage {
     public void updateMetadata(FileMetadata metadata, String location) {
         log.info("Updating metadata for {}", location);
         log.debug("New metadata: {}", metadata);
-        client(location).setHttpHeaders(metadata.toBlobHttpHeaders());
+        BlobClient client = client(location);
+        // Setting the headers replaces all of them, so keep the MD5 hash recorded on upload.
+        byte[] md5 = client.getProperties().getContentMd5();
+        client.setHttpHeaders(metadata.toBlobHttpHeaders().setContentMd5(md5));
+        if (metadata.contentSha256() != null) {
+            client.setMetadata(blobMetadata(metadata));
+        }
+    }
+
+    /**
+     * @return the blob metadata entries that record the given metadata, or null if there are none.
+     */
+    private static Map<String, String> blobMetadata(FileMetadata metadata) {
+        return metadata.contentSha256() != null ? Map.of(FileMetadata.SHA256_METADATA_KEY, metadata.contentSha256()) : null;
     }
 
     public void delete(String location) {
@@ -110,4 +181,30 @@ public class BlobMediaClient implements RemoteFileStorage {
     }
 
     private BlobClient client(String location) { return mediaContainerClient.getBlobClient(location); }
+
+    /**
+     * Reports the number of bytes written to a download listener, after flushing them to the file.
+     */
+    private static class ProgressOutputStream extends FilterOutputStream {
+        private final DownloadListener listener;
+        private long written;
+
+        ProgressOutputStream(OutputStream out, DownloadListener listener) {
+            super(out);
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            out.flush();
+            written += len;
+            listener.progress(written);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
 }
@@ -0,0 +1,134 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the media files in a cache directory, used to keep the cache within its size budget.
+ *
+ * Files are kept in least-recently-used order. A file is pinned while a stream is reading it, and is not
+ * evicted until the stream is closed. A pinned file that becomes obsolete (because a newer version of the
+ * media was cached) is deleted when it is unpinned.
+ *
+ * This class only does the bookkeeping; the caller deletes the files that it selects. It is thread-safe.
+ */
+class CacheIndex {
+
+    private static class Entry {
+        long lengthBytes;
+        int pins;
+        boolean obsolete;
+    }
+
+    private final long maxBytes;
+    /** Entries in access order, least recently used first. */
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    CacheIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a file to the index as the most recently used, or update its size if it is already indexed.
+     */
+    synchronized void add(File file, long lengthBytes) {
+        Entry entry = entries.computeIfAbsent(file, f -> new Entry());
+        totalBytes += lengthBytes - entry.lengthBytes;
+        entry.lengthBytes = lengthBytes;
+        entry.obsolete = false;
+    }
+
+    /**
+     * Pin a file, so that it is not evicted, and mark it as the most recently used. If the file isn't
+     * indexed yet, it is added with the given size.
+     */
+    synchronized void pin(File file, long lengthBytes) {
+        if (!entries.containsKey(file)) {
+            add(file, lengthBytes);
+        }
+        entries.get(file).pins++;
+    }
+
+    /**
+     * Release a pin on a file.
+     * @return true if the file became obsolete while it was pinned, and should now be deleted.
+     */
+    synchronized boolean unpin(File file) {
+        Entry entry = entries.get(file);
+        if (entry == null || entry.pins == 0) {
+            return false;
+        }
+        entry.pins--;
+        if (entry.pins == 0 && entry.obsolete) {
+            remove(file);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark a file as obsolete, e.g. because it holds an old version of the media.
+     * @return true if the file can be deleted now; false if it is pinned, in which case it will be
+     * reported by {@link #unpin(File)} when the last pin is released.
+     */
+    synchronized boolean retire(File file) {
+        Entry entry = entries.get(file);
+        if (entry != null && entry.pins > 0) {
+            entry.obsolete = true;
+            return false;
+        }
+        remove(file);
+        return true;
+    }
+
+    synchronized void remove(File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            totalBytes -= entry.lengthBytes;
+        }
+    }
+
+    /**
+     * Remove the least recently used unpinned files from the index until the total size is within
+     * the budget, or only pinned files remain.
+     * @return the files that were removed, which the caller should delete.
+     */
+    synchronized List<File> selectForEviction() {
+        List<File> victims = new ArrayList<>();
+        Iterator<Map.Entry<File, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<File, Entry> e = it.next();
+            if (e.getValue().pins > 0) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= e.getValue().lengthBytes;
+            victims.add(e.getKey());
+        }
+        return victims;
+    }
+
+    synchronized List<File> unpinnedFiles() {
+        return entries.entrySet().stream()
+            .filter(e -> e.getValue().pins == 0)
+            .map(Map.Entry::getKey)
+            .toList();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+}
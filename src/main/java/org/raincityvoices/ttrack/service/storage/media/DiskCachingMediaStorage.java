@@ -1,17 +1,39 @@
 package org.raincityvoices.ttrack.service.storage.media;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
+import org.raincityvoices.ttrack.service.storage.MemoryTierCache;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader;
 import org.raincityvoices.ttrack.service.storage.files.RemoteFileStorage;
+import org.raincityvoices.ttrack.service.storage.media.MediaCacheCounters.Lookup;
+import org.raincityvoices.ttrack.service.storage.media.MediaCacheCounters.Revalidation;
 import org.raincityvoices.ttrack.service.util.AutoLock;
 import org.raincityvoices.ttrack.service.util.DefaultFileManager;
 import org.raincityvoices.ttrack.service.util.FileManager;
@@ -20,8 +42,17 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 import com.microsoft.applicationinsights.core.dependencies.google.common.base.Preconditions;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Builder;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -48,7 +79,33 @@ import lombok.extern.slf4j.Slf4j;
  * to ensure consistency.
  *
  * <p>A {@link LoadingCache} maintains per-location clients to manage concurrent access to
- * different media items, with a maximum of 10 concurrent locations and 10 concurrent threads.
+ * different media items, with up to {@link Settings#getMaxLocations()} locations and 10 concurrent threads.
+ *
+ * <p>Each location is downloaded at most once at a time: concurrent readers share the download in progress,
+ * and read its content as it arrives rather than waiting for the whole file.
+ *
+ * <p>Cached media is considered fresh for {@link Settings#getMetadataTtl()} after its ETag was last
+ * confirmed with remote storage, during which reads make no remote calls at all. After that, for another
+ * {@link Settings#getStaleWhileRevalidate()}, reads are served from the cache while the ETag is revalidated
+ * in the background; beyond that, reads revalidate (and download if necessary) before returning.
+ *
+ * <p>With {@link Settings#isWriteBehind()}, new media is readable from the cache as soon as it has been written
+ * to disk, and is uploaded in the background, with retries. Pending uploads are recorded in an
+ * {@link UploadJournal}, and resumed after a restart.
+ *
+ * <p>Small media can also be kept in a {@link MemoryTierCache} in front of the disk cache, keyed by location
+ * and checked against the ETag of the cached file, so that it is read from disk at most once per version.
+ *
+ * <p>The metadata of each cached file is persisted in a {@link MetadataSidecar} next to it, so that files
+ * found on startup, or whose client was dropped, don't need to be probed again.
+ *
+ * <p>The total size of the cached files is bounded by {@link Settings#getMaxBytes()}: beyond that, the least
+ * recently used files are evicted, except for files that are being read. On startup, the cache directory
+ * is scanned to rebuild the index of cached files, without contacting remote storage; leftover
+ * upload files and download files from a previous run are deleted, except for partial downloads that can be resumed.
+ *
+ * <p>Activity is counted by {@link MediaCacheCounters}, and reported by {@link #stats()} and, once bound to a
+ * registry, as Micrometer meters.
  *
  * Note that the term "media" here is used in its general HTTP sense of content,
  * and not limited to audio/video/etc.
@@ -58,97 +115,383 @@ import lombok.extern.slf4j.Slf4j;
  * @see FileMetadata
  */
 @Slf4j
-public class DiskCachingMediaStorage implements MediaStorage {
+public class DiskCachingMediaStorage implements MediaStorage, MeterBinder {
 
     static final String UPLOAD_FILE_SUFFIX = "upload";
     static final String DOWNLOAD_FILE_SUFFIX = "download";
+    static final String JOURNAL_DIR = "upload-journal";
+    /** Media is not prefetched once the cache is this full. */
+    static final double PREFETCH_FILL_RATIO = 0.9;
+
+    @Value
+    @Builder
+    public static class Settings {
+        public static final Settings DEFAULT = Settings.builder().build();
+        /** Maximum total size of the cached media files. */
+        @Builder.Default
+        long maxBytes = Long.MAX_VALUE;
+        /** Maximum number of locations whose state is kept in memory. */
+        @Builder.Default
+        int maxLocations = 10;
+        /** How long cached media is served without checking remote storage for a newer version. */
+        @Builder.Default
+        Duration metadataTtl = Duration.ZERO;
+        /** How long past its TTL cached media is still served, while it is revalidated in the background. */
+        @Builder.Default
+        Duration staleWhileRevalidate = Duration.ZERO;
+        /**
+         * If true, media is readable from the cache as soon as it is written, and uploaded to remote storage
+         * in the background; otherwise {@link DiskCachingMediaStorage#putMediaAsync} uploads before returning.
+         */
+        @Builder.Default
+        boolean writeBehind = false;
+        /** Maximum number of background uploads running at once. */
+        @Builder.Default
+        int uploadConcurrency = 2;
+        /** Number of times a background upload is attempted before giving up until the next restart. */
+        @Builder.Default
+        int uploadMaxAttempts = 5;
+        /** Delay before retrying a failed background upload; doubled after each attempt. */
+        @Builder.Default
+        Duration uploadRetryDelay = Duration.ofSeconds(1);
+    }
     
     private final RemoteFileStorage remote;
     private final File cacheDir;
     private final FileManager fileManager;
+    private final Settings settings;
+    private final CacheIndex index;
+    private final MemoryTierCache<byte[]> memoryTier;
+    private final UploadJournal journal;
+    private final ExecutorService uploader;
+    /** Clients with pending uploads, which must be used even if they are dropped from {@link #locationClients}. */
+    private final Map<String, CachingMediaClient> uploadingClients = new ConcurrentHashMap<>();
+    private final ExecutorService downloader = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("media-download-", 0).factory());
+    @VisibleForTesting Clock clock = Clock.systemUTC();
+    /**
+     * Cached files for locations that have no client at the moment, e.g. because they were found on startup,
+     * or their client was dropped from {@link #locationClients}.
+     */
+    private final Map<String, File> knownFiles = new ConcurrentHashMap<>();
+    private final MediaCacheCounters counters = new MediaCacheCounters();
     
-    private final LoadingCache<String, CachingMediaClient> locationClients = CacheBuilder.newBuilder()
-        .maximumSize(10)
-        .concurrencyLevel(10)
-        .build(CacheLoader.from(l -> new CachingMediaClient(l)));
+    private final LoadingCache<String, CachingMediaClient> locationClients;
     
     public DiskCachingMediaStorage(RemoteFileStorage remoteStorage, File cacheDir) {
         this(remoteStorage, cacheDir, new DefaultFileManager());
     }
     
     public DiskCachingMediaStorage(RemoteFileStorage remoteStorage, File cacheDir, FileManager fileManager) {
+        this(remoteStorage, cacheDir, fileManager, Settings.DEFAULT);
+    }
+
+    public DiskCachingMediaStorage(RemoteFileStorage remoteStorage, File cacheDir, FileManager fileManager, Settings settings) {
+        this(remoteStorage, cacheDir, fileManager, settings, MemoryTierCache.disabled());
+    }
+
+    public DiskCachingMediaStorage(RemoteFileStorage remoteStorage, File cacheDir, FileManager fileManager, Settings settings,
+                                   MemoryTierCache<byte[]> memoryTier) {
         this.remote = remoteStorage;
         this.cacheDir = cacheDir;
         this.fileManager = fileManager;
+        this.settings = settings;
+        this.index = new CacheIndex(settings.getMaxBytes());
+        this.memoryTier = memoryTier;
+        this.locationClients = CacheBuilder.newBuilder()
+            .maximumSize(settings.getMaxLocations())
+            .concurrencyLevel(10)
+            .recordStats()
+            .<String, CachingMediaClient>removalListener(this::onClientRemoved)
+            .build(CacheLoader.from(l -> new CachingMediaClient(l)));
+        this.journal = new UploadJournal(new File(cacheDir, JOURNAL_DIR));
+        this.uploader = Executors.newFixedThreadPool(settings.getUploadConcurrency(),
+            Thread.ofPlatform().daemon().name("media-upload-", 0).factory());
+        loadIndex();
+        evictIfNeeded();
+        resumePendingUploads();
     }
     
+    private record FetchedMetadata(FileMetadata metadata, Instant fetchedAt) {}
+
     private class CachingMediaClient {
         private final String mediaLocation;
         private final ReentrantLock lock = new ReentrantLock();
         private File localFile;
         private FileMetadata metadata;
+        /** When the metadata was last confirmed to match remote storage, or null if it hasn't been. */
+        private volatile Instant validatedAt;
+        /** The download in progress for this location, if any. */
+        private InFlightDownload inFlight;
+        /** The write-behind upload of this location, if one is pending or has failed. */
+        private CompletableFuture<FileMetadata> pendingUpload;
+        /** Number of reads of this location's media. */
+        private final LongAdder reads = new LongAdder();
+        /**
+         * The remote metadata last fetched for this location, whether or not its media is cached, so that
+         * download URLs can be signed without asking remote storage again within the TTL.
+         */
+        private volatile FetchedMetadata lastFetched;
 
         CachingMediaClient(String mediaLocation) {
             this.mediaLocation = mediaLocation;
             this.metadata = FileMetadata.UNKNOWN;
+            File knownFile = knownFiles.remove(mediaLocation);
+            if (knownFile != null && fileManager.exists(knownFile)) {
+                // Adopt the cached file without asking remote storage; the next download validates its ETag.
+                log.info("Using cached file {} for {}", knownFile, mediaLocation);
+                updateLocalFileAndMetadata(knownFile, FileMetadata.builder().etag(etagOf(knownFile)).build());
+                return;
+            }
             // Check if we already have the most recent media in the cache, and if so update the in-memory representation
             FileMetadata remoteMetadata = remote.fetchMetadata(mediaLocation);
+            lastFetched = new FetchedMetadata(remoteMetadata, clock.instant());
             if (remoteMetadata != null) {
                 File expectedFile = mediaFile(remoteMetadata.etag());
                 if (fileManager.exists(expectedFile)) {
                     updateLocalFileAndMetadata(expectedFile, remoteMetadata);
+                    validatedAt = clock.instant();
                 }
             }
         }
         
         public boolean exists() {
+            if (pendingUpload != null || isFresh()) {
+                return true;
+            }
             return remote.exists(mediaLocation);
         }
 
         public MediaContent getMedia() {
-            if (!remote.exists(mediaLocation)) {
-                throw new IllegalArgumentException("No media found at location " + mediaLocation);
+            InFlightDownload download = null;
+            reads.increment();
+            try(AutoLock al = new AutoLock(lock)) {
+                if (pendingUpload != null) {
+                    log.debug("Serving media for {} that is waiting to be uploaded", mediaLocation);
+                    counters.lookup(Lookup.HIT);
+                } else if (isFresh()) {
+                    log.debug("Serving fresh cached media for {}", mediaLocation);
+                    counters.lookup(Lookup.HIT);
+                } else if (isServableWhileRevalidating()) {
+                    log.debug("Serving stale cached media for {} while revalidating", mediaLocation);
+                    counters.lookup(Lookup.STALE);
+                    startDownload();
+                } else {
+                    counters.lookup(Lookup.MISS);
+                    download = startDownload();
+                }
+            }
+            if (download != null) {
+                FileMetadata downloadMetadata = download.awaitStart();
+                if (downloadMetadata != null) {
+                    MediaContent content = readDownload(download, downloadMetadata);
+                    if (content != null) {
+                        return content;
+                    }
+                }
+            }
+            return readLocalFile();
+        }
+
+        private MediaContent readLocalFile() {
+            final File file;
+            final FileMetadata fileMetadata;
+            try(AutoLock al = new AutoLock(lock)) {
+                if (localFile == null) {
+                    throw new IllegalArgumentException("No media found at location " + mediaLocation);
+                }
+                file = localFile;
+                fileMetadata = metadata;
+                // Pin the file before releasing the lock, so it can't be evicted before it is opened.
+                index.pin(file, fileMetadata.lengthBytes());
+            }
+            evictIfNeeded();
+            if (memoryTier.accepts(fileMetadata.lengthBytes())) {
+                return readSmallFile(file, fileMetadata);
             }
-            downloadIfNecessary();
-            InputStream stream;
             try {
-                stream = fileManager.getInputStream(localFile);
-                return new MediaContent(stream, metadata);
+                InputStream stream = fileManager.getInputStream(file);
+                return new MediaContent(new PinnedInputStream(stream, file), fileMetadata);
             } catch (IOException e) {
-                throw new RuntimeException("Failed to read media from local file " + localFile, e);
+                release(file);
+                throw new RuntimeException("Failed to read media from local file " + file, e);
             }
         }
 
-        private void downloadIfNecessary() {
+        /**
+         * Download the media unless the cached copy can still be served, and wait for the download to finish.
+         */
+        public void prefetch() {
+            InFlightDownload download;
             try(AutoLock al = new AutoLock(lock)) {
-                if (localFile != null && !fileManager.exists(localFile)) {
-                    log.info("Local file {} does not exist. Clearing metadata to force update.", localFile);
-                    metadata = FileMetadata.UNKNOWN;
-                }
-                File downloadFile = mediaFile(DOWNLOAD_FILE_SUFFIX);
-                FileMetadata remoteMetadata = remote.download(mediaLocation, metadata, downloadFile);
-                if (remoteMetadata == null) {
-                    // Media deleted
-                    log.info("Media for {} no longer available on remote storage.", mediaLocation);
+                if (pendingUpload != null || isServableWhileRevalidating()) {
                     return;
                 }
-                if (remoteMetadata.etag().equals(metadata.etag())) {
-                    if (remoteMetadata.lengthBytes() != metadata.lengthBytes()) {
-                        log.warn("Cached media length ({}) is different from remote ({}); last download may have failed. Retrying.",
-                            metadata.lengthBytes(), remoteMetadata.lengthBytes()
-                        );
+                download = startDownload();
+            }
+            download.awaitCompletion();
+        }
+
+        /**
+         * Read small media from the memory tier, loading it from the (pinned) local file if necessary.
+         */
+        private MediaContent readSmallFile(File file, FileMetadata fileMetadata) {
+            try {
+                byte[] content = memoryTier.get(mediaLocation, fileMetadata.etag());
+                if (content == null) {
+                    try (InputStream stream = fileManager.getInputStream(file)) {
+                        content = stream.readAllBytes();
+                    }
+                    memoryTier.put(mediaLocation, fileMetadata.etag(), content, content.length);
+                }
+                return new MediaContent(new ByteArrayInputStream(content), fileMetadata);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read media from local file " + file, e);
+            } finally {
+                release(file);
+            }
+        }
+
+        /**
+         * Read the content of a download while it is in progress.
+         * @return the content, or null if the download has finished in the meantime, and the media should
+         * be read from the cached file instead.
+         */
+        private MediaContent readDownload(InFlightDownload download, FileMetadata downloadMetadata) {
+            // The file is renamed when the download finishes, so open it while holding the lock.
+            File downloadFile = mediaFile(DOWNLOAD_FILE_SUFFIX);
+            File file = mediaFile(downloadMetadata.etag());
+            try(AutoLock al = new AutoLock(lock)) {
+                if (inFlight != download) {
+                    return null;
+                }
+                log.debug("Reading media for {} while it is downloaded", mediaLocation);
+                index.pin(file, downloadMetadata.lengthBytes());
+                try {
+                    InputStream stream = download.reader(fileManager.getInputStream(downloadFile));
+                    return new MediaContent(new PinnedInputStream(stream, file), downloadMetadata);
+                } catch (IOException e) {
+                    release(file);
+                    throw new RuntimeException("Failed to read media from local file " + downloadFile, e);
+                }
+            }
+        }
+
+        /**
+         * Start downloading the media, if it has changed, unless a download is already in progress.
+         * Must be called with the lock held.
+         * @return the download in progress.
+         */
+        private InFlightDownload startDownload() {
+            if (inFlight != null) {
+                log.debug("Joining download in progress for {}", mediaLocation);
+                return inFlight;
+            }
+            if (localFile != null && !fileManager.exists(localFile)) {
+                log.info("Local file {} does not exist. Clearing metadata to force update.", localFile);
+                metadata = FileMetadata.UNKNOWN;
+            }
+            InFlightDownload download = new InFlightDownload();
+            FileMetadata currentMetadata = metadata;
+            inFlight = download;
+            downloader.execute(() -> runDownload(download, currentMetadata));
+            return download;
+        }
+
+        private void runDownload(InFlightDownload download, FileMetadata currentMetadata) {
+            File downloadFile = mediaFile(DOWNLOAD_FILE_SUFFIX);
+            long startNanos = System.nanoTime();
+            try {
+                FileMetadata remoteMetadata = remote.download(mediaLocation, currentMetadata, downloadFile, download);
+                boolean changed = remoteMetadata != null && !remoteMetadata.etag().equals(currentMetadata.etag());
+                if (remoteMetadata != null && !changed && remoteMetadata.lengthBytes() != currentMetadata.lengthBytes()) {
+                    log.warn("Cached media length ({}) is different from remote ({}); last download may have failed. Retrying.",
+                        currentMetadata.lengthBytes(), remoteMetadata.lengthBytes()
+                    );
+                    try(AutoLock al = new AutoLock(lock)) {
                         deleteFromCache();
-                        remoteMetadata = remote.download(mediaLocation, FileMetadata.UNKNOWN, downloadFile);
-                    } else {
-                        log.info("Media for {} has not changed since last downloaded.", mediaLocation);
-                        return;
                     }
+                    remoteMetadata = remote.download(mediaLocation, FileMetadata.UNKNOWN, downloadFile, download);
+                    changed = remoteMetadata != null;
+                }
+                try(AutoLock al = new AutoLock(lock)) {
+                    finishDownload(download, remoteMetadata, changed);
+                }
+                if (changed) {
+                    counters.downloaded(remoteMetadata.lengthBytes(), System.nanoTime() - startNanos);
+                }
+                evictIfNeeded();
+                download.complete();
+            } catch (Exception e) {
+                log.warn("Failed to download media for {}", mediaLocation, e);
+                try(AutoLock al = new AutoLock(lock)) {
+                    // Keep the partial download file, which the next attempt may be able to resume.
+                    inFlight = null;
                 }
-                log.info("Downloaded media for {} with new ETag {}: creating new local file.", mediaLocation, remoteMetadata.etag());
-                updateLocalFileAndMetadata(downloadFile, remoteMetadata);
+                download.fail(e);
             }
         }
+
+        private void finishDownload(InFlightDownload download, FileMetadata remoteMetadata, boolean changed) {
+            inFlight = null;
+            if (download.isSuperseded()) {
+                log.info("Discarding download for {}, which was superseded by a local change.", mediaLocation);
+                if (changed) {
+                    fileManager.delete(mediaFile(DOWNLOAD_FILE_SUFFIX));
+                }
+                return;
+            }
+            if (remoteMetadata == null) {
+                // Media deleted
+                log.info("Media for {} no longer available on remote storage.", mediaLocation);
+                counters.revalidation(Revalidation.MISSING);
+                forget();
+                return;
+            }
+            validatedAt = clock.instant();
+            if (!changed) {
+                log.info("Media for {} has not changed since last downloaded.", mediaLocation);
+                counters.revalidation(Revalidation.NOT_MODIFIED);
+                return;
+            }
+            counters.revalidation(Revalidation.CHANGED);
+            log.info("Downloaded media for {} with new ETag {}: creating new local file.", mediaLocation, remoteMetadata.etag());
+            updateLocalFileAndMetadata(mediaFile(DOWNLOAD_FILE_SUFFIX), remoteMetadata);
+        }
         
+        /**
+         * @return true if the cached media was confirmed to be current within the TTL.
+         */
+        private boolean isFresh() {
+            return isValidatedWithin(settings.getMetadataTtl());
+        }
+
+        /**
+         * @return true if the cached media may be served while it is revalidated in the background.
+         */
+        private boolean isServableWhileRevalidating() {
+            return isValidatedWithin(settings.getMetadataTtl().plus(settings.getStaleWhileRevalidate()));
+        }
+
+        private boolean isValidatedWithin(Duration maxAge) {
+            Instant validated = validatedAt;
+            File file = localFile;
+            return validated != null && file != null
+                && clock.instant().isBefore(validated.plus(maxAge))
+                && fileManager.exists(file);
+        }
+
+        /**
+         * Drop the cached media and everything known about it, e.g. because it no longer exists remotely.
+         */
+        private void forget() {
+            deleteFromCache();
+            localFile = null;
+            metadata = FileMetadata.UNKNOWN;
+            validatedAt = null;
+            lastFetched = null;
+        }
+
         private void updateLocalFileAndMetadata(File tempFile, FileMetadata remoteMetadata) {
             File newFile = mediaFile(remoteMetadata.etag());
             if (!newFile.equals(tempFile)) {
@@ -156,67 +499,266 @@ public class DiskCachingMediaStorage implements MediaStorage {
                     throw new RuntimeException("Failed to rename " + tempFile + " to " + newFile);
                 }
             }
-            FileMetadata inferredMetadata = FileMetadata.fromTempFile(newFile, fileManager)
-                // Ignore some attributes that are almost guaranteed to be wrong
-                .withFileName(null)
-                .withUpdated(null);
-            metadata = remoteMetadata.updateFrom(inferredMetadata);
+            FileMetadata stored = newFile.equals(tempFile) ? MetadataSidecar.read(newFile) : null;
+            if (stored != null && stored.etag().equals(remoteMetadata.etag())) {
+                // Already cached and described by its sidecar, so there's no need to probe the file again.
+                metadata = stored.updateFrom(remoteMetadata);
+            } else {
+                FileMetadata inferredMetadata = FileMetadata.fromTempFile(newFile, fileManager)
+                    // Ignore some attributes that are almost guaranteed to be wrong
+                    .withFileName(null)
+                    .withUpdated(null);
+                metadata = remoteMetadata.updateFrom(inferredMetadata);
+                MetadataSidecar.write(newFile, metadata);
+            }
+            File oldFile = localFile;
             localFile = newFile;
+            index.add(newFile, metadata.lengthBytes());
+            if (oldFile != null && !oldFile.equals(newFile) && index.retire(oldFile)) {
+                log.info("Deleting old version {} of {}", oldFile, mediaLocation);
+                deleteCachedFile(oldFile);
+            }
         }
         
         public FileMetadata getMediaMetadata() {
             return metadata;
         }
+
+        /**
+         * @return the remote metadata of the media, from the cache if it is fresh, or else as fetched from remote
+         * storage within the TTL; or null if an upload is pending or the media doesn't exist remotely.
+         */
+        public FileMetadata currentRemoteMetadata() {
+            if (pendingUpload != null) {
+                return null;
+            }
+            if (isFresh() && !metadata.etag().isEmpty()) {
+                return metadata;
+            }
+            FetchedMetadata fetched = lastFetched;
+            if (fetched == null || !clock.instant().isBefore(fetched.fetchedAt().plus(settings.getMetadataTtl()))) {
+                fetched = new FetchedMetadata(remote.fetchMetadata(mediaLocation), clock.instant());
+                lastFetched = fetched;
+            }
+            return fetched.metadata();
+        }
+
+        /**
+         * Wait for the pending upload of this location, if any.
+         * @return the metadata of the uploaded media, including its ETag, which is not known until the upload completes.
+         */
+        public FileMetadata awaitUpload() {
+            CompletableFuture<FileMetadata> pending;
+            try(AutoLock al = new AutoLock(lock)) {
+                pending = pendingUpload;
+                if (pending == null) {
+                    return metadata;
+                }
+            }
+            log.info("Waiting for pending upload to {}...", mediaLocation);
+            return pending.join();
+        }
         
-        public void putMedia(MediaContent content) {
+        /**
+         * @return a future that completes once the media is durable, or null if the location already holds
+         * identical media, and nothing was stored.
+         */
+        public CompletableFuture<FileMetadata> putMedia(MediaContent content) {
             File uploadFile = mediaFile(UPLOAD_FILE_SUFFIX);
-            try(AutoLock al = new AutoLock(lock)) {
+            return whenNoUploadPending(() -> {
+                clearFailedUpload();
+                lastFetched = null;
                 log.info("Writing media to temporary upload file {}...", uploadFile);
-                try(OutputStream fos = fileManager.getOutputStream(uploadFile)) {
-                    content.stream().transferTo(fos);
+                final String sha256;
+                try(HashingOutputStream out = new HashingOutputStream(Hashing.sha256(), fileManager.getOutputStream(uploadFile))) {
+                    content.stream().transferTo(out);
+                    sha256 = out.hash().toString();
                 } catch (IOException e) {
                     throw new RuntimeException("Failed to write media to disk at " + uploadFile, e);
                 }
+                if (isStored(sha256)) {
+                    log.info("Media for {} is identical to the stored media ({}); not storing it again.", mediaLocation, sha256);
+                    fileManager.delete(uploadFile);
+                    return null;
+                }
                 FileMetadata mediaMetadata = FileMetadata.fromFile(uploadFile, fileManager);
                 // Combine whatever metadata we had before with newly-provided and inferred metadata
-                this.metadata = metadata.updateFrom(mediaMetadata).updateFrom(content.metadata());
-                // TODO do this asynchronously? Maybe have a background thread that flushes uploads?
-                try {
-                    log.info("Uploading media to {}...", mediaLocation);
-                    remote.upload(uploadFile, mediaLocation);
-                    // Update metadata with what can be inferred from file
-                    remote.updateMetadata(metadata, mediaLocation);
-                } catch(Exception e) {
-                   throw new RuntimeException("Failed to upload media and/or metadata to " + mediaLocation);
+                this.metadata = metadata.updateFrom(mediaMetadata).updateFrom(content.metadata()).withContentSha256(sha256);
+                supersedeDownload();
+                if (settings.isWriteBehind()) {
+                    return startUpload(uploadFile, metadata.withEtag(""));
                 }
-                // Get the current metadata, including ETag, which cannot be determined locally
-                // Note: theoretically this could come back null, if someone deleted the Blob out-of-band.
-                FileMetadata remoteMetadata = remote.fetchMetadata(mediaLocation);
-                updateLocalFileAndMetadata(uploadFile, remoteMetadata);
+                upload(uploadFile, metadata);
+                finishUpload(uploadFile);
+                return CompletableFuture.completedFuture(metadata);
+            });
+        }
+
+        /**
+         * @return true if the location already holds content with the given digest. Unless the metadata is fresh,
+         * this is checked with remote storage, which may have been updated by another instance.
+         */
+        private boolean isStored(String sha256) {
+            FileMetadata current = isFresh() ? metadata : remote.fetchMetadata(mediaLocation);
+            return current != null && sha256.equals(current.contentSha256());
+        }
+
+        /**
+         * Resume an upload that was accepted before a restart, but not completed.
+         */
+        public void resumeUpload(File uploadFile, FileMetadata uploadMetadata) {
+            try(AutoLock al = new AutoLock(lock)) {
+                log.info("Resuming upload of {} to {}", uploadFile, mediaLocation);
+                startUpload(uploadFile, uploadMetadata);
             }
         }
 
-        public boolean delete() {
-            if (!remote.exists(mediaLocation)) {
-                log.warn("No media to delete at {}.", mediaLocation);
-                return false;
+        /**
+         * Serve the upload file locally, and upload it in the background. Must be called with the lock held.
+         */
+        private CompletableFuture<FileMetadata> startUpload(File uploadFile, FileMetadata uploadMetadata) {
+            try {
+                journal.record(uploadFile, new UploadJournal.Entry(mediaLocation, uploadMetadata));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to record upload of " + mediaLocation + " in the journal", e);
+            }
+            metadata = uploadMetadata;
+            File oldFile = localFile;
+            localFile = uploadFile;
+            // Keep the file until it has been uploaded.
+            index.add(uploadFile, uploadMetadata.lengthBytes());
+            index.pin(uploadFile, uploadMetadata.lengthBytes());
+            if (oldFile != null && !oldFile.equals(uploadFile) && index.retire(oldFile)) {
+                log.info("Deleting old version {} of {}", oldFile, mediaLocation);
+                deleteCachedFile(oldFile);
+            }
+            validatedAt = clock.instant();
+            uploadingClients.put(mediaLocation, this);
+            pendingUpload = CompletableFuture.supplyAsync(() -> uploadInBackground(uploadFile, uploadMetadata), uploader);
+            return pendingUpload;
+        }
+
+        private FileMetadata uploadInBackground(File uploadFile, FileMetadata uploadMetadata) {
+            Duration delay = settings.getUploadRetryDelay();
+            for (int attempt = 1; ; ++attempt) {
+                try {
+                    upload(uploadFile, uploadMetadata);
+                    break;
+                } catch (RuntimeException e) {
+                    if (attempt >= settings.getUploadMaxAttempts()) {
+                        log.error("Giving up on uploading {} to {} after {} attempts; it will be retried after a restart.",
+                            uploadFile, mediaLocation, attempt, e);
+                        throw e;
+                    }
+                    log.warn("Upload attempt {} to {} failed; retrying in {}.", attempt, mediaLocation, delay, e);
+                    sleep(delay);
+                    delay = delay.multipliedBy(2);
+                }
+            }
+            try(AutoLock al = new AutoLock(lock)) {
+                index.unpin(uploadFile);
+                finishUpload(uploadFile);
+                journal.remove(uploadFile);
+                pendingUpload = null;
+                uploadingClients.remove(mediaLocation, this);
+                if (locationClients.asMap().get(mediaLocation) != this) {
+                    // This client was dropped from the cache while uploading; let its replacement find the file.
+                    knownFiles.put(mediaLocation, localFile);
+                }
+                return metadata;
+            } finally {
+                evictIfNeeded();
             }
-            lock.lock();
+        }
+
+        private void upload(File uploadFile, FileMetadata uploadMetadata) {
             try {
+                log.info("Uploading media to {}...", mediaLocation);
+                remote.upload(uploadFile, mediaLocation);
+                // Update metadata with what can be inferred from file
+                remote.updateMetadata(uploadMetadata, mediaLocation);
+            } catch(Exception e) {
+               throw new RuntimeException("Failed to upload media and/or metadata to " + mediaLocation, e);
+            }
+        }
+
+        private void finishUpload(File uploadFile) {
+            // Get the current metadata, including ETag, which cannot be determined locally
+            // Note: theoretically this could come back null, if someone deleted the Blob out-of-band.
+            FileMetadata remoteMetadata = remote.fetchMetadata(mediaLocation);
+            updateLocalFileAndMetadata(uploadFile, remoteMetadata);
+            validatedAt = clock.instant();
+        }
+
+        /**
+         * Run the action with the lock held, once any pending upload of this location has finished,
+         * so that it can't be overwritten or deleted while it is being uploaded.
+         */
+        private <T> T whenNoUploadPending(Supplier<T> action) {
+            while (true) {
+                CompletableFuture<FileMetadata> pending;
+                try(AutoLock al = new AutoLock(lock)) {
+                    pending = pendingUpload;
+                    if (pending == null || pending.isDone()) {
+                        return action.get();
+                    }
+                }
+                log.info("Waiting for pending upload to {}...", mediaLocation);
+                pending.exceptionally(e -> null).join();
+            }
+        }
+
+        /**
+         * Forget an upload that failed, which is about to be replaced or deleted. Must be called with the lock held.
+         */
+        private void clearFailedUpload() {
+            if (pendingUpload != null) {
+                File uploadFile = mediaFile(UPLOAD_FILE_SUFFIX);
+                index.unpin(uploadFile);
+                journal.remove(uploadFile);
+                // Unlink the file rather than overwriting it, in case it is being read.
+                fileManager.delete(uploadFile);
+                pendingUpload = null;
+                uploadingClients.remove(mediaLocation, this);
+            }
+        }
+
+        public boolean delete() {
+            return whenNoUploadPending(() -> {
+                clearFailedUpload();
+                if (!remote.exists(mediaLocation)) {
+                    log.warn("No media to delete at {}.", mediaLocation);
+                    return false;
+                }
                 log.info("Deleting media for {}", mediaLocation);
-                deleteFromCache();
                 remote.delete(mediaLocation);
                 // reset the metadata, including ETag, so the media will be downloaded if recreated later.
-                metadata = FileMetadata.UNKNOWN;
+                forget();
+                supersedeDownload();
                 return true;
-            } finally {
-                lock.unlock();
+            });
+        }
+
+        private void supersedeDownload() {
+            if (inFlight != null) {
+                inFlight.supersede();
+            }
+        }
+
+        LocationStats describe() {
+            try(AutoLock al = new AutoLock(lock)) {
+                return new LocationStats(mediaLocation, reads.sum(), metadata.etag(), metadata.lengthBytes(),
+                    localFile != null, pendingUpload != null, validatedAt);
             }
         }
 
         public void deleteFromCache() {
-            if (localFile != null && fileManager.exists(localFile)) {
-                fileManager.delete(localFile);
+            memoryTier.invalidate(mediaLocation);
+            if (localFile != null) {
+                index.remove(localFile);
+                if (fileManager.exists(localFile)) {
+                    deleteCachedFile(localFile);
+                }
             }
         }
 
@@ -237,13 +779,31 @@ public class DiskCachingMediaStorage implements MediaStorage {
 
     @Override
     public String getDownloadUrl(String mediaLocation, Duration timeout) {
-        return remote.getDownloadUrl(mediaLocation, timeout);
+        FileMetadata current = getClient(mediaLocation).currentRemoteMetadata();
+        return current != null ? remote.getDownloadUrl(mediaLocation, current, timeout) : remote.getDownloadUrl(mediaLocation, timeout);
     }
 
     public void putMedia(String mediaLocation, MediaContent content) {
+        try {
+            putMediaAsync(mediaLocation, content).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<FileMetadata> putMediaAsync(String mediaLocation, MediaContent content) {
+        CompletableFuture<FileMetadata> uploaded = putMediaIfChanged(mediaLocation, content);
+        return uploaded != null ? uploaded : CompletableFuture.completedFuture(getMediaMetadata(mediaLocation));
+    }
+
+    @Override
+    public CompletableFuture<FileMetadata> putMediaIfChanged(String mediaLocation, MediaContent content) {
         Preconditions.checkNotNull(mediaLocation);
         Preconditions.checkNotNull(content);
-        getClient(mediaLocation).putMedia(content);
+        CompletableFuture<FileMetadata> uploaded = getClient(mediaLocation).putMedia(content);
+        evictIfNeeded();
+        return uploaded;
     }
 
     public FileMetadata getMediaMetadata(String mediaLocation) {
@@ -251,18 +811,128 @@ public class DiskCachingMediaStorage implements MediaStorage {
         return getClient(mediaLocation).getMediaMetadata();
     }
 
+    @Override
+    public FileMetadata awaitDurable(String mediaLocation) {
+        Preconditions.checkNotNull(mediaLocation);
+        return getClient(mediaLocation).awaitUpload();
+    }
+
     @Override
     public boolean deleteMedia(String mediaLocation) {
         return getClient(mediaLocation).delete();        
     }
 
+    /**
+     * Download the media into the cache, unless it is already cached, or the cache is nearly full.
+     */
+    @Override
+    public boolean prefetch(String mediaLocation) {
+        Preconditions.checkNotNull(mediaLocation);
+        if (index.totalBytes() >= settings.getMaxBytes() * PREFETCH_FILL_RATIO) {
+            log.debug("Not prefetching {}; the media cache is nearly full.", mediaLocation);
+            return false;
+        }
+        getClient(mediaLocation).prefetch();
+        return true;
+    }
+
+    /** A summary of what the cache has done since startup, and what it holds now. */
+    public record Stats(long hits, long staleHits, long misses, double hitRatio,
+                        long notModified, long changed, long missing,
+                        long downloads, long downloadBytes, double downloadSeconds,
+                        long evictions, long sizeBytes, long maxBytes, int files,
+                        long locations, int pendingUploads) {}
+
+    /** The state of the cache for one location. */
+    public record LocationStats(String location, long reads, String etag, long lengthBytes,
+                                boolean cached, boolean uploadPending, Instant validatedAt) {}
+
+    public Stats stats() {
+        long hits = counters.lookups(Lookup.HIT);
+        long staleHits = counters.lookups(Lookup.STALE);
+        long misses = counters.lookups(Lookup.MISS);
+        long lookups = hits + staleHits + misses;
+        return new Stats(hits, staleHits, misses, lookups == 0 ? 0.0 : (double) (hits + staleHits) / lookups,
+            counters.revalidations(Revalidation.NOT_MODIFIED), counters.revalidations(Revalidation.CHANGED),
+            counters.revalidations(Revalidation.MISSING),
+            counters.downloads(), counters.downloadBytes(), counters.downloadSeconds(),
+            counters.evictions(), index.totalBytes(), index.maxBytes(), index.size(),
+            locationClients.size(), uploadingClients.size());
+    }
+
+    /**
+     * @return the locations in memory that have been read the most, most read first.
+     */
+    public List<LocationStats> hottest(int limit) {
+        return locationClients.asMap().values().stream()
+            .map(CachingMediaClient::describe)
+            .sorted(Comparator.comparingLong(LocationStats::reads).reversed())
+            .limit(limit)
+            .toList();
+    }
+
+    /**
+     * Delete the cached media of every location of the given song, except media that is waiting to be uploaded.
+     * @return the number of locations purged.
+     */
+    public int purgeSong(String songId) {
+        String prefix = songId + "/";
+        Set<String> locations = new HashSet<>();
+        locationClients.asMap().keySet().stream().filter(l -> l.startsWith(prefix)).forEach(locations::add);
+        knownFiles.keySet().stream().filter(l -> l.startsWith(prefix)).forEach(locations::add);
+        locations.removeAll(uploadingClients.keySet());
+        log.info("Purging {} locations of song {} from the media cache.", locations.size(), songId);
+        locations.forEach(this::deleteFromCache);
+        return locations.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        counters.bindTo(registry);
+        GuavaCacheMetrics.monitor(registry, locationClients, "media-locations");
+        Gauge.builder("ttrack.media.cache.size", index, CacheIndex::totalBytes)
+            .description("Total size of the cached media files")
+            .baseUnit("bytes")
+            .register(registry);
+        Gauge.builder("ttrack.media.cache.files", index, CacheIndex::size)
+            .description("Number of cached media files")
+            .register(registry);
+        Gauge.builder("ttrack.media.cache.uploads.pending", uploadingClients, Map::size)
+            .description("Number of media uploads waiting to complete")
+            .register(registry);
+    }
+
     public void deleteFromCache(String mediaLocation) {
         getClient(mediaLocation).deleteFromCache();
         locationClients.invalidate(mediaLocation);
     }
 
+    /**
+     * Delete all cached media files that are not being read.
+     */
     public void clearCache() {
-        
+        locationClients.invalidateAll();
+        knownFiles.clear();
+        memoryTier.invalidateAll();
+        for (File file : index.unpinnedFiles()) {
+            if (index.retire(file)) {
+                deleteCachedFile(file);
+            }
+        }
+        log.info("Cleared media cache; {} files ({} bytes) still in use.", index.size(), index.totalBytes());
+    }
+
+    /**
+     * @return true if the local cache holds media for any location belonging to the given song.
+     */
+    public boolean hasCachedMedia(String songId) {
+        String prefix = URLEncoder.encode(songId + "/", StandardCharsets.UTF_8);
+        String[] names = cacheDir.list((dir, name) -> name.startsWith(prefix)
+            && !name.endsWith("." + DOWNLOAD_FILE_SUFFIX)
+            && !name.endsWith("." + UPLOAD_FILE_SUFFIX)
+            && !name.endsWith(ParallelRangeDownloader.PROGRESS_FILE_SUFFIX)
+            && !name.endsWith(MetadataSidecar.SUFFIX));
+        return names != null && names.length > 0;
     }
 
     @VisibleForTesting
@@ -271,7 +941,157 @@ public class DiskCachingMediaStorage implements MediaStorage {
         return new File(cacheDir, localFileName);
     }
 
+    /**
+     * Build the index of cached files from the contents of the cache directory, deleting leftover
+     * download/upload files (except resumable downloads) and all but the newest version of each location's media.
+     */
+    private void loadIndex() {
+        File[] files = cacheDir.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so that the least recently modified files are the first to be evicted.
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            if (MetadataSidecar.isSidecar(file)) {
+                if (!MetadataSidecar.mediaFileOf(file).exists()) {
+                    file.delete();
+                }
+                continue;
+            }
+            if (name.endsWith(ParallelRangeDownloader.PROGRESS_FILE_SUFFIX)) {
+                // Progress of an interrupted download, kept with its download file so that it can be resumed.
+                String downloadName = name.substring(0, name.length() - ParallelRangeDownloader.PROGRESS_FILE_SUFFIX.length());
+                if (!new File(cacheDir, downloadName).exists()) {
+                    file.delete();
+                }
+                continue;
+            }
+            if (name.endsWith("." + DOWNLOAD_FILE_SUFFIX) && ParallelRangeDownloader.progressFile(file).exists()) {
+                log.info("Keeping partial download {} to resume later", file);
+                continue;
+            }
+            if (name.endsWith("." + UPLOAD_FILE_SUFFIX) && journal.contains(file)) {
+                // Resumed by resumePendingUploads()
+                continue;
+            }
+            if (name.endsWith("." + DOWNLOAD_FILE_SUFFIX) || name.endsWith("." + UPLOAD_FILE_SUFFIX)) {
+                log.info("Deleting leftover transfer file {}", file);
+                file.delete();
+                continue;
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            String location = URLDecoder.decode(name.substring(0, dot), StandardCharsets.UTF_8);
+            File older = knownFiles.put(location, file);
+            if (older != null) {
+                log.info("Deleting old version {} of {}", older, location);
+                index.remove(older);
+                older.delete();
+                MetadataSidecar.delete(older);
+            }
+            index.add(file, file.length());
+        }
+        log.info("Indexed {} cached media files ({} bytes) in {}", index.size(), index.totalBytes(), cacheDir);
+    }
+
+    /**
+     * Restart the uploads recorded in the journal, which were interrupted e.g. by a restart.
+     */
+    private void resumePendingUploads() {
+        journal.pending(cacheDir).forEach((uploadFile, entry) -> {
+            if (!uploadFile.exists()) {
+                log.warn("Upload file {} for {} is missing; dropping it from the journal.", uploadFile, entry.mediaLocation());
+                journal.remove(uploadFile);
+                return;
+            }
+            getClient(entry.mediaLocation()).resumeUpload(uploadFile, entry.metadata());
+        });
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    private static String etagOf(File cachedFile) {
+        String name = cachedFile.getName();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private void onClientRemoved(RemovalNotification<String, CachingMediaClient> notification) {
+        CachingMediaClient client = notification.getValue();
+        // Clients with pending uploads stay in uploadingClients, and record their file when the upload completes.
+        if (client != null && client.localFile != null && client.pendingUpload == null && notification.getKey() != null) {
+            knownFiles.put(notification.getKey(), client.localFile);
+        }
+    }
+
+    private void deleteCachedFile(File file) {
+        fileManager.delete(file);
+        MetadataSidecar.delete(file);
+    }
+
+    /**
+     * Delete the least recently used files until the cache is within its budget.
+     */
+    private void evictIfNeeded() {
+        List<File> victims = index.selectForEviction();
+        counters.evicted(victims.size());
+        for (File victim : victims) {
+            log.info("Evicting {} from the media cache.", victim);
+            knownFiles.values().remove(victim);
+            deleteCachedFile(victim);
+        }
+    }
+
+    /**
+     * Release a file pinned for reading, and delete it if it was made obsolete in the meantime.
+     */
+    private void release(File file) {
+        if (index.unpin(file)) {
+            log.info("Deleting old version {} now that it is no longer in use.", file);
+            deleteCachedFile(file);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * A stream over a cached file, which keeps the file pinned until it is closed.
+     */
+    private class PinnedInputStream extends FilterInputStream {
+        private final File file;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        PinnedInputStream(InputStream in, File file) {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    release(file);
+                }
+            }
+        }
+    }
+
     private CachingMediaClient getClient(String mediaLocation) {
+        CachingMediaClient uploading = uploadingClients.get(mediaLocation);
+        if (uploading != null) {
+            return uploading;
+        }
         try {
             return locationClients.get(mediaLocation);
         } catch (ExecutionException e) {
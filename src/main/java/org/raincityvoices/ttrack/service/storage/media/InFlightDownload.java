@@ -0,0 +1,169 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.raincityvoices.ttrack.service.storage.files.DownloadListener;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+
+/**
+ * The state of a download of one media location into the cache, shared by every reader of that location
+ * while it is in progress, so that each location is only downloaded once at a time.
+ *
+ * Readers can wait for the download to start transferring content, and then read the partially downloaded
+ * file through {@link #reader(InputStream)}, which blocks until more content arrives. If the download fails,
+ * the failure is reported to every waiter and reader.
+ *
+ * This class is thread-safe.
+ */
+class InFlightDownload implements DownloadListener {
+
+    private FileMetadata metadata;
+    private long bytesWritten;
+    private boolean done;
+    private Throwable failure;
+    private volatile boolean superseded;
+
+    @Override
+    public synchronized void started(FileMetadata metadata) {
+        this.metadata = metadata;
+        this.bytesWritten = 0;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void progress(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+        notifyAll();
+    }
+
+    synchronized void complete() {
+        done = true;
+        notifyAll();
+    }
+
+    synchronized void fail(Throwable failure) {
+        this.failure = failure;
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Mark the download as out of date, e.g. because the media was uploaded or deleted locally in the
+     * meantime, so that its result is discarded.
+     */
+    void supersede() {
+        superseded = true;
+    }
+
+    boolean isSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Wait until content starts arriving, or the download is done.
+     * @return the metadata of the content being downloaded, or null if the download completed without
+     * transferring any content, e.g. because the cached media is up to date.
+     * @throws RuntimeException if the download failed.
+     */
+    synchronized FileMetadata awaitStart() {
+        while (metadata == null && !done) {
+            waitForChange();
+        }
+        if (failure != null) {
+            throw new RuntimeException("Download failed", failure);
+        }
+        return metadata;
+    }
+
+    /**
+     * Wait until the download is done.
+     * @throws RuntimeException if the download failed.
+     */
+    synchronized void awaitCompletion() {
+        while (!done) {
+            waitForChange();
+        }
+        if (failure != null) {
+            throw new RuntimeException("Download failed", failure);
+        }
+    }
+
+    /**
+     * Wraps a stream over the file being downloaded, so that reads block until content is available.
+     */
+    InputStream reader(InputStream fileStream) {
+        return new GrowingFileInputStream(fileStream);
+    }
+
+    /**
+     * Wait until content beyond the given position has been written, or the download is done.
+     * @return the number of bytes available to read.
+     */
+    private synchronized long awaitBytesAfter(long position) throws IOException {
+        while (bytesWritten <= position && !done) {
+            waitForChange();
+        }
+        if (failure != null) {
+            throw new IOException("Download failed", failure);
+        }
+        return bytesWritten;
+    }
+
+    private void waitForChange() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for download", e);
+        }
+    }
+
+    private class GrowingFileInputStream extends FilterInputStream {
+        private long position;
+
+        GrowingFileInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitBytesAfter(position);
+            if (available <= position) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, available - position));
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, Math.max(0, awaitBytesAfter(position) - position)));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
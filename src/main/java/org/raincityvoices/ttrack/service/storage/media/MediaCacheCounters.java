@@ -0,0 +1,112 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Counts what the media cache does, for {@link DiskCachingMediaStorage#stats()} and for Micrometer.
+ *
+ * Exports the following metrics:
+ * <ul>
+ *   <li>{@code ttrack.media.cache.lookups}: reads of cached media, tagged with whether the cached copy was
+ *       fresh ({@code hit}), served while it was revalidated ({@code stale}), or had to be checked or
+ *       downloaded first ({@code miss})</li>
+ *   <li>{@code ttrack.media.cache.revalidations}: checks of cached media against remote storage, tagged with
+ *       whether it was {@code not_modified} (the equivalent of a 304), {@code changed} or {@code missing}</li>
+ *   <li>{@code ttrack.media.cache.downloads}: how long downloads of changed media took</li>
+ *   <li>{@code ttrack.media.cache.download.bytes}: the size of the downloaded media</li>
+ *   <li>{@code ttrack.media.cache.evictions}: files evicted to stay within the size budget</li>
+ * </ul>
+ */
+class MediaCacheCounters {
+
+    enum Lookup { HIT, STALE, MISS }
+
+    enum Revalidation { NOT_MODIFIED, CHANGED, MISSING }
+
+    private final Map<Lookup, LongAdder> lookups = new EnumMap<>(Lookup.class);
+    private final Map<Revalidation, LongAdder> revalidations = new EnumMap<>(Revalidation.class);
+    private final LongAdder downloads = new LongAdder();
+    private final LongAdder downloadBytes = new LongAdder();
+    private final LongAdder downloadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    MediaCacheCounters() {
+        for (Lookup lookup : Lookup.values()) {
+            lookups.put(lookup, new LongAdder());
+        }
+        for (Revalidation revalidation : Revalidation.values()) {
+            revalidations.put(revalidation, new LongAdder());
+        }
+    }
+
+    void lookup(Lookup lookup) {
+        lookups.get(lookup).increment();
+    }
+
+    void revalidation(Revalidation revalidation) {
+        revalidations.get(revalidation).increment();
+    }
+
+    void downloaded(long lengthBytes, long elapsedNanos) {
+        downloads.increment();
+        downloadBytes.add(lengthBytes);
+        downloadNanos.add(elapsedNanos);
+    }
+
+    void evicted(int files) {
+        evictions.add(files);
+    }
+
+    long lookups(Lookup lookup) {
+        return lookups.get(lookup).sum();
+    }
+
+    long revalidations(Revalidation revalidation) {
+        return revalidations.get(revalidation).sum();
+    }
+
+    long downloads() {
+        return downloads.sum();
+    }
+
+    long downloadBytes() {
+        return downloadBytes.sum();
+    }
+
+    double downloadSeconds() {
+        return downloadNanos.sum() / 1e9;
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    void bindTo(MeterRegistry registry) {
+        lookups.forEach((lookup, count) -> FunctionCounter.builder("ttrack.media.cache.lookups", count, LongAdder::sum)
+            .description("Reads of cached media")
+            .tag("result", lookup.name().toLowerCase())
+            .register(registry));
+        revalidations.forEach((revalidation, count) -> FunctionCounter.builder("ttrack.media.cache.revalidations", count, LongAdder::sum)
+            .description("Checks of cached media against remote storage")
+            .tag("result", revalidation.name().toLowerCase())
+            .register(registry));
+        FunctionTimer.builder("ttrack.media.cache.downloads", this, MediaCacheCounters::downloads,
+                c -> c.downloadNanos.sum(), TimeUnit.NANOSECONDS)
+            .description("Downloads of changed media into the cache")
+            .register(registry);
+        FunctionCounter.builder("ttrack.media.cache.download.bytes", downloadBytes, LongAdder::sum)
+            .description("Size of the media downloaded into the cache")
+            .baseUnit("bytes")
+            .register(registry);
+        FunctionCounter.builder("ttrack.media.cache.evictions", evictions, LongAdder::sum)
+            .description("Files evicted from the media cache")
+            .register(registry);
+    }
+}
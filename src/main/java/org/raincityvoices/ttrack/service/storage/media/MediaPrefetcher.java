@@ -0,0 +1,152 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fetches the media of songs that users open into local storage in the background, so that it is already
+ * local by the time a user plays a part or creates a mix.
+ *
+ * <p>Prefetching is best-effort and low priority: each location is fetched by at most one worker at a time,
+ * at most {@link Settings#getMaxPending()} locations wait to be fetched, and workers wait while the service
+ * is busy, giving up on a location after {@link Settings#getMaxBusyWait()}. Locations are skipped once the
+ * storage reports that it is full.
+ */
+@Slf4j
+public class MediaPrefetcher {
+
+    private static final int MAX_RECENT_SONGS = 100;
+
+    @Value
+    @Builder
+    public static class Settings {
+        public static final Settings DEFAULT = Settings.builder().build();
+        /** If false, nothing is prefetched. */
+        @Builder.Default
+        boolean enabled = true;
+        /** Maximum number of locations fetched at once. */
+        @Builder.Default
+        int concurrency = 2;
+        /** Maximum number of locations waiting to be fetched; further requests are dropped. */
+        @Builder.Default
+        int maxPending = 100;
+        /** How long songs count as recently opened, for {@link MediaPrefetcher#isRecentlyOpened(String)}. */
+        @Builder.Default
+        Duration recentlyOpened = Duration.ofHours(1);
+        /** How long to wait between checks while the service is busy. */
+        @Builder.Default
+        Duration busyBackoff = Duration.ofSeconds(5);
+        /** How long to wait for the service to stop being busy before giving up on a location. */
+        @Builder.Default
+        Duration maxBusyWait = Duration.ofMinutes(2);
+    }
+
+    private final MediaStorage mediaStorage;
+    private final BooleanSupplier busy;
+    private final Settings settings;
+    private final ExecutorService executor;
+    /** Locations that are waiting to be fetched, or being fetched. */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Cache<String, Instant> recentSongs;
+
+    /**
+     * @param busy returns true while the service is busy, and prefetching should wait.
+     */
+    public MediaPrefetcher(MediaStorage mediaStorage, BooleanSupplier busy, Settings settings) {
+        this.mediaStorage = mediaStorage;
+        this.busy = busy;
+        this.settings = settings;
+        this.executor = Executors.newFixedThreadPool(settings.getConcurrency(), Thread.ofPlatform()
+            .daemon()
+            .priority(Thread.MIN_PRIORITY)
+            .name("media-prefetch-", 0)
+            .factory());
+        this.recentSongs = CacheBuilder.newBuilder()
+            .maximumSize(MAX_RECENT_SONGS)
+            .expireAfterWrite(settings.getRecentlyOpened())
+            .build();
+    }
+
+    /**
+     * Record that a user opened the song.
+     */
+    public void songOpened(String songId) {
+        recentSongs.put(songId, Instant.now());
+    }
+
+    public boolean isRecentlyOpened(String songId) {
+        return recentSongs.getIfPresent(songId) != null;
+    }
+
+    /**
+     * Queue the media at the given locations to be fetched, skipping locations that are already queued.
+     */
+    public void prefetch(Collection<String> mediaLocations) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        for (String location : mediaLocations) {
+            if (pending.size() >= settings.getMaxPending()) {
+                log.debug("Too many media locations waiting to be prefetched; dropping the rest.");
+                return;
+            }
+            if (pending.add(location)) {
+                executor.execute(() -> fetch(location));
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void fetch(String location) {
+        try {
+            if (!awaitNotBusy()) {
+                log.debug("Service stayed busy; not prefetching {}", location);
+                return;
+            }
+            log.debug("Prefetching media at {}", location);
+            if (!mediaStorage.prefetch(location)) {
+                log.debug("Media at {} was not prefetched", location);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to prefetch media at {}", location, e);
+        } finally {
+            pending.remove(location);
+        }
+    }
+
+    /**
+     * @return false if the service was still busy after the maximum wait.
+     */
+    private boolean awaitNotBusy() {
+        long deadline = System.nanoTime() + settings.getMaxBusyWait().toNanos();
+        while (busy.getAsBoolean()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(settings.getBusyBackoff().toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,7 @@
 package org.raincityvoices.ttrack.service.storage.media;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 import org.raincityvoices.ttrack.service.api.SongId;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
@@ -14,13 +15,47 @@ public interface MediaStorage {
     boolean exists(String mediaLocation);
     MediaContent getMedia(String mediaLocation);
     void putMedia(String mediaLocation, MediaContent content);
+    /**
+     * Store media, returning as soon as it can be read back from this storage, which may be before it is
+     * durable. By default, this is the same as {@link #putMedia(String, MediaContent)}.
+     * @return a future that completes with the stored media's metadata, including its ETag, once it is durable.
+     */
+    default CompletableFuture<FileMetadata> putMediaAsync(String mediaLocation, MediaContent content) {
+        putMedia(mediaLocation, content);
+        return CompletableFuture.completedFuture(getMediaMetadata(mediaLocation));
+    }
+    /**
+     * Store media like {@link #putMediaAsync(String, MediaContent)}, unless the location already holds identical
+     * content, in which case nothing is stored. By default, the media is always stored.
+     * @return a future like that of {@link #putMediaAsync(String, MediaContent)}, or null if nothing was stored.
+     */
+    default CompletableFuture<FileMetadata> putMediaIfChanged(String mediaLocation, MediaContent content) {
+        return putMediaAsync(mediaLocation, content);
+    }
     FileMetadata getMediaMetadata(String mediaLocation);
+    /**
+     * Wait until the media at the given location is durable, e.g. because it was stored with
+     * {@link #putMediaAsync(String, MediaContent)} and is still being uploaded. Its ETag is only known once it is.
+     * By default, media is durable as soon as it is stored.
+     * @return the metadata of the durable media, including its ETag.
+     */
+    default FileMetadata awaitDurable(String mediaLocation) {
+        return getMediaMetadata(mediaLocation);
+    }
     /** 
      * Delete the media at the given location, if it exists. 
      * @return true if the media existed and was deleted, false if it didn't exist.
      */
     boolean deleteMedia(String mediaLocation);
     String getDownloadUrl(String mediaLocation, Duration timeout);
+    /**
+     * Bring the media at the given location into local storage, if this storage has any, in anticipation of
+     * it being read soon. Waits until the media is local. By default, does nothing.
+     * @return false if the media was not fetched, e.g. because the local storage is full.
+     */
+    default boolean prefetch(String mediaLocation) {
+        return false;
+    }
     default String locationFor(AudioTrackDTO trackDto) {
         return locationFor(trackDto.getSongId(), trackDto.getId());
     }
@@ -0,0 +1,69 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads and writes the metadata of a cached media file as a small JSON file next to it, so that it doesn't
+ * need to be inferred again from the file's audio header, or fetched from remote storage, after the
+ * in-memory state for the file is lost (e.g. on restart).
+ *
+ * Failures are logged and otherwise ignored: the sidecar is only an optimization.
+ */
+@Slf4j
+final class MetadataSidecar {
+
+    static final String SUFFIX = ".meta";
+
+    private MetadataSidecar() {}
+
+    static boolean isSidecar(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * @return the media file that the given sidecar describes.
+     */
+    static File mediaFileOf(File sidecar) {
+        String path = sidecar.getPath();
+        return new File(path.substring(0, path.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return the stored metadata for the media file, or null if there is none.
+     */
+    static FileMetadata read(File mediaFile) {
+        File sidecar = sidecarOf(mediaFile);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            return JsonUtils.MAPPER.readValue(sidecar, FileMetadata.class);
+        } catch (IOException e) {
+            log.warn("Unable to read metadata from {}", sidecar, e);
+            return null;
+        }
+    }
+
+    static void write(File mediaFile, FileMetadata metadata) {
+        File sidecar = sidecarOf(mediaFile);
+        try {
+            JsonUtils.MAPPER.writeValue(sidecar, metadata);
+        } catch (IOException e) {
+            log.warn("Unable to write metadata to {}", sidecar, e);
+        }
+    }
+
+    static void delete(File mediaFile) {
+        sidecarOf(mediaFile).delete();
+    }
+
+    private static File sidecarOf(File mediaFile) {
+        return new File(mediaFile.getPath() + SUFFIX);
+    }
+}
@@ -0,0 +1,73 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A persistent record of the uploads that have been accepted into the media cache but not yet written to
+ * remote storage, so that they can be resumed after a restart.
+ *
+ * Each pending upload is recorded in its own small JSON file in the journal directory, named after the
+ * local file that holds the media to upload. Entries are written before the upload is queued, and removed
+ * once it has completed.
+ */
+@Slf4j
+class UploadJournal {
+
+    private static final String ENTRY_SUFFIX = ".json";
+
+    record Entry(String mediaLocation, FileMetadata metadata) {}
+
+    private final File journalDir;
+
+    UploadJournal(File journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    void record(File uploadFile, Entry entry) throws IOException {
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            throw new IOException("Failed to create upload journal directory " + journalDir);
+        }
+        JsonUtils.MAPPER.writeValue(entryFile(uploadFile), entry);
+    }
+
+    void remove(File uploadFile) {
+        entryFile(uploadFile).delete();
+    }
+
+    boolean contains(File uploadFile) {
+        return entryFile(uploadFile).exists();
+    }
+
+    /**
+     * @return the pending uploads, by the local file that holds the media, for files in the given directory.
+     */
+    Map<File, Entry> pending(File cacheDir) {
+        Map<File, Entry> pending = new HashMap<>();
+        File[] entryFiles = journalDir.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entryFiles == null) {
+            return pending;
+        }
+        for (File entryFile : entryFiles) {
+            String name = entryFile.getName();
+            File uploadFile = new File(cacheDir, name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+            try {
+                pending.put(uploadFile, JsonUtils.MAPPER.readValue(entryFile, Entry.class));
+            } catch (IOException e) {
+                log.error("Unable to read upload journal entry {}; skipping it.", entryFile, e);
+            }
+        }
+        return pending;
+    }
+
+    private File entryFile(File uploadFile) {
+        return new File(journalDir, uploadFile.getName() + ENTRY_SUFFIX);
+    }
+}
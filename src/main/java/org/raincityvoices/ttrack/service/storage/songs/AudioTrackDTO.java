@@ -8,6 +8,9 @@ import org.raincityvoices.ttrack.service.api.AudioTrack;
 import org.raincityvoices.ttrack.service.api.MixInfo;
 import org.raincityvoices.ttrack.service.api.MixTrack;
 import org.raincityvoices.ttrack.service.api.PartTrack;
+import org.raincityvoices.ttrack.service.audio.SeekIndex;
+import org.raincityvoices.ttrack.service.audio.SilenceMap;
+import org.raincityvoices.ttrack.service.audio.WorkingCopy;
 import org.raincityvoices.ttrack.service.audio.model.AudioMix;
 import org.raincityvoices.ttrack.service.storage.BaseDTO;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
@@ -65,8 +68,33 @@ public class AudioTrackDTO extends BaseDTO {
     Instant updated;
     /** The location of the media (used by MediaStorage). */
     String mediaLocation;
+    /**
+     * For part tracks, byte offsets into the media for reading a time range of it (see SeekIndex), or null if
+     * the media hasn't been indexed. Only valid while the media's ETag matches the index's.
+     */
+    @Getter(onMethod = @__(@Property(type="json")))
+    SeekIndex seekIndex;
+    /**
+     * For part tracks, the silent stretches of the media (see SilenceMap), or null if not computed. Only valid
+     * while the media's ETag matches the map's.
+     */
+    @Getter(onMethod = @__(@Property(type="json")))
+    SilenceMap silenceMap;
+    /**
+     * For part tracks, a copy of the media in the format that the mixer works in (see WorkingCopy), or null if
+     * none has been made. Only valid while the media's ETag matches the copy's source ETag.
+     */
+    @Getter(onMethod = @__(@Property(type="json")))
+    WorkingCopy workingCopy;
+    /**
+     * For mix tracks, a hash of everything that went into the current media (see RenderFingerprint),
+     * used to skip re-rendering a mix that hasn't changed. Null if unknown.
+     */
+    String renderFingerprint;
     /** The ID of the current task writing to the track, if any. */
     String currentTaskId;
+    /** When the lock held by currentTaskId expires, unless renewed. Null for locks written by older versions. */
+    Instant lockExpiry;
 
     @Transient
     public String getFqId() { return fqId(songId, id); }
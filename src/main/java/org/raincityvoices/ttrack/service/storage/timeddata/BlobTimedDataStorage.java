@@ -1,118 +1,237 @@
 package org.raincityvoices.ttrack.service.storage.timeddata;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
+import org.raincityvoices.ttrack.service.storage.MemoryTierCache;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataManifest.Item;
 import org.raincityvoices.ttrack.service.util.JsonUtils;
 import org.springframework.stereotype.Component;
 
 import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.http.rest.Response;
 import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobDownloadContentResponse;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobRequestConditions;
 import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.BlockBlobItem;
 import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.annotations.VisibleForTesting;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Stores all the timed data for a song in a single manifest blob, {@code <songId>/manifest.json}.
+ *
+ * Reading any of a song's data is one conditional download of the manifest: the parsed manifest is kept in a
+ * {@link MemoryTierCache}, and only downloaded and parsed again when its ETag has changed. Writes replace the
+ * whole manifest, conditional on the ETag it was read with, and are retried if another writer got there first,
+ * so concurrent updates to different parts or types are not lost.
+ *
+ * Songs whose data was stored before manifests, as one JSON blob per part and type, are migrated to a manifest
+ * the first time they are read.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class BlobTimedDataStorage implements TimedDataStorage {
 
+    private static final String MANIFEST_NAME = "manifest.json";
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+
     private final BlobContainerClient dataContainerClient;
+    private final MemoryTierCache<TimedDataManifest> memoryCache;
+
+    @VisibleForTesting Clock clock = Clock.systemUTC();
+
+    /** A manifest, and the ETag of the blob it was read from, or null if there is no manifest blob. */
+    private record VersionedManifest(String etag, TimedDataManifest manifest) {}
 
     @Override
     public List<TimedDataMetadata> listDataForSong(String songId) {
         log.info("Listing all timed data for song {}", songId);
-        PagedIterable<BlobItem> items = dataContainerClient.listBlobs(new ListBlobsOptions().setPrefix(songId), null);
-        return items.stream()
-            .peek(item -> log.info("Item: '{}' ({})", item.getName(), item.isPrefix()))
-            .filter(item -> !item.isPrefix())
-            .map(this::fromBlobItem)
+        return readManifest(songId).manifest().items().stream()
+            .map(item -> TimedDataMetadata.builder()
+                .part(item.part())
+                .type(item.type())
+                .created(item.created())
+                .updated(item.updated())
+                .etag(item.etag())
+                .build())
             .toList();
     }
 
-    private TimedDataMetadata fromBlobItem(BlobItem item) {
-        String[] elements = item.getName().split("/");
-        if (elements.length != 3) {
-            log.error("Invalid item name: '{}'", item.getName());
-            return null;
-        }
-        TimedDataMetadata md = TimedDataMetadata.builder()
-            .part(elements[1])
-            .type(elements[2].replace(".json", ""))
-            .created(item.getProperties().getCreationTime().toInstant())
-            .updated(item.getProperties().getLastModified().toInstant())
-            .build();
-        log.info("Returning timed data metadata: {}", md);
-        return md;
-    }
-
     @Override
     public List<TimedTextDTO> getAllDataForSong(String songId) {
         log.info("Getting all timed data for song {}", songId);
-        PagedIterable<BlobItem> items = dataContainerClient.listBlobs(new ListBlobsOptions().setPrefix(songId), null);
-        return items.stream()
-            .peek(item -> log.debug("Item: '{}' ({})", item.getName(), item.isPrefix()))
-            .filter(item -> !item.isPrefix())
-            .map(item -> readOneBlob(songId, item.getName()))
+        return readManifest(songId).manifest().items().stream()
+            .map(item -> item.text().toDTO())
             .toList();
     }
 
     @Override
     public List<TimedTextDTO> getAllDataForPart(String songId, String part) {
         log.info("Getting all timed data for part {}/{}", songId, part);
-        PagedIterable<BlobItem> items = dataContainerClient.listBlobs(new ListBlobsOptions().setPrefix(songId + "/" + part), null);
-        return items.stream()
-            .peek(item -> log.debug("Item: '{}' ({})", item.getName(), item.isPrefix()))
-            .filter(item -> !item.isPrefix())
-            .map(item -> readOneBlob(songId, item.getName()))
+        return readManifest(songId).manifest().items().stream()
+            .filter(item -> item.part().equals(part))
+            .map(item -> item.text().toDTO())
             .toList();
     }
 
     @Override
     public TimedTextDTO getDataForPart(String songId, String part, String type) {
-        try {
-            return readOneBlob(songId, blobName(songId, part, type));
-        } catch(BlobStorageException e) {
-            if (e.getStatusCode() == 404) {
-                return null;
-            }
-            throw e;
-        }
+        Item item = readManifest(songId).manifest().find(part, type);
+        return item != null ? item.text().toDTO() : null;
+    }
+
+    @Override
+    public List<TimedTextDTO> getDataInWindow(String songId, Collection<String> parts, long fromMs, long toMs) {
+        log.info("Getting timed data for song {}, parts {}, from {} to {} ms", songId, parts, fromMs, toMs);
+        return readManifest(songId).manifest().items().stream()
+            .filter(item -> parts.isEmpty() || parts.contains(item.part()))
+            .map(item -> item.text().window(fromMs, toMs))
+            .toList();
     }
 
     @Override
     public void putDataForSong(String songId, TimedTextDTO data) {
         log.info("Storing timed data for song {}, part {}, and type {} ({} entries)", songId, data.part(), data.type(), data.entries().size());
-        String content = JsonUtils.toJson(data);
-        dataContainerClient.getBlobClient(blobName(songId, data.part(), data.type())).upload(BinaryData.fromString(content), true);
+        updateManifest(songId, manifest -> manifest.with(data, clock.instant()));
     }
 
     public void deleteData(String songId, String part, String type) {
         log.info("Deleting data for song {}, part {}, and type {}", songId, part, type);
-        dataContainerClient.getBlobClient(blobName(songId, part, type)).deleteIfExists();
+        updateManifest(songId, manifest -> manifest.without(part, type));
+        dataContainerClient.getBlobClient(legacyBlobName(songId, part, type)).deleteIfExists();
     }
 
-    private String blobName(String songId, String part, String type) {
+    private String manifestBlobName(String songId) {
+        return songId + "/" + MANIFEST_NAME;
+    }
+
+    private String legacyBlobName(String songId, String part, String type) {
         return songId + "/" + part + "/" + type + ".json";
     }
 
-    private TimedTextDTO readOneBlob(String songId, String itemName) {
-        log.info("Reading timed data from blob {}", itemName);
-        String content = dataContainerClient.getBlobClient(itemName).downloadContent().toString();
+    /**
+     * Read the song's manifest, from the memory cache if the blob has not changed since it was cached.
+     */
+    private VersionedManifest readManifest(String songId) {
+        String blobName = manifestBlobName(songId);
+        MemoryTierCache.Entry<TimedDataManifest> cached = memoryCache.getIfPresent(blobName);
+        BlobRequestConditions conditions = new BlobRequestConditions();
+        if (cached != null) {
+            conditions.setIfNoneMatch(cached.etag());
+        }
+        BlobDownloadContentResponse response;
         try {
-            TimedTextDTO dto = JsonUtils.fromJson(content, TimedTextDTO.class);
-            log.info("Read {} entries of type {}", dto.entries().size(), dto.type());
-            if (!itemName.equals(blobName(songId, dto.part(), dto.type()))) {
-                log.warn("Data blob has unexpected name: type={}, name={}", dto.type(), itemName);
+            response = dataContainerClient.getBlobClient(blobName).downloadContentWithResponse(null, conditions, null, Context.NONE);
+        } catch (BlobStorageException e) {
+            if (cached != null && e.getStatusCode() == 304) {
+                log.debug("Timed data manifest for song {} has not changed", songId);
+                return new VersionedManifest(cached.etag(), cached.value());
             }
-            return dto;
+            if (e.getStatusCode() == 404) {
+                memoryCache.invalidate(blobName);
+                return migrateLegacyData(songId);
+            }
+            throw e;
+        }
+        byte[] content = response.getValue().toBytes();
+        try {
+            TimedDataManifest manifest = JsonUtils.fromJson(new String(content, StandardCharsets.UTF_8), TimedDataManifest.class);
+            String etag = response.getDeserializedHeaders().getETag();
+            log.info("Read timed data manifest for song {}: {} items", songId, manifest.items().size());
+            memoryCache.put(blobName, etag, manifest, content.length);
+            return new VersionedManifest(etag, manifest);
         } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to parse contents of blob " + itemName, e);
+            throw new RuntimeException("Failed to parse contents of blob " + blobName, e);
+        }
+    }
+
+    /**
+     * Apply an update to the song's manifest, and write it back if nobody else has written it since it was read.
+     */
+    private void updateManifest(String songId, UnaryOperator<TimedDataManifest> update) {
+        String blobName = manifestBlobName(songId);
+        for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; ++attempt) {
+            VersionedManifest current = readManifest(songId);
+            TimedDataManifest updated = update.apply(current.manifest());
+            if (writeManifest(songId, current.etag(), updated) != null) {
+                return;
+            }
+            log.info("Timed data manifest for song {} was updated concurrently; retrying (attempt {})", songId, attempt);
+            memoryCache.invalidate(blobName);
         }
+        throw new IllegalStateException("Failed to update timed data for song " + songId + " after "
+            + MAX_UPDATE_ATTEMPTS + " attempts, due to concurrent updates");
     }
 
+    /**
+     * Write the manifest, if the blob still has the given ETag, or does not exist if the ETag is null.
+     * @return the ETag of the written blob, or null if the condition was not met, and nothing was written.
+     */
+    private String writeManifest(String songId, String expectedETag, TimedDataManifest manifest) {
+        String blobName = manifestBlobName(songId);
+        byte[] content = JsonUtils.toJson(manifest).getBytes(StandardCharsets.UTF_8);
+        BlobRequestConditions conditions = expectedETag != null
+            ? new BlobRequestConditions().setIfMatch(expectedETag)
+            : new BlobRequestConditions().setIfNoneMatch("*");
+        try {
+            Response<BlockBlobItem> response = dataContainerClient.getBlobClient(blobName).uploadWithResponse(
+                new BlobParallelUploadOptions(BinaryData.fromBytes(content)).setRequestConditions(conditions), null, Context.NONE);
+            String etag = response.getValue().getETag();
+            memoryCache.put(blobName, etag, manifest, content.length);
+            return etag;
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 412 || e.getStatusCode() == 409) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Build a manifest from a song's per-part-and-type data blobs, and store it if no manifest has been stored
+     * in the meantime. The manifest is stored even if the song has no data, so that later reads find it (and
+     * usually its cached copy) rather than listing the song's blobs again.
+     */
+    private VersionedManifest migrateLegacyData(String songId) {
+        PagedIterable<BlobItem> items = dataContainerClient.listBlobs(new ListBlobsOptions().setPrefix(songId + "/"), null);
+        List<Item> legacyItems = items.stream()
+            .filter(item -> !item.isPrefix() && item.getName().split("/").length == 3)
+            .map(this::readLegacyBlob)
+            .toList();
+        TimedDataManifest manifest = new TimedDataManifest(legacyItems);
+        log.info("Migrating {} timed data blobs for song {} to a manifest", legacyItems.size(), songId);
+        String etag = writeManifest(songId, null, manifest);
+        if (etag == null) {
+            // Another instance migrated it first.
+            return readManifest(songId);
+        }
+        return new VersionedManifest(etag, manifest);
+    }
+
+    private Item readLegacyBlob(BlobItem item) {
+        log.info("Reading legacy timed data from blob {}", item.getName());
+        String content = dataContainerClient.getBlobClient(item.getName()).downloadContent().toString();
+        try {
+            ColumnarTimedText text = ColumnarTimedText.fromDTO(JsonUtils.fromJson(content, TimedTextDTO.class));
+            return new Item(text.part(), text.type(),
+                item.getProperties().getCreationTime().toInstant(),
+                item.getProperties().getLastModified().toInstant(),
+                TimedDataManifest.etagOf(text), text);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to parse contents of blob " + item.getName(), e);
+        }
+    }
 }
@@ -0,0 +1,156 @@
+package org.raincityvoices.ttrack.service.storage.timeddata;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.google.common.base.Preconditions;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * The timed data for one part and type, sorted by time and stored in columns, so that the entries in a time
+ * window can be found with a binary search.
+ *
+ * In JSON, times are delta-encoded ({@code dt}: each time minus the one before it), and each value is an
+ * index ({@code v}) into a table of the distinct values ({@code strings}), which keeps repeated values such
+ * as measure numbers and short words small.
+ */
+@Accessors(fluent = true)
+@JsonPropertyOrder({"type", "part", "dt", "v", "strings"})
+@EqualsAndHashCode
+@ToString
+public final class ColumnarTimedText {
+
+    @Getter(onMethod = @__(@JsonProperty()))
+    private final String type;
+    @Getter(onMethod = @__(@JsonProperty()))
+    private final String part;
+    /** Times of the entries, in ascending order. */
+    private final long[] times;
+    /** Index into {@link #strings} of each entry's value. */
+    private final int[] values;
+    private final String[] strings;
+
+    private ColumnarTimedText(String type, String part, long[] times, int[] values, String[] strings) {
+        this.type = type;
+        this.part = part;
+        this.times = times;
+        this.values = values;
+        this.strings = strings;
+    }
+
+    @JsonCreator
+    static ColumnarTimedText fromJson(@JsonProperty("type") String type,
+                                      @JsonProperty("part") String part,
+                                      @JsonProperty("dt") long[] deltas,
+                                      @JsonProperty("v") int[] values,
+                                      @JsonProperty("strings") String[] strings) {
+        Preconditions.checkArgument(deltas.length == values.length,
+            "Timed data for %s/%s has %s times but %s values", part, type, deltas.length, values.length);
+        long[] times = new long[deltas.length];
+        long t = 0;
+        for (int i = 0; i < deltas.length; ++i) {
+            t += deltas[i];
+            times[i] = t;
+        }
+        return new ColumnarTimedText(type, part, times, values, strings);
+    }
+
+    public static ColumnarTimedText fromDTO(TimedTextDTO dto) {
+        List<TimedTextDTO.Entry> sorted = new ArrayList<>(dto.entries());
+        sorted.sort(Comparator.comparingLong(TimedTextDTO.Entry::t));
+        long[] times = new long[sorted.size()];
+        int[] values = new int[sorted.size()];
+        Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < times.length; ++i) {
+            TimedTextDTO.Entry entry = sorted.get(i);
+            times[i] = entry.t();
+            values[i] = stringIndexes.computeIfAbsent(entry.v(), v -> stringIndexes.size());
+        }
+        return new ColumnarTimedText(dto.type(), dto.part(), times, values, stringIndexes.keySet().toArray(new String[0]));
+    }
+
+    @JsonProperty("dt")
+    long[] deltas() {
+        long[] deltas = new long[times.length];
+        long previous = 0;
+        for (int i = 0; i < times.length; ++i) {
+            deltas[i] = times[i] - previous;
+            previous = times[i];
+        }
+        return deltas;
+    }
+
+    @JsonProperty("v")
+    int[] values() {
+        return values;
+    }
+
+    @JsonProperty("strings")
+    String[] strings() {
+        return strings;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public TimedTextDTO toDTO() {
+        return toDTO(0, times.length);
+    }
+
+    /**
+     * @return the entries from {@code fromMs} (inclusive) to {@code toMs} (exclusive), preceded by the last entry
+     * before {@code fromMs} if there is none exactly at {@code fromMs}, since that is the one in effect there.
+     */
+    public TimedTextDTO window(long fromMs, long toMs) {
+        int start = firstIndexAtOrAfter(fromMs);
+        if (start > 0 && (start == times.length || times[start] > fromMs)) {
+            --start;
+        }
+        if (start < times.length && times[start] >= toMs) {
+            // Nothing in the window, and nothing in effect at its start.
+            return toDTO(0, 0);
+        }
+        int end = Math.max(firstIndexAtOrAfter(toMs), start);
+        return toDTO(start, end);
+    }
+
+    private TimedTextDTO toDTO(int start, int end) {
+        List<TimedTextDTO.Entry> entries = new ArrayList<>(end - start);
+        for (int i = start; i < end; ++i) {
+            entries.add(new TimedTextDTO.Entry(times[i], strings[values[i]]));
+        }
+        return TimedTextDTO.builder()
+            .type(type)
+            .part(part)
+            .entries(entries)
+            .build();
+    }
+
+    /**
+     * @return the index of the first entry whose time is at least {@code t}, or the number of entries if none is.
+     */
+    private int firstIndexAtOrAfter(long t) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,69 @@
+package org.raincityvoices.ttrack.service.storage.timeddata;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * All the timed data for a song, stored as a single document, so that it can be read, cached and updated
+ * as a whole. Each part and type's data is stored in {@link ColumnarTimedText} form.
+ */
+public record TimedDataManifest(List<Item> items) {
+
+    public static final TimedDataManifest EMPTY = new TimedDataManifest(List.of());
+
+    /**
+     * The data for one part and type.
+     * @param etag a digest of the data, which changes whenever the data does.
+     */
+    public record Item(String part, String type, Instant created, Instant updated, String etag, ColumnarTimedText text) {
+
+        boolean matches(String part, String type) {
+            return this.part.equals(part) && this.type.equals(type);
+        }
+    }
+
+    public Item find(String part, String type) {
+        return items.stream().filter(item -> item.matches(part, type)).findFirst().orElse(null);
+    }
+
+    /**
+     * @return a manifest with the given data added, or replacing the existing data for the same part and type.
+     */
+    public TimedDataManifest with(TimedTextDTO data, Instant now) {
+        Item existing = find(data.part(), data.type());
+        Instant created = existing != null ? existing.created() : now;
+        ColumnarTimedText text = ColumnarTimedText.fromDTO(data);
+        Item item = new Item(data.part(), data.type(), created, now, etagOf(text), text);
+        List<Item> updated = new ArrayList<>(items.size() + 1);
+        boolean replaced = false;
+        for (Item current : items) {
+            if (current.matches(data.part(), data.type())) {
+                updated.add(item);
+                replaced = true;
+            } else {
+                updated.add(current);
+            }
+        }
+        if (!replaced) {
+            updated.add(item);
+        }
+        return new TimedDataManifest(List.copyOf(updated));
+    }
+
+    /**
+     * @return a manifest without the data for the given part and type.
+     */
+    public TimedDataManifest without(String part, String type) {
+        return new TimedDataManifest(items.stream().filter(item -> !item.matches(part, type)).toList());
+    }
+
+    static String etagOf(ColumnarTimedText text) {
+        return Hashing.murmur3_128().hashString(JsonUtils.toJson(text), StandardCharsets.UTF_8).toString();
+    }
+}
@@ -1,6 +1,7 @@
 package org.raincityvoices.ttrack.service.storage.timeddata;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
 import lombok.Builder;
@@ -15,6 +16,8 @@ public interface TimedDataStorage {
         String part;
         Instant created;
         Instant updated;
+        /** Changes whenever the data does. */
+        String etag;
     }
 
     List<TimedDataMetadata> listDataForSong(String songId);
@@ -22,4 +25,10 @@ public interface TimedDataStorage {
     void putDataForSong(String songId, TimedTextDTO data);
     List<TimedTextDTO> getAllDataForPart(String songId, String part);
     TimedTextDTO getDataForPart(String songId, String part, String type);
+    /**
+     * @param parts the parts to return data for; all parts if empty.
+     * @return each part and type's entries from {@code fromMs} (inclusive) to {@code toMs} (exclusive), preceded by
+     * the entry in effect at {@code fromMs}, if any.
+     */
+    List<TimedTextDTO> getDataInWindow(String songId, Collection<String> parts, long fromMs, long toMs);
 }
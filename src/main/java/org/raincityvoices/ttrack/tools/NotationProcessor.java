@@ -1,22 +1,13 @@
 package org.raincityvoices.ttrack.tools;
 
-import static java.util.stream.Collectors.toMap;
-
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.io.InputStream;
 import java.util.concurrent.Callable;
 
-import org.audiveris.proxymusic.Lyric;
-import org.audiveris.proxymusic.Note;
-import org.audiveris.proxymusic.ScorePartwise;
-import org.audiveris.proxymusic.ScorePartwise.Part;
-import org.audiveris.proxymusic.ScorePartwise.Part.Measure;
-import org.audiveris.proxymusic.TextElementData;
-import org.audiveris.proxymusic.util.Marshalling;
+import org.raincityvoices.ttrack.service.notation.MusicXmlTimingReader;
+import org.raincityvoices.ttrack.service.notation.MusicXmlTimingReader.NotationTiming;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -26,58 +17,25 @@ public class NotationProcessor {
 
     @Command(name = "lyrics", aliases = {"lyr"})
     public static class ExtractLyrics implements Callable<Integer> {
-        @Option(names = { "-i", "input"}, description = "The MusicXML file to analyze")
+        @Option(names = { "-i", "input"}, description = "The MusicXML (.musicxml, .xml or .mxl) file to analyze")
         private File inFile;
 
         @Override
         public Integer call() throws Exception {
-            Marshalling.getContext(ScorePartwise.class);
-            ScorePartwise score = (ScorePartwise) Marshalling.unmarshal(new FileInputStream(inFile));
-            score.getPart().forEach(part -> {
-                System.out.printf("Part %s:\n", part.getId());
-                Map<String, List<Lyric>> lyricsByVoice = getLyrics(part);
-            });
+            long start = System.nanoTime();
+            NotationTiming timing;
+            try (InputStream in = new FileInputStream(inFile)) {
+                timing = new MusicXmlTimingReader().read(in);
+            }
+            System.out.printf("Read %s in %d ms\n", inFile, (System.nanoTime() - start) / 1_000_000);
+            System.out.printf("%d measures, ending at %d ms\n", timing.measures().entries().size(),
+                timing.measures().entries().isEmpty() ? 0 : timing.measures().entries().getLast().t());
+            for (TimedTextDTO lyrics : timing.lyrics()) {
+                System.out.printf("Part %s:\n", lyrics.part());
+                lyrics.entries().forEach(e -> System.out.printf("  %8d  %s\n", e.t(), e.v()));
+            }
             return 0;
         }
-
-        private Map<String, List<Lyric>> getLyrics(Part part) {
-            return part.getMeasure().stream()
-                .map(this::getLyrics)
-                .flatMap(m -> m.entrySet().stream())
-                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue,
-                    (oldList, newList) -> { oldList.addAll(newList); return oldList; }
-                ));
-        }
-
-        private Map<String, String> getLyricsText(Measure measure) {
-            return measure.getNoteOrBackupOrForward().stream()
-                .filter(i -> i instanceof Note)
-                .map(i -> getLyrics((Note)i))
-                .reduce(new HashMap<String, String>(), this::accumlateLyricsByVoice);
-        }
-
-        private Map<String, List<Lyric>> getLyrics(Measure measure) {
-            return measure.getNoteOrBackupOrForward().stream()
-                .filter(i -> i instanceof Note)
-                .map(i -> (Note) i)
-                .collect(toMap(n -> n.getVoice(), n -> n.getLyric()));
-        }
-
-        private Map<String, String> getLyrics(Note note) {
-            String voice = Objects.toString(note.getVoice(), "D");
-            return note.getLyric().stream()
-                .flatMap(i -> i.getElisionAndSyllabicAndText().stream())
-                .filter(i -> i instanceof TextElementData)
-                .map(i -> Map.of(voice, ((TextElementData)i).getValue()))
-                .reduce(new HashMap<String, String>(), this::accumlateLyricsByVoice);
-        }
-
-        private Map<String, String> accumlateLyricsByVoice(Map<String, String> acc, Map<String, String> add) {
-            add.forEach((voice, text) -> {
-                acc.compute(voice, (v, accText) -> accText == null ? text : accText + " | " + text);
-            });
-            return acc;
-        }
     }
 
     @Command(subcommands = {
@@ -0,0 +1,107 @@
+package org.raincityvoices.ttrack.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.raincityvoices.ttrack.service.MediaCacheEndpoint.Report;
+import org.raincityvoices.ttrack.service.storage.files.LocalFileStorage;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage.LocationStats;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage.Stats;
+import org.raincityvoices.ttrack.service.storage.media.MediaPrefetcher;
+import org.raincityvoices.ttrack.service.storage.songs.InMemorySongStorage;
+import org.raincityvoices.ttrack.service.util.DefaultFileManager;
+
+public class MediaCacheEndpointTest {
+
+    private static final String LEAD = "song1/Lead";
+    private static final String BASS = "song1/Bass";
+
+    private LocalFileStorage remote;
+    private DiskCachingMediaStorage cache;
+    private MediaCacheEndpoint endpoint;
+
+    @BeforeEach
+    public void setup(@TempDir File tempDir) throws IOException {
+        File remoteDir = new File(tempDir, "remote");
+        File cacheDir = new File(tempDir, "cache");
+        remoteDir.mkdirs();
+        cacheDir.mkdirs();
+        remote = new LocalFileStorage(remoteDir,
+            new ParallelRangeDownloader(ParallelRangeDownloader.Settings.DEFAULT, Executors.newCachedThreadPool()));
+        storeRemotely(tempDir, LEAD, 100);
+        storeRemotely(tempDir, BASS, 200);
+        cache = new DiskCachingMediaStorage(remote, cacheDir, new DefaultFileManager());
+        endpoint = new MediaCacheEndpoint(cache, new InMemorySongStorage(), Mockito.mock(MediaPrefetcher.class));
+    }
+
+    @Test
+    void GIVEN_media_read_WHEN_report_THEN_counters_and_hottest_locations() throws IOException {
+        read(LEAD);
+        read(LEAD);
+        read(BASS);
+
+        Report report = endpoint.report(1);
+
+        Stats stats = report.stats();
+        // With no TTL, every read revalidates; only the first read of each location downloads.
+        assertEquals(0, stats.hits());
+        assertEquals(3, stats.misses());
+        assertEquals(2, stats.downloads());
+        assertEquals(300, stats.downloadBytes());
+        assertEquals(1, stats.notModified());
+        assertEquals(2, stats.files());
+        assertEquals(300, stats.sizeBytes());
+        assertEquals(2, stats.locations());
+        assertEquals(0, stats.pendingUploads());
+        assertEquals(1, report.hottest().size());
+        LocationStats lead = report.hottest().get(0);
+        assertEquals(LEAD, lead.location());
+        assertEquals(2, lead.reads());
+        assertEquals(remote.fetchMetadata(LEAD).etag(), lead.etag());
+        assertEquals(100, lead.lengthBytes());
+        assertTrue(lead.cached());
+        assertFalse(lead.uploadPending());
+        assertNotNull(lead.validatedAt());
+
+        List<LocationStats> all = endpoint.report(null).hottest();
+        assertEquals(List.of(LEAD, BASS), all.stream().map(LocationStats::location).toList());
+    }
+
+    @Test
+    void GIVEN_song_cached_WHEN_purge_THEN_files_deleted() throws IOException {
+        read(LEAD);
+        read(BASS);
+
+        assertEquals(2, endpoint.purge("song1"));
+
+        Stats stats = endpoint.report(null).stats();
+        assertEquals(0, stats.files());
+        assertEquals(0, stats.sizeBytes());
+    }
+
+    private void storeRemotely(File tempDir, String location, int lengthBytes) throws IOException {
+        File source = new File(tempDir, "source");
+        byte[] content = new byte[lengthBytes];
+        content[0] = (byte) lengthBytes;
+        Files.write(source.toPath(), content);
+        remote.upload(source, location);
+    }
+
+    private void read(String location) throws IOException {
+        cache.getMedia(location).stream().close();
+    }
+}
@@ -0,0 +1,182 @@
+package org.raincityvoices.ttrack.service;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.api.CreateMixTrackRequest;
+import org.raincityvoices.ttrack.service.api.SongId;
+import org.raincityvoices.ttrack.service.api.TimedTextData;
+import org.raincityvoices.ttrack.service.async.AsyncTaskManager;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+import org.raincityvoices.ttrack.service.audio.model.AudioPart;
+import org.raincityvoices.ttrack.service.audio.model.MatrixMix;
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.exceptions.BadRequestException;
+import org.raincityvoices.ttrack.service.storage.async.InMemoryAsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.storage.media.MediaContent;
+import org.raincityvoices.ttrack.service.storage.media.MediaPrefetcher;
+import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.storage.songs.InMemorySongStorage;
+import org.raincityvoices.ttrack.service.storage.songs.SongDTO;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataStorage;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO.Entry;
+import org.raincityvoices.ttrack.service.util.DefaultFileManager;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SongControllerTest {
+
+    private static final String SONG_ID = "song1";
+    private static final int SAMPLE_RATE = 1000;
+    private static final int NUM_SAMPLES = 2000;
+
+    private InMemorySongStorage songStorage;
+    private TimedDataStorage dataStorage;
+    private MediaStorage mediaStorage;
+    private AsyncTaskManager taskManager;
+    private SongController controller;
+    /** The threads that read part media. */
+    private final List<String> readThreads = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        byte[] wav = wavFile();
+        songStorage = new InMemorySongStorage();
+        dataStorage = mock(TimedDataStorage.class);
+        mediaStorage = mock(MediaStorage.class);
+        FileMetadata metadata = FileMetadata.builder().etag("\"0x1\"").build();
+        when(mediaStorage.getMediaMetadata(anyString())).thenReturn(metadata);
+        when(mediaStorage.getMedia(anyString())).thenAnswer(inv -> {
+            readThreads.add(Thread.currentThread().getName());
+            return new MediaContent(new ByteArrayInputStream(wav), metadata);
+        });
+        taskManager = new AsyncTaskManager(new ServiceConfig(), new InMemoryAsyncTaskStorage(Clock.systemUTC()),
+            new SimpleMeterRegistry());
+        controller = new SongController(songStorage, dataStorage, mediaStorage, taskManager, mock(MediaUrlProvider.class),
+            mock(MediaPrefetcher.class), new DefaultFileManager());
+        songStorage.writeSong(SongDTO.builder().id(SONG_ID).title("Test Song").build());
+        for (String part : List.of("Lead", "Bass")) {
+            songStorage.writeTrack(AudioTrackDTO.builder().songId(SONG_ID).id(part).mediaLocation(SONG_ID + "/" + part).build());
+        }
+        // Three channels, so that the section is rendered as WAV.
+        songStorage.writeTrack(AudioTrackDTO.builder()
+            .songId(SONG_ID)
+            .id("Surround")
+            .parts(List.of("Lead", "Bass"))
+            .audioMix(MatrixMix.fromDense(new float[][] { { 1.0f, 0.0f }, { 0.0f, 1.0f }, { 1.0f, 0.0f } }))
+            .build());
+    }
+
+    @AfterEach
+    public void shutdown() {
+        taskManager.shutdown();
+    }
+
+    @Test
+    void GIVEN_range_in_ms_WHEN_renderMixLoop_THEN_section_rendered_in_cpu_lane() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        controller.renderMixLoop(response, new SongId(SONG_ID), "Surround", 500L, 750L, null, null, null, null);
+
+        assertEquals(AudioFormats.WAV_TYPE, response.getContentType());
+        assertEquals("attachment; filename=\"Test Song - Surround (500-750 ms).wav\"", response.getHeader("Content-Disposition"));
+        assertEquals(response.getContentAsByteArray().length, response.getContentLengthLong());
+        assertFrames(500, 250, response.getContentAsByteArray());
+        assertEquals(2, readThreads.size());
+        assertThat(readThreads, everyItem(startsWith("task-cpu-")));
+    }
+
+    @Test
+    void GIVEN_measures_WHEN_renderMixLoop_THEN_section_from_measure_timings() throws Exception {
+        when(dataStorage.getDataForPart(SONG_ID, TimedTextData.SHARED_PART_NAME, TimedTextData.TYPE_MEASURES.value()))
+            .thenReturn(TimedTextDTO.builder()
+                .part(TimedTextData.SHARED_PART_NAME)
+                .type(TimedTextData.TYPE_MEASURES.value())
+                .entries(List.of(new Entry(0, "1"), new Entry(500, "2"), new Entry(750, "3"), new Entry(1000, "4")))
+                .build());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        controller.renderMixLoop(response, new SongId(SONG_ID), "Surround", null, null, "2", "3", null, null);
+
+        assertEquals("attachment; filename=\"Test Song - Surround (mm. 2-3).wav\"", response.getHeader("Content-Disposition"));
+        assertFrames(500, 500, response.getContentAsByteArray());
+    }
+
+    @Test
+    void GIVEN_mix_with_wrong_number_of_inputs_WHEN_createMixTracks_THEN_bad_request() {
+        CreateMixTrackRequest request = CreateMixTrackRequest.builder()
+            .name("Matrix")
+            .parts(List.of(new AudioPart("Lead"), new AudioPart("Bass")))
+            .description("{\"_type\": \"MatrixMix\", \"inputs\": 3, \"rowOffsets\": [0, 1], \"columns\": [2], \"weights\": [1.0]}")
+            .build();
+
+        assertThrows(BadRequestException.class, () -> controller.createMixTracks(new SongId(SONG_ID), request, false));
+        assertNull(songStorage.describeMix(SONG_ID, "Matrix"));
+    }
+
+    @Test
+    void GIVEN_invalid_matrix_mix_WHEN_createMixTracks_THEN_bad_request() {
+        CreateMixTrackRequest request = CreateMixTrackRequest.builder()
+            .name("Matrix")
+            .parts(List.of(new AudioPart("Lead"), new AudioPart("Bass")))
+            .description("{\"_type\": \"MatrixMix\", \"inputs\": 2, \"rowOffsets\": [0, 1], \"columns\": [0], \"weights\": [2.0]}")
+            .build();
+
+        assertThrows(BadRequestException.class, () -> controller.createMixTracks(new SongId(SONG_ID), request, false));
+        assertNull(songStorage.describeMix(SONG_ID, "Matrix"));
+    }
+
+    /** Every channel of the rendered file has the parts' samples, off by at most one from the mix's conversions. */
+    private static void assertFrames(int first, int count, byte[] file) throws Exception {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(new ByteArrayInputStream(file))) {
+            assertEquals(3, in.getFormat().getChannels());
+            ByteBuffer samples = ByteBuffer.wrap(in.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(count * 3 * 2, samples.capacity());
+            for (int i = 0; i < count; ++i) {
+                for (int channel = 0; channel < 3; ++channel) {
+                    assertEquals(first + i, samples.getShort(), 1, "frame " + i + ", channel " + channel);
+                }
+            }
+        }
+    }
+
+    /** A 16-bit mono WAV file whose samples are 0, 1, 2, .... */
+    private static byte[] wavFile() throws Exception {
+        ByteBuffer samples = ByteBuffer.allocate(2 * NUM_SAMPLES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < NUM_SAMPLES; ++i) {
+            samples.putShort((short) i);
+        }
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+        AudioInputStream pcm = new AudioInputStream(new ByteArrayInputStream(samples.array()), format, NUM_SAMPLES);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioSystem.write(pcm, AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,182 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Clock;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.async.AsyncTask.Output;
+import org.raincityvoices.ttrack.service.async.AsyncTaskManager.TaskExec;
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.async.InMemoryAsyncTaskStorage;
+import org.raincityvoices.ttrack.service.util.PrototypeBean;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+public class AsyncTaskManagerTest {
+
+    /** Released to let the running {@link BlockingTask}s finish. */
+    private static CountDownLatch gate;
+
+    @Data
+    @NoArgsConstructor
+    @EqualsAndHashCode(callSuper = true)
+    public static class TestInput extends AsyncTask.Input {
+        private String target;
+        private String value;
+
+        TestInput(String target, String value) {
+            super("song1");
+            this.target = target;
+            this.value = value;
+        }
+    }
+
+    /** Produces its target, once the gate is released. */
+    @PrototypeBean
+    public static class BlockingTask extends AsyncTask<TestInput, Output> {
+
+        public BlockingTask(TestInput input) {
+            super(input);
+        }
+
+        @Override
+        public String coalescingKey() {
+            return input().getTarget();
+        }
+
+        @Override
+        public Class<TestInput> getInputClass() {
+            return TestInput.class;
+        }
+
+        @Override
+        protected String getTaskType() {
+            return "Blocking";
+        }
+
+        @Override
+        protected void doInitialize() {}
+
+        @Override
+        protected Output process() throws Exception {
+            gate.await(10, TimeUnit.SECONDS);
+            checkCanceled();
+            return new Output();
+        }
+    }
+
+    private InMemoryAsyncTaskStorage storage;
+    private AnnotationConfigApplicationContext appContext;
+    private AsyncTaskManager manager;
+
+    @BeforeEach
+    public void setup() {
+        gate = new CountDownLatch(1);
+        Clock clock = Clock.systemUTC();
+        storage = new InMemoryAsyncTaskStorage(clock);
+        appContext = new AnnotationConfigApplicationContext();
+        appContext.registerBean(AsyncTaskStorage.class, () -> storage);
+        appContext.registerBean(Clock.class, () -> clock);
+        appContext.register(BlockingTask.class);
+        appContext.refresh();
+        ServiceConfig serviceConfig = new ServiceConfig();
+        // One slot, so that tasks scheduled while the first one runs wait in the lane.
+        serviceConfig.getTasks().setCpuConcurrency(1);
+        manager = new AsyncTaskManager(serviceConfig, storage, new SimpleMeterRegistry());
+        manager.setApplicationContext(appContext);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        gate.countDown();
+        manager.shutdown();
+        appContext.close();
+    }
+
+    @Test
+    void GIVEN_waiting_task_WHEN_same_input_scheduled_THEN_coalesced() throws Exception {
+        schedule("other", "x");
+        waitForQueueDepth(0);
+        TaskExec<BlockingTask, Output> first = schedule("mix1", "a");
+
+        TaskExec<BlockingTask, Output> second = schedule("mix1", "a");
+
+        assertSame(first, second);
+        assertEquals(1, manager.queueDepth(TaskLane.CPU));
+        gate.countDown();
+        first.result().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void GIVEN_waiting_task_WHEN_different_input_scheduled_THEN_older_task_dropped() throws Exception {
+        schedule("other", "x");
+        waitForQueueDepth(0);
+        TaskExec<BlockingTask, Output> older = schedule("mix1", "a");
+
+        TaskExec<BlockingTask, Output> newer = schedule("mix1", "b");
+
+        assertEquals(1, manager.queueDepth(TaskLane.CPU));
+        assertCanceled(older);
+        assertEquals(AsyncTaskDTO.CANCELED, storage.getTask(older.task().taskId()).getStatus());
+        gate.countDown();
+        newer.result().get(5, TimeUnit.SECONDS);
+        assertEquals(AsyncTaskDTO.SUCCEEDED, storage.getTask(newer.task().taskId()).getStatus());
+    }
+
+    @Test
+    void GIVEN_running_task_WHEN_different_input_scheduled_THEN_older_task_canceled() throws Exception {
+        TaskExec<BlockingTask, Output> older = schedule("mix1", "a");
+        waitForStatus(older.task().taskId(), AsyncTaskDTO.RUNNING);
+
+        TaskExec<BlockingTask, Output> newer = schedule("mix1", "b");
+
+        assertEquals(AsyncTaskDTO.CANCELING, storage.getTask(older.task().taskId()).getStatus());
+        gate.countDown();
+        assertCanceled(older);
+        assertEquals(AsyncTaskDTO.CANCELED, storage.getTask(older.task().taskId()).getStatus());
+        newer.result().get(5, TimeUnit.SECONDS);
+    }
+
+    private TaskExec<BlockingTask, Output> schedule(String target, String value) {
+        return manager.schedule(BlockingTask.class, new TestInput(target, value));
+    }
+
+    private void waitForQueueDepth(int depth) throws InterruptedException {
+        for (int i = 0; i < 100 && manager.queueDepth(TaskLane.CPU) != depth; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, manager.queueDepth(TaskLane.CPU));
+    }
+
+    private void waitForStatus(String taskId, String status) throws InterruptedException {
+        for (int i = 0; i < 100 && !status.equals(storage.getTask(taskId).getStatus()); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(status, storage.getTask(taskId).getStatus());
+    }
+
+    private static void assertCanceled(TaskExec<?, ?> exec) {
+        Exception e = assertThrows(Exception.class, () -> exec.result().get(5, TimeUnit.SECONDS));
+        if (e instanceof ExecutionException) {
+            assertInstanceOf(CancellationException.class, e.getCause());
+        } else {
+            assertInstanceOf(CancellationException.class, e);
+        }
+    }
+}
@@ -97,5 +97,6 @@ public class CreateMixTrackTaskIntegTest {
         assertEquals(AudioFormats.MP3_TYPE, metadata.contentType());
         assertEquals(mixTrack.getDurationSec(), metadata.durationSec(), 1.0);
         assertEquals(null, mixTrack.getCurrentTaskId());
+        assertEquals(null, mixTrack.getLockExpiry());
     }
 }
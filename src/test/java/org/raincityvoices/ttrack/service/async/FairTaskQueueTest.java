@@ -0,0 +1,65 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class FairTaskQueueTest {
+
+    private final FairTaskQueue<String> queue = new FairTaskQueue<>();
+
+    @Test
+    void GIVEN_mixed_priorities_WHEN_take_THEN_user_tasks_first() throws InterruptedException {
+        queue.put("bg1", TaskPriority.BACKGROUND, "song1");
+        queue.put("user1", TaskPriority.USER, "song2");
+        queue.put("bg2", TaskPriority.BACKGROUND, "song1");
+        queue.put("user2", TaskPriority.USER, "song1");
+
+        assertEquals(List.of("user1", "user2", "bg1", "bg2"), takeAll());
+    }
+
+    @Test
+    void GIVEN_one_song_with_many_tasks_WHEN_take_THEN_songs_take_turns() throws InterruptedException {
+        queue.put("a1", TaskPriority.BACKGROUND, "songA");
+        queue.put("a2", TaskPriority.BACKGROUND, "songA");
+        queue.put("a3", TaskPriority.BACKGROUND, "songA");
+        queue.put("b1", TaskPriority.BACKGROUND, "songB");
+        queue.put("c1", TaskPriority.BACKGROUND, "songC");
+        queue.put("b2", TaskPriority.BACKGROUND, "songB");
+
+        assertEquals(List.of("a1", "b1", "c1", "a2", "b2", "a3"), takeAll());
+    }
+
+    @Test
+    void GIVEN_queued_item_WHEN_remove_THEN_not_taken() throws InterruptedException {
+        queue.put("a1", TaskPriority.USER, "songA");
+        queue.put("a2", TaskPriority.USER, "songA");
+
+        assertTrue(queue.remove("a1"));
+        assertFalse(queue.remove("a1"));
+        assertEquals(1, queue.size());
+        assertEquals(List.of("a2"), takeAll());
+    }
+
+    @Test
+    void GIVEN_empty_queue_WHEN_poll_THEN_null_after_timeout() throws InterruptedException {
+        assertNull(queue.poll(Duration.ofMillis(10)));
+        queue.put("a1", TaskPriority.USER, "songA");
+        assertEquals("a1", queue.poll(Duration.ofMillis(10)));
+    }
+
+    private List<String> takeAll() throws InterruptedException {
+        List<String> items = new ArrayList<>();
+        while (queue.size() > 0) {
+            items.add(queue.poll(Duration.ZERO));
+        }
+        return items;
+    }
+}
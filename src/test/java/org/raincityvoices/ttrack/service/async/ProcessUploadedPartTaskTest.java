@@ -0,0 +1,158 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.raincityvoices.ttrack.service.async.AsyncTaskManager.TaskExec;
+import org.raincityvoices.ttrack.service.async.AudioTrackTask.Output;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.async.InMemoryAsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.storage.files.LocalFileStorage;
+import org.raincityvoices.ttrack.service.storage.files.ParallelRangeDownloader;
+import org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaStorage;
+import org.raincityvoices.ttrack.service.storage.media.MediaContent;
+import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.storage.songs.InMemorySongStorage;
+import org.raincityvoices.ttrack.service.storage.songs.SongDTO;
+import org.raincityvoices.ttrack.service.storage.songs.SongStorage;
+import org.raincityvoices.ttrack.service.util.DefaultFileManager;
+import org.raincityvoices.ttrack.service.util.FileManager;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ProcessUploadedPartTaskTest {
+
+    private static final String SONG_ID = "song1";
+    private static final String PART = "Lead";
+
+    /** Released to let uploads to the remote storage through. */
+    private final CountDownLatch uploadGate = new CountDownLatch(1);
+    private final Clock clock = Clock.systemUTC();
+    private LocalFileStorage remote;
+    private DiskCachingMediaStorage mediaStorage;
+    private InMemorySongStorage songStorage;
+    private InMemoryAsyncTaskStorage taskStorage;
+    private TrackLockManager lockManager;
+    private AnnotationConfigApplicationContext appContext;
+    private AsyncTaskManager manager;
+
+    @BeforeEach
+    public void setup(@TempDir File tempDir) {
+        File remoteDir = new File(tempDir, "remote");
+        File cacheDir = new File(tempDir, "cache");
+        remoteDir.mkdirs();
+        cacheDir.mkdirs();
+        remote = new LocalFileStorage(remoteDir,
+            new ParallelRangeDownloader(ParallelRangeDownloader.Settings.DEFAULT, Executors.newCachedThreadPool())) {
+            @Override
+            public void upload(File source, String location) {
+                try {
+                    uploadGate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.upload(source, location);
+            }
+        };
+        FileManager fileManager = new DefaultFileManager();
+        mediaStorage = new DiskCachingMediaStorage(remote, cacheDir, fileManager,
+            DiskCachingMediaStorage.Settings.builder().writeBehind(true).build());
+        songStorage = new InMemorySongStorage();
+        taskStorage = new InMemoryAsyncTaskStorage(clock);
+        ServiceConfig serviceConfig = new ServiceConfig();
+        lockManager = new TrackLockManager(songStorage, taskStorage, clock, serviceConfig);
+        appContext = new AnnotationConfigApplicationContext();
+        appContext.registerBean(AsyncTaskStorage.class, () -> taskStorage);
+        appContext.registerBean(Clock.class, () -> clock);
+        appContext.registerBean(SongStorage.class, () -> songStorage);
+        appContext.registerBean(MediaStorage.class, () -> mediaStorage);
+        appContext.registerBean(FileManager.class, () -> fileManager);
+        appContext.registerBean(TrackLockManager.class, () -> lockManager);
+        appContext.register(ProcessUploadedPartTask.class);
+        appContext.refresh();
+        manager = new AsyncTaskManager(serviceConfig, taskStorage, new SimpleMeterRegistry());
+        manager.setApplicationContext(appContext);
+        songStorage.writeSong(SongDTO.builder().id(SONG_ID).title("Test Song").build());
+    }
+
+    @AfterEach
+    public void shutdown() {
+        uploadGate.countDown();
+        manager.shutdown();
+        lockManager.shutdown();
+        appContext.close();
+    }
+
+    @Test
+    void GIVEN_write_behind_upload_pending_WHEN_part_processed_THEN_derived_data_keyed_on_uploaded_etag() throws Exception {
+        String location = mediaStorage.locationFor(SONG_ID, PART);
+        CompletableFuture<FileMetadata> uploaded = mediaStorage.putMediaAsync(location,
+            new MediaContent(new ByteArrayInputStream(wavFile()), FileMetadata.builder().fileName("Lead.wav").build()));
+        assertFalse(uploaded.isDone());
+        AudioTrackDTO track = songStorage.writeTrack(AudioTrackDTO.builder()
+            .songId(SONG_ID)
+            .id(PART)
+            .mediaLocation(location)
+            .build());
+
+        TaskExec<ProcessUploadedPartTask, Output> exec = manager.schedule(ProcessUploadedPartTask.class, track);
+        waitForStatus(exec.task().taskId(), AsyncTaskDTO.RUNNING);
+        uploadGate.countDown();
+        exec.result().get(10, TimeUnit.SECONDS);
+
+        String etag = remote.fetchMetadata(location).etag();
+        assertThat(etag, not(emptyString()));
+        AudioTrackDTO stored = songStorage.describeTrack(SONG_ID, PART);
+        assertEquals(etag, stored.getSeekIndex().etag());
+        assertEquals(etag, stored.getSilenceMap().etag());
+        assertEquals(etag, stored.getWorkingCopy().sourceEtag());
+    }
+
+    /** One second of a 440 Hz sine, as a 16-bit mono WAV file. */
+    private static byte[] wavFile() throws Exception {
+        int numFrames = 44100;
+        ByteBuffer samples = ByteBuffer.allocate(2 * numFrames).order(ByteOrder.LITTLE_ENDIAN);
+        for (int n = 0; n < numFrames; ++n) {
+            samples.putShort((short) Math.round(0.5 * Math.sin(2 * Math.PI * 440 * n / 44100) * Short.MAX_VALUE));
+        }
+        AudioInputStream pcm = new AudioInputStream(new ByteArrayInputStream(samples.array()), AudioFormats.MONO_PCM_44_1KHZ, numFrames);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioSystem.write(pcm, AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+
+    private void waitForStatus(String taskId, String status) throws InterruptedException {
+        for (int i = 0; i < 100 && !status.equals(taskStorage.getTask(taskId).getStatus()); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(status, taskStorage.getTask(taskId).getStatus());
+    }
+}
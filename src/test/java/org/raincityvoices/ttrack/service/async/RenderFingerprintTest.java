@@ -0,0 +1,60 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.audio.model.StereoMix;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+
+public class RenderFingerprintTest {
+
+    private static final String ENCODER = "MP3";
+    // The Bass (input 3) is silent in both channels.
+    private static final StereoMix MIX = new StereoMix(
+        new float[] { 0.5f, 0.25f, 0.25f, 0.0f },
+        new float[] { 0.2f, 0.4f, 0.4f, 0.0f }
+    );
+    private static final List<String> ETAGS = List.of("tenor-1", "lead-1", "bari-1", "bass-1");
+
+    @Test
+    void GIVEN_same_inputs_WHEN_compute_THEN_same_fingerprint() {
+        assertEquals(RenderFingerprint.compute(mixTrack(MIX, 0), ETAGS, ENCODER),
+                     RenderFingerprint.compute(mixTrack(MIX, 0), List.copyOf(ETAGS), ENCODER));
+    }
+
+    @Test
+    void GIVEN_new_version_of_unused_part_WHEN_compute_THEN_same_fingerprint() {
+        List<String> newBass = List.of("tenor-1", "lead-1", "bari-1", "bass-2");
+        assertEquals(RenderFingerprint.compute(mixTrack(MIX, 0), ETAGS, ENCODER),
+                     RenderFingerprint.compute(mixTrack(MIX, 0), newBass, ENCODER));
+    }
+
+    @Test
+    void GIVEN_change_to_used_part_or_settings_WHEN_compute_THEN_new_fingerprint() {
+        String original = RenderFingerprint.compute(mixTrack(MIX, 0), ETAGS, ENCODER);
+        List<String> newLead = List.of("tenor-1", "lead-2", "bari-1", "bass-1");
+        StereoMix newMix = new StereoMix(
+            new float[] { 0.25f, 0.25f, 0.25f, 0.25f },
+            new float[] { 0.25f, 0.25f, 0.25f, 0.25f }
+        );
+
+        assertNotEquals(original, RenderFingerprint.compute(mixTrack(MIX, 0), newLead, ENCODER));
+        assertNotEquals(original, RenderFingerprint.compute(mixTrack(newMix, 0), ETAGS, ENCODER));
+        assertNotEquals(original, RenderFingerprint.compute(mixTrack(MIX, -2), ETAGS, ENCODER));
+        assertNotEquals(original, RenderFingerprint.compute(mixTrack(MIX, 0), ETAGS, "WAVE"));
+    }
+
+    private static AudioTrackDTO mixTrack(StereoMix mix, int pitchShift) {
+        return AudioTrackDTO.builder()
+            .songId("song")
+            .id("mix")
+            .parts(List.of("Tenor", "Lead", "Bari", "Bass"))
+            .audioMix(mix)
+            .pitchShift(pitchShift)
+            .speedFactor(1.0)
+            .build();
+    }
+}
@@ -0,0 +1,91 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class TaskLaneExecutorTest {
+
+    private final TaskLaneExecutor lane = new TaskLaneExecutor(TaskLane.CPU, 1,
+        Executors.newCachedThreadPool(), new SimpleMeterRegistry());
+
+    @AfterEach
+    void shutdown() {
+        lane.shutdown();
+    }
+
+    @Test
+    void GIVEN_busy_slot_WHEN_tasks_queued_THEN_run_one_at_a_time_by_priority() throws Exception {
+        CountDownLatch blocker = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> first = lane.submit(() -> await(blocker, "first"), TaskPriority.USER, "song1");
+        waitForQueueDepth(0);
+        CompletableFuture<String> background = lane.submit(() -> record(order, "background"), TaskPriority.BACKGROUND, "song1");
+        CompletableFuture<String> user = lane.submit(() -> record(order, "user"), TaskPriority.USER, "song2");
+
+        Thread.sleep(100);
+        assertTrue(order.isEmpty());
+        blocker.countDown();
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        background.get(5, TimeUnit.SECONDS);
+        user.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("user", "background"), order);
+    }
+
+    @Test
+    void GIVEN_task_waiting_in_releaseSlotWhile_WHEN_other_task_queued_THEN_other_task_runs_meanwhile() throws Exception {
+        CountDownLatch lockReleased = new CountDownLatch(1);
+        CompletableFuture<String> waiting = lane.submit(() -> {
+            try {
+                return TaskLaneExecutor.releaseSlotWhile(() -> await(lockReleased, "waited"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, TaskPriority.USER, "song1");
+        CompletableFuture<String> other = lane.submit(() -> "other", TaskPriority.USER, "song2");
+
+        assertEquals("other", other.get(5, TimeUnit.SECONDS));
+        assertFalse(waiting.isDone());
+        lockReleased.countDown();
+        assertEquals("waited", waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void GIVEN_no_lane_WHEN_releaseSlotWhile_THEN_just_runs() throws Exception {
+        assertEquals("done", TaskLaneExecutor.releaseSlotWhile(() -> "done"));
+    }
+
+    private void waitForQueueDepth(int depth) throws InterruptedException {
+        for (int i = 0; i < 100 && lane.queueDepth() != depth; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, lane.queueDepth());
+    }
+
+    private static String await(CountDownLatch latch, String result) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    private static String record(List<String> order, String name) {
+        order.add(name);
+        return name;
+    }
+}
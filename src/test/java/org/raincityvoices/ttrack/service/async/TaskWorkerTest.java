@@ -0,0 +1,198 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.config.ServiceConfig.WorkerConfig;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.InMemoryAsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.async.TaskLeaseDTO;
+
+public class TaskWorkerTest {
+
+    private static final Instant NOW = Instant.parse("2026-03-01T10:00:00Z");
+    private static final Clock CLOCK = Clock.fixed(NOW, ZoneOffset.UTC);
+
+    private InMemoryAsyncTaskStorage storage;
+    private WorkerConfig config;
+    private List<String> runs;
+
+    @BeforeEach
+    public void setup() {
+        storage = new InMemoryAsyncTaskStorage(CLOCK);
+        config = new WorkerConfig();
+        config.setMaxConcurrentTasks(2);
+        config.setPreferCachedSongs(false);
+        runs = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Test
+    void GIVEN_two_workers_WHEN_polling_THEN_each_task_runs_exactly_once() {
+        List<String> taskIds = List.of(queueTask("song1", NOW), queueTask("song2", NOW), queueTask("song3", NOW));
+        TaskWorker worker1 = newWorker("w1", CLOCK, this::completeTask);
+        TaskWorker worker2 = newWorker("w2", CLOCK, this::completeTask);
+
+        int claimed = worker1.pollOnce() + worker2.pollOnce() + worker1.pollOnce() + worker2.pollOnce();
+
+        assertEquals(3, claimed);
+        assertThat(runs.stream().map(r -> r.split(":")[1]).toList(), containsInAnyOrder(taskIds.toArray(new String[0])));
+        assertThat(storage.listQueuedTasks(10), empty());
+        taskIds.forEach(id -> assertNull(storage.getLease(id)));
+    }
+
+    @Test
+    void GIVEN_worker_at_capacity_WHEN_polling_THEN_other_worker_claims_remaining_tasks() {
+        queueTask("song1", NOW);
+        queueTask("song2", NOW);
+        queueTask("song3", NOW);
+        TaskWorker worker1 = newWorker("w1", CLOCK, this::neverComplete);
+        TaskWorker worker2 = newWorker("w2", CLOCK, this::neverComplete);
+
+        assertEquals(2, worker1.pollOnce());
+        assertEquals(0, worker1.pollOnce());
+        assertEquals(1, worker2.pollOnce());
+        assertEquals(2, worker1.activeTaskCount());
+        assertEquals(1, worker2.activeTaskCount());
+    }
+
+    @Test
+    void GIVEN_lease_expired_WHEN_polling_THEN_other_worker_takes_over() {
+        String taskId = queueTask("song1", NOW);
+        TaskWorker deadWorker = newWorker("dead", CLOCK, this::neverComplete);
+        assertEquals(1, deadWorker.pollOnce());
+
+        Clock beforeExpiry = Clock.offset(CLOCK, config.getLeaseDuration().minusSeconds(1));
+        TaskWorker impatientWorker = newWorker("w2", beforeExpiry, this::completeTask);
+        assertEquals(0, impatientWorker.pollOnce());
+
+        Clock afterExpiry = Clock.offset(CLOCK, config.getLeaseDuration().plusSeconds(1));
+        TaskWorker rescuer = newWorker("w3", afterExpiry, this::completeTask);
+        assertEquals(1, rescuer.pollOnce());
+        assertEquals(List.of("dead:" + taskId, "w3:" + taskId), runs);
+    }
+
+    @Test
+    void GIVEN_lease_taken_over_after_expiry_WHEN_task_completes_THEN_new_owners_lease_kept() {
+        String taskId = queueTask("song1", NOW);
+        CompletableFuture<Void> slowRun = new CompletableFuture<>();
+        TaskWorker slowWorker = newWorker("slow", CLOCK, (workerId, task) -> slowRun);
+        assertEquals(1, slowWorker.pollOnce());
+        Clock afterExpiry = Clock.offset(CLOCK, config.getLeaseDuration().plusSeconds(1));
+        TaskWorker rescuer = newWorker("w2", afterExpiry, this::neverComplete);
+        assertEquals(1, rescuer.pollOnce());
+
+        slowRun.complete(null);
+
+        assertEquals("w2", storage.getLease(taskId).getOwner());
+    }
+
+    @Test
+    void GIVEN_prefer_cached_songs_WHEN_task_is_recent_THEN_only_worker_with_cached_media_claims_it() {
+        config.setPreferCachedSongs(true);
+        config.setLocalityDelay(Duration.ofSeconds(5));
+        String taskId = queueTask("cached-song", NOW);
+        TaskWorker remoteWorker = new TaskWorker("remote", storage, dto -> completeTask("remote", dto), config, CLOCK, t -> false);
+        TaskWorker localWorker = new TaskWorker("local", storage, dto -> completeTask("local", dto), config, CLOCK,
+                                                t -> t.getInput().getSongId().equals("cached-song"));
+
+        assertEquals(0, remoteWorker.pollOnce());
+        assertEquals(1, localWorker.pollOnce());
+        assertEquals(List.of("local:" + taskId), runs);
+    }
+
+    @Test
+    void GIVEN_prefer_cached_songs_WHEN_task_waited_past_locality_delay_THEN_any_worker_claims_it() {
+        config.setPreferCachedSongs(true);
+        config.setLocalityDelay(Duration.ofSeconds(5));
+        String taskId = queueTask("song1", NOW.minusSeconds(10));
+        TaskWorker remoteWorker = new TaskWorker("remote", storage, dto -> completeTask("remote", dto), config, CLOCK, t -> false);
+
+        assertEquals(1, remoteWorker.pollOnce());
+        assertEquals(List.of("remote:" + taskId), runs);
+    }
+
+    @Test
+    void GIVEN_lease_taken_over_WHEN_renewing_THEN_task_abandoned_and_counted_until_stopped() {
+        config.setMaxConcurrentTasks(1);
+        String taskId = queueTask("song1", NOW);
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        List<String> abandoned = new ArrayList<>();
+        TaskWorker worker = new TaskWorker("w1", storage, new TaskWorker.Dispatcher() {
+            @Override
+            public CompletableFuture<?> dispatch(AsyncTaskDTO task) {
+                runs.add("w1:" + task.getTaskId());
+                return stopped;
+            }
+
+            @Override
+            public void abandon(String id) {
+                abandoned.add(id);
+            }
+        }, config, CLOCK, t -> false);
+        assertEquals(1, worker.pollOnce());
+        // Another worker takes the lease over, e.g. while this one was stalled.
+        TaskLeaseDTO lease = storage.getLease(taskId);
+        lease.setOwner("w2");
+        storage.putLease(lease);
+        queueTask("song2", NOW);
+
+        worker.renewLeases();
+
+        assertEquals(List.of(taskId), abandoned);
+        assertEquals(1, worker.activeTaskCount());
+        assertEquals(0, worker.pollOnce());
+
+        stopped.complete(null);
+
+        assertEquals(0, worker.activeTaskCount());
+        assertEquals("w2", storage.getLease(taskId).getOwner());
+        assertEquals(1, worker.pollOnce());
+    }
+
+    private String queueTask(String songId, Instant scheduled) {
+        AsyncTaskDTO dto = AsyncTaskDTO.builder()
+            .taskId(songId + "-task")
+            .status(AsyncTaskDTO.SCHEDULED)
+            .taskType("Test")
+            .queued(true)
+            .scheduled(scheduled)
+            .input(new AsyncTask.Input(songId))
+            .build();
+        storage.createTask(dto);
+        return dto.getTaskId();
+    }
+
+    private interface TestDispatcher {
+        CompletableFuture<?> dispatch(String workerId, AsyncTaskDTO task);
+    }
+
+    private TaskWorker newWorker(String workerId, Clock clock, TestDispatcher dispatcher) {
+        return new TaskWorker(workerId, storage, dto -> dispatcher.dispatch(workerId, dto), config, clock, t -> false);
+    }
+
+    private CompletableFuture<?> completeTask(String workerId, AsyncTaskDTO task) {
+        runs.add(workerId + ":" + task.getTaskId());
+        task.setStatus(AsyncTaskDTO.SUCCEEDED);
+        storage.updateTask(task);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<?> neverComplete(String workerId, AsyncTaskDTO task) {
+        runs.add(workerId + ":" + task.getTaskId());
+        return new CompletableFuture<>();
+    }
+}
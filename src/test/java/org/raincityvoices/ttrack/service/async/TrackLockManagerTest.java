@@ -0,0 +1,152 @@
+package org.raincityvoices.ttrack.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.config.ServiceConfig;
+import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.InMemoryAsyncTaskStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+import org.raincityvoices.ttrack.service.storage.songs.InMemorySongStorage;
+
+public class TrackLockManagerTest {
+
+    private static final String SONG_ID = "song1";
+    private static final String TRACK_ID = "Lead";
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private final Clock clock = Clock.systemUTC();
+    private InMemorySongStorage songStorage;
+    private InMemoryAsyncTaskStorage taskStorage;
+    private TrackLockManager lockManager;
+
+    @BeforeEach
+    public void setup() {
+        songStorage = new InMemorySongStorage();
+        taskStorage = new InMemoryAsyncTaskStorage(clock);
+        lockManager = new TrackLockManager(songStorage, taskStorage, clock, new ServiceConfig());
+        songStorage.writeTrack(AudioTrackDTO.builder().songId(SONG_ID).id(TRACK_ID).build());
+    }
+
+    @AfterEach
+    public void shutdown() {
+        lockManager.shutdown();
+    }
+
+    @Test
+    void GIVEN_tasks_waiting_for_local_holder_WHEN_released_THEN_handed_over_in_arrival_order() throws Exception {
+        AudioTrackDTO heldByA = lockManager.acquire(SONG_ID, TRACK_ID, "taskA", TIMEOUT);
+        Thread[] threads = new Thread[2];
+        CompletableFuture<AudioTrackDTO> taskB = acquireInBackground("taskB", threads, 0);
+        waitUntilWaiting(threads[0]);
+        CompletableFuture<AudioTrackDTO> taskC = acquireInBackground("taskC", threads, 1);
+        waitUntilWaiting(threads[1]);
+
+        lockManager.release(heldByA, "taskA");
+        // Well within MAX_LOCAL_WAIT, so B was woken up rather than polling.
+        AudioTrackDTO heldByB = taskB.get(2, TimeUnit.SECONDS);
+        assertEquals("taskB", heldByB.getCurrentTaskId());
+        assertFalse(taskC.isDone());
+
+        lockManager.release(heldByB, "taskB");
+        assertEquals("taskC", taskC.get(2, TimeUnit.SECONDS).getCurrentTaskId());
+        // Nobody is left waiting, so the track's queue is gone.
+        assertEquals(0, lockManager.waitedForTrackCount());
+    }
+
+    @Test
+    void GIVEN_expired_lock_WHEN_acquire_THEN_taken_over() throws Exception {
+        setLock("deadTask", clock.instant().minusSeconds(1));
+
+        AudioTrackDTO locked = lockManager.acquire(SONG_ID, TRACK_ID, "taskA", Duration.ofMillis(100));
+
+        assertNotNull(locked);
+        assertEquals("taskA", songStorage.describeTrack(SONG_ID, TRACK_ID).getCurrentTaskId());
+    }
+
+    @Test
+    void GIVEN_unexpired_lock_held_elsewhere_WHEN_acquire_THEN_times_out() throws Exception {
+        setLock("remoteTask", clock.instant().plusSeconds(60));
+
+        assertNull(lockManager.acquire(SONG_ID, TRACK_ID, "taskA", Duration.ofMillis(300)));
+        assertEquals("remoteTask", songStorage.describeTrack(SONG_ID, TRACK_ID).getCurrentTaskId());
+        assertEquals(0, lockManager.waitedForTrackCount());
+    }
+
+    @Test
+    void GIVEN_legacy_lock_without_expiry_WHEN_holder_finished_THEN_taken_over() throws Exception {
+        createTask("oldTask", AsyncTaskDTO.SUCCEEDED);
+        setLock("oldTask", null);
+
+        assertNotNull(lockManager.acquire(SONG_ID, TRACK_ID, "taskA", Duration.ofMillis(100)));
+    }
+
+    @Test
+    void GIVEN_legacy_lock_without_expiry_WHEN_holder_still_running_THEN_times_out() throws Exception {
+        createTask("oldTask", AsyncTaskDTO.RUNNING);
+        setLock("oldTask", null);
+
+        assertNull(lockManager.acquire(SONG_ID, TRACK_ID, "taskA", Duration.ofMillis(300)));
+    }
+
+    @Test
+    void GIVEN_track_modified_while_locked_WHEN_release_THEN_lock_cleared_and_modification_kept() throws Exception {
+        AudioTrackDTO locked = lockManager.acquire(SONG_ID, TRACK_ID, "taskA", TIMEOUT);
+        AudioTrackDTO modified = songStorage.describeTrack(SONG_ID, TRACK_ID);
+        modified.setDurationSec(42);
+        songStorage.writeTrack(modified);
+
+        lockManager.release(locked, "taskA");
+
+        AudioTrackDTO stored = songStorage.describeTrack(SONG_ID, TRACK_ID);
+        assertNull(stored.getCurrentTaskId());
+        assertNull(stored.getLockExpiry());
+        assertEquals(42, stored.getDurationSec());
+        assertNotNull(lockManager.acquire(SONG_ID, TRACK_ID, "taskB", Duration.ofMillis(100)));
+    }
+
+    private CompletableFuture<AudioTrackDTO> acquireInBackground(String taskId, Thread[] threads, int index) {
+        CompletableFuture<AudioTrackDTO> result = new CompletableFuture<>();
+        threads[index] = Thread.ofPlatform().start(() -> {
+            try {
+                result.complete(lockManager.acquire(SONG_ID, TRACK_ID, taskId, TIMEOUT));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 200 && thread.getState() != Thread.State.TIMED_WAITING; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.TIMED_WAITING, thread.getState());
+    }
+
+    private void setLock(String taskId, Instant expiry) {
+        AudioTrackDTO track = songStorage.describeTrack(SONG_ID, TRACK_ID);
+        track.setCurrentTaskId(taskId);
+        track.setLockExpiry(expiry);
+        songStorage.writeTrack(track);
+    }
+
+    private void createTask(String taskId, String status) {
+        taskStorage.createTask(AsyncTaskDTO.builder()
+            .taskId(taskId)
+            .status(status)
+            .scheduled(clock.instant())
+            .build());
+    }
+}
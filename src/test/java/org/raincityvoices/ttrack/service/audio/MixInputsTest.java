@@ -0,0 +1,162 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.audio.model.MonoMix;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+import org.raincityvoices.ttrack.service.storage.media.MediaContent;
+import org.raincityvoices.ttrack.service.storage.media.MediaStorage;
+import org.raincityvoices.ttrack.service.storage.songs.AudioTrackDTO;
+
+public class MixInputsTest {
+
+    private static final int SAMPLE_RATE = 1000;
+    private static final int NUM_SAMPLES = 2000;
+    private static final String ETAG = "\"0x1\"";
+    private static final String WORK_ETAG = "\"0x2\"";
+    private static final String LEAD_WORK = "song1/Lead.work.wav";
+    private static final String LEAD = "song1/Lead";
+    private static final String BASS = "song1/Bass";
+    /** Only the lead is heard. */
+    private static final MonoMix MIX = new MonoMix(1.0f, 0.0f);
+
+    private byte[] wav;
+    /** A working copy of the lead, whose samples are twice the original's, so that the two can be told apart. */
+    private byte[] workWav;
+    private MediaStorage mediaStorage;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        wav = wavFile(1);
+        workWav = wavFile(2);
+        mediaStorage = mock(MediaStorage.class);
+        FileMetadata metadata = FileMetadata.builder().etag(ETAG).build();
+        FileMetadata workMetadata = FileMetadata.builder().etag(WORK_ETAG).build();
+        when(mediaStorage.getMediaMetadata(anyString())).thenReturn(metadata);
+        when(mediaStorage.getMedia(anyString()))
+            .thenAnswer(inv -> new MediaContent(new ByteArrayInputStream(wav), metadata));
+        when(mediaStorage.getMedia(LEAD_WORK))
+            .thenAnswer(inv -> new MediaContent(new ByteArrayInputStream(workWav), workMetadata));
+    }
+
+    @Test
+    void GIVEN_part_with_current_seek_index_WHEN_open_range_THEN_range_mixed_and_unused_part_not_read() throws Exception {
+        SeekIndex index = SeekIndex.build(new ByteArrayInputStream(wav), ETAG);
+
+        short[] mixed = mixRange(List.of(part("Lead", LEAD, index), part("Bass", BASS, null)), 500, 750);
+
+        assertSamples(500, 250, mixed);
+        verify(mediaStorage, never()).getMediaMetadata(BASS);
+        verify(mediaStorage, never()).getMedia(BASS);
+    }
+
+    @Test
+    void GIVEN_part_without_current_seek_index_WHEN_open_range_THEN_same_samples_decoded() throws Exception {
+        SeekIndex stale = SeekIndex.build(new ByteArrayInputStream(wav), "\"0x0\"");
+
+        short[] mixed = mixRange(List.of(part("Lead", LEAD, stale), part("Bass", BASS, null)), 500, 750);
+
+        assertSamples(500, 250, mixed);
+    }
+
+    @Test
+    void GIVEN_range_past_end_WHEN_open_range_THEN_mix_ends_with_part() throws Exception {
+        short[] mixed = mixRange(List.of(part("Lead", LEAD, null), part("Bass", BASS, null)), 1900, MixInputs.END);
+
+        assertSamples(1900, 100, mixed);
+    }
+
+    @Test
+    void GIVEN_current_working_copy_WHEN_open_range_THEN_copy_read_instead_of_original() throws Exception {
+        WorkingCopy copy = new WorkingCopy(LEAD_WORK, ETAG, SeekIndex.build(new ByteArrayInputStream(workWav), WORK_ETAG));
+
+        short[] mixed = mixRange(List.of(withWorkingCopy(part("Lead", LEAD, null), copy), part("Bass", BASS, null)), 500, 750);
+
+        assertEquals(250, mixed.length);
+        for (int i = 0; i < mixed.length; ++i) {
+            assertEquals(2 * (500 + i), mixed[i], 1, "sample " + i);
+        }
+        verify(mediaStorage, never()).getMedia(LEAD);
+    }
+
+    @Test
+    void GIVEN_working_copy_of_older_media_WHEN_open_range_THEN_original_read() throws Exception {
+        WorkingCopy stale = new WorkingCopy(LEAD_WORK, "\"0x0\"", SeekIndex.build(new ByteArrayInputStream(workWav), WORK_ETAG));
+
+        short[] mixed = mixRange(List.of(withWorkingCopy(part("Lead", LEAD, null), stale), part("Bass", BASS, null)), 500, 750);
+
+        assertSamples(500, 250, mixed);
+        verify(mediaStorage, never()).getMedia(LEAD_WORK);
+    }
+
+    @Test
+    void GIVEN_working_copy_replaced_since_indexed_WHEN_open_range_THEN_original_read() throws Exception {
+        WorkingCopy replaced = new WorkingCopy(LEAD_WORK, ETAG, SeekIndex.build(new ByteArrayInputStream(workWav), "\"0x0\""));
+
+        short[] mixed = mixRange(List.of(withWorkingCopy(part("Lead", LEAD, null), replaced), part("Bass", BASS, null)), 500, 750);
+
+        assertSamples(500, 250, mixed);
+    }
+
+    private short[] mixRange(List<AudioTrackDTO> parts, long fromMs, long toMs) throws Exception {
+        try (MixInputs inputs = MixInputs.open(mediaStorage, parts, MIX, 0, 1.0, fromMs, toMs, AudioDebugger.Settings.NONE)) {
+            ByteBuffer bytes = ByteBuffer.wrap(inputs.mix().readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            short[] samples = new short[bytes.capacity() / 2];
+            bytes.asShortBuffer().get(samples);
+            return samples;
+        }
+    }
+
+    /** The mix's 16-bit conversions may be off by one. */
+    private static void assertSamples(int first, int count, short[] actual) {
+        assertEquals(count, actual.length);
+        for (int i = 0; i < count; ++i) {
+            assertEquals(first + i, actual[i], 1, "sample " + i);
+        }
+    }
+
+    private static AudioTrackDTO part(String id, String location, SeekIndex index) {
+        return AudioTrackDTO.builder()
+            .songId("song1")
+            .id(id)
+            .mediaLocation(location)
+            .seekIndex(index)
+            .build();
+    }
+
+    private static AudioTrackDTO withWorkingCopy(AudioTrackDTO part, WorkingCopy copy) {
+        part.setWorkingCopy(copy);
+        return part;
+    }
+
+    /** A 16-bit mono WAV file whose samples are 0, {@code step}, 2 * {@code step}, .... */
+    private static byte[] wavFile(int step) throws Exception {
+        ByteBuffer samples = ByteBuffer.allocate(2 * NUM_SAMPLES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < NUM_SAMPLES; ++i) {
+            samples.putShort((short) (step * i));
+        }
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+        AudioInputStream pcm = new AudioInputStream(new ByteArrayInputStream(samples.array()), format, NUM_SAMPLES);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioSystem.write(pcm, AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+}
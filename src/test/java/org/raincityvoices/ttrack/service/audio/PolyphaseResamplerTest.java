@@ -0,0 +1,93 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+
+public class PolyphaseResamplerTest {
+
+    private static final double FREQUENCY = 1000.0;
+
+    private static float[] sine(int sampleRate, int numSamples) {
+        float[] samples = new float[numSamples];
+        for (int n = 0; n < numSamples; ++n) {
+            samples[n] = (float) (0.5 * Math.sin(2 * Math.PI * FREQUENCY * n / sampleRate));
+        }
+        return samples;
+    }
+
+    /** Resample the whole input, in blocks of the given size. */
+    private static float[] resample(float[] in, int inputRate, int outputRate, int blockFrames) {
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate, blockFrames);
+        float[] out = new float[(int) ((long) in.length * outputRate / inputRate) + resampler.maxOutputFrames()];
+        float[] block = new float[blockFrames];
+        int count = 0;
+        for (int start = 0; start < in.length; start += blockFrames) {
+            int length = Math.min(blockFrames, in.length - start);
+            System.arraycopy(in, start, block, 0, length);
+            float[] blockOut = new float[resampler.maxOutputFrames()];
+            int produced = resampler.process(block, length, blockOut);
+            System.arraycopy(blockOut, 0, out, count, produced);
+            count += produced;
+        }
+        float[] blockOut = new float[resampler.maxOutputFrames()];
+        int produced = resampler.flush(blockOut);
+        System.arraycopy(blockOut, 0, out, count, produced);
+        return Arrays.copyOf(out, count + produced);
+    }
+
+    @Test
+    void GIVEN_sine_at_44_1kHz_WHEN_resampled_to_48kHz_THEN_same_sine_at_new_rate() {
+        float[] out = resample(sine(44100, 88200), 44100, 48000, 4410);
+
+        assertEquals(96000, out.length);
+        float[] expected = sine(48000, 96000);
+        // Away from the edges, where the filter sees the silence around the signal.
+        for (int n = 100; n < out.length - 100; ++n) {
+            assertEquals(expected[n], out[n], 1e-3, "sample " + n);
+        }
+    }
+
+    @Test
+    void GIVEN_sine_at_48kHz_WHEN_resampled_to_44_1kHz_THEN_same_sine_at_new_rate() {
+        float[] out = resample(sine(48000, 96000), 48000, 44100, 4800);
+
+        assertEquals(88200, out.length);
+        float[] expected = sine(44100, 88200);
+        for (int n = 100; n < out.length - 100; ++n) {
+            assertEquals(expected[n], out[n], 1e-3, "sample " + n);
+        }
+    }
+
+    @Test
+    void GIVEN_different_block_sizes_WHEN_resampled_THEN_same_output() {
+        float[] in = sine(44100, 20000);
+
+        assertArrayEquals(resample(in, 44100, 48000, 20000), resample(in, 44100, 48000, 333));
+    }
+
+    @Test
+    void GIVEN_pcm_stream_WHEN_toSampleRate_THEN_stream_has_new_rate_and_length() throws Exception {
+        float[] samples = sine(48000, 48000);
+        ByteBuffer bytes = ByteBuffer.allocate(2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (float sample : samples) {
+            bytes.putShort((short) Math.round(sample * Short.MAX_VALUE));
+        }
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(bytes.array()), AudioFormats.MONO_PCM_48KHZ, samples.length);
+
+        try (AudioInputStream resampled = ResamplingStream.toSampleRate(in, 44100)) {
+            assertEquals(44100.0f, resampled.getFormat().getSampleRate());
+            assertEquals(44100, resampled.getFrameLength());
+            assertEquals(2 * 44100, resampled.readAllBytes().length);
+        }
+    }
+}
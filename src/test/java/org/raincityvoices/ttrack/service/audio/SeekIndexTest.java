@@ -0,0 +1,115 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.model.TestData;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+public class SeekIndexTest {
+
+    private static final int WAV_SAMPLE_RATE = 1000;
+    private static final int WAV_SAMPLES = 2000;
+
+    /** A 16-bit mono WAV file whose samples are 0, 1, 2, ..., with an odd-sized chunk before the data. */
+    private static byte[] wavFile() {
+        ByteBuffer buf = ByteBuffer.allocate(12 + 24 + 8 + 6 + 8 + 2 * WAV_SAMPLES).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(buf.capacity() - 8).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        buf.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16)
+            .putShort((short) 1).putShort((short) 1).putInt(WAV_SAMPLE_RATE).putInt(2 * WAV_SAMPLE_RATE).putShort((short) 2).putShort((short) 16);
+        buf.put("LIST".getBytes(StandardCharsets.US_ASCII)).putInt(5).put(new byte[6]);
+        buf.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(2 * WAV_SAMPLES);
+        for (int i = 0; i < WAV_SAMPLES; ++i) {
+            buf.putShort((short) i);
+        }
+        return buf.array();
+    }
+
+    @Test
+    void GIVEN_wav_WHEN_openRange_THEN_exact_samples_read() throws Exception {
+        byte[] wav = wavFile();
+        SeekIndex index = SeekIndex.build(new ByteArrayInputStream(wav), "etag");
+
+        assertEquals(SeekIndex.Format.WAV, index.format());
+        assertEquals(58, index.dataOffset());
+        try (AudioInputStream range = index.openRange(new ByteArrayInputStream(wav), 100, 200)) {
+            ByteBuffer samples = ByteBuffer.wrap(range.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(200, samples.capacity());
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(100 + i, samples.getShort());
+            }
+        }
+        try (AudioInputStream range = index.openRange(new ByteArrayInputStream(wav), 1900, 5000)) {
+            assertEquals(200, range.readAllBytes().length);
+        }
+    }
+
+    @Test
+    void GIVEN_mp3_WHEN_build_THEN_frames_indexed_and_index_round_trips_through_json() throws Exception {
+        SeekIndex index;
+        try (InputStream in = new FileInputStream(TestData.SUNSHINE_LEAD_MP3)) {
+            index = SeekIndex.build(in, "etag");
+        }
+
+        assertEquals(SeekIndex.Format.MP3, index.format());
+        assertEquals(48000, index.sampleRate());
+        assertEquals(1152, index.samplesPerFrame());
+        // 5130 frames, following a 44-byte ID3 tag.
+        assertEquals(SeekIndex.MIN_FRAMES_PER_POINT, index.framesPerPoint());
+        assertEquals(642, index.points().length);
+        assertEquals(44, index.points()[0]);
+        assertEquals(index, JsonUtils.fromJson(JsonUtils.toJson(index), SeekIndex.class));
+    }
+
+    @Test
+    void GIVEN_mp3_WHEN_openRange_THEN_same_samples_as_decoding_from_start() throws Exception {
+        SeekIndex index;
+        try (InputStream in = new FileInputStream(TestData.SUNSHINE_LEAD_MP3)) {
+            index = SeekIndex.build(in, "etag");
+        }
+
+        byte[] seeked;
+        try (AudioInputStream range = index.openRange(new FileInputStream(TestData.SUNSHINE_LEAD_MP3), 60_000, 61_000)) {
+            seeked = range.readAllBytes();
+        }
+        byte[] decoded;
+        try (AudioInputStream range = SeekIndex.decodeRange(new FileInputStream(TestData.SUNSHINE_LEAD_MP3), 60_000, 61_000)) {
+            decoded = range.readAllBytes();
+        }
+
+        assertEquals(48_000 * 2, seeked.length);
+        assertArrayEquals(decoded, seeked);
+    }
+
+    @Test
+    void GIVEN_stream_after_seek_WHEN_leadingFramesWithoutMainData_THEN_frames_that_use_reservoir_counted() throws Exception {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        // MPEG 1 layer III, 64 kbps, 48 kHz, mono, no CRC: 192 bytes, of which 171 are main data.
+        byte[] header = { (byte) 0xFF, (byte) 0xFB, 0x54, (byte) 0xC0 };
+        int[] mainDataBegins = { 400, 200, 300, 100 };
+        for (int mainDataBegin : mainDataBegins) {
+            byte[] frame = new byte[192];
+            System.arraycopy(header, 0, frame, 0, 4);
+            frame[4] = (byte) (mainDataBegin >> 1);
+            frame[5] = (byte) ((mainDataBegin & 1) << 7);
+            frames.write(frame);
+        }
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(frames.toByteArray()));
+
+        // 400 > 0, and 200 > 171, but 300 <= 342.
+        assertEquals(2, SeekIndex.leadingFramesWithoutMainData(in));
+        assertEquals(0xFF, in.read());
+    }
+}
@@ -0,0 +1,67 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+public class SilenceMapTest {
+
+    private static final int SAMPLE_RATE = 1000;
+
+    /** Ten blocks of 16-bit mono audio; blocks 2 and 6 are loud, and the rest are silent apart from faint noise. */
+    private static AudioInputStream audio() {
+        int blockSamples = SAMPLE_RATE * SilenceMap.BLOCK_MS / 1000;
+        ByteBuffer bytes = ByteBuffer.allocate(10 * blockSamples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int block = 0; block < 10; ++block) {
+            for (int i = 0; i < blockSamples; ++i) {
+                bytes.putShort((short) (block == 2 || block == 6 ? 10000 : i % 2 == 0 ? 10 : -10));
+            }
+        }
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+        return new AudioInputStream(new ByteArrayInputStream(bytes.array()), format, 10 * blockSamples);
+    }
+
+    @Test
+    void GIVEN_audio_with_loud_blocks_WHEN_compute_THEN_other_blocks_silent() throws Exception {
+        SilenceMap map = SilenceMap.compute(audio(), "etag");
+
+        assertEquals(10, map.numBlocks());
+        // Silent blocks 0-1, 3-5 and 7-9.
+        assertEquals(0b1110111011L, map.silentBlocks()[0]);
+        assertEquals(map, JsonUtils.fromJson(JsonUtils.toJson(map), SilenceMap.class));
+    }
+
+    @Test
+    void GIVEN_map_WHEN_isSilent_THEN_neighbouring_blocks_must_be_silent_too() throws Exception {
+        SilenceMap map = SilenceMap.compute(audio(), "etag");
+
+        // Block 4 is silent, and so are blocks 3 and 5 on either side of it.
+        assertTrue(map.isSilent(1000, 1250));
+        // Block 3 is silent, but block 2 before it isn't.
+        assertFalse(map.isSilent(750, 1000));
+        // Blocks 8 and 9, and past the end.
+        assertTrue(map.isSilent(2000, 3000));
+        assertFalse(map.isSilent(0, 2500));
+    }
+
+    @Test
+    void GIVEN_stream_starting_later_and_slower_WHEN_forStream_THEN_frames_mapped_to_audio_time() throws Exception {
+        SilenceMap map = SilenceMap.compute(audio(), "etag");
+        // Starts at 1000 ms, playing at half speed: frame 0 is at 1000 ms, and frame 500 is at 1250 ms.
+        AudioMixingStream.InputSilence silence = map.forStream(1000, 0.5, SAMPLE_RATE);
+
+        assertTrue(silence.isSilent(0, 500));
+        // Up to 1750 ms, which takes in the loud block 6.
+        assertFalse(silence.isSilent(0, 1500));
+    }
+}
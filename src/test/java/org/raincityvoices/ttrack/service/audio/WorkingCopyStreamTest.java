@@ -0,0 +1,70 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+
+public class WorkingCopyStreamTest {
+
+    private static final double FREQUENCY = 1000.0;
+
+    private static short[] transcode(AudioInputStream in) throws Exception {
+        try (WorkingCopyStream out = WorkingCopyStream.create(in)) {
+            assertEquals(WorkingCopy.FORMAT, out.getFormat());
+            ShortBuffer samples = ByteBuffer.wrap(out.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            short[] result = new short[samples.remaining()];
+            samples.get(result);
+            return result;
+        }
+    }
+
+    @Test
+    void GIVEN_stereo_44_1kHz_WHEN_transcoded_THEN_mono_48kHz_with_channels_averaged() throws Exception {
+        // The sine on the left, and silence on the right.
+        int numFrames = 44100;
+        ByteBuffer bytes = ByteBuffer.allocate(4 * numFrames).order(ByteOrder.LITTLE_ENDIAN);
+        for (int n = 0; n < numFrames; ++n) {
+            bytes.putShort((short) Math.round(0.5 * Math.sin(2 * Math.PI * FREQUENCY * n / 44100) * Short.MAX_VALUE));
+            bytes.putShort((short) 0);
+        }
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(bytes.array()), AudioFormats.STEREO_PCM_44_1KHZ, numFrames);
+
+        short[] out = transcode(in);
+
+        assertEquals(48000, out.length);
+        for (int n = 100; n < out.length - 100; ++n) {
+            double expected = 0.25 * Math.sin(2 * Math.PI * FREQUENCY * n / 48000) * Short.MAX_VALUE;
+            assertEquals(expected, out[n], 3.0, "sample " + n);
+        }
+    }
+
+    @Test
+    void GIVEN_24_bit_silence_WHEN_transcoded_THEN_dithered_by_at_most_one_step() throws Exception {
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 48000, 24, 1, 3, 48000, false);
+        int numFrames = 4800;
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(new byte[3 * numFrames]), format, numFrames);
+
+        short[] out = transcode(in);
+
+        assertEquals(numFrames, out.length);
+        int nonZero = 0;
+        for (short sample : out) {
+            assertTrue(Math.abs(sample) <= 1, "sample " + sample);
+            if (sample != 0) {
+                ++nonZero;
+            }
+        }
+        // Triangular dither of one step either way rounds to a non-zero step a quarter of the time.
+        assertTrue(nonZero > numFrames / 8 && nonZero < numFrames / 2, nonZero + " non-zero samples");
+    }
+}
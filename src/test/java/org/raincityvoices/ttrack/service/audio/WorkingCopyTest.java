@@ -0,0 +1,44 @@
+package org.raincityvoices.ttrack.service.audio;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.Test;
+
+public class WorkingCopyTest {
+
+    private static final String SOURCE_ETAG = "\"0x1\"";
+    private static final String COPY_ETAG = "\"0x2\"";
+
+    @Test
+    void GIVEN_copy_WHEN_isCurrent_THEN_only_for_same_source_and_same_copy() throws Exception {
+        WorkingCopy copy = new WorkingCopy("song1/Lead.work.wav", SOURCE_ETAG,
+            SeekIndex.build(new ByteArrayInputStream(silentWav()), COPY_ETAG));
+
+        assertTrue(copy.isCurrent(SOURCE_ETAG, COPY_ETAG));
+        // The part was replaced.
+        assertFalse(copy.isCurrent("\"0x3\"", COPY_ETAG));
+        // The copy was replaced, e.g. by a task for newer media.
+        assertFalse(copy.isCurrent(SOURCE_ETAG, "\"0x3\""));
+        // ETags that aren't known yet, e.g. while a write-behind upload is pending.
+        assertFalse(copy.isCurrent(null, COPY_ETAG));
+        assertFalse(copy.isCurrent(SOURCE_ETAG, null));
+    }
+
+    /** A tenth of a second of silence, in the working copy format. */
+    private static byte[] silentWav() throws Exception {
+        int numFrames = (int) WorkingCopy.FORMAT.getFrameRate() / 10;
+        byte[] samples = new byte[numFrames * WorkingCopy.FORMAT.getFrameSize()];
+        AudioInputStream pcm = new AudioInputStream(new ByteArrayInputStream(samples), WorkingCopy.FORMAT, numFrames);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioSystem.write(pcm, AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package org.raincityvoices.ttrack.service.audio.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MatrixMixTest {
+
+    private static final ObjectMapper MAPPER = JsonUtils.newMapper();
+
+    /** The first part on the left, and the other two at -6 dB on the right. */
+    private static final MatrixMix MY_PART_LEFT = new MatrixMix(3, new int[] { 0, 1, 3 }, new int[] { 0, 1, 2 },
+        new float[] { 1.0f, 0.5f, 0.5f });
+
+    @Test
+    void GIVEN_matrix_mix_WHEN_json_round_trip_THEN_equal() throws JsonProcessingException {
+        String json = MAPPER.writeValueAsString(MY_PART_LEFT);
+        AudioMix recon = MAPPER.readValue(json, AudioMix.class);
+
+        assertInstanceOf(MatrixMix.class, recon);
+        assertEquals(MY_PART_LEFT, recon);
+    }
+
+    @Test
+    void GIVEN_csr_weights_WHEN_factor_THEN_missing_entries_are_zero() {
+        assertEquals(1.0f, MY_PART_LEFT.factor(0, 0));
+        assertEquals(0.0f, MY_PART_LEFT.factor(1, 0));
+        assertEquals(0.0f, MY_PART_LEFT.factor(0, 1));
+        assertEquals(0.5f, MY_PART_LEFT.factor(2, 1));
+        assertEquals(2, MY_PART_LEFT.numOutputs());
+    }
+
+    @Test
+    void GIVEN_invalid_matrix_WHEN_create_THEN_throws() {
+        // input out of range
+        assertThrows(IllegalArgumentException.class,
+            () -> new MatrixMix(2, new int[] { 0, 1 }, new int[] { 2 }, new float[] { 1.0f }));
+        // inputs out of order
+        assertThrows(IllegalArgumentException.class,
+            () -> new MatrixMix(2, new int[] { 0, 2 }, new int[] { 1, 0 }, new float[] { 0.5f, 0.5f }));
+        // last offset doesn't match the number of weights
+        assertThrows(IllegalArgumentException.class,
+            () -> new MatrixMix(2, new int[] { 0, 1 }, new int[] { 0, 1 }, new float[] { 0.5f, 0.5f }));
+        // zero weight
+        assertThrows(IllegalArgumentException.class,
+            () -> new MatrixMix(2, new int[] { 0, 1 }, new int[] { 0 }, new float[] { 0.0f }));
+    }
+
+    @Test
+    void GIVEN_stereo_mix_WHEN_mixed_as_matrix_THEN_same_output_over_several_blocks() {
+        StereoMix stereo = new StereoMix(new float[] { 0.5f, 0.25f, 0.25f }, new float[] { 0.0f, 0.0f, 1.0f });
+        MatrixMix matrix = MatrixMix.of(stereo);
+        int numFrames = 3 * MixPlan.BLOCK_FRAMES + 17;
+        Random random = new Random(42);
+        float[][] samples = new float[3][numFrames];
+        for (float[] part : samples) {
+            for (int f = 0; f < numFrames; ++f) {
+                part[f] = random.nextFloat() * 2 - 1;
+            }
+        }
+
+        FloatBuffer out = FloatBuffer.allocate(2 * numFrames);
+        matrix.mix(wrap(samples), out);
+
+        float[] expected = new float[2 * numFrames];
+        for (int f = 0; f < numFrames; ++f) {
+            expected[2 * f] = 0.5f * samples[0][f] + 0.25f * samples[1][f] + 0.25f * samples[2][f];
+            expected[2 * f + 1] = samples[2][f];
+        }
+        assertEquals(2 * numFrames, out.position());
+        assertArrayEquals(expected, out.array(), 1e-6f);
+        assertEquals(stereo.compile().isCopy(1), matrix.compile().isCopy(1));
+    }
+
+    private static FloatBuffer[] wrap(float[][] samples) {
+        FloatBuffer[] buffers = new FloatBuffer[samples.length];
+        for (int i = 0; i < samples.length; ++i) {
+            buffers[i] = FloatBuffer.wrap(samples[i]);
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,69 @@
+package org.raincityvoices.ttrack.service.audio.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class MixPlanTest {
+
+    private static final boolean[] ALL_ACTIVE = { true, true, true };
+
+    @Test
+    void GIVEN_solo_mix_WHEN_compile_THEN_output_copies_the_soloed_input() {
+        MixPlan plan = new StereoMix(new float[] { 0.0f, 1.0f, 0.0f }, new float[] { 0.0f, 1.0f, 0.0f }).compile();
+
+        assertTrue(plan.isCopy(0));
+        assertTrue(plan.isCopy(1));
+        assertFalse(plan.usesInput(0));
+        assertTrue(plan.usesInput(1));
+        assertFalse(plan.usesInput(2));
+    }
+
+    @Test
+    void GIVEN_unused_inputs_WHEN_execute_THEN_they_are_not_read() {
+        MixPlan plan = new MonoMix(new float[] { 0.0f, 1.0f, 0.0f }).compile();
+        FloatBuffer[] ins = {
+            FloatBuffer.allocate(0),
+            FloatBuffer.wrap(new float[] { 0.1f, 0.2f, 0.3f }),
+            FloatBuffer.allocate(0)
+        };
+        FloatBuffer out = FloatBuffer.allocate(3);
+
+        plan.execute(ins, ALL_ACTIVE, out);
+
+        assertEquals(3, out.position());
+        assertArrayEquals(new float[] { 0.1f, 0.2f, 0.3f }, out.array());
+        assertEquals(3, ins[1].position());
+    }
+
+    @Test
+    void GIVEN_stereo_mix_WHEN_execute_THEN_same_as_mix() {
+        StereoMix mix = new StereoMix(new float[] { 1.0f, 0.25f, 0.0f }, new float[] { 0.0f, 0.75f, 0.5f });
+        float[][] samples = {
+            { 0.1f, 0.2f, 0.3f, 0.4f },
+            { -0.5f, 0.5f, -0.25f, 0.25f },
+            { 0.9f, 0.8f, 0.7f, 0.6f }
+        };
+        FloatBuffer expected = FloatBuffer.allocate(8);
+        mix.mix(wrap(samples), expected);
+        FloatBuffer actual = FloatBuffer.allocate(8);
+
+        mix.compile().execute(wrap(samples), ALL_ACTIVE, actual);
+
+        assertEquals(8, actual.position());
+        assertArrayEquals(expected.array(), actual.array(), 1e-6f);
+    }
+
+    private static FloatBuffer[] wrap(float[][] samples) {
+        FloatBuffer[] buffers = new FloatBuffer[samples.length];
+        for (int i = 0; i < samples.length; ++i) {
+            buffers[i] = FloatBuffer.wrap(samples[i]);
+        }
+        return buffers;
+    }
+}
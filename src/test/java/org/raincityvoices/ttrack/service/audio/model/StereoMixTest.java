@@ -40,6 +40,29 @@ public class StereoMixTest {
         assertEquals(0.6f, outBuf.get(), 1e-6);
     }
 
+    @Test
+    public void skipsInactiveInputs() {
+        StereoMix mix = new StereoMix(new float[] { 1.0f, 0.0f }, new float[] { 0.5f, 0.5f });
+
+        FloatBuffer inBufs[] = new FloatBuffer[] {
+            FloatBuffer.wrap(new float[] { 0.0f, 0.0f }),
+            FloatBuffer.wrap(new float[] { 0.5f, 0.4f })
+        };
+        FloatBuffer outBuf = FloatBuffer.allocate(4);
+
+        mix.mix(inBufs, new boolean[] { false, true }, outBuf);
+        assertEquals(2, inBufs[0].position());
+        assertEquals(2, inBufs[1].position());
+
+        outBuf.position(0);
+
+        assertEquals(0.0f, outBuf.get(), 1e-6);
+        assertEquals(0.25f, outBuf.get(), 1e-6);
+
+        assertEquals(0.0f, outBuf.get(), 1e-6);
+        assertEquals(0.2f, outBuf.get(), 1e-6);
+    }
+
     @Test
     public void leftAndRightFactorsMustBeSameLength() {
         assertThrows(IllegalArgumentException.class, () -> new StereoMix(new float[3], new float[4]));
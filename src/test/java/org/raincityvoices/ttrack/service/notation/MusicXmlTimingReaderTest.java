@@ -0,0 +1,119 @@
+package org.raincityvoices.ttrack.service.notation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.api.TimedTextData;
+import org.raincityvoices.ttrack.service.notation.MusicXmlTimingReader.NotationTiming;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO.Entry;
+
+public class MusicXmlTimingReaderTest {
+
+    // At 60 BPM, with one division per quarter note, each division is one second.
+    private static final String SCORE = """
+        <?xml version="1.0" encoding="UTF-8" standalone="no"?>
+        <!DOCTYPE score-partwise PUBLIC "-//Recordare//DTD MusicXML 4.0 Partwise//EN" "http://www.musicxml.org/dtds/partwise.dtd">
+        <score-partwise version="4.0">
+          <part-list>
+            <score-part id="P1"><part-name>Lead</part-name></score-part>
+            <score-part id="P2"><part-name>Bass</part-name></score-part>
+          </part-list>
+          <part id="P1">
+            <measure number="1">
+              <attributes><divisions>1</divisions></attributes>
+              <direction><sound tempo="60"/></direction>
+              <note><pitch><step>C</step><octave>4</octave></pitch><duration>2</duration>
+                <lyric number="1"><syllabic>begin</syllabic><text>Hel</text></lyric></note>
+              <note><pitch><step>D</step><octave>4</octave></pitch><duration>2</duration>
+                <lyric number="1"><syllabic>end</syllabic><text>lo</text></lyric></note>
+            </measure>
+            <measure number="2">
+              <barline location="left"><repeat direction="forward"/></barline>
+              <note><pitch><step>E</step><octave>4</octave></pitch><duration>4</duration>
+                <lyric number="1"><text>one</text></lyric>
+                <lyric number="2"><text>two</text></lyric></note>
+            </measure>
+            <measure number="3">
+              <barline location="left"><ending number="1" type="start"/></barline>
+              <note><pitch><step>F</step><octave>4</octave></pitch><duration>4</duration></note>
+              <barline location="right"><ending number="1" type="stop"/><repeat direction="backward"/></barline>
+            </measure>
+            <measure number="4">
+              <barline location="left"><ending number="2" type="start"/></barline>
+              <note><pitch><step>G</step><octave>4</octave></pitch><duration>4</duration></note>
+              <note><chord/><pitch><step>B</step><octave>4</octave></pitch><duration>4</duration></note>
+              <barline location="right"><ending number="2" type="discontinue"/></barline>
+            </measure>
+            <measure number="5">
+              <note><rest/><duration>4</duration></note>
+            </measure>
+          </part>
+          <part id="P2">
+            <measure number="1">
+              <attributes><divisions>2</divisions></attributes>
+              <note><pitch><step>C</step><octave>3</octave></pitch><duration>8</duration><voice>1</voice></note>
+              <backup><duration>8</duration></backup>
+              <note><pitch><step>E</step><octave>3</octave></pitch><duration>8</duration><voice>2</voice></note>
+            </measure>
+            <measure number="2"><note><rest/><duration>8</duration></note></measure>
+            <measure number="3"><note><rest/><duration>8</duration></note></measure>
+            <measure number="4"><note><rest/><duration>8</duration></note></measure>
+            <measure number="5"><note><rest/><duration>8</duration></note></measure>
+          </part>
+        </score-partwise>
+        """;
+
+    private static final TimedTextDTO EXPECTED_MEASURES = TimedTextDTO.builder()
+        .part(TimedTextData.SHARED_PART_NAME)
+        .type(TimedTextData.TYPE_MEASURES.value())
+        .entries(List.of(
+            new Entry(0, "1"),
+            new Entry(4000, "2"),
+            new Entry(8000, "3"),
+            new Entry(12000, "2"),
+            new Entry(16000, "4"),
+            new Entry(20000, "5")))
+        .build();
+
+    private static final TimedTextDTO EXPECTED_LYRICS = TimedTextDTO.builder()
+        .part("Lead")
+        .type(TimedTextData.TYPE_LYRICS.value())
+        .entries(List.of(
+            new Entry(0, "Hel-"),
+            new Entry(2000, "lo"),
+            new Entry(4000, "one"),
+            new Entry(12000, "two")))
+        .build();
+
+    @Test
+    void GIVEN_score_with_repeat_and_endings_WHEN_read_THEN_measures_and_lyrics_follow_playback_order() throws Exception {
+        NotationTiming timing = new MusicXmlTimingReader().read(new ByteArrayInputStream(SCORE.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(EXPECTED_MEASURES, timing.measures());
+        assertEquals(List.of(EXPECTED_LYRICS), timing.lyrics());
+    }
+
+    @Test
+    void GIVEN_compressed_score_WHEN_read_THEN_same_as_uncompressed() throws Exception {
+        ByteArrayOutputStream mxl = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(mxl)) {
+            zip.putNextEntry(new ZipEntry("META-INF/container.xml"));
+            zip.write("<container><rootfiles><rootfile full-path=\"score.xml\"/></rootfiles></container>".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("score.xml"));
+            zip.write(SCORE.getBytes(StandardCharsets.UTF_8));
+        }
+
+        NotationTiming timing = new MusicXmlTimingReader().read(new ByteArrayInputStream(mxl.toByteArray()));
+
+        assertEquals(EXPECTED_MEASURES, timing.measures());
+        assertEquals(List.of(EXPECTED_LYRICS), timing.lyrics());
+    }
+}
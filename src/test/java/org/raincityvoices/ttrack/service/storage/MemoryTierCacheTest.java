@@ -0,0 +1,42 @@
+package org.raincityvoices.ttrack.service.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MemoryTierCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MemoryTierCache<String> cache = new MemoryTierCache<>("test",
+        MemoryTierCache.Settings.builder().maxBytes(1000).maxEntryBytes(100).build(), registry);
+
+    @Test
+    void GIVEN_cached_value_WHEN_get_with_other_etag_THEN_miss() {
+        assertTrue(cache.put("song/Lead", "etag-1", "v1", 10));
+
+        assertEquals("v1", cache.get("song/Lead", "etag-1"));
+        assertNull(cache.get("song/Lead", "etag-2"));
+        assertNull(cache.get("song/Lead", ""));
+
+        cache.put("song/Lead", "etag-2", "v2", 20);
+        assertNull(cache.get("song/Lead", "etag-1"));
+        assertEquals("v2", cache.get("song/Lead", "etag-2"));
+        assertEquals(20, cache.bytes());
+        assertEquals(20.0, registry.get("ttrack.cache.memory.bytes").tag("cache", "test").gauge().value());
+    }
+
+    @Test
+    void GIVEN_large_value_or_no_etag_WHEN_put_THEN_not_cached() {
+        cache.put("song/Lead", "etag-1", "v1", 10);
+
+        assertFalse(cache.put("song/Lead", "etag-2", "v2", 101));
+        assertNull(cache.getIfPresent("song/Lead"));
+        assertFalse(cache.put("song/Lead", null, "v3", 10));
+        assertEquals(0, cache.bytes());
+    }
+}
@@ -0,0 +1,121 @@
+package org.raincityvoices.ttrack.service.storage.async;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.raincityvoices.ttrack.service.exceptions.ConflictException;
+
+/**
+ * In-memory implementation of AsyncTaskStorage, with the same optimistic concurrency
+ * semantics as the Azure Tables implementation (creates fail if the row exists; updates
+ * fail if the ETag doesn't match).
+ *
+ * This stands in for the shared AsyncTasks table in tests, which allows several workers
+ * to be exercised against one queue within a single JVM.
+ */
+public class InMemoryAsyncTaskStorage implements AsyncTaskStorage {
+
+    private final Clock clock;
+    private final Map<String, AsyncTaskDTO> tasks = new ConcurrentHashMap<>();
+    private final Map<String, TaskLeaseDTO> leases = new ConcurrentHashMap<>();
+
+    public InMemoryAsyncTaskStorage(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized AsyncTaskDTO createTask(AsyncTaskDTO taskDto) {
+        if (taskDto.hasETag()) {
+            throw new IllegalArgumentException("Attempting to create a task with a DTO that has an ETag");
+        }
+        if (tasks.containsKey(taskDto.getTaskId())) {
+            throw new ConflictException("Task " + taskDto.getTaskId() + " already exists.");
+        }
+        store(taskDto);
+        return taskDto;
+    }
+
+    @Override
+    public synchronized AsyncTaskDTO updateTask(AsyncTaskDTO taskDto) {
+        if (!taskDto.hasETag()) {
+            throw new IllegalArgumentException("Attempting to update a task with a DTO that has no ETag");
+        }
+        AsyncTaskDTO existing = tasks.get(taskDto.getTaskId());
+        if (existing == null || !existing.getETag().equals(taskDto.getETag())) {
+            throw new ConflictException("Task " + taskDto.getTaskId() + " has been updated since last read.");
+        }
+        store(taskDto);
+        return taskDto;
+    }
+
+    @Override
+    public AsyncTaskDTO getTask(String taskId) {
+        AsyncTaskDTO dto = tasks.get(taskId);
+        return dto == null ? null : copy(dto);
+    }
+
+    @Override
+    public synchronized List<AsyncTaskDTO> listQueuedTasks(int maxResults) {
+        return tasks.values().stream()
+            .filter(t -> Boolean.TRUE.equals(t.getQueued()))
+            .filter(t -> !AsyncTaskDTO.isTerminal(t.getStatus()))
+            .sorted((a, b) -> a.getScheduled().compareTo(b.getScheduled()))
+            .limit(maxResults)
+            .map(this::copy)
+            .toList();
+    }
+
+    @Override
+    public TaskLeaseDTO getLease(String taskId) {
+        TaskLeaseDTO lease = leases.get(taskId);
+        return lease == null ? null : copy(lease);
+    }
+
+    @Override
+    public synchronized TaskLeaseDTO putLease(TaskLeaseDTO lease) {
+        TaskLeaseDTO existing = leases.get(lease.getTaskId());
+        if (lease.hasETag()
+                ? existing == null || !existing.getETag().equals(lease.getETag())
+                : existing != null) {
+            throw new ConflictException("Lease for task " + lease.getTaskId() + " has been updated since last read.");
+        }
+        lease.setETag(newETag());
+        lease.setUpdated(clock.instant());
+        leases.put(lease.getTaskId(), copy(lease));
+        return lease;
+    }
+
+    @Override
+    public synchronized void deleteLease(TaskLeaseDTO lease) {
+        TaskLeaseDTO existing = leases.get(lease.getTaskId());
+        if (existing != null && !existing.getETag().equals(lease.getETag())) {
+            throw new ConflictException("Lease for task " + lease.getTaskId() + " has been updated since last read.");
+        }
+        leases.remove(lease.getTaskId());
+    }
+
+    private void store(AsyncTaskDTO taskDto) {
+        taskDto.setETag(newETag());
+        taskDto.setUpdated(clock.instant());
+        tasks.put(taskDto.getTaskId(), copy(taskDto));
+    }
+
+    private AsyncTaskDTO copy(AsyncTaskDTO dto) {
+        AsyncTaskDTO copy = dto.toBuilder().build();
+        copy.setETag(dto.getETag());
+        return copy;
+    }
+
+    private TaskLeaseDTO copy(TaskLeaseDTO lease) {
+        TaskLeaseDTO copy = lease.toBuilder().build();
+        copy.setETag(lease.getETag());
+        return copy;
+    }
+
+    private static String newETag() {
+        return UUID.randomUUID().toString();
+    }
+}
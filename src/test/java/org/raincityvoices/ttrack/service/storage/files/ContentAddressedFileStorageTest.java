@@ -0,0 +1,144 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.hash.Hashing;
+
+public class ContentAddressedFileStorageTest {
+
+    private static final byte[] CONTENT = "some media content".getBytes(StandardCharsets.UTF_8);
+    private static final String SHA256 = Hashing.sha256().hashBytes(CONTENT).toString();
+
+    @TempDir
+    File tempDir;
+    private File remoteDir;
+    private final AtomicInteger uploads = new AtomicInteger();
+    private LocalFileStorage delegate;
+    private ContentAddressedFileStorage storage;
+
+    @BeforeEach
+    public void setup() {
+        remoteDir = new File(tempDir, "remote");
+        remoteDir.mkdirs();
+        delegate = new LocalFileStorage(remoteDir,
+            new ParallelRangeDownloader(ParallelRangeDownloader.Settings.DEFAULT, Executors.newCachedThreadPool())) {
+            @Override
+            public void upload(File source, String location) {
+                uploads.incrementAndGet();
+                super.upload(source, location);
+            }
+
+            @Override
+            public String getDownloadUrl(String location, String etag, FileMetadata servedAs, Duration timeout) {
+                return getDownloadUrl(location, timeout) + "?type=" + servedAs.contentType() + "&name=" + servedAs.fileName();
+            }
+        };
+        storage = new ContentAddressedFileStorage(delegate);
+    }
+
+    @Test
+    void GIVEN_same_content_at_two_locations_WHEN_upload_THEN_content_stored_once() throws IOException {
+        File source = file("source", CONTENT);
+
+        storage.upload(source, "song1/Lead");
+        storage.upload(source, "song2/Lead");
+
+        // The content, and an empty pointer at each location.
+        assertEquals(3, remoteDir.list().length);
+        assertEquals(3, uploads.get());
+        for (String location : new String[] { "song1/Lead", "song2/Lead" }) {
+            FileMetadata pointer = delegate.fetchMetadata(location);
+            assertEquals(0, pointer.lengthBytes());
+            assertEquals(SHA256, pointer.contentSha256());
+            FileMetadata resolved = storage.fetchMetadata(location);
+            assertEquals(CONTENT.length, resolved.lengthBytes());
+            assertEquals(SHA256, resolved.etag());
+        }
+        assertTrue(delegate.exists(ContentAddressedFileStorage.contentLocation(SHA256)));
+    }
+
+    @Test
+    void GIVEN_location_points_to_same_content_WHEN_upload_THEN_nothing_written() throws IOException {
+        File source = file("source", CONTENT);
+        storage.upload(source, "song1/Lead");
+        uploads.set(0);
+
+        storage.upload(source, "song1/Lead");
+
+        assertEquals(0, uploads.get());
+    }
+
+    @Test
+    void GIVEN_pointer_WHEN_download_THEN_content_downloaded_unless_current() throws IOException {
+        storage.upload(file("source", CONTENT), "song1/Lead");
+        File destination = new File(tempDir, "download");
+
+        FileMetadata downloaded = storage.download("song1/Lead", FileMetadata.UNKNOWN, destination);
+
+        assertEquals(SHA256, downloaded.etag());
+        assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+
+        File notDownloaded = new File(tempDir, "not-downloaded");
+        assertEquals(SHA256, storage.download("song1/Lead", downloaded, notDownloaded).etag());
+        assertFalse(notDownloaded.exists());
+    }
+
+    @Test
+    void GIVEN_legacy_blob_WHEN_read_THEN_served_as_is() throws IOException {
+        delegate.upload(file("source", CONTENT), "song1/Lead");
+        File destination = new File(tempDir, "download");
+
+        FileMetadata metadata = storage.fetchMetadata("song1/Lead");
+        FileMetadata downloaded = storage.download("song1/Lead", FileMetadata.UNKNOWN, destination);
+
+        assertNull(metadata.contentSha256());
+        assertEquals(CONTENT.length, metadata.lengthBytes());
+        assertEquals(delegate.fetchMetadata("song1/Lead").etag(), metadata.etag());
+        assertEquals(metadata.etag(), downloaded.etag());
+        assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    void GIVEN_pointer_WHEN_updateMetadata_THEN_digest_kept() throws IOException {
+        storage.upload(file("source", CONTENT), "song1/Lead");
+
+        storage.updateMetadata(FileMetadata.builder().fileName("Lead.wav").build(), "song1/Lead");
+
+        FileMetadata metadata = storage.fetchMetadata("song1/Lead");
+        assertEquals("Lead.wav", metadata.fileName());
+        assertEquals(SHA256, metadata.etag());
+    }
+
+    @Test
+    void GIVEN_pointer_WHEN_getDownloadUrl_THEN_content_served_with_locations_type_and_name() throws IOException {
+        storage.upload(file("source", CONTENT), "song1/Lead");
+        storage.updateMetadata(FileMetadata.builder().fileName("Lead.wav").contentType("audio/wav").build(), "song1/Lead");
+
+        String url = storage.getDownloadUrl("song1/Lead", Duration.ofMinutes(5));
+
+        assertEquals(delegate.getDownloadUrl(ContentAddressedFileStorage.contentLocation(SHA256), Duration.ofMinutes(5))
+            + "?type=audio/wav&name=Lead.wav", url);
+    }
+
+    private File file(String name, byte[] content) throws IOException {
+        File file = new File(tempDir, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
@@ -0,0 +1,116 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.UserDelegationKey;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+
+public class DownloadUrlHelperTest {
+
+    private static final Instant NOW = Instant.parse("2026-02-02T12:34:56Z");
+    private static final Duration VALIDITY = Duration.ofMinutes(60);
+
+    @Mock
+    private BlobServiceClient blobServiceClient;
+    @Mock
+    private BlobClient blobClient;
+
+    private DownloadUrlHelper helper;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        helper = new DownloadUrlHelper(blobServiceClient);
+        helper.clock = Clock.fixed(NOW, ZoneOffset.UTC);
+        when(blobServiceClient.getUserDelegationKey(any(), any())).thenAnswer(inv -> new UserDelegationKey()
+            .setSignedStart(inv.getArgument(0))
+            .setSignedExpiry(inv.getArgument(1)));
+        when(blobClient.getBlobUrl()).thenReturn("https://account.blob.core.windows.net/media/sunshine/Lead");
+        when(blobClient.generateUserDelegationSas(any(), any())).thenAnswer(inv -> {
+            BlobServiceSasSignatureValues values = inv.getArgument(0);
+            return "st=" + values.getStartTime() + "&se=" + values.getExpiryTime();
+        });
+    }
+
+    @Test
+    void GIVEN_url_generated_WHEN_same_blob_requested_in_same_bucket_THEN_same_url_and_no_key_fetch() {
+        String first = helper.getDownloadUrl(blobClient, VALIDITY);
+        helper.clock = Clock.fixed(NOW.plusSeconds(60), ZoneOffset.UTC);
+        String second = helper.getDownloadUrl(blobClient, VALIDITY);
+
+        assertEquals(first, second);
+        assertEquals("https://account.blob.core.windows.net/media/sunshine/Lead?st=2026-02-02T12:25Z&se=2026-02-02T13:45Z", first);
+        verify(blobServiceClient, times(1)).getUserDelegationKey(any(), any());
+        verify(blobClient, times(1)).generateUserDelegationSas(any(), any());
+    }
+
+    @Test
+    void GIVEN_url_generated_WHEN_blob_replaced_in_same_bucket_THEN_new_url() {
+        String first = helper.getDownloadUrl(blobClient, "\"0x1\"", VALIDITY);
+        String again = helper.getDownloadUrl(blobClient, "\"0x1\"", VALIDITY);
+        String replaced = helper.getDownloadUrl(blobClient, "\"0x2\"", VALIDITY);
+
+        assertEquals(first, again);
+        assertNotEquals(first, replaced);
+        assertEquals("https://account.blob.core.windows.net/media/sunshine/Lead?st=2026-02-02T12:25Z&se=2026-02-02T13:45Z&v=%220x2%22", replaced);
+        verify(blobClient, times(2)).generateUserDelegationSas(any(), any());
+        verify(blobServiceClient, times(1)).getUserDelegationKey(any(), any());
+    }
+
+    @Test
+    void GIVEN_response_headers_WHEN_getDownloadUrl_THEN_signed_as_overrides() {
+        BlobHttpHeaders headers = new BlobHttpHeaders().setContentType("audio/wav").setContentDisposition("attachment; filename=Lead.wav");
+
+        helper.getDownloadUrl(blobClient, "\"0x1\"", headers, VALIDITY);
+        helper.getDownloadUrl(blobClient, "\"0x1\"", VALIDITY);
+
+        // Signed separately, rather than served from the cache.
+        ArgumentCaptor<BlobServiceSasSignatureValues> values = ArgumentCaptor.forClass(BlobServiceSasSignatureValues.class);
+        verify(blobClient, times(2)).generateUserDelegationSas(values.capture(), any());
+        assertEquals("audio/wav", values.getAllValues().get(0).getContentType());
+        assertEquals("attachment; filename=Lead.wav", values.getAllValues().get(0).getContentDisposition());
+        assertNull(values.getAllValues().get(1).getContentType());
+    }
+
+    @Test
+    void GIVEN_cached_key_WHEN_url_in_later_bucket_THEN_new_url_with_same_key() {
+        String first = helper.getDownloadUrl(blobClient, VALIDITY);
+        helper.clock = Clock.fixed(NOW.plus(Duration.ofMinutes(20)), ZoneOffset.UTC);
+        String second = helper.getDownloadUrl(blobClient, VALIDITY);
+
+        assertNotEquals(first, second);
+        verify(blobServiceClient, times(1)).getUserDelegationKey(any(), any());
+    }
+
+    @Test
+    void GIVEN_key_expiring_before_url_WHEN_getDownloadUrl_THEN_key_refreshed() {
+        helper.getDownloadUrl(blobClient, VALIDITY);
+        helper.clock = Clock.fixed(NOW.plus(DownloadUrlHelper.KEY_VALIDITY), ZoneOffset.UTC);
+        helper.getDownloadUrl(blobClient, VALIDITY);
+
+        verify(blobServiceClient, times(2)).getUserDelegationKey(any(), any());
+        verify(blobServiceClient).getUserDelegationKey(
+            OffsetDateTime.parse("2026-02-02T12:25:00Z"), OffsetDateTime.parse("2026-02-03T00:25:00Z"));
+    }
+}
@@ -0,0 +1,161 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import lombok.Setter;
+
+/**
+ * A {@link RemoteFileStorage} backed by a local directory, standing in for blob storage in tests.
+ * ETags are MD5 hashes of the file contents, and downloads go through a {@link ParallelRangeDownloader}.
+ * Like blob storage, it keeps the file name, content type and digest set with the file's metadata, until the
+ * file is uploaded again.
+ */
+public class LocalFileStorage implements RemoteFileStorage {
+
+    private final File root;
+    private final ParallelRangeDownloader rangeDownloader;
+    private final AtomicInteger rangeReads = new AtomicInteger();
+    /** The metadata set on each location that blob storage would keep. */
+    private final Map<String, FileMetadata> properties = new ConcurrentHashMap<>();
+    /** Range reads that start at or beyond this offset fail, to simulate a dropped connection. */
+    @Setter
+    private long failReadsFrom = Long.MAX_VALUE;
+
+    public LocalFileStorage(File root, ParallelRangeDownloader rangeDownloader) {
+        this.root = root;
+        this.rangeDownloader = rangeDownloader;
+    }
+
+    public int rangeReads() {
+        return rangeReads.get();
+    }
+
+    @Override
+    public boolean exists(String location) {
+        return file(location).exists();
+    }
+
+    @Override
+    public FileMetadata download(String location, FileMetadata currentMetadata, File destination) {
+        return download(location, currentMetadata, destination, DownloadListener.NONE);
+    }
+
+    @Override
+    public FileMetadata download(String location, FileMetadata currentMetadata, File destination, DownloadListener listener) {
+        FileMetadata metadata = fetchMetadata(location);
+        if (metadata == null || metadata.etag().equals(currentMetadata.etag())) {
+            return metadata;
+        }
+        try {
+            rangeDownloader.download(rangeSource(file(location)), metadata, md5(file(location)), destination, listener);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to download " + location + " to " + destination, e);
+        }
+        return metadata;
+    }
+
+    @Override
+    public FileMetadata fetchMetadata(String location) {
+        File file = file(location);
+        if (!file.exists()) {
+            return null;
+        }
+        FileMetadata stored = properties.getOrDefault(location, FileMetadata.UNKNOWN);
+        try {
+            return FileMetadata.builder()
+                .fileName(stored.fileName() != null ? stored.fileName() : file.getName())
+                .contentType(stored.contentType())
+                .contentSha256(stored.contentSha256())
+                .lengthBytes(file.length())
+                .updated(Instant.ofEpochMilli(file.lastModified()))
+                .etag(Files.asByteSource(file).hash(Hashing.md5()).toString())
+                .build();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+    }
+
+    @Override
+    public String getDownloadUrl(String location, Duration timeout) {
+        return file(location).toURI().toString();
+    }
+
+    @Override
+    public void upload(File source, String location) {
+        try {
+            Files.copy(source, file(location));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to upload " + source + " to " + location, e);
+        }
+        properties.remove(location);
+    }
+
+    @Override
+    public void upload(File source, FileMetadata metadata, String location) {
+        upload(source, location);
+        properties.put(location, stored(metadata, null));
+    }
+
+    @Override
+    public void updateMetadata(FileMetadata metadata, String location) {
+        FileMetadata old = properties.get(location);
+        properties.put(location, stored(metadata, old != null ? old.contentSha256() : null));
+    }
+
+    @Override
+    public void delete(String location) {
+        file(location).delete();
+        properties.remove(location);
+    }
+
+    /**
+     * @return the part of the metadata that blob storage keeps; like blob metadata, the digest is only replaced if set.
+     */
+    private static FileMetadata stored(FileMetadata metadata, String oldSha256) {
+        return FileMetadata.builder()
+            .fileName(metadata.fileName())
+            .contentType(metadata.contentType())
+            .contentSha256(metadata.contentSha256() != null ? metadata.contentSha256() : oldSha256)
+            .build();
+    }
+
+    private ParallelRangeDownloader.RangeSource rangeSource(File file) {
+        return (offset, length, out) -> {
+            rangeReads.incrementAndGet();
+            if (offset >= failReadsFrom) {
+                throw new IOException("Connection reset");
+            }
+            copyRange(file, offset, length, out);
+        };
+    }
+
+    private static void copyRange(File file, long offset, long length, OutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] buffer = new byte[(int) length];
+            raf.seek(offset);
+            raf.readFully(buffer);
+            out.write(buffer);
+        }
+    }
+
+    private static byte[] md5(File file) throws IOException {
+        return Files.asByteSource(file).hash(Hashing.md5()).asBytes();
+    }
+
+    private File file(String location) {
+        return new File(root, URLEncoder.encode(location, StandardCharsets.UTF_8));
+    }
+}
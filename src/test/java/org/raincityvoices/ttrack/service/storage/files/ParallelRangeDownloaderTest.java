@@ -0,0 +1,118 @@
+package org.raincityvoices.ttrack.service.storage.files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.hash.Hashing;
+
+public class ParallelRangeDownloaderTest {
+
+    private static final String LOCATION = "sunshine/All";
+    private static final int CHUNK_BYTES = 16 * 1024;
+    // 7 chunks, the last one partial
+    private static final byte[] CONTENT = new byte[6 * CHUNK_BYTES + 1000];
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    @TempDir
+    private File remoteDir;
+    @TempDir
+    private File cacheDir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void GIVEN_large_file_WHEN_download_THEN_all_chunks_written_in_place() throws IOException {
+        LocalFileStorage remote = newRemote(3);
+        File destination = new File(cacheDir, "All.download");
+        AtomicLong lastProgress = new AtomicLong();
+
+        FileMetadata metadata = remote.download(LOCATION, FileMetadata.UNKNOWN, destination, listener(lastProgress));
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+        assertEquals(CONTENT.length, metadata.lengthBytes());
+        assertEquals(CONTENT.length, lastProgress.get());
+        assertEquals(7, remote.rangeReads());
+        assertFalse(ParallelRangeDownloader.progressFile(destination).exists());
+
+        // Nothing to download if the ETag hasn't changed
+        assertEquals(metadata, remote.download(LOCATION, metadata, destination, listener(lastProgress)));
+        assertEquals(7, remote.rangeReads());
+    }
+
+    @Test
+    void GIVEN_interrupted_download_WHEN_download_again_THEN_resume_after_completed_chunks() throws IOException {
+        LocalFileStorage remote = newRemote(1);
+        File destination = new File(cacheDir, "All.download");
+        remote.setFailReadsFrom(3 * CHUNK_BYTES);
+
+        assertThrows(RuntimeException.class, () -> remote.download(LOCATION, FileMetadata.UNKNOWN, destination));
+        assertTrue(ParallelRangeDownloader.progressFile(destination).exists());
+        assertEquals(4, remote.rangeReads());
+
+        remote.setFailReadsFrom(Long.MAX_VALUE);
+        remote.download(LOCATION, FileMetadata.UNKNOWN, destination);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+        // chunks 0-2 were not downloaded again
+        assertEquals(8, remote.rangeReads());
+        assertFalse(ParallelRangeDownloader.progressFile(destination).exists());
+    }
+
+    @Test
+    void GIVEN_corrupted_content_WHEN_download_THEN_fail_integrity_check() {
+        ParallelRangeDownloader downloader = newDownloader(3);
+        File destination = new File(cacheDir, "All.download");
+        FileMetadata metadata = FileMetadata.builder().etag("etag-1").lengthBytes(CONTENT.length).build();
+        byte[] md5 = Hashing.md5().hashBytes(CONTENT).asBytes();
+        ParallelRangeDownloader.RangeSource zeros = (offset, length, out) -> out.write(new byte[(int) length]);
+
+        assertThrows(IOException.class, () -> downloader.download(zeros, metadata, md5, destination, DownloadListener.NONE));
+        assertFalse(destination.exists());
+        assertFalse(ParallelRangeDownloader.progressFile(destination).exists());
+    }
+
+    private LocalFileStorage newRemote(int parallelism) throws IOException {
+        File source = new File(cacheDir, "upload");
+        Files.write(source.toPath(), CONTENT);
+        LocalFileStorage remote = new LocalFileStorage(remoteDir, newDownloader(parallelism));
+        remote.upload(source, LOCATION);
+        return remote;
+    }
+
+    private ParallelRangeDownloader newDownloader(int parallelism) {
+        ParallelRangeDownloader.Settings settings = ParallelRangeDownloader.Settings.builder()
+            .chunkBytes(CHUNK_BYTES)
+            .parallelism(parallelism)
+            .build();
+        return new ParallelRangeDownloader(settings, executor);
+    }
+
+    private static DownloadListener listener(AtomicLong lastProgress) {
+        return new DownloadListener() {
+            @Override public void started(FileMetadata metadata) {}
+            @Override public void progress(long bytesWritten) { lastProgress.set(bytesWritten); }
+        };
+    }
+}
@@ -22,6 +22,7 @@ import org.junit.jupiter.api.Test;
 import org.raincityvoices.ttrack.service.async.AudioTrackTask;
 import org.raincityvoices.ttrack.service.async.AudioTrackTask.Input;
 import org.raincityvoices.ttrack.service.storage.async.AsyncTaskDTO;
+import org.raincityvoices.ttrack.service.storage.async.QueuedTaskDTO;
 import org.raincityvoices.ttrack.service.util.JsonUtils;
 import org.springframework.beans.BeanUtils;
 
@@ -346,4 +347,19 @@ public class TableEntityMapperTest {
         assertEquals(original, actual);
     }
 
+    @Test
+    public void testQueuedTaskRoundTrip() {
+        AsyncTaskDTO task = AsyncTaskDTO.builder()
+            .taskId("123123123")
+            .queued(true)
+            .scheduled(Instant.parse("2026-03-01T10:00:00Z"))
+            .build();
+        QueuedTaskDTO original = QueuedTaskDTO.forTask(task);
+        TableEntityMapper<QueuedTaskDTO> mapper = new TableEntityMapper<>(QueuedTaskDTO.class);
+        TableEntity entity = mapper.toTableEntity(original);
+        assertEquals(QueuedTaskDTO.PARTITION_KEY, entity.getPartitionKey());
+        assertEquals("0000001772359200000_123123123", entity.getRowKey());
+        assertEquals(original, mapper.fromTableEntity(entity));
+    }
+
 }
@@ -0,0 +1,57 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CacheIndexTest {
+
+    private static final File A = new File("a");
+    private static final File B = new File("b");
+    private static final File C = new File("c");
+
+    private final CacheIndex index = new CacheIndex(250);
+
+    @Test
+    void GIVEN_over_budget_WHEN_selectForEviction_THEN_least_recently_used_first() {
+        index.add(A, 100);
+        index.add(B, 100);
+        index.pin(A, 100);
+        index.unpin(A);
+        index.add(C, 100);
+
+        assertEquals(List.of(B), index.selectForEviction());
+        assertEquals(200, index.totalBytes());
+    }
+
+    @Test
+    void GIVEN_pinned_file_WHEN_selectForEviction_THEN_skipped() {
+        index.add(A, 100);
+        index.add(B, 100);
+        index.pin(A, 100);
+        index.add(C, 100);
+
+        // A is now the most recently used as well as pinned; B is next in line.
+        assertEquals(List.of(B), index.selectForEviction());
+        index.add(B, 100);
+        index.pin(C, 100);
+        assertEquals(List.of(B), index.selectForEviction());
+    }
+
+    @Test
+    void GIVEN_pinned_file_WHEN_retire_THEN_deleted_on_last_unpin() {
+        index.pin(A, 100);
+        index.pin(A, 100);
+
+        assertFalse(index.retire(A));
+        assertFalse(index.unpin(A));
+        assertTrue(index.unpin(A));
+        assertEquals(0, index.size());
+        assertEquals(0, index.totalBytes());
+    }
+}
@@ -2,10 +2,15 @@ package org.raincityvoices.ttrack.service.storage.media;
 
 import static org.hamcrest.Matchers.oneOf;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atMostOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -17,7 +22,14 @@ import static org.raincityvoices.ttrack.service.storage.media.DiskCachingMediaSt
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFileFormat.Type;
@@ -26,14 +38,19 @@ import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.raincityvoices.ttrack.service.audio.model.AudioFormats;
+import org.raincityvoices.ttrack.service.storage.files.DownloadListener;
 import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
 import org.raincityvoices.ttrack.service.storage.files.RemoteFileStorage;
 import org.raincityvoices.ttrack.service.util.FileManager;
 
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+
 public class DiskCachingMediaStorageTest {
 
     private static final Instant AWHILEAGO = Instant.parse("2026-02-02T12:34:56Z");
@@ -52,6 +69,7 @@ public class DiskCachingMediaStorageTest {
                                                         .etag(ETAG_1)
                                                         .build();
     
+    private static final String EMPTY_SHA256 = Hashing.sha256().hashBytes(new byte[0]).toString();
     private static final File CACHE_DIR = new File("/tmp/the-cache-dir");
 
     @Mock
@@ -76,21 +94,21 @@ public class DiskCachingMediaStorageTest {
     void GIVEN_nothing_in_cache_WHEN_getMedia_THEN_download() throws IOException, UnsupportedAudioFileException {
         when(fileManager.exists(anyFile())).thenReturn(false);
         when(remote.exists(anyString())).thenReturn(true);
-        when(remote.download(anyString(), anyMetadata(), anyFile())).thenReturn(TEST_METADATA);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenReturn(TEST_METADATA);
         AudioInputStream mediaStream = newInputStream();
         when(fileManager.getInputStream(anyFile())).thenReturn(mediaStream);
         
         MediaContent media = storage.getMedia(TEST_LOCATION);
-        // TODO too strict... storage might wrap or replace the original file stream
-        assertSame(mediaStream, media.stream());
         assertEquals(TEST_METADATA.updateFrom(AUDIO_METADATA), media.metadata());
+        // The storage wraps the file stream, to keep the file from being evicted while it's open
+        media.stream().close();
+        verify(mediaStream).close();
         
         // caching client construction
         verify(remote).fetchMetadata(TEST_LOCATION);
         verify(fileManager).exists(mediaFile(ETAG_1));
         // download
-        verify(remote).exists(TEST_LOCATION);
-        verify(remote).download(TEST_LOCATION, FileMetadata.UNKNOWN, downloadFile());
+        verify(remote).download(eq(TEST_LOCATION), eq(FileMetadata.UNKNOWN), eq(downloadFile()), anyListener());
         // local update
         verify(fileManager).rename(downloadFile(), mediaFile(ETAG_1));
         verify(fileManager).getInputStream(mediaFile(ETAG_1));
@@ -109,7 +127,7 @@ public class DiskCachingMediaStorageTest {
         when(remote.fetchMetadata(TEST_LOCATION)).thenReturn(TEST_METADATA);
         when(fileManager.exists(mediaFile(ETAG_1))).thenReturn(true);
         // on download, return the new ETag, which we don't have the file for
-        when(remote.download(anyString(), anyMetadata(), anyFile())).thenReturn(newMetadata);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenReturn(newMetadata);
         when(fileManager.exists(mediaFile(ETAG_2))).thenReturn(false);
         AudioInputStream mediaStream = newInputStream();
         when(fileManager.getInputStream(anyFile())).thenReturn(mediaStream);
@@ -121,10 +139,10 @@ public class DiskCachingMediaStorageTest {
         verify(fileManager, times(2)).exists(mediaFile(ETAG_1));
         verify(fileManager).getAudioFileFormat(mediaFile(ETAG_1));
         // download
-        verify(remote).exists(TEST_LOCATION);
-        verify(remote).download(TEST_LOCATION, TEST_METADATA, downloadFile());
+        verify(remote).download(eq(TEST_LOCATION), eq(TEST_METADATA), eq(downloadFile()), anyListener());
         // local update
         verify(fileManager).rename(downloadFile(), mediaFile(ETAG_2));
+        verify(fileManager).delete(mediaFile(ETAG_1));
         verify(fileManager).getInputStream(mediaFile(ETAG_2));
         verify(fileManager).getAudioFileFormat(argThat(oneOf(mediaFile(ETAG_2), downloadFile())));
         verify(fileManager, times(2)).getLengthBytes(argThat(oneOf(mediaFile(ETAG_1), mediaFile(ETAG_2), downloadFile())));
@@ -140,7 +158,7 @@ public class DiskCachingMediaStorageTest {
         when(fileManager.exists(mediaFile(ETAG_1))).thenReturn(true);
         // on download, return the same metadata
         when(remote.exists(anyString())).thenReturn(true);
-        when(remote.download(anyString(), anyMetadata(), anyFile())).thenReturn(TEST_METADATA);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenReturn(TEST_METADATA);
 
         storage.getMedia(TEST_LOCATION);
 
@@ -149,8 +167,7 @@ public class DiskCachingMediaStorageTest {
         verify(fileManager, times(2)).exists(mediaFile(ETAG_1));
         verify(fileManager).getAudioFileFormat(mediaFile(ETAG_1));
         // download
-        verify(remote).exists(TEST_LOCATION);
-        verify(remote).download(TEST_LOCATION, TEST_METADATA, downloadFile());
+        verify(remote).download(eq(TEST_LOCATION), eq(TEST_METADATA), eq(downloadFile()), anyListener());
         // provide the media
         verify(fileManager).getInputStream(mediaFile(ETAG_1));
         verify(fileManager).getLengthBytes(mediaFile(ETAG_1));
@@ -159,6 +176,128 @@ public class DiskCachingMediaStorageTest {
         verifyNoMoreInteractions(fileManager);
     }
 
+    @Test
+    void GIVEN_file_in_cache_validated_within_ttl_WHEN_getMedia_THEN_no_remote_calls() throws IOException {
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .metadataTtl(Duration.ofMinutes(1))
+            .build();
+        storage = new DiskCachingMediaStorage(remote, CACHE_DIR, fileManager, settings);
+        storage.clock = Clock.fixed(AWHILEAGO, ZoneOffset.UTC);
+        // on construction, return the ETag we have the file for
+        when(fileManager.exists(mediaFile(ETAG_1))).thenReturn(true);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenReturn(TEST_METADATA);
+        when(fileManager.getInputStream(anyFile())).thenReturn(newInputStream(), newInputStream());
+
+        storage.getMedia(TEST_LOCATION).stream().close();
+        storage.getMedia(TEST_LOCATION).stream().close();
+        verify(remote).fetchMetadata(TEST_LOCATION);
+        verifyNoMoreInteractions(remote);
+
+        storage.clock = Clock.offset(storage.clock, Duration.ofMinutes(2));
+        storage.getMedia(TEST_LOCATION).stream().close();
+        verify(remote).download(eq(TEST_LOCATION), eq(TEST_METADATA), eq(downloadFile()), anyListener());
+        verifyNoMoreInteractions(remote);
+
+        DiskCachingMediaStorage.Stats stats = storage.stats();
+        assertEquals(2, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.notModified());
+        assertEquals(0, stats.downloads());
+    }
+
+    @Test
+    void GIVEN_media_not_cached_WHEN_getDownloadUrl_within_ttl_THEN_remote_metadata_fetched_once() {
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .metadataTtl(Duration.ofMinutes(1))
+            .build();
+        storage = new DiskCachingMediaStorage(remote, CACHE_DIR, fileManager, settings);
+        storage.clock = Clock.fixed(AWHILEAGO, ZoneOffset.UTC);
+        when(fileManager.exists(anyFile())).thenReturn(false);
+        when(remote.getDownloadUrl(eq(TEST_LOCATION), eq(TEST_METADATA), any())).thenReturn("https://media/url");
+
+        assertEquals("https://media/url", storage.getDownloadUrl(TEST_LOCATION, Duration.ofMinutes(5)));
+        assertEquals("https://media/url", storage.getDownloadUrl(TEST_LOCATION, Duration.ofMinutes(5)));
+        verify(remote).fetchMetadata(TEST_LOCATION);
+
+        storage.clock = Clock.offset(storage.clock, Duration.ofMinutes(2));
+        storage.getDownloadUrl(TEST_LOCATION, Duration.ofMinutes(5));
+        verify(remote, times(2)).fetchMetadata(TEST_LOCATION);
+        verify(remote, times(3)).getDownloadUrl(eq(TEST_LOCATION), eq(TEST_METADATA), any());
+        verifyNoMoreInteractions(remote);
+    }
+
+    @Test
+    void GIVEN_stale_file_in_cache_WHEN_getMedia_THEN_served_while_revalidated_once_in_background() throws Exception {
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .metadataTtl(Duration.ofMinutes(1))
+            .staleWhileRevalidate(Duration.ofMinutes(1))
+            .build();
+        storage = new DiskCachingMediaStorage(remote, CACHE_DIR, fileManager, settings);
+        storage.clock = Clock.fixed(AWHILEAGO, ZoneOffset.UTC);
+        when(fileManager.exists(mediaFile(ETAG_1))).thenReturn(true);
+        CountDownLatch revalidating = new CountDownLatch(1);
+        CountDownLatch finishRevalidation = new CountDownLatch(1);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenAnswer(inv -> {
+            revalidating.countDown();
+            finishRevalidation.await();
+            return TEST_METADATA;
+        });
+        when(fileManager.getInputStream(anyFile())).thenReturn(newInputStream(), newInputStream(), newInputStream());
+        // Validated on construction of the location's client.
+        storage.getMediaMetadata(TEST_LOCATION);
+
+        storage.clock = Clock.offset(storage.clock, Duration.ofSeconds(90));
+        // Both reads are served from the cache without waiting for the revalidation they started.
+        storage.getMedia(TEST_LOCATION).stream().close();
+        assertTrue(revalidating.await(5, TimeUnit.SECONDS));
+        storage.getMedia(TEST_LOCATION).stream().close();
+        verify(fileManager, times(2)).getInputStream(mediaFile(ETAG_1));
+
+        finishRevalidation.countDown();
+        for (int i = 0; i < 100 && storage.stats().notModified() == 0; ++i) {
+            Thread.sleep(10);
+        }
+        // Revalidated, so fresh again.
+        storage.getMedia(TEST_LOCATION).stream().close();
+
+        verify(remote).fetchMetadata(TEST_LOCATION);
+        verify(remote).download(eq(TEST_LOCATION), eq(TEST_METADATA), eq(downloadFile()), anyListener());
+        verifyNoMoreInteractions(remote);
+        DiskCachingMediaStorage.Stats stats = storage.stats();
+        assertEquals(2, stats.staleHits());
+        assertEquals(1, stats.hits());
+        assertEquals(0, stats.misses());
+        assertEquals(1, stats.notModified());
+    }
+
+    @Test
+    void GIVEN_download_in_progress_WHEN_getMedia_THEN_share_download() throws Exception {
+        when(fileManager.exists(anyFile())).thenReturn(false);
+        CountDownLatch downloading = new CountDownLatch(1);
+        CountDownLatch finishDownload = new CountDownLatch(1);
+        when(remote.download(anyString(), anyMetadata(), anyFile(), anyListener())).thenAnswer(inv -> {
+            downloading.countDown();
+            finishDownload.await();
+            return TEST_METADATA;
+        });
+        when(fileManager.getInputStream(anyFile())).thenReturn(newInputStream(), newInputStream());
+
+        CompletableFuture<MediaContent> first = CompletableFuture.supplyAsync(() -> storage.getMedia(TEST_LOCATION));
+        downloading.await();
+        CompletableFuture<MediaContent> second = new CompletableFuture<>();
+        Thread secondReader = new Thread(() -> second.complete(storage.getMedia(TEST_LOCATION)));
+        secondReader.start();
+        while (secondReader.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        finishDownload.countDown();
+
+        first.get(5, TimeUnit.SECONDS).stream().close();
+        second.get(5, TimeUnit.SECONDS).stream().close();
+        verify(remote).download(eq(TEST_LOCATION), eq(FileMetadata.UNKNOWN), eq(downloadFile()), anyListener());
+        verify(fileManager, times(2)).getInputStream(mediaFile(ETAG_1));
+    }
+
     @Test
     void GIVEN_nothing_in_cache_or_remote_WHEN_putMedia_THEN_upload_and_save_in_cache() throws IOException, UnsupportedAudioFileException {
         when(remote.exists(anyString())).thenReturn(false);
@@ -168,18 +307,21 @@ public class DiskCachingMediaStorageTest {
         when(fileManager.getOutputStream(anyFile())).thenReturn(mediaOutStream);
         
         FileMetadata originalMetadata = FileMetadata.builder().fileName(ORIGINAL_FILENAME).updated(TEST_METADATA.updated()).build();
-        // first call, during construction: no media; second call, after upload: just-uploaded metadata plus new ETag.
-        when(remote.fetchMetadata(anyString())).thenReturn(null, TEST_METADATA);
+        // first call, during construction: no media; second call, checking for identical media: none;
+        // third call, after upload: just-uploaded metadata plus new ETag.
+        when(remote.fetchMetadata(anyString())).thenReturn(null, null, TEST_METADATA);
 
         storage.putMedia(TEST_LOCATION, new MediaContent(mediaInStream, originalMetadata));
         assertEquals(TEST_METADATA.updateFrom(AUDIO_METADATA), storage.getMediaMetadata(TEST_LOCATION));
 
-        verify(mediaInStream).transferTo(mediaOutStream);
+        verify(mediaInStream).transferTo(any(HashingOutputStream.class));
         verify(fileManager).getOutputStream(uploadFile());
         verify(fileManager).getAudioFileFormat(uploadFile());
         verify(remote).upload(uploadFile(), TEST_LOCATION);
-        verify(remote).updateMetadata(originalMetadata.updateFrom(AUDIO_METADATA).withLengthBytes(TEST_METADATA.lengthBytes()), TEST_LOCATION);
-        verify(remote, times(2)).fetchMetadata(TEST_LOCATION);
+        verify(remote).updateMetadata(originalMetadata.updateFrom(AUDIO_METADATA)
+            .withLengthBytes(TEST_METADATA.lengthBytes())
+            .withContentSha256(EMPTY_SHA256), TEST_LOCATION);
+        verify(remote, times(3)).fetchMetadata(TEST_LOCATION);
         verify(fileManager).rename(uploadFile(), mediaFile(ETAG_1));
         verify(fileManager, times(2)).getLengthBytes(anyFile());
         verify(fileManager, atMostOnce()).getAudioFileFormat(mediaFile(ETAG_1));
@@ -188,6 +330,108 @@ public class DiskCachingMediaStorageTest {
         verifyNoMoreInteractions(remote);
     }
 
+    @Test
+    void GIVEN_identical_media_in_remote_WHEN_putMediaIfChanged_THEN_nothing_stored() throws IOException {
+        when(fileManager.exists(anyFile())).thenReturn(false);
+        when(fileManager.getOutputStream(anyFile())).thenReturn(new ByteArrayOutputStream());
+        when(remote.fetchMetadata(anyString())).thenReturn(TEST_METADATA.withContentSha256(EMPTY_SHA256));
+
+        CompletableFuture<FileMetadata> uploaded = storage.putMediaIfChanged(TEST_LOCATION,
+            new MediaContent(Mockito.mock(AudioInputStream.class), FileMetadata.UNKNOWN));
+
+        assertNull(uploaded);
+        verify(fileManager).delete(uploadFile());
+        verify(remote, never()).upload(anyFile(), anyString());
+        verify(remote, never()).updateMetadata(anyMetadata(), anyString());
+    }
+
+    @Test
+    void GIVEN_write_behind_WHEN_putMediaAsync_THEN_readable_before_upload_completes(@TempDir File cacheDir) throws Exception {
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .writeBehind(true)
+            .build();
+        storage = new DiskCachingMediaStorage(remote, cacheDir, fileManager, settings);
+        File journalEntry = new File(new File(cacheDir, DiskCachingMediaStorage.JOURNAL_DIR), uploadFile().getName() + ".json");
+        CountDownLatch finishUpload = new CountDownLatch(1);
+        doAnswer(inv -> { finishUpload.await(); return null; }).when(remote).upload(anyFile(), anyString());
+        // first call, during construction: no media; second call, after upload: the new ETag.
+        when(remote.fetchMetadata(anyString())).thenReturn(null, TEST_METADATA);
+        when(fileManager.getOutputStream(anyFile())).thenReturn(new ByteArrayOutputStream());
+        when(fileManager.getInputStream(anyFile())).thenReturn(newInputStream());
+
+        CompletableFuture<FileMetadata> uploaded = storage.putMediaAsync(TEST_LOCATION,
+            new MediaContent(Mockito.mock(AudioInputStream.class), FileMetadata.UNKNOWN));
+        assertFalse(uploaded.isDone());
+        assertTrue(journalEntry.exists());
+        storage.getMedia(TEST_LOCATION).stream().close();
+        verify(fileManager).getInputStream(uploadFile());
+        verify(remote, never()).download(anyString(), anyMetadata(), anyFile(), anyListener());
+
+        finishUpload.countDown();
+        assertEquals(ETAG_1, uploaded.get(5, TimeUnit.SECONDS).etag());
+        verify(fileManager).rename(uploadFile(), mediaFile(ETAG_1));
+        assertFalse(journalEntry.exists());
+    }
+
+    @Test
+    void GIVEN_files_in_cache_dir_WHEN_startup_THEN_index_without_remote_calls(@TempDir File cacheDir) throws IOException {
+        DiskCachingMediaStorage scanning = new DiskCachingMediaStorage(remote, cacheDir, fileManager);
+        File oldVersion = scanning.mediaFile(TEST_LOCATION, ETAG_1);
+        File newVersion = scanning.mediaFile(TEST_LOCATION, ETAG_2);
+        File leftoverDownload = scanning.mediaFile(TEST_LOCATION, DOWNLOAD_FILE_SUFFIX);
+        Files.write(oldVersion.toPath(), new byte[10]);
+        Files.write(newVersion.toPath(), new byte[10]);
+        Files.write(leftoverDownload.toPath(), new byte[10]);
+        oldVersion.setLastModified(newVersion.lastModified() - 60_000);
+        when(fileManager.exists(newVersion)).thenReturn(true);
+
+        scanning = new DiskCachingMediaStorage(remote, cacheDir, fileManager);
+
+        assertFalse(oldVersion.exists());
+        assertFalse(leftoverDownload.exists());
+        assertTrue(newVersion.exists());
+        assertEquals(ETAG_2, scanning.getMediaMetadata(TEST_LOCATION).etag());
+        verify(remote, never()).fetchMetadata(anyString());
+    }
+
+    @Test
+    void GIVEN_metadata_sidecar_WHEN_cached_file_adopted_THEN_no_audio_probe(@TempDir File cacheDir) throws Exception {
+        DiskCachingMediaStorage scanning = new DiskCachingMediaStorage(remote, cacheDir, fileManager);
+        File cachedFile = scanning.mediaFile(TEST_LOCATION, ETAG_1);
+        Files.write(cachedFile.toPath(), new byte[10]);
+        MetadataSidecar.write(cachedFile, TEST_METADATA);
+        when(fileManager.exists(cachedFile)).thenReturn(true);
+
+        scanning = new DiskCachingMediaStorage(remote, cacheDir, fileManager);
+
+        assertEquals(TEST_METADATA, scanning.getMediaMetadata(TEST_LOCATION));
+        verify(fileManager, never()).getAudioFileFormat(anyFile());
+        verify(remote, never()).fetchMetadata(anyString());
+    }
+
+    @Test
+    void GIVEN_cache_over_budget_WHEN_media_cached_THEN_evict_least_recently_used() throws IOException {
+        DiskCachingMediaStorage.Settings settings = DiskCachingMediaStorage.Settings.builder()
+            .maxBytes(TEST_METADATA.lengthBytes() * 3 / 2)
+            .build();
+        storage = new DiskCachingMediaStorage(remote, CACHE_DIR, fileManager, settings);
+        String otherLocation = "sunshine/Bass";
+        FileMetadata otherMetadata = TEST_METADATA.withEtag(ETAG_2);
+        when(fileManager.exists(anyFile())).thenReturn(false);
+        when(remote.exists(anyString())).thenReturn(true);
+        when(remote.fetchMetadata(otherLocation)).thenReturn(otherMetadata);
+        when(remote.download(eq(TEST_LOCATION), anyMetadata(), anyFile(), anyListener())).thenReturn(TEST_METADATA);
+        when(remote.download(eq(otherLocation), anyMetadata(), anyFile(), anyListener())).thenReturn(otherMetadata);
+        when(fileManager.getInputStream(anyFile())).thenReturn(newInputStream(), newInputStream());
+
+        storage.getMedia(TEST_LOCATION).stream().close();
+        verify(fileManager, never()).delete(anyFile());
+
+        storage.getMedia(otherLocation).stream().close();
+        verify(fileManager).delete(mediaFile(ETAG_1));
+        verify(fileManager, never()).delete(storage.mediaFile(otherLocation, ETAG_2));
+    }
+
     private AudioInputStream newInputStream() {
         AudioInputStream stream = Mockito.mock(AudioInputStream.class);
         when(stream.getFormat()).thenReturn(AUDIO_FORMAT.getFormat());
@@ -205,4 +449,5 @@ public class DiskCachingMediaStorageTest {
 
     private File anyFile() { return any(File.class); }
     private FileMetadata anyMetadata() { return any(FileMetadata.class); }
+    private DownloadListener anyListener() { return any(DownloadListener.class); }
 }
@@ -0,0 +1,67 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.storage.files.FileMetadata;
+
+public class InFlightDownloadTest {
+
+    private static final FileMetadata METADATA = FileMetadata.builder().etag("etag-1").lengthBytes(5).build();
+    private static final byte[] CONTENT = { 1, 2, 3, 4, 5 };
+
+    private final InFlightDownload download = new InFlightDownload();
+
+    @Test
+    void GIVEN_partial_content_WHEN_read_THEN_wait_for_more_until_complete() throws Exception {
+        download.started(METADATA);
+        download.progress(3);
+        InputStream reader = download.reader(new ByteArrayInputStream(CONTENT));
+        byte[] buffer = new byte[10];
+
+        assertEquals(METADATA, download.awaitStart());
+        assertEquals(3, reader.read(buffer, 0, buffer.length));
+        CompletableFuture<Integer> nextRead = CompletableFuture.supplyAsync(() -> readQuietly(reader, buffer));
+        Thread.sleep(50);
+        assertFalse(nextRead.isDone());
+
+        download.progress(5);
+        download.complete();
+        assertEquals(2, nextRead.get(5, TimeUnit.SECONDS));
+        assertEquals(-1, reader.read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    void GIVEN_download_fails_WHEN_waiting_THEN_failure_reported_to_all() {
+        download.started(METADATA);
+        InputStream reader = download.reader(new ByteArrayInputStream(CONTENT));
+
+        download.fail(new IOException("connection reset"));
+
+        assertThrows(RuntimeException.class, download::awaitStart);
+        assertThrows(IOException.class, () -> reader.read(new byte[10], 0, 10));
+    }
+
+    @Test
+    void GIVEN_no_content_transferred_WHEN_complete_THEN_awaitStart_returns_null() {
+        download.complete();
+        assertNull(download.awaitStart());
+    }
+
+    private static int readQuietly(InputStream in, byte[] buffer) {
+        try {
+            return in.read(buffer, 0, buffer.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
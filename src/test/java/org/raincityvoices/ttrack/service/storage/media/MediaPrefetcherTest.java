@@ -0,0 +1,75 @@
+package org.raincityvoices.ttrack.service.storage.media;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class MediaPrefetcherTest {
+
+    private static final String LEAD = "sunshine/Lead";
+    private static final String BASS = "sunshine/Bass";
+
+    @Mock
+    private MediaStorage mediaStorage;
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private MediaPrefetcher prefetcher;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        prefetcher = new MediaPrefetcher(mediaStorage, busy::get, MediaPrefetcher.Settings.builder()
+            .concurrency(1)
+            .busyBackoff(Duration.ofMillis(10))
+            .build());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        prefetcher.shutdown();
+    }
+
+    @Test
+    void GIVEN_location_being_prefetched_WHEN_prefetch_again_THEN_fetched_once() throws InterruptedException {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch finishFetch = new CountDownLatch(1);
+        when(mediaStorage.prefetch(LEAD)).thenAnswer(inv -> {
+            fetching.countDown();
+            finishFetch.await();
+            return true;
+        });
+
+        prefetcher.prefetch(List.of(LEAD));
+        fetching.await();
+        prefetcher.prefetch(List.of(LEAD, BASS));
+        finishFetch.countDown();
+
+        verify(mediaStorage, timeout(1000)).prefetch(BASS);
+        verify(mediaStorage, times(1)).prefetch(LEAD);
+    }
+
+    @Test
+    void GIVEN_service_busy_WHEN_prefetch_THEN_wait_until_not_busy() throws InterruptedException {
+        busy.set(true);
+
+        prefetcher.prefetch(List.of(LEAD));
+        Thread.sleep(100);
+        verify(mediaStorage, never()).prefetch(LEAD);
+
+        busy.set(false);
+        verify(mediaStorage, timeout(1000)).prefetch(LEAD);
+    }
+}
@@ -0,0 +1,138 @@
+package org.raincityvoices.ttrack.service.storage.songs;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.raincityvoices.ttrack.service.exceptions.ConflictException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * In-memory implementation of SongStorage, standing in for the Songs table in tests. Tracks have the
+ * same optimistic concurrency semantics as the Azure Tables implementation (creates fail if the row
+ * exists; updates fail if the ETag doesn't match), and are copied on the way in and out, so that
+ * callers can't modify the stored rows. Songs are stored as given.
+ */
+public class InMemorySongStorage implements SongStorage {
+
+    private final Map<String, SongDTO> songs = new ConcurrentHashMap<>();
+    private final Map<String, AudioTrackDTO> tracks = new ConcurrentHashMap<>();
+
+    @Override
+    public List<SongDTO> listAllSongs(boolean includeArchived) {
+        return songs.values().stream()
+            .filter(s -> includeArchived || !s.isArchived())
+            .toList();
+    }
+
+    @Override
+    public SongDTO describeSong(String songId) {
+        return songs.get(songId);
+    }
+
+    @Override
+    public String writeSong(SongDTO songDto) {
+        if (songDto.getId() == null || songDto.getId().isEmpty()) {
+            songDto.setId(UUID.randomUUID().toString().substring(0, 8));
+        }
+        songs.put(songDto.getId(), songDto);
+        return songDto.getId();
+    }
+
+    @Override
+    public boolean archiveSong(String songId) {
+        SongDTO song = songs.get(songId);
+        if (song == null || song.isArchived()) {
+            return false;
+        }
+        song.setArchived(true);
+        return true;
+    }
+
+    @Override
+    public boolean unarchiveSong(String songId) {
+        SongDTO song = songs.get(songId);
+        if (song == null || !song.isArchived()) {
+            return false;
+        }
+        song.setArchived(false);
+        return true;
+    }
+
+    @Override
+    public boolean deleteSong(String songId) {
+        if (!listTracksForSong(songId).isEmpty()) {
+            return false;
+        }
+        return songs.remove(songId) != null;
+    }
+
+    @Override
+    public List<AudioTrackDTO> listParts(Optional<String> songId) {
+        return listTracks(songId).stream().filter(AudioTrackDTO::isPartTrack).toList();
+    }
+
+    @Override
+    public List<AudioTrackDTO> listMixes(Optional<String> songId, Optional<String> mixName) {
+        return listTracks(songId).stream()
+            .filter(AudioTrackDTO::isMixTrack)
+            .filter(t -> mixName.map(t.getId()::equals).orElse(true))
+            .toList();
+    }
+
+    @Override
+    public List<AudioTrackDTO> listTracksForSong(String songId) {
+        Preconditions.checkNotNull(songId);
+        return listTracks(Optional.of(songId));
+    }
+
+    private List<AudioTrackDTO> listTracks(Optional<String> songId) {
+        return tracks.values().stream()
+            .filter(t -> songId.map(t.getSongId()::equals).orElse(true))
+            .sorted(Comparator.comparing(AudioTrackDTO::getFqId))
+            .map(this::copy)
+            .toList();
+    }
+
+    @Override
+    public AudioTrackDTO describeTrack(String songId, String trackId) {
+        Preconditions.checkNotNull(songId);
+        Preconditions.checkNotNull(trackId);
+        AudioTrackDTO dto = tracks.get(AudioTrackDTO.fqId(songId, trackId));
+        return dto == null ? null : copy(dto);
+    }
+
+    @Override
+    public boolean deleteTrack(String songId, String trackId) {
+        return tracks.remove(AudioTrackDTO.fqId(songId, trackId)) != null;
+    }
+
+    @Override
+    public synchronized AudioTrackDTO writeTrack(AudioTrackDTO trackDto) {
+        Preconditions.checkNotNull(trackDto);
+        Preconditions.checkArgument(trackDto.isValid());
+        AudioTrackDTO existing = tracks.get(trackDto.getFqId());
+        if (trackDto.hasETag()
+                ? existing == null || !existing.getETag().equals(trackDto.getETag())
+                : existing != null) {
+            throw new ConflictException("Track " + trackDto.getFqId() + " has been updated since last read.");
+        }
+        if (trackDto.getCreated() == null) {
+            trackDto.setCreated(Instant.now());
+        }
+        trackDto.setETag(UUID.randomUUID().toString());
+        tracks.put(trackDto.getFqId(), copy(trackDto));
+        return trackDto;
+    }
+
+    private AudioTrackDTO copy(AudioTrackDTO dto) {
+        AudioTrackDTO copy = dto.toBuilder().build();
+        copy.setETag(dto.getETag());
+        return copy;
+    }
+}
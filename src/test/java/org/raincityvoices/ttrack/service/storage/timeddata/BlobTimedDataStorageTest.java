@@ -0,0 +1,208 @@
+package org.raincityvoices.ttrack.service.storage.timeddata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.storage.MemoryTierCache;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataStorage.TimedDataMetadata;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO.Entry;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobDownloadContentResponse;
+import com.azure.storage.blob.models.BlobDownloadHeaders;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.BlockBlobItem;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class BlobTimedDataStorageTest {
+
+    private static final String SONG_ID = "song1";
+    private static final String MANIFEST = SONG_ID + "/manifest.json";
+    private static final OffsetDateTime LEGACY_TIME = OffsetDateTime.of(2025, 6, 1, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    /** Blob contents and ETags, standing in for the container. */
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEtag = new AtomicInteger();
+    private final AtomicInteger manifestUploads = new AtomicInteger();
+    /** Run, once, just before the next manifest upload is applied. */
+    private Runnable beforeNextUpload;
+    private BlobContainerClient containerClient;
+    private BlobTimedDataStorage storage;
+
+    @BeforeEach
+    public void setup() {
+        containerClient = mock(BlobContainerClient.class);
+        when(containerClient.getBlobClient(anyString())).thenAnswer(inv -> blobClient(inv.getArgument(0)));
+        when(containerClient.listBlobs(any(ListBlobsOptions.class), any())).thenAnswer(inv -> {
+            String prefix = inv.<ListBlobsOptions>getArgument(0).getPrefix();
+            List<BlobItem> items = blobs.keySet().stream()
+                .filter(name -> name.startsWith(prefix))
+                .sorted()
+                .map(name -> new BlobItem()
+                    .setName(name)
+                    .setIsPrefix(false)
+                    .setProperties(new BlobItemProperties().setCreationTime(LEGACY_TIME).setLastModified(LEGACY_TIME)))
+                .toList();
+            @SuppressWarnings("unchecked")
+            PagedIterable<BlobItem> iterable = mock(PagedIterable.class);
+            when(iterable.stream()).thenAnswer(i -> items.stream());
+            return iterable;
+        });
+        storage = newStorage();
+    }
+
+    @Test
+    void GIVEN_song_without_data_WHEN_read_twice_THEN_empty_manifest_stored_and_blobs_listed_once() {
+        assertEquals(List.of(), storage.getAllDataForSong(SONG_ID));
+        assertEquals(List.of(), storage.getAllDataForSong(SONG_ID));
+        // Another instance, without a cached copy, finds the stored manifest too.
+        assertEquals(List.of(), newStorage().getAllDataForSong(SONG_ID));
+
+        assertTrue(blobs.containsKey(MANIFEST));
+        assertEquals(1, manifestUploads.get());
+        verify(containerClient, times(1)).listBlobs(any(ListBlobsOptions.class), any());
+    }
+
+    @Test
+    void GIVEN_legacy_blobs_WHEN_read_THEN_migrated_to_manifest() {
+        storeLegacy(data("Lead", "LYRICS", "la"));
+        storeLegacy(data("ALL", "MEASURES", "1"));
+
+        List<TimedDataMetadata> listed = storage.listDataForSong(SONG_ID);
+
+        assertEquals(2, listed.size());
+        TimedDataMetadata lyrics = listed.stream().filter(m -> m.getPart().equals("Lead")).findFirst().orElseThrow();
+        assertEquals("LYRICS", lyrics.getType());
+        assertEquals(LEGACY_TIME.toInstant(), lyrics.getCreated());
+        assertEquals(LEGACY_TIME.toInstant(), lyrics.getUpdated());
+        assertEquals(data("Lead", "LYRICS", "la").entries(), storage.getDataForPart(SONG_ID, "Lead", "LYRICS").entries());
+        assertTrue(blobs.containsKey(MANIFEST));
+        assertEquals(2, newStorage().getAllDataForSong(SONG_ID).size());
+        verify(containerClient, times(1)).listBlobs(any(ListBlobsOptions.class), any());
+    }
+
+    @Test
+    void GIVEN_manifest_updated_concurrently_WHEN_put_THEN_retried_and_both_updates_kept() {
+        storage.putDataForSong(SONG_ID, data("Lead", "LYRICS", "la"));
+        BlobTimedDataStorage other = newStorage();
+        beforeNextUpload = () -> other.putDataForSong(SONG_ID, data("Bass", "LYRICS", "doo"));
+        manifestUploads.set(0);
+
+        storage.putDataForSong(SONG_ID, data("Tenor", "LYRICS", "ooh"));
+
+        // The conflicting upload, the other instance's upload, and the retry.
+        assertEquals(3, manifestUploads.get());
+        for (BlobTimedDataStorage reader : List.of(storage, other, newStorage())) {
+            assertEquals(List.of("Lead", "Bass", "Tenor"),
+                reader.getAllDataForSong(SONG_ID).stream().map(TimedTextDTO::part).toList());
+        }
+    }
+
+    private BlobTimedDataStorage newStorage() {
+        MemoryTierCache<TimedDataManifest> cache = new MemoryTierCache<>("test",
+            MemoryTierCache.Settings.builder().maxBytes(1 << 20).maxEntryBytes(1 << 16).build(), new SimpleMeterRegistry());
+        BlobTimedDataStorage result = new BlobTimedDataStorage(containerClient, cache);
+        result.clock = Clock.fixed(Instant.parse("2026-02-02T12:00:00Z"), ZoneOffset.UTC);
+        return result;
+    }
+
+    private BlobClient blobClient(String name) {
+        BlobClient client = mock(BlobClient.class);
+        when(client.downloadContent()).thenAnswer(inv -> BinaryData.fromBytes(blobs.get(name)));
+        when(client.downloadContentWithResponse(any(), any(), any(), any())).thenAnswer(inv -> {
+            BlobRequestConditions conditions = inv.getArgument(1);
+            String etag = etags.get(name);
+            if (etag == null) {
+                throw storageException(404);
+            }
+            if (conditions != null && etag.equals(conditions.getIfNoneMatch())) {
+                throw storageException(304);
+            }
+            BlobDownloadContentResponse response = mock(BlobDownloadContentResponse.class);
+            when(response.getValue()).thenReturn(BinaryData.fromBytes(blobs.get(name)));
+            when(response.getDeserializedHeaders()).thenReturn(new BlobDownloadHeaders().setETag(etag));
+            return response;
+        });
+        when(client.uploadWithResponse(any(BlobParallelUploadOptions.class), any(), any())).thenAnswer(inv -> {
+            manifestUploads.incrementAndGet();
+            Runnable before = beforeNextUpload;
+            beforeNextUpload = null;
+            if (before != null) {
+                before.run();
+            }
+            BlobParallelUploadOptions options = inv.getArgument(0);
+            BlobRequestConditions conditions = options.getRequestConditions();
+            String etag = etags.get(name);
+            boolean conflict = "*".equals(conditions.getIfNoneMatch())
+                ? etag != null
+                : !conditions.getIfMatch().equals(etag);
+            if (conflict) {
+                throw storageException(etag != null && "*".equals(conditions.getIfNoneMatch()) ? 409 : 412);
+            }
+            return uploaded(name, options.getData().toBytes());
+        });
+        return client;
+    }
+
+    private Response<BlockBlobItem> uploaded(String name, byte[] content) {
+        String etag = "\"0x" + nextEtag.incrementAndGet() + "\"";
+        blobs.put(name, content);
+        etags.put(name, etag);
+        BlockBlobItem item = mock(BlockBlobItem.class);
+        when(item.getETag()).thenReturn(etag);
+        @SuppressWarnings("unchecked")
+        Response<BlockBlobItem> response = mock(Response.class);
+        when(response.getValue()).thenReturn(item);
+        return response;
+    }
+
+    private void storeLegacy(TimedTextDTO data) {
+        String name = SONG_ID + "/" + data.part() + "/" + data.type() + ".json";
+        blobs.put(name, JsonUtils.toJson(data).getBytes(StandardCharsets.UTF_8));
+        etags.put(name, "\"legacy-" + name + "\"");
+    }
+
+    private static BlobStorageException storageException(int statusCode) {
+        BlobStorageException e = mock(BlobStorageException.class);
+        when(e.getStatusCode()).thenReturn(statusCode);
+        return e;
+    }
+
+    private static TimedTextDTO data(String part, String type, String value) {
+        return TimedTextDTO.builder()
+            .part(part)
+            .type(type)
+            .entries(List.of(new Entry(0, value)))
+            .build();
+    }
+}
@@ -0,0 +1,47 @@
+package org.raincityvoices.ttrack.service.storage.timeddata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO.Entry;
+import org.raincityvoices.ttrack.service.util.JsonUtils;
+
+public class ColumnarTimedTextTest {
+
+    private static final TimedTextDTO MEASURES = TimedTextDTO.builder()
+        .type("MEASURES")
+        .part("ALL")
+        .entries(List.of(
+            new Entry(3000, "3"),
+            new Entry(0, "1"),
+            new Entry(1000, "2"),
+            new Entry(4000, "1"),
+            new Entry(5000, "2")
+        ))
+        .build();
+
+    @Test
+    void GIVEN_unsorted_entries_WHEN_fromDTO_THEN_sorted_and_round_trip_through_json() throws Exception {
+        ColumnarTimedText text = ColumnarTimedText.fromDTO(MEASURES);
+
+        String json = JsonUtils.toJson(text);
+        ColumnarTimedText parsed = JsonUtils.fromJson(json, ColumnarTimedText.class);
+
+        assertEquals(text, parsed);
+        assertEquals("{\"type\":\"MEASURES\",\"part\":\"ALL\",\"dt\":[0,1000,2000,1000,1000],\"v\":[0,1,2,0,1],\"strings\":[\"1\",\"2\",\"3\"]}", json);
+        assertEquals(List.of(new Entry(0, "1"), new Entry(1000, "2"), new Entry(3000, "3"), new Entry(4000, "1"), new Entry(5000, "2")),
+            parsed.toDTO().entries());
+    }
+
+    @Test
+    void GIVEN_window_between_entries_WHEN_window_THEN_entry_in_effect_and_entries_in_window() {
+        ColumnarTimedText text = ColumnarTimedText.fromDTO(MEASURES);
+
+        assertEquals(List.of(new Entry(1000, "2"), new Entry(3000, "3")), text.window(2000, 4000).entries());
+        assertEquals(List.of(new Entry(3000, "3"), new Entry(4000, "1")), text.window(3000, 4500).entries());
+        assertEquals(List.of(new Entry(5000, "2")), text.window(6000, 7000).entries());
+        assertEquals(List.of(), text.window(-1000, -500).entries());
+    }
+}
@@ -0,0 +1,80 @@
+package org.raincityvoices.ttrack.service.storage.timeddata;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedDataManifest.Item;
+import org.raincityvoices.ttrack.service.storage.timeddata.TimedTextDTO.Entry;
+
+public class TimedDataManifestTest {
+
+    private static final Instant CREATED = Instant.parse("2026-02-02T12:00:00Z");
+    private static final Instant UPDATED = Instant.parse("2026-02-03T12:00:00Z");
+
+    @Test
+    void GIVEN_new_part_and_type_WHEN_with_THEN_item_added() {
+        TimedDataManifest manifest = TimedDataManifest.EMPTY
+            .with(data("Lead", "LYRICS", "la"), CREATED)
+            .with(data("Bass", "LYRICS", "doo"), UPDATED);
+
+        assertEquals(2, manifest.items().size());
+        Item lead = manifest.find("Lead", "LYRICS");
+        assertEquals(CREATED, lead.created());
+        assertEquals(CREATED, lead.updated());
+        assertEquals(data("Lead", "LYRICS", "la").entries(), lead.text().toDTO().entries());
+        assertEquals(UPDATED, manifest.find("Bass", "LYRICS").created());
+        assertNull(manifest.find("Lead", "MEASURES"));
+    }
+
+    @Test
+    void GIVEN_existing_data_WHEN_with_THEN_replaced_keeping_created_time() {
+        TimedDataManifest original = TimedDataManifest.EMPTY
+            .with(data("Lead", "LYRICS", "la"), CREATED)
+            .with(data("Bass", "LYRICS", "doo"), CREATED);
+
+        TimedDataManifest updated = original.with(data("Lead", "LYRICS", "dum"), UPDATED);
+
+        assertEquals(List.of("Lead", "Bass"), updated.items().stream().map(Item::part).toList());
+        Item lead = updated.find("Lead", "LYRICS");
+        assertEquals(CREATED, lead.created());
+        assertEquals(UPDATED, lead.updated());
+        assertEquals("dum", lead.text().toDTO().entries().get(0).v());
+        assertNotEquals(original.find("Lead", "LYRICS").etag(), lead.etag());
+        assertEquals(original.find("Bass", "LYRICS"), updated.find("Bass", "LYRICS"));
+    }
+
+    @Test
+    void GIVEN_same_data_WHEN_with_THEN_etag_unchanged() {
+        TimedDataManifest original = TimedDataManifest.EMPTY.with(data("Lead", "LYRICS", "la"), CREATED);
+
+        TimedDataManifest updated = original.with(data("Lead", "LYRICS", "la"), UPDATED);
+
+        assertEquals(original.find("Lead", "LYRICS").etag(), updated.find("Lead", "LYRICS").etag());
+    }
+
+    @Test
+    void GIVEN_data_WHEN_without_THEN_only_that_part_and_type_removed() {
+        TimedDataManifest manifest = TimedDataManifest.EMPTY
+            .with(data("Lead", "LYRICS", "la"), CREATED)
+            .with(data("Lead", "MEASURES", "1"), CREATED);
+
+        TimedDataManifest removed = manifest.without("Lead", "LYRICS");
+
+        assertNull(removed.find("Lead", "LYRICS"));
+        assertEquals(manifest.find("Lead", "MEASURES"), removed.find("Lead", "MEASURES"));
+        assertEquals(removed, removed.without("Lead", "LYRICS"));
+    }
+
+    private static TimedTextDTO data(String part, String type, String value) {
+        return TimedTextDTO.builder()
+            .part(part)
+            .type(type)
+            .entries(List.of(new Entry(0, value), new Entry(1000, value)))
+            .build();
+    }
+}